@@ -0,0 +1,33 @@
+package com.redpantssoft.cloudtodolist;
+
+import android.os.Bundle;
+import android.test.InstrumentationTestRunner;
+
+/**
+ * InstrumentationTestRunner that keeps the arguments the instrumentation was started
+ * with, so tests like the benchmarks can be configured from the command line, e.g.
+ * <p/>
+ * adb shell am instrument -w -e cloudtodolist.benchmark.sizes 100,1000
+ * com.redpantssoft.cloudtodolist.test/com.redpantssoft.cloudtodolist.ArgumentsTestRunner
+ */
+public class ArgumentsTestRunner extends InstrumentationTestRunner {
+
+    // Arguments of the running instrumentation, empty until it is created
+    private static volatile Bundle arguments = new Bundle();
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        ArgumentsTestRunner.arguments = (arguments != null ? new Bundle(arguments) : new Bundle());
+        super.onCreate(arguments);
+    }
+
+    /**
+     * @param name         name of the argument, as passed with -e
+     * @param defaultValue value returned when the argument wasn't passed
+     * @return value of the argument, or the default value
+     */
+    public static String getArgument(String name, String defaultValue) {
+        String value = arguments.getString(name);
+        return (value != null ? value : defaultValue);
+    }
+}
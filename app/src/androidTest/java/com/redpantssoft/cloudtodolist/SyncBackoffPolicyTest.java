@@ -0,0 +1,261 @@
+package com.redpantssoft.cloudtodolist;
+
+import junit.framework.TestCase;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Tests for the SyncBackoffPolicy. Besides the basic state transitions, this
+ * simulates a fleet of devices syncing against a backend going through an outage,
+ * described by an outage curve, and checks the load the fleet puts on the backend.
+ */
+public class SyncBackoffPolicyTest extends TestCase {
+
+    private static final long ONE_SECOND = 1000;
+    private static final long ONE_MINUTE = 60 * ONE_SECOND;
+    private static final long ONE_HOUR = 60 * ONE_MINUTE;
+
+    // Size of the simulated fleet
+    private static final int FLEET_SIZE = 1000;
+
+    // Periodic sync interval of the simulated devices
+    private static final long SYNC_INTERVAL = 15 * ONE_MINUTE;
+
+    // Retry interval used before the backoff policy, for comparison
+    private static final long FIXED_RETRY = 30 * ONE_SECOND;
+
+    // Time allowed for the retries of devices that failed together to spread out
+    private static final long SPREAD_TIME = 10 * ONE_MINUTE;
+
+    /**
+     * Describes the probability that the backend fails a request at a point in time
+     */
+    private interface OutageCurve {
+        double failureRate(long time);
+    }
+
+    /**
+     * Load observed by the backend during a simulation
+     */
+    private static class Load {
+        // Requests received during the outage
+        long outageRequests = 0;
+        // Largest number of requests received in a single FIXED_RETRY window during
+        //  the outage, once the initial burst of retries had time to spread
+        long peakRequests = 0;
+        // Time at which the last device had a successful sync after the outage
+        long recoveryTime = 0;
+    }
+
+    /**
+     * Simulated device, ordered by the time of its next sync attempt
+     */
+    private static class Device implements Comparable<Device> {
+        final SyncBackoffPolicy policy;
+        long nextAttempt;
+        boolean recovered = false;
+        int failures = 0;
+
+        Device(SyncBackoffPolicy policy, long nextAttempt) {
+            this.policy = policy;
+            this.nextAttempt = nextAttempt;
+        }
+
+        @Override
+        public int compareTo(Device other) {
+            return nextAttempt < other.nextAttempt ? -1 : (nextAttempt == other.nextAttempt ? 0 : 1);
+        }
+    }
+
+    /**
+     * Runs the fleet against the outage curve. All devices start their first attempt
+     * within a second of the outage start, which is the worst case for lockstep retries.
+     *
+     * @param curve        outage curve of the backend
+     * @param outageEnd    time at which the outage is over
+     * @param duration     length of the simulation
+     * @param failureTypes types of failure the backend produces, each device gets them in turn
+     * @return load observed by the backend
+     */
+    private static Load simulate(OutageCurve curve, long outageEnd, long duration,
+                                 SyncBackoffPolicy.FailureType... failureTypes) {
+        Random random = new Random(42);
+        PriorityQueue<Device> fleet = new PriorityQueue<Device>();
+        for (int i = 0; i < FLEET_SIZE; i++)
+            fleet.add(new Device(new SyncBackoffPolicy(new Random(i)), random.nextInt((int) ONE_SECOND)));
+
+        Load load = new Load();
+        long[] windows = new long[(int) (duration / FIXED_RETRY) + 1];
+        int recovered = 0;
+
+        while (!fleet.isEmpty() && fleet.peek().nextAttempt < duration) {
+            Device device = fleet.poll();
+            long now = device.nextAttempt;
+
+            if (!device.policy.allowRequest(now)) {
+                device.nextAttempt = device.policy.getOpenUntil();
+            } else {
+                windows[(int) (now / FIXED_RETRY)]++;
+                if (now < outageEnd)
+                    load.outageRequests++;
+
+                if (random.nextDouble() < curve.failureRate(now)) {
+                    SyncBackoffPolicy.FailureType failureType
+                            = failureTypes[device.failures++ % failureTypes.length];
+                    device.nextAttempt = now + device.policy.onFailure(failureType, now);
+                } else {
+                    device.policy.onSuccess();
+                    device.nextAttempt = now + SYNC_INTERVAL;
+                    if (now >= outageEnd && !device.recovered) {
+                        device.recovered = true;
+                        load.recoveryTime = Math.max(load.recoveryTime, now);
+                        recovered++;
+                    }
+                }
+            }
+            fleet.add(device);
+        }
+
+        for (int i = (int) (SPREAD_TIME / FIXED_RETRY); i < outageEnd / FIXED_RETRY; i++)
+            load.peakRequests = Math.max(load.peakRequests, windows[i]);
+
+        assertEquals("devices that did not recover", FLEET_SIZE, recovered);
+        return load;
+    }
+
+    public void testBackoffGrowsWithJitter() {
+        SyncBackoffPolicy policy = new SyncBackoffPolicy(new Random(1));
+        long base = SyncBackoffPolicy.FailureType.NETWORK.baseDelay;
+
+        long first = policy.onFailure(SyncBackoffPolicy.FailureType.NETWORK, 0);
+        assertTrue(first >= base / 2 && first <= base);
+
+        long second = policy.onFailure(SyncBackoffPolicy.FailureType.NETWORK, 0);
+        assertTrue(second >= base && second <= 2 * base);
+
+        assertEquals(SyncBackoffPolicy.CircuitState.CLOSED, policy.getCircuitState());
+    }
+
+    public void testFailureTypesAreTrackedSeparately() {
+        SyncBackoffPolicy policy = new SyncBackoffPolicy(new Random(1));
+
+        policy.onFailure(SyncBackoffPolicy.FailureType.NETWORK, 0);
+        policy.onFailure(SyncBackoffPolicy.FailureType.NETWORK, 0);
+        assertEquals(2, policy.getFailures());
+
+        long delay = policy.onFailure(SyncBackoffPolicy.FailureType.AUTHENTICATION, 0);
+        assertEquals(1, policy.getFailures());
+        assertTrue(delay >= SyncBackoffPolicy.FailureType.AUTHENTICATION.baseDelay / 2);
+    }
+
+    public void testAlternatingFailuresOpenCircuit() {
+        SyncBackoffPolicy policy = new SyncBackoffPolicy(new Random(1));
+        long now = 0;
+        for (int i = 0; i < 5; i++) {
+            now += policy.onFailure(i % 2 == 0 ? SyncBackoffPolicy.FailureType.NETWORK
+                    : SyncBackoffPolicy.FailureType.SERVER, now);
+        }
+        assertEquals(SyncBackoffPolicy.CircuitState.OPEN, policy.getCircuitState());
+        assertEquals(5, policy.getFailures());
+    }
+
+    public void testAuthenticationFailuresDoNotOpenCircuit() {
+        SyncBackoffPolicy policy = new SyncBackoffPolicy(new Random(1));
+        for (int i = 0; i < 10; i++)
+            policy.onFailure(SyncBackoffPolicy.FailureType.AUTHENTICATION, 0);
+
+        assertEquals(SyncBackoffPolicy.CircuitState.CLOSED, policy.getCircuitState());
+        assertTrue(policy.allowRequest(0));
+    }
+
+    public void testCircuitOpensAndProbes() {
+        SyncBackoffPolicy policy = new SyncBackoffPolicy(new Random(1));
+        long now = 0;
+        for (int i = 0; i < 5; i++)
+            now += policy.onFailure(SyncBackoffPolicy.FailureType.SERVER, now);
+
+        assertEquals(SyncBackoffPolicy.CircuitState.OPEN, policy.getCircuitState());
+        assertFalse(policy.allowRequest(policy.getOpenUntil() - 1));
+
+        // The first request after the open period is a probe, failing it reopens the circuit
+        long firstOpenUntil = policy.getOpenUntil();
+        assertTrue(policy.allowRequest(firstOpenUntil));
+        assertEquals(SyncBackoffPolicy.CircuitState.HALF_OPEN, policy.getCircuitState());
+        policy.onFailure(SyncBackoffPolicy.FailureType.SERVER, firstOpenUntil);
+        assertEquals(SyncBackoffPolicy.CircuitState.OPEN, policy.getCircuitState());
+
+        // A successful probe closes it
+        assertTrue(policy.allowRequest(policy.getOpenUntil()));
+        policy.onSuccess();
+        assertEquals(SyncBackoffPolicy.CircuitState.CLOSED, policy.getCircuitState());
+        assertEquals(0, policy.getFailures());
+    }
+
+    public void testHardOutage() {
+        // The backend is completely down for two hours
+        final long outageEnd = 2 * ONE_HOUR;
+        Load load = simulate(new OutageCurve() {
+            @Override
+            public double failureRate(long time) {
+                return time < outageEnd ? 1.0 : 0.0;
+            }
+        }, outageEnd, 6 * ONE_HOUR, SyncBackoffPolicy.FailureType.SERVER);
+
+        // A fixed 30s retry would send FLEET_SIZE requests every 30s during the outage
+        long fixedRetryRequests = FLEET_SIZE * (outageEnd / FIXED_RETRY);
+        assertTrue("outage requests: " + load.outageRequests, load.outageRequests < fixedRetryRequests / 20);
+        assertTrue("peak requests: " + load.peakRequests, load.peakRequests < FLEET_SIZE / 4);
+
+        // Every device recovers within the maximum open period after the outage
+        assertTrue("recovery: " + load.recoveryTime, load.recoveryTime < outageEnd + 2 * ONE_HOUR + SYNC_INTERVAL);
+    }
+
+    public void testGradualRecovery() {
+        // The backend fails all requests for an hour, then recovers linearly over the next hour
+        final long outageEnd = 2 * ONE_HOUR;
+        Load load = simulate(new OutageCurve() {
+            @Override
+            public double failureRate(long time) {
+                if (time < ONE_HOUR)
+                    return 1.0;
+                return Math.max(0, 1.0 - (double) (time - ONE_HOUR) / ONE_HOUR);
+            }
+        }, outageEnd, 6 * ONE_HOUR, SyncBackoffPolicy.FailureType.SERVER);
+
+        long fixedRetryRequests = FLEET_SIZE * (outageEnd / FIXED_RETRY);
+        assertTrue("outage requests: " + load.outageRequests, load.outageRequests < fixedRetryRequests / 20);
+        assertTrue("peak requests: " + load.peakRequests, load.peakRequests < FLEET_SIZE / 4);
+    }
+
+    public void testMixedOutage() {
+        // The backend is down for two hours, requests fail with I/O errors and 5xx
+        //  responses in turn, as a load balancer drops or rejects them
+        final long outageEnd = 2 * ONE_HOUR;
+        Load load = simulate(new OutageCurve() {
+            @Override
+            public double failureRate(long time) {
+                return time < outageEnd ? 1.0 : 0.0;
+            }
+        }, outageEnd, 6 * ONE_HOUR, SyncBackoffPolicy.FailureType.NETWORK, SyncBackoffPolicy.FailureType.SERVER);
+
+        long fixedRetryRequests = FLEET_SIZE * (outageEnd / FIXED_RETRY);
+        assertTrue("outage requests: " + load.outageRequests, load.outageRequests < fixedRetryRequests / 20);
+        assertTrue("peak requests: " + load.peakRequests, load.peakRequests < FLEET_SIZE / 4);
+        assertTrue("recovery: " + load.recoveryTime, load.recoveryTime < outageEnd + 2 * ONE_HOUR + SYNC_INTERVAL);
+    }
+
+    public void testFlakyNetwork() {
+        // One in three requests fails with an I/O error, this should never open the circuit for long
+        Load load = simulate(new OutageCurve() {
+            @Override
+            public double failureRate(long time) {
+                return time < ONE_HOUR ? 0.33 : 0.0;
+            }
+        }, ONE_HOUR, 4 * ONE_HOUR, SyncBackoffPolicy.FailureType.NETWORK);
+
+        // Without backoff, failed requests would be retried FLEET_SIZE / 3 times every 30s
+        long fixedRetryRequests = FLEET_SIZE / 3 * (ONE_HOUR / FIXED_RETRY);
+        assertTrue("outage requests: " + load.outageRequests, load.outageRequests < fixedRetryRequests / 4);
+    }
+}
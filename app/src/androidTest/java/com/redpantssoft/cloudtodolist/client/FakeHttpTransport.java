@@ -0,0 +1,121 @@
+package com.redpantssoft.cloudtodolist.client;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Transport that answers the requests of an HttpRestClient from a handler, without a
+ * network or a server, and records them. It only uses the JVM and the org.apache.http
+ * classes, so tests of the client logic can run off the device.
+ */
+public class FakeHttpTransport implements HttpTransport {
+
+    /**
+     * Answers the requests sent over the transport
+     */
+    public interface Handler {
+        /**
+         * @param request request sent by the client
+         * @param body    body of the request as sent, still encoded, or null
+         * @return response to the request
+         * @throws IOException to fail the request with a network error
+         */
+        HttpResponse handle(HttpRequestBase request, byte[] body) throws IOException;
+    }
+
+    private final Handler handler;
+    private final DefaultHttpClient loginClient = new DefaultHttpClient();
+    private final List<HttpRequestBase> requests = new ArrayList<HttpRequestBase>();
+    private final List<byte[]> bodies = new ArrayList<byte[]>();
+    private boolean isShutdown = false;
+
+    public FakeHttpTransport(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Builds a response with a body
+     *
+     * @param statusCode  status code of the response
+     * @param contentType content type of the body
+     * @param body        body of the response
+     * @return the response
+     */
+    public static HttpResponse response(int statusCode, String contentType, String body) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode, "Status " + statusCode);
+        try {
+            ByteArrayEntity entity = new ByteArrayEntity(body.getBytes("UTF-8"));
+            entity.setContentType(contentType);
+            response.setEntity(entity);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        return response;
+    }
+
+    @Override
+    public HttpResponse execute(HttpRequestBase request) throws IOException {
+        byte[] body = null;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                entity.writeTo(out);
+                body = out.toByteArray();
+            }
+        }
+        synchronized (this) {
+            if (isShutdown)
+                throw new IOException("Transport shut down");
+            requests.add(request);
+            bodies.add(body);
+        }
+        return handler.handle(request, body);
+    }
+
+    /**
+     * @return requests sent over the transport, in order
+     */
+    public synchronized List<HttpRequestBase> getRequests() {
+        return new ArrayList<HttpRequestBase>(requests);
+    }
+
+    /**
+     * @return bodies of the requests sent over the transport, null for those without
+     */
+    public synchronized List<byte[]> getBodies() {
+        return new ArrayList<byte[]>(bodies);
+    }
+
+    @Override
+    public DefaultHttpClient getHttpClient() {
+        return loginClient;
+    }
+
+    @Override
+    public void closeIdleConnections(long idleTime) {
+        // No connections
+    }
+
+    @Override
+    public synchronized HttpRestClient.PoolStats getPoolStats() {
+        return new HttpRestClient.PoolStats(0, 0, requests.size(), 0);
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        isShutdown = true;
+    }
+}
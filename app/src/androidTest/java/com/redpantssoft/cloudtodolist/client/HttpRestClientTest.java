@@ -0,0 +1,408 @@
+package com.redpantssoft.cloudtodolist.client;
+
+import android.content.ContentValues;
+import android.test.AndroidTestCase;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Tests the HttpRestClient against the StandInTodoListServer, and against a
+ * FakeHttpTransport for the exchanges the server can't be made to produce
+ */
+public class HttpRestClientTest extends AndroidTestCase {
+
+    private StandInTodoListServer server;
+    private HttpRestClient client;
+    private DiskResponseCache cache;
+
+    /**
+     * Authenticator that logs in to the stand-in server, like the GaeAuthenticator does
+     * to GAE, and counts the logins
+     */
+    private static class TestAuthenticator implements HttpRestAuthenticator {
+        volatile int numLogins = 0;
+        volatile int numInvalidations = 0;
+
+        @Override
+        public void login(DefaultHttpClient client, String scheme, String authority)
+                throws URISyntaxException, IOException {
+            HttpResponse response = client.execute(new HttpGet(
+                    new URI(scheme, authority, "/_ah/login", "continue=http://localhost/", null)));
+            if (response.getEntity() != null)
+                response.getEntity().consumeContent();
+            numLogins++;
+        }
+
+        @Override
+        public void addAuthenticationInfoToRequest(HttpRequestBase request) {
+            // The session is in the cookie
+        }
+
+        @Override
+        public void invalidateSession(DefaultHttpClient client, String scheme, String authority) {
+            numInvalidations++;
+        }
+
+        @Override
+        public boolean isAuthenticationChallenge(HttpResponse response) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            return statusCode == 302 || statusCode == 401;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new StandInTodoListServer();
+        server.start();
+        server.setSessionRequired(true);
+        server.putEntry(0, "Entry");
+        client = new HttpRestClient(server.getAuthority(), false, getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        client.close();
+        server.stop();
+        if (cache != null)
+            cache.clear();
+        super.tearDown();
+    }
+
+    public void testExpiredSessionIsRenewedAndReplayed() throws Exception {
+        checkExpiredSessionIsRenewedAndReplayed();
+    }
+
+    public void testExpiredSessionIsRenewedAndReplayedOverUrlConnection() throws Exception {
+        client.close();
+        client = new HttpRestClient(server.getAuthority(), false,
+                new UrlConnectionHttpTransport(getContext(), HttpRestClient.SOCKET_OPERATION_TIMEOUT));
+        checkExpiredSessionIsRenewedAndReplayed();
+        assertEquals(5, client.getPoolStats().numLeases);
+        assertEquals(0, client.getPoolStats().leased);
+    }
+
+    private void checkExpiredSessionIsRenewedAndReplayed() throws Exception {
+        TestAuthenticator authenticator = new TestAuthenticator();
+        client.setAuthenticator(authenticator);
+        TodoListRestClient restClient = new TodoListRestClient(client);
+        assertEquals(200, restClient.getEntries().getResponse().getStatusCode());
+        assertEquals(1, authenticator.numLogins);
+
+        // The rejected get is replayed after a login
+        server.expireSession();
+        assertEquals(200, restClient.getEntries().getResponse().getStatusCode());
+        assertEquals(2, authenticator.numLogins);
+        assertEquals(1, authenticator.numInvalidations);
+        assertEquals(3, server.getRequestCount("/todolist/entries"));
+
+        // So is a post, with its body
+        server.expireSession();
+        ContentValues values = new ContentValues();
+        values.put(TodoListRestClient.ENTRY_TITLE, "Posted after expiry");
+        assertEquals(201, restClient.postEntry(values).getResponse().getStatusCode());
+        assertEquals(3, authenticator.numLogins);
+        assertTrue(server.getTitles().containsValue("Posted after expiry"));
+    }
+
+    public void testResponsesAreCompressedAndDecoded() throws Exception {
+        for (int i = 0; i < 50; i++)
+            server.putEntry(0, "Entry " + i);
+        client.setAuthenticator(new TestAuthenticator());
+        TodoListRestClient restClient = new TodoListRestClient(client);
+
+        HttpRestClient.Stats before = client.getStats();
+        TodoListRestClient.EntryListResponse response = restClient.getEntries();
+        HttpRestClient.Stats stats = client.getStats().since(before);
+        assertEquals(51, response.getEntryList().size());
+        assertEquals(1, server.getCompressedResponsesSent("gzip"));
+        assertTrue(stats.bytesDecoded > stats.bytesReceived);
+        assertTrue(stats.getCompressionRatio() > 1);
+
+        // Only deflate is accepted
+        String content = client.Get("/todolist/entries", null, null, HttpRestClient.ContentType.JSON,
+                HttpRestClient.ContentEncoding.DEFLATE).getContent();
+        assertEquals(1, server.getCompressedResponsesSent("deflate"));
+        assertEquals(51, new JSONObject(content).getJSONArray("entries").length());
+    }
+
+    public void testRawDeflateResponseIsDecoded() throws Exception {
+        final String json = "{\"entries\": [], \"timestamp\": 1.5}";
+        FakeHttpTransport transport = new FakeHttpTransport(new FakeHttpTransport.Handler() {
+            @Override
+            public HttpResponse handle(HttpRequestBase request, byte[] body) throws IOException {
+                // Deflate without the zlib header, as some servers send it
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                DeflaterOutputStream deflater = new DeflaterOutputStream(out,
+                        new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+                deflater.write(json.getBytes("UTF-8"));
+                deflater.close();
+                HttpResponse response = FakeHttpTransport.response(200, "application/json", "");
+                ByteArrayEntity entity = new ByteArrayEntity(out.toByteArray());
+                entity.setContentType("application/json");
+                entity.setContentEncoding("deflate");
+                response.setEntity(entity);
+                return response;
+            }
+        });
+        HttpRestClient fakeClient = new HttpRestClient("localhost", false, transport);
+        assertEquals(json, fakeClient.Get("/todolist/entries", null, HttpRestClient.ContentType.JSON).getContent());
+        assertEquals("gzip, deflate", transport.getRequests().get(0).getFirstHeader("Accept-Encoding").getValue());
+        fakeClient.close();
+    }
+
+    public void testRequestRejectedAfterLoginIsReturned() throws Exception {
+        TestAuthenticator authenticator = new TestAuthenticator() {
+            @Override
+            public void login(DefaultHttpClient client, String scheme, String authority)
+                    throws URISyntaxException, IOException {
+                super.login(client, scheme, authority);
+                server.expireSession();
+            }
+        };
+        client.setAuthenticator(authenticator);
+
+        // The replay is rejected too, it isn't replayed again
+        TodoListRestClient restClient = new TodoListRestClient(client);
+        assertEquals(302, restClient.getEntries().getResponse().getStatusCode());
+        assertEquals(2, authenticator.numLogins);
+        assertEquals(2, authenticator.numInvalidations);
+    }
+
+    public void testRefusedCompressedBodyIsResentUncompressed() throws Exception {
+        FakeHttpTransport transport = new FakeHttpTransport(new FakeHttpTransport.Handler() {
+            @Override
+            public HttpResponse handle(HttpRequestBase request, byte[] body) {
+                HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+                if (entity.getContentEncoding() != null)
+                    return FakeHttpTransport.response(415, "text/plain", "Unsupported Media Type");
+                return FakeHttpTransport.response(201, "application/json", "{\"id\": 1}");
+            }
+        });
+        HttpRestClient fakeClient = new HttpRestClient("localhost", false, transport);
+        StringBuilder notes = new StringBuilder();
+        while (notes.length() < HttpRestClient.COMPRESSION_THRESHOLD)
+            notes.append("Notes long enough to be compressed. ");
+        JSONObject body = new JSONObject();
+        body.put("notes", notes.toString());
+
+        // The compressed body is refused, and sent again as is
+        HttpRestClient.Response response = fakeClient.Post("/todolist/entries", null, body,
+                HttpRestClient.ContentType.JSON);
+        assertEquals(201, response.getStatusCode());
+        assertEquals(2, transport.getRequests().size());
+        assertEquals(body.toString(), new String(transport.getBodies().get(1), "UTF-8"));
+
+        // The next body isn't compressed at all
+        fakeClient.Post("/todolist/entries", null, body, HttpRestClient.ContentType.JSON);
+        assertEquals(3, transport.getRequests().size());
+        fakeClient.close();
+    }
+
+    public void testResponseBodyIsReadInItsCharset() throws Exception {
+        final StringBuilder title = new StringBuilder();
+        while (title.length() < 20000)
+            title.append("Caf\u00e9 ");
+        FakeHttpTransport transport = new FakeHttpTransport(new FakeHttpTransport.Handler() {
+            @Override
+            public HttpResponse handle(HttpRequestBase request, byte[] body) throws IOException {
+                HttpResponse response = FakeHttpTransport.response(200, "application/json", "");
+                InputStreamEntity entity = new InputStreamEntity(
+                        new ByteArrayInputStream(title.toString().getBytes("ISO-8859-1")), -1);
+                entity.setContentType("application/json; charset=ISO-8859-1");
+                response.setEntity(entity);
+                return response;
+            }
+        });
+        HttpRestClient fakeClient = new HttpRestClient("localhost", false, transport);
+
+        // The body is of unknown length, longer than the read buffer, and isn't UTF-8
+        String content = fakeClient.Get("/todolist/entries", null, HttpRestClient.ContentType.JSON,
+                new HttpRestClient.ResponseHandler<String>() {
+                    @Override
+                    public String handleResponse(HttpRestClient.ResponseBody body) throws IOException {
+                        assertEquals("ISO-8859-1", body.getCharset());
+                        return body.readString();
+                    }
+                });
+        assertEquals(title.toString(), content);
+        assertEquals(title.toString(),
+                fakeClient.Get("/todolist/entries", null, HttpRestClient.ContentType.JSON).getContent());
+        fakeClient.close();
+    }
+
+    public void testGetResponsesAreCachedAndRevalidated() throws Exception {
+        cache = new DiskResponseCache(new File(getContext().getCacheDir(), "test-responses"), 1024 * 1024);
+        cache.clear();
+        client.setCache(cache);
+        client.setAuthenticator(new TestAuthenticator());
+        TodoListRestClient restClient = new TodoListRestClient(client);
+        assertEquals(1, restClient.getEntries().getEntryList().size());
+
+        // Without a max-age the response is revalidated, and not sent again
+        assertEquals(1, restClient.getEntries().getEntryList().size());
+        assertEquals(1, server.getNotModifiedSent());
+
+        // A changed response is sent in full
+        server.putEntry(0, "Another");
+        assertEquals(2, restClient.getEntries().getEntryList().size());
+        assertEquals(1, server.getNotModifiedSent());
+
+        // A 304 with a max-age makes the response fresh, it's then served without a request
+        server.setMaxAge(60);
+        assertEquals(2, restClient.getEntries().getEntryList().size());
+        assertEquals(2, server.getNotModifiedSent());
+        int requests = server.getRequestCount("/todolist/entries");
+        assertEquals(2, restClient.getEntries().getEntryList().size());
+        assertEquals(requests, server.getRequestCount("/todolist/entries"));
+
+        DiskResponseCache.Stats stats = client.getCacheStats();
+        assertEquals(1, stats.numHits);
+        assertEquals(1, stats.numMisses);
+        assertEquals(3, stats.numRevalidations);
+        assertEquals(2, stats.numNotModified);
+        assertEquals(1, stats.numEntries);
+    }
+
+    public void testOfflineClientServesStaleResponses() throws Exception {
+        cache = new DiskResponseCache(new File(getContext().getCacheDir(), "test-responses"), 1024 * 1024);
+        cache.clear();
+        client.setCache(cache);
+        client.setAuthenticator(new TestAuthenticator());
+        TodoListRestClient restClient = new TodoListRestClient(client);
+        assertEquals(1, restClient.getEntries().getEntryList().size());
+        int requests = server.getRequestCount("/todolist/entries");
+
+        // The stale response is served as is, a post fails without touching the network
+        client.setOffline(true);
+        server.putEntry(0, "Another");
+        assertEquals(1, restClient.getEntries().getEntryList().size());
+        assertEquals(requests, server.getRequestCount("/todolist/entries"));
+        ContentValues values = new ContentValues();
+        values.put(TodoListRestClient.ENTRY_TITLE, "Posted offline");
+        try {
+            restClient.postEntry(values);
+            fail("Post sent offline");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(requests, server.getRequestCount("/todolist/entries"));
+
+        // Back online, the response is revalidated
+        client.setOffline(false);
+        assertEquals(2, restClient.getEntries().getEntryList().size());
+    }
+
+    public void testLeastRecentlyUsedResponseIsEvicted() throws Exception {
+        final StringBuilder notes = new StringBuilder();
+        while (notes.length() < 1000)
+            notes.append("Notes ");
+        FakeHttpTransport transport = new FakeHttpTransport(new FakeHttpTransport.Handler() {
+            @Override
+            public HttpResponse handle(HttpRequestBase request, byte[] body) {
+                HttpResponse response = FakeHttpTransport.response(200, "application/json",
+                        "{\"notes\": \"" + notes + "\"}");
+                response.setHeader("Cache-Control", "max-age=60");
+                return response;
+            }
+        });
+        HttpRestClient fakeClient = new HttpRestClient("localhost", false, transport);
+        // Room for two of the responses, not three
+        cache = new DiskResponseCache(new File(getContext().getCacheDir(), "test-responses"), 2500);
+        cache.clear();
+        fakeClient.setCache(cache);
+
+        fakeClient.Get("/todolist/entries/1", null, HttpRestClient.ContentType.JSON);
+        fakeClient.Get("/todolist/entries/2", null, HttpRestClient.ContentType.JSON);
+        fakeClient.Get("/todolist/entries/1", null, HttpRestClient.ContentType.JSON);
+        assertEquals(2, transport.getRequests().size());
+
+        // The third response evicts the second, used less recently than the first
+        fakeClient.Get("/todolist/entries/3", null, HttpRestClient.ContentType.JSON);
+        fakeClient.Get("/todolist/entries/1", null, HttpRestClient.ContentType.JSON);
+        assertEquals(3, transport.getRequests().size());
+        fakeClient.Get("/todolist/entries/2", null, HttpRestClient.ContentType.JSON);
+        assertEquals(4, transport.getRequests().size());
+
+        DiskResponseCache.Stats stats = cache.getStats();
+        assertEquals(2, stats.numHits);
+        assertEquals(4, stats.numMisses);
+        assertEquals(2, stats.numEntries);
+        assertTrue(stats.size <= 2500);
+        fakeClient.close();
+    }
+
+    public void testUncachedParametersBypassCache() throws Exception {
+        FakeHttpTransport transport = new FakeHttpTransport(new FakeHttpTransport.Handler() {
+            @Override
+            public HttpResponse handle(HttpRequestBase request, byte[] body) {
+                HttpResponse response = FakeHttpTransport.response(200, "application/json", "[]");
+                response.setHeader("Cache-Control", "max-age=60");
+                return response;
+            }
+        });
+        HttpRestClient fakeClient = new HttpRestClient("localhost", false, transport);
+        cache = new DiskResponseCache(new File(getContext().getCacheDir(), "test-responses"), 1024 * 1024);
+        cache.clear();
+        fakeClient.setCache(cache);
+        fakeClient.setUncachedParameters("after", "modified");
+
+        fakeClient.Get("/todolist/entries", "fields=summary", HttpRestClient.ContentType.JSON);
+        fakeClient.Get("/todolist/entries", "fields=summary", HttpRestClient.ContentType.JSON);
+        assertEquals(1, transport.getRequests().size());
+
+        // The pages and updates are sent every time, and not stored
+        fakeClient.Get("/todolist/entries", "after=100;limit=100", HttpRestClient.ContentType.JSON);
+        fakeClient.Get("/todolist/entries", "after=100;limit=100", HttpRestClient.ContentType.JSON);
+        fakeClient.Get("/todolist/entries", "modified=1317532850.83", HttpRestClient.ContentType.JSON);
+        assertEquals(4, transport.getRequests().size());
+        assertEquals(1, cache.getStats().numEntries);
+        fakeClient.close();
+    }
+
+    public void testUpdateInvalidatesCachedEntryAndList() throws Exception {
+        FakeHttpTransport transport = new FakeHttpTransport(new FakeHttpTransport.Handler() {
+            @Override
+            public HttpResponse handle(HttpRequestBase request, byte[] body) {
+                HttpResponse response = FakeHttpTransport.response(200, "application/json", "{}");
+                response.setHeader("Cache-Control", "max-age=60");
+                return response;
+            }
+        });
+        HttpRestClient fakeClient = new HttpRestClient("localhost", false, transport);
+        cache = new DiskResponseCache(new File(getContext().getCacheDir(), "test-responses"), 1024 * 1024);
+        cache.clear();
+        fakeClient.setCache(cache);
+
+        fakeClient.Get("/todolist/entries/1", null, HttpRestClient.ContentType.JSON);
+        fakeClient.Get("/todolist/entries/2", null, HttpRestClient.ContentType.JSON);
+        fakeClient.Get("/todolist/entries", "fields=summary", HttpRestClient.ContentType.JSON);
+        assertEquals(3, transport.getRequests().size());
+
+        // The updated entry and the list are requested again, the other entry isn't
+        fakeClient.Put("/todolist/entries/1", null, new JSONObject().put("title", "Updated"),
+                HttpRestClient.ContentType.JSON);
+        fakeClient.Get("/todolist/entries/1", null, HttpRestClient.ContentType.JSON);
+        fakeClient.Get("/todolist/entries/2", null, HttpRestClient.ContentType.JSON);
+        fakeClient.Get("/todolist/entries", "fields=summary", HttpRestClient.ContentType.JSON);
+        assertEquals(6, transport.getRequests().size());
+        fakeClient.close();
+    }
+}
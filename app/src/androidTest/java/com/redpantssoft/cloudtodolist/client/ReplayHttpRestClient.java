@@ -0,0 +1,94 @@
+package com.redpantssoft.cloudtodolist.client;
+
+import android.content.Context;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * HttpRestClient that answers requests from an ExchangeLog instead of the network.
+ * Each request is answered with the first recorded exchange of the same method and
+ * target that has not been replayed yet, a request without one fails with an
+ * IOException, like a network error would. The recorded server time can be replayed
+ * too, scaled, to reproduce the latency of the recording.
+ */
+public class ReplayHttpRestClient extends HttpRestClient {
+
+    // Recorded exchanges not replayed yet, by method and target
+    private final Map<String, LinkedList<ExchangeLog.Exchange>> pending
+            = new HashMap<String, LinkedList<ExchangeLog.Exchange>>();
+
+    // Factor applied to the recorded server time, 0 replays without delay
+    private final double latencyScale;
+
+    // Number of requests that had no recorded exchange
+    private int numMisses = 0;
+
+    /**
+     * Constructor
+     *
+     * @param log          exchanges to replay
+     * @param latencyScale factor applied to the recorded server time, 0 for no delay
+     */
+    public ReplayHttpRestClient(Context context, ExchangeLog log, double latencyScale) {
+        super("replay.invalid", false, context);
+        this.latencyScale = latencyScale;
+        for (ExchangeLog.Exchange exchange : log.getExchanges()) {
+            String key = exchange.method + " " + exchange.target;
+            LinkedList<ExchangeLog.Exchange> exchanges = pending.get(key);
+            if (exchanges == null) {
+                exchanges = new LinkedList<ExchangeLog.Exchange>();
+                pending.put(key, exchanges);
+            }
+            exchanges.add(exchange);
+        }
+    }
+
+    /**
+     * @return number of requests that had no recorded exchange
+     */
+    public synchronized int getNumMisses() {
+        return numMisses;
+    }
+
+    @Override
+    protected HttpResponse execute(HttpRequestBase request) throws IOException {
+        String key = request.getMethod() + " " + RecordingHttpRestClient.targetOf(request.getURI());
+        ExchangeLog.Exchange exchange;
+        synchronized (this) {
+            LinkedList<ExchangeLog.Exchange> exchanges = pending.get(key);
+            exchange = (exchanges != null ? exchanges.poll() : null);
+            if (exchange == null) {
+                numMisses++;
+                throw new IOException("No recorded exchange for " + key);
+            }
+        }
+
+        long delay = (long) (exchange.elapsedTime * latencyScale);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted replaying " + key);
+            }
+        }
+
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+                exchange.statusCode, exchange.reasonPhrase);
+        ByteArrayEntity entity = new ByteArrayEntity(exchange.getBody());
+        entity.setContentType(exchange.contentType);
+        if (exchange.contentEncoding != null)
+            entity.setContentEncoding(exchange.contentEncoding);
+        response.setEntity(entity);
+        return response;
+    }
+}
@@ -0,0 +1,159 @@
+package com.redpantssoft.cloudtodolist.client;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Benchmarks the ways of reading a large entry list body, of about 1MB and 20MB, from
+ * a StandInTodoListServer: line by line into a StringBuilder, as the client used to,
+ * into a single buffer with ResponseBody.readString, as the client does now, and
+ * streamed without keeping the body, as a bound. Each is timed with the JSON parse,
+ * except the streamed one, and the bytes allocated by the reading thread are counted.
+ * <p/>
+ * <p>The iterations can be set with the cloudtodolist.benchmark.iterations property.
+ * The report is written to the log under the ResponseHandlerBenchmark tag.</p>
+ */
+public class ResponseHandlerBenchmark extends AndroidTestCase {
+
+    // Log Tag
+    private static final String TAG = "ResponseHandlerBenchmark";
+
+    // Path of the entry list
+    private static final String ENTRIES_PATH = "/todolist/entries";
+
+    // Size of the notes of each entry, the body is about numEntries times this
+    private static final int NOTES_SIZE = 10 * 1024;
+
+    // Number of reads in each mode by default
+    private static final int DEFAULT_ITERATIONS = 3;
+
+    /**
+     * Reads the body line by line, re-adding the line breaks, then parses it
+     */
+    private static final HttpRestClient.ResponseHandler<Object> LINES = new HttpRestClient.ResponseHandler<Object>() {
+        @Override
+        public Object handleResponse(HttpRestClient.ResponseBody body) throws IOException, JSONException {
+            BufferedReader reader = new BufferedReader(body.getReader());
+            StringBuilder builder = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null)
+                builder.append(line).append("\n");
+            return new JSONObject(builder.toString());
+        }
+    };
+
+    /**
+     * Reads the body in a single buffer, then parses it
+     */
+    private static final HttpRestClient.ResponseHandler<Object> BUFFER = new HttpRestClient.ResponseHandler<Object>() {
+        @Override
+        public Object handleResponse(HttpRestClient.ResponseBody body) throws IOException, JSONException {
+            return new JSONObject(body.readString());
+        }
+    };
+
+    /**
+     * Reads the body through a small buffer, without keeping or parsing it
+     */
+    private static final HttpRestClient.ResponseHandler<Object> STREAM = new HttpRestClient.ResponseHandler<Object>() {
+        @Override
+        public Object handleResponse(HttpRestClient.ResponseBody body) throws IOException {
+            InputStream in = body.getStream();
+            byte[] buffer = new byte[8192];
+            long length = 0;
+            int n;
+            while ((n = in.read(buffer)) >= 0)
+                length += n;
+            return length;
+        }
+    };
+
+    public void testOneMegabyteBody() throws Exception {
+        benchmark(100);
+    }
+
+    public void testTwentyMegabyteBody() throws Exception {
+        benchmark(2000);
+    }
+
+    /**
+     * Reads the entry list in each mode, alternately, and logs the median times and
+     * allocations
+     *
+     * @param numEntries number of entries in the list
+     * @throws Exception if a read fails
+     */
+    private void benchmark(int numEntries) throws Exception {
+        int iterations = Integer.getInteger("cloudtodolist.benchmark.iterations", DEFAULT_ITERATIONS);
+
+        StandInTodoListServer server = new StandInTodoListServer();
+        server.start();
+        HttpRestClient client = new HttpRestClient(server.getAuthority(), false, getContext());
+        try {
+            char[] notes = new char[NOTES_SIZE];
+            Arrays.fill(notes, 'n');
+            for (int i = 0; i < numEntries; i++)
+                server.putEntry(0, "Entry" + i, new String(notes));
+            // The repeated notes would compress to almost nothing, and hide the reads
+            server.setCompressedResponsesEnabled(false);
+
+            long[][] times = new long[3][iterations];
+            long[][] allocated = new long[3][iterations];
+            List<HttpRestClient.ResponseHandler<Object>> handlers =
+                    new ArrayList<HttpRestClient.ResponseHandler<Object>>();
+            handlers.add(LINES);
+            handlers.add(BUFFER);
+            handlers.add(STREAM);
+            long bodySize = 0;
+            Debug.startAllocCounting();
+            try {
+                for (int i = 0; i < iterations; i++) {
+                    for (int h = 0; h < handlers.size(); h++) {
+                        long received = client.getStats().bytesReceived;
+                        Debug.resetThreadAllocSize();
+                        long start = System.nanoTime();
+                        Object result = client.Get(ENTRIES_PATH, null, HttpRestClient.ContentType.JSON,
+                                handlers.get(h));
+                        times[h][i] = (System.nanoTime() - start) / 1000000;
+                        allocated[h][i] = Debug.getThreadAllocSize();
+                        assertNotNull(result);
+                        bodySize = client.getStats().bytesReceived - received;
+                    }
+                }
+            } finally {
+                Debug.stopAllocCounting();
+            }
+
+            Log.i(TAG, String.format("entries=%d body=%dKB iterations=%d"
+                    + " lines=%dms/%dKB buffer=%dms/%dKB stream=%dms/%dKB",
+                    numEntries, bodySize / 1024, iterations,
+                    median(times[0]), median(allocated[0]) / 1024,
+                    median(times[1]), median(allocated[1]) / 1024,
+                    median(times[2]), median(allocated[2]) / 1024));
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    /**
+     * @param values values to take the median of
+     * @return median of the values, the lower one for an even count
+     */
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[(sorted.length - 1) / 2];
+    }
+}
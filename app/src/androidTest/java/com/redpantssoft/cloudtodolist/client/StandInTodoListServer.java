@@ -0,0 +1,978 @@
+package com.redpantssoft.cloudtodolist.client;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local stand-in for the cloudtodolist service, for tests. It implements the
+ * entries, change hints and range digests resources described in TodoListRestClient over plain
+ * http on a loopback port, keeping the entries in memory. Every connection is
+ * served on its own thread and closed after the response, so long polls don't
+ * block other requests.
+ * <p/>
+ * <p>The server can drop connections at random, before or after handling the
+ * request, to simulate an unreliable network. Like the service, it applies a post
+ * or put with an op_id once, a repeat gets the response of the first request.</p>
+ * <p/>
+ * <p>The fields of a post or put are read from its JSON body, which may be chunked
+ * and gzip-compressed, or from the query parameters. Compressed bodies can be refused
+ * with a 415, like a server that doesn't support them, and bodies can be refused with
+ * a 400, like a server that only takes query parameters.</p>
+ * <p/>
+ * <p>When sessions are required, like on GAE, requests without the ACSID cookie of the
+ * current session are redirected to the login page. A GET of /_ah/login starts a new
+ * session, and expireSession ends the current one.</p>
+ * <p/>
+ * <p>Responses are compressed with gzip or deflate when the Accept-Encoding of the
+ * request allows it, unless turned off with setCompressedResponsesEnabled.</p>
+ * <p/>
+ * <p>Successful GET responses carry an ETag, a request whose If-None-Match matches it
+ * gets a 304 without the body. They can be given a Cache-Control max-age with
+ * setMaxAge.</p>
+ * <p/>
+ * <p>Responses can also be throttled, with a latency before the response and a limited
+ * bandwidth while it's written, to simulate a slow network.</p>
+ */
+public class StandInTodoListServer {
+
+    private static final String ENTRIES_PATH = "/todolist/entries";
+    private static final String CHANGES_PATH = "/todolist/changes";
+    private static final String DIGEST_PATH = "/todolist/digest";
+    private static final String LOGIN_PATH = "/_ah/login";
+    private static final String MIME_TYPE_JSON = "application/json";
+    private static final String SESSION_COOKIE = "ACSID";
+
+    /**
+     * Entry held by the server
+     */
+    private static class Entry {
+        int id;
+        String title = "";
+        String notes = "";
+        boolean complete = false;
+        boolean deleted = false;
+        double created;
+        double modified;
+
+        JSONObject toJson() throws JSONException {
+            return toJson(false);
+        }
+
+        JSONObject toJson(boolean summary) throws JSONException {
+            JSONObject object = new JSONObject();
+            object.put("id", id);
+            object.put("title", title);
+            if (summary)
+                object.put("notes_hash", TodoListRestClient.notesHash(notes));
+            else
+                object.put("notes", notes);
+            object.put("complete", complete);
+            object.put("created", created);
+            object.put("modified", modified);
+            object.put("deleted", deleted);
+            return object;
+        }
+    }
+
+    /**
+     * Response to send for a request
+     */
+    protected static class Response {
+        final int statusCode;
+        final String reason;
+        final String content;
+        // Additional header lines, each terminated by CRLF
+        String headers = "";
+
+        Response(int statusCode, String reason, String content) {
+            this.statusCode = statusCode;
+            this.reason = reason;
+            this.content = content;
+        }
+    }
+
+    // Entries by id, including deleted entries
+    private final Map<Integer, Entry> entries = new TreeMap<Integer, Entry>();
+
+    // Id of the next new entry
+    private int nextId = 1;
+
+    // Timestamp of the most recent change, in seconds
+    private double clock = 0;
+
+    // Number of requests received, by path
+    private final Map<String, Integer> requestCounts = new HashMap<String, Integer>();
+
+    // Flag indicating whether the change hints resource is available
+    private volatile boolean changeHintsEnabled = true;
+
+    // Flag indicating whether pages of entries are supported
+    private volatile boolean pagesEnabled = true;
+
+    // Flag indicating whether the range digests resource is available
+    private volatile boolean digestsEnabled = true;
+
+    // Oldest modified time accepted by an incremental request, older history was purged
+    private double historyStart = 0;
+
+    // Probability that a connection is dropped, and the source of the drops
+    private double dropRate = 0;
+    private Random dropRandom = new Random();
+
+    // Number of entries sent in entry lists, including responses that were dropped
+    private long entriesServed = 0;
+
+    // Number of upcoming responses to drop after the request is handled
+    private int responsesToDrop = 0;
+
+    // Responses of the operations applied, by op_id
+    private final Map<String, Response> operations = new HashMap<String, Response>();
+
+    // Flag indicating whether requests need the cookie of the current session
+    private volatile boolean sessionRequired = false;
+
+    // Value of the session cookie of the current session, and the number of logins
+    private String session = "";
+    private int numLogins = 0;
+
+    // Flag indicating whether gzip-compressed request bodies are accepted
+    private volatile boolean compressedBodiesEnabled = true;
+
+    // Number of gzip-compressed request bodies received
+    private int compressedBodiesReceived = 0;
+
+    // Flag indicating whether request bodies are accepted, and the number refused
+    private volatile boolean bodiesEnabled = true;
+    private int bodiesRefused = 0;
+
+    // Flag indicating whether responses are compressed for the clients accepting it
+    private volatile boolean compressedResponsesEnabled = true;
+
+    // Number of responses sent compressed, by content coding
+    private final Map<String, Integer> compressedResponsesSent = new HashMap<String, Integer>();
+
+    // Cache-Control max-age of the successful GET responses, in seconds, or -1 for none
+    private volatile int maxAge = -1;
+
+    // Number of conditional requests answered with a 304
+    private int notModifiedSent = 0;
+
+    // Delay before each response is written, in milliseconds, and its bandwidth in bytes
+    //  per second, 0 for no limit
+    private volatile long latency = 0;
+    private volatile int bandwidth = 0;
+
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+
+    /**
+     * Starts serving on a free loopback port
+     *
+     * @throws IOException if the server socket could not be opened
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        Thread connectionThread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                        connectionThread.setDaemon(true);
+                        connectionThread.start();
+                    } catch (IOException e) {
+                        // Closed
+                    }
+                }
+            }
+        }, "StandInTodoListServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Stops serving, this also releases any long polls in progress
+     */
+    public void stop() throws IOException {
+        serverSocket.close();
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return authority to use for an HttpRestClient, with useHttps false
+     */
+    public String getAuthority() {
+        return "127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    /**
+     * @param enabled flag indicating whether the change hints resource is available
+     */
+    public void setChangeHintsEnabled(boolean enabled) {
+        changeHintsEnabled = enabled;
+    }
+
+    /**
+     * @param enabled flag indicating whether pages of entries are supported, when
+     *                they aren't page requests fail with a 400
+     */
+    public void setPagesEnabled(boolean enabled) {
+        pagesEnabled = enabled;
+    }
+
+    /**
+     * @param enabled flag indicating whether the range digests resource is available
+     */
+    public void setDigestsEnabled(boolean enabled) {
+        digestsEnabled = enabled;
+    }
+
+    /**
+     * @param required flag indicating whether requests need the cookie of the current
+     *                 session, when they don't have it they are redirected to the login page
+     */
+    public void setSessionRequired(boolean required) {
+        sessionRequired = required;
+    }
+
+    /**
+     * Ends the current session, its cookie is rejected from then on
+     */
+    public synchronized void expireSession() {
+        session = "";
+    }
+
+    /**
+     * @return number of logins, each starts a new session
+     */
+    public synchronized int getNumLogins() {
+        return numLogins;
+    }
+
+    /**
+     * @param enabled flag indicating whether gzip-compressed request bodies are accepted,
+     *                when they aren't requests with one fail with a 415
+     */
+    public void setCompressedBodiesEnabled(boolean enabled) {
+        compressedBodiesEnabled = enabled;
+    }
+
+    /**
+     * @param enabled flag indicating whether request bodies are accepted, when they
+     *                aren't requests with one fail with a 400
+     */
+    public void setBodiesEnabled(boolean enabled) {
+        bodiesEnabled = enabled;
+    }
+
+    /**
+     * @return number of request bodies refused with a 400
+     */
+    public synchronized int getBodiesRefused() {
+        return bodiesRefused;
+    }
+
+    /**
+     * @return number of gzip-compressed request bodies received, accepted or not
+     */
+    public synchronized int getCompressedBodiesReceived() {
+        return compressedBodiesReceived;
+    }
+
+    /**
+     * @param enabled flag indicating whether responses are compressed, with gzip or
+     *                deflate, for the requests whose Accept-Encoding allows it
+     */
+    public void setCompressedResponsesEnabled(boolean enabled) {
+        compressedResponsesEnabled = enabled;
+    }
+
+    /**
+     * @param coding content coding, gzip or deflate
+     * @return number of responses sent compressed with the coding
+     */
+    public synchronized int getCompressedResponsesSent(String coding) {
+        Integer count = compressedResponsesSent.get(coding);
+        return (count != null ? count : 0);
+    }
+
+    /**
+     * @param maxAge Cache-Control max-age of the successful GET responses, in seconds,
+     *               or -1 to send none
+     */
+    public void setMaxAge(int maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @return number of conditional requests answered with a 304
+     */
+    public synchronized int getNotModifiedSent() {
+        return notModifiedSent;
+    }
+
+    /**
+     * Throttles the responses, as if they went over a slow network
+     *
+     * @param latency   delay before each response is written, in milliseconds
+     * @param bandwidth bytes per second while a response is written, 0 for no limit
+     */
+    public void setThrottle(long latency, int bandwidth) {
+        this.latency = latency;
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * Forgets the deleted entries, as the service does when they are archived. Incremental
+     * requests older than the purge fail with a 400 from then on
+     */
+    public synchronized void purgeHistory() {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            if (it.next().deleted)
+                it.remove();
+        }
+        historyStart = tick();
+    }
+
+    /**
+     * Drops connections at random, half of the drops happen before the request is
+     * handled and half after, in which case the response is lost
+     *
+     * @param rate probability that a connection is dropped
+     * @param seed seed of the drops
+     */
+    public synchronized void setDropRate(double rate, long seed) {
+        dropRate = rate;
+        dropRandom = new Random(seed);
+    }
+
+    /**
+     * Drops the connection of the next requests after they are handled, as if the
+     * responses timed out
+     *
+     * @param count number of responses to drop
+     */
+    public synchronized void dropNextResponses(int count) {
+        responsesToDrop = count;
+    }
+
+    /**
+     * @return number of entries sent in entry lists
+     */
+    public synchronized long getEntriesServed() {
+        return entriesServed;
+    }
+
+    /**
+     * Adds or modifies an entry, as if by another client
+     *
+     * @param id    id of the entry to modify, or 0 to add one
+     * @param title title of the entry
+     * @return id of the entry
+     */
+    public synchronized int putEntry(int id, String title) {
+        return putEntry(id, title, null);
+    }
+
+    /**
+     * Adds or modifies an entry and its notes, as if by another client
+     *
+     * @param id    id of the entry to modify, or 0 to add one
+     * @param title title of the entry
+     * @param notes notes of the entry, or null to leave them as they are
+     * @return id of the entry
+     */
+    public synchronized int putEntry(int id, String title, String notes) {
+        Entry entry = (id > 0 ? entries.get(id) : null);
+        if (entry == null) {
+            entry = new Entry();
+            entry.id = nextId++;
+            entry.created = tick();
+            entries.put(entry.id, entry);
+        }
+        entry.title = title;
+        if (notes != null)
+            entry.notes = notes;
+        entry.modified = tick();
+        notifyAll();
+        return entry.id;
+    }
+
+    /**
+     * Deletes an entry, as if by another client
+     *
+     * @param id id of the entry
+     */
+    public synchronized void deleteEntry(int id) {
+        Entry entry = entries.get(id);
+        if (entry != null && !entry.deleted) {
+            entry.deleted = true;
+            entry.modified = tick();
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return titles of the entries that are not deleted, by id
+     */
+    public synchronized Map<Integer, String> getTitles() {
+        Map<Integer, String> titles = new TreeMap<Integer, String>();
+        for (Entry entry : entries.values()) {
+            if (!entry.deleted)
+                titles.put(entry.id, entry.title);
+        }
+        return titles;
+    }
+
+    /**
+     * @param id id of the entry
+     * @return notes of the entry, or null if there is no such entry
+     */
+    public synchronized String getNotes(int id) {
+        Entry entry = entries.get(id);
+        return (entry != null && !entry.deleted ? entry.notes : null);
+    }
+
+    /**
+     * @return timestamp of the most recent change
+     */
+    public synchronized double getClock() {
+        return clock;
+    }
+
+    /**
+     * @param path request path
+     * @return number of requests received for the path
+     */
+    public synchronized int getRequestCount(String path) {
+        Integer count = requestCounts.get(path);
+        return (count != null ? count : 0);
+    }
+
+    /**
+     * Advances the clock, timestamps are unique and increasing
+     *
+     * @return the new timestamp
+     */
+    private double tick() {
+        clock = Math.max(clock + 0.001, System.currentTimeMillis() / 1000.0);
+        return clock;
+    }
+
+    /**
+     * Reads a request from the socket, handles it and writes the response
+     *
+     * @param socket connection to serve
+     */
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            String requestLine = readLine(in);
+            if (requestLine == null)
+                return;
+            Map<String, String> headers = new HashMap<String, String>();
+            String header;
+            while ((header = readLine(in)) != null && header.length() > 0) {
+                int colon = header.indexOf(':');
+                if (colon > 0)
+                    headers.put(header.substring(0, colon).trim().toLowerCase(), header.substring(colon + 1).trim());
+            }
+
+            String[] parts = requestLine.split(" ");
+            String method = parts[0];
+            String target = parts[1];
+            int queryStart = target.indexOf('?');
+            String path = (queryStart >= 0 ? target.substring(0, queryStart) : target);
+            Map<String, List<String>> params = parseQuery(queryStart >= 0 ? target.substring(queryStart + 1) : "");
+            byte[] body = readBody(in, headers);
+            boolean compressed = "gzip".equals(headers.get("content-encoding"));
+
+            synchronized (this) {
+                Integer count = requestCounts.get(path);
+                requestCounts.put(path, (count != null ? count : 0) + 1);
+            }
+
+            if (drop())
+                return;
+
+            Response response;
+            try {
+                if (compressed) {
+                    synchronized (this) {
+                        compressedBodiesReceived++;
+                    }
+                }
+                if (path.equals(LOGIN_PATH)) {
+                    response = login();
+                } else if (sessionRequired && !hasSession(headers.get("cookie"))) {
+                    response = new Response(302, "Found", "");
+                    response.headers = "Location: https://www.google.com/accounts/ServiceLogin\r\n";
+                } else if (compressed && !compressedBodiesEnabled) {
+                    response = new Response(415, "Unsupported Media Type", "{}");
+                } else if (body.length > 0 && !bodiesEnabled) {
+                    synchronized (this) {
+                        bodiesRefused++;
+                    }
+                    response = new Response(400, "Bad Request", "{}");
+                } else {
+                    if (body.length > 0)
+                        parseBody(compressed ? gunzip(body) : body, params);
+                    response = handle(method, path, params);
+                }
+            } catch (JSONException e) {
+                response = new Response(500, "Internal Server Error", "{}");
+            } catch (RuntimeException e) {
+                response = new Response(400, "Bad Request", "{}");
+            }
+            if (response != null && method.equals("GET") && response.statusCode == 200)
+                response = addValidator(response, headers.get("if-none-match"));
+            if (response != null && !drop() && !dropResponse())
+                writeResponse(socket.getOutputStream(), response, headers.get("accept-encoding"));
+        } catch (IOException e) {
+            // The client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    /**
+     * Adds the ETag and max-age to a successful GET response, and replaces it with a 304
+     * if the client already has it
+     *
+     * @param response    response to the GET
+     * @param ifNoneMatch If-None-Match header of the request, or null
+     * @return response to send
+     */
+    private Response addValidator(Response response, String ifNoneMatch) {
+        String etag = "\"" + Integer.toHexString(response.content.hashCode()) + "-"
+                + Integer.toHexString(response.content.length()) + "\"";
+        String headers = "ETag: " + etag + "\r\n";
+        if (maxAge >= 0)
+            headers += "Cache-Control: max-age=" + maxAge + "\r\n";
+        if (etag.equals(ifNoneMatch)) {
+            synchronized (this) {
+                notModifiedSent++;
+            }
+            response = new Response(304, "Not Modified", "");
+        }
+        response.headers += headers;
+        return response;
+    }
+
+    /**
+     * Starts a new session, and redirects to the continue page with its cookie
+     */
+    private synchronized Response login() {
+        numLogins++;
+        session = Integer.toString(numLogins) + "-" + Long.toHexString(dropRandom.nextLong());
+        Response response = new Response(302, "Found", "");
+        response.headers = "Set-Cookie: " + SESSION_COOKIE + "=" + session + "; Path=/\r\n"
+                + "Location: http://localhost/\r\n";
+        return response;
+    }
+
+    /**
+     * @param cookies Cookie header of a request, or null
+     * @return true if the cookies include the one of the current session
+     */
+    private synchronized boolean hasSession(String cookies) {
+        if (cookies == null || session.length() == 0)
+            return false;
+        for (String cookie : cookies.split(";")) {
+            if (cookie.trim().equals(SESSION_COOKIE + "=" + session))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the response should be dropped, as set by dropNextResponses
+     */
+    private synchronized boolean dropResponse() {
+        if (responsesToDrop == 0)
+            return false;
+        responsesToDrop--;
+        return true;
+    }
+
+    /**
+     * @return true if the connection should be dropped, at half the drop rate
+     */
+    private synchronized boolean drop() {
+        return dropRate > 0 && dropRandom.nextDouble() < dropRate / 2;
+    }
+
+    /**
+     * Handles a request
+     *
+     * @param method request method
+     * @param path   request path
+     * @param params decoded query parameters
+     * @return response to send, or null to drop the connection without a response
+     * @throws JSONException if the response could not be built
+     */
+    protected Response handle(String method, String path, Map<String, List<String>> params)
+            throws JSONException {
+        String operationId = first(params, "op_id", null);
+        if (operationId == null || !(method.equals("POST") || method.equals("PUT")))
+            return handleOnce(method, path, params);
+
+        synchronized (this) {
+            Response response = operations.get(operationId);
+            if (response == null) {
+                response = handleOnce(method, path, params);
+                operations.put(operationId, response);
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Handles a request, without checking whether it was already applied
+     */
+    private Response handleOnce(String method, String path, Map<String, List<String>> params)
+            throws JSONException {
+        if (path.equals(CHANGES_PATH) && method.equals("GET")) {
+            if (!changeHintsEnabled)
+                return new Response(404, "Not Found", "{}");
+            return waitForChanges(Double.parseDouble(first(params, "cursor", "0")),
+                    Integer.parseInt(first(params, "timeout", "0")));
+        }
+
+        if (path.equals(DIGEST_PATH) && method.equals("GET")) {
+            if (!digestsEnabled)
+                return new Response(404, "Not Found", "{}");
+            return getDigest(Long.parseLong(first(params, "after", "0")),
+                    Long.parseLong(first(params, "upto", "-1")),
+                    Integer.parseInt(first(params, "buckets", "1")));
+        }
+
+        if (path.equals(ENTRIES_PATH)) {
+            if (method.equals("GET"))
+                return getEntries(params);
+            if (method.equals("POST"))
+                return new Response(201, "Created", updateEntry(null, params).toString());
+        }
+
+        if (path.startsWith(ENTRIES_PATH + "/")) {
+            int id = Integer.parseInt(path.substring(ENTRIES_PATH.length() + 1));
+            synchronized (this) {
+                Entry entry = entries.get(id);
+                if (entry == null || entry.deleted)
+                    return new Response(410, "Gone", "{}");
+                if (method.equals("GET"))
+                    return new Response(200, "OK", entry.toJson().toString());
+                if (method.equals("PUT"))
+                    return new Response(200, "OK", updateEntry(entry, params).toString());
+                if (method.equals("DELETE")) {
+                    deleteEntry(id);
+                    return new Response(200, "OK", "{}");
+                }
+            }
+        }
+        return new Response(400, "Bad Request", "{}");
+    }
+
+    /**
+     * Holds the request until there is a change after the cursor, or the timeout expires
+     */
+    private synchronized Response waitForChanges(double cursor, int timeout) throws JSONException {
+        long deadline = System.currentTimeMillis() + timeout * 1000L;
+        long remaining;
+        while (clock <= cursor && !serverSocket.isClosed()
+                && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        JSONObject hint = new JSONObject();
+        hint.put("cursor", clock);
+        hint.put("changed", clock > cursor);
+        return new Response(200, "OK", hint.toString());
+    }
+
+    /**
+     * Returns all entries, the entries modified after the modified parameter, or a
+     * page of the entries after the after parameter, as summaries with fields=summary
+     */
+    private synchronized Response getEntries(Map<String, List<String>> params) throws JSONException {
+        String modifiedParam = first(params, "modified", null);
+        double modified = (modifiedParam != null ? Double.parseDouble(modifiedParam) : -1);
+        String afterParam = first(params, "after", null);
+        if (afterParam != null && !pagesEnabled)
+            return new Response(400, "Bad Request", "{}");
+        long after = (afterParam != null ? Long.parseLong(afterParam) : -1);
+        int limit = Integer.parseInt(first(params, "limit", Integer.toString(Integer.MAX_VALUE)));
+        boolean summary = "summary".equals(first(params, "fields", null));
+        if (modifiedParam != null && modified < historyStart)
+            return new Response(400, "Bad Request", "{}");
+
+        JSONArray array = new JSONArray();
+        for (Entry entry : entries.values()) {
+            if (array.length() >= limit)
+                break;
+            if (modifiedParam == null ? !entry.deleted && entry.id > after : entry.modified > modified)
+                array.put(entry.toJson(summary));
+        }
+        entriesServed += array.length();
+        JSONObject list = new JSONObject();
+        list.put("timestamp", clock);
+        list.put("entries", array);
+        return new Response(200, "OK", list.toString());
+    }
+
+    /**
+     * Returns the digests of a range of ids split in ranges of equal width, a negative
+     * upto covers the range up to the greatest id
+     */
+    private synchronized Response getDigest(long after, long upto, int buckets) throws JSONException {
+        if (upto < 0) {
+            for (Entry entry : entries.values()) {
+                if (!entry.deleted)
+                    upto = Math.max(upto, entry.id);
+            }
+        }
+        long width = Math.max(1, (upto - after + buckets - 1) / buckets);
+
+        JSONArray ranges = new JSONArray();
+        for (long start = after; start < upto; start += width) {
+            long end = Math.min(upto, start + width);
+            TodoListRestClient.RangeDigester digester = new TodoListRestClient.RangeDigester();
+            for (Entry entry : entries.values()) {
+                if (!entry.deleted && entry.id > start && entry.id <= end)
+                    digester.add(entry.id, (long) (entry.modified * 1000));
+            }
+            ranges.put(digester.toRange(start, end).toJson());
+        }
+        JSONObject digest = new JSONObject();
+        digest.put("timestamp", clock);
+        digest.put("ranges", ranges);
+        return new Response(200, "OK", digest.toString());
+    }
+
+    /**
+     * Creates or updates an entry from the request parameters
+     */
+    private synchronized JSONObject updateEntry(Entry entry, Map<String, List<String>> params)
+            throws JSONException {
+        if (entry == null) {
+            entry = new Entry();
+            entry.id = nextId++;
+            entry.created = tick();
+            entries.put(entry.id, entry);
+        }
+        entry.title = first(params, "title", entry.title);
+        entry.notes = first(params, "notes", entry.notes);
+        String complete = first(params, "complete", null);
+        if (complete != null)
+            entry.complete = complete.equals("1") || complete.equalsIgnoreCase("true");
+        entry.modified = tick();
+        notifyAll();
+        return entry.toJson();
+    }
+
+    private static String first(Map<String, List<String>> params, String key, String defaultValue) {
+        List<String> values = params.get(key);
+        return (values != null && !values.isEmpty() ? values.get(0) : defaultValue);
+    }
+
+    private static Map<String, List<String>> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, List<String>> params = new HashMap<String, List<String>>();
+        for (String param : query.split("[;&]")) {
+            int eq = param.indexOf('=');
+            if (eq <= 0)
+                continue;
+            String key = URLDecoder.decode(param.substring(0, eq), "UTF-8");
+            List<String> values = params.get(key);
+            if (values == null) {
+                values = new ArrayList<String>();
+                params.put(key, values);
+            }
+            values.add(URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+    /**
+     * Reads a line of the request head, in US-ASCII
+     *
+     * @return the line, without its terminator, or null at the end of the stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            if (c != '\r')
+                line.append((char) c);
+        }
+        return (c < 0 && line.length() == 0 ? null : line.toString());
+    }
+
+    /**
+     * Reads the body of a request, sent with a Content-Length or chunked
+     *
+     * @return the body, as sent, empty if there is none
+     */
+    private static byte[] readBody(InputStream in, Map<String, String> headers) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            int size;
+            while ((size = Integer.parseInt(readLine(in).split(";")[0].trim(), 16)) > 0) {
+                readFully(in, body, size);
+                readLine(in);
+            }
+            // Skip the trailers
+            String trailer;
+            while ((trailer = readLine(in)) != null && trailer.length() > 0) {
+                // ignored
+            }
+        } else if (headers.containsKey("content-length")) {
+            readFully(in, body, Integer.parseInt(headers.get("content-length")));
+        }
+        return body.toByteArray();
+    }
+
+    private static void readFully(InputStream in, ByteArrayOutputStream out, int length) throws IOException {
+        byte[] buffer = new byte[4096];
+        while (length > 0) {
+            int n = in.read(buffer, 0, Math.min(buffer.length, length));
+            if (n < 0)
+                throw new IOException("Truncated request body");
+            out.write(buffer, 0, n);
+            length -= n;
+        }
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0)
+            out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    /**
+     * Adds the fields of a JSON request body to the parameters, ahead of the query parameters
+     */
+    private static void parseBody(byte[] body, Map<String, List<String>> params)
+            throws IOException, JSONException {
+        JSONObject object = new JSONObject(new String(body, "UTF-8"));
+        for (Iterator<?> it = object.keys(); it.hasNext(); ) {
+            String key = (String) it.next();
+            List<String> values = params.get(key);
+            if (values == null) {
+                values = new ArrayList<String>();
+                params.put(key, values);
+            }
+            values.add(0, object.getString(key));
+        }
+    }
+
+    /**
+     * Picks the content coding of a response, gzip is preferred to deflate
+     *
+     * @param acceptEncoding Accept-Encoding header of the request, or null
+     * @return content coding to compress the response with, or null
+     */
+    private String chooseCoding(String acceptEncoding) {
+        if (!compressedResponsesEnabled || acceptEncoding == null)
+            return null;
+        boolean deflate = false;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String coding = parts[0].trim().toLowerCase();
+            if (parts.length > 1 && parts[1].trim().matches("q=0(\\.0*)?"))
+                continue;
+            if (coding.equals("gzip"))
+                return coding;
+            if (coding.equals("deflate"))
+                deflate = true;
+        }
+        return (deflate ? "deflate" : null);
+    }
+
+    private static byte[] compress(byte[] body, String coding) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream compressed = (coding.equals("gzip") ? new GZIPOutputStream(out) : new DeflaterOutputStream(out));
+        compressed.write(body);
+        compressed.close();
+        return out.toByteArray();
+    }
+
+    private void writeResponse(OutputStream out, Response response, String acceptEncoding) throws IOException {
+        byte[] body = response.content.getBytes("UTF-8");
+        String coding = (body.length > 0 ? chooseCoding(acceptEncoding) : null);
+        String encodingHeader = "";
+        if (coding != null) {
+            body = compress(body, coding);
+            encodingHeader = "Content-Encoding: " + coding + "\r\n";
+            synchronized (this) {
+                Integer count = compressedResponsesSent.get(coding);
+                compressedResponsesSent.put(coding, (count != null ? count : 0) + 1);
+            }
+        }
+        String head = "HTTP/1.1 " + response.statusCode + " " + response.reason + "\r\n"
+                + "Content-Type: " + MIME_TYPE_JSON + "\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + encodingHeader
+                + response.headers
+                + "Connection: close\r\n\r\n";
+        try {
+            if (latency > 0)
+                Thread.sleep(latency);
+            out.write(head.getBytes("US-ASCII"));
+
+            // Write the body in chunks of a tenth of a second at the bandwidth
+            int chunk = (bandwidth > 0 ? Math.max(1, bandwidth / 10) : body.length);
+            for (int offset = 0; offset < body.length; offset += chunk) {
+                int length = Math.min(chunk, body.length - offset);
+                out.write(body, offset, length);
+                out.flush();
+                if (bandwidth > 0)
+                    Thread.sleep(length * 1000L / bandwidth);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted writing the response");
+        }
+        out.flush();
+    }
+}
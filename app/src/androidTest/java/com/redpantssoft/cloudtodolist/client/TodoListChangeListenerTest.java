@@ -0,0 +1,106 @@
+package com.redpantssoft.cloudtodolist.client;
+
+import android.test.AndroidTestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the TodoListChangeListener against the StandInTodoListServer
+ */
+public class TodoListChangeListenerTest extends AndroidTestCase {
+
+    // Poll timeout used by the tests, in seconds
+    private static final int POLL_TIMEOUT = 1;
+
+    private StandInTodoListServer server;
+    private HttpRestClient client;
+    private TodoListChangeListener listener;
+
+    /**
+     * Callback that counts the hints and keeps a settable sync cursor
+     */
+    private static class TestCallback implements TodoListChangeListener.Callback {
+        volatile double syncCursor;
+        volatile double lastHint = 0;
+        final CountDownLatch hint = new CountDownLatch(1);
+
+        TestCallback(double syncCursor) {
+            this.syncCursor = syncCursor;
+        }
+
+        @Override
+        public double getSyncCursor() {
+            return syncCursor;
+        }
+
+        @Override
+        public void onRemoteChange(double cursor) {
+            lastHint = cursor;
+            hint.countDown();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new StandInTodoListServer();
+        server.start();
+        server.putEntry(0, "first");
+        client = new HttpRestClient(server.getAuthority(), false, getContext(),
+                POLL_TIMEOUT * 1000 + HttpRestClient.SOCKET_OPERATION_TIMEOUT);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (listener != null)
+            listener.stop();
+        client.close();
+        server.stop();
+        super.tearDown();
+    }
+
+    public void testHintOnRemoteChange() throws Exception {
+        TestCallback callback = new TestCallback(server.getClock());
+        listener = new TodoListChangeListener(client, null, callback, POLL_TIMEOUT);
+        listener.start();
+
+        server.putEntry(0, "second");
+        assertTrue(callback.hint.await(5, TimeUnit.SECONDS));
+        assertEquals(server.getClock(), callback.lastHint);
+    }
+
+    public void testNoHintWhenInSync() throws Exception {
+        TestCallback callback = new TestCallback(server.getClock());
+        listener = new TodoListChangeListener(client, null, callback, POLL_TIMEOUT);
+        listener.start();
+
+        // Polls time out without a change, and are not reported
+        Thread.sleep(3 * POLL_TIMEOUT * 1000);
+        assertTrue(listener.getNumPolls() >= 2);
+        assertEquals(0, listener.getNumHints());
+    }
+
+    public void testHintIsDeliveredOnce() throws Exception {
+        // The local data is behind, but the sync that would catch up doesn't complete
+        TestCallback callback = new TestCallback(0);
+        listener = new TodoListChangeListener(client, null, callback, POLL_TIMEOUT);
+        listener.start();
+
+        assertTrue(callback.hint.await(5, TimeUnit.SECONDS));
+        Thread.sleep(3 * POLL_TIMEOUT * 1000);
+        assertEquals(1, listener.getNumHints());
+    }
+
+    public void testStopsWithoutChangeHints() throws Exception {
+        server.setChangeHintsEnabled(false);
+        listener = new TodoListChangeListener(client, null, new TestCallback(0), POLL_TIMEOUT);
+        listener.start();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!listener.isStopped() && System.currentTimeMillis() < deadline)
+            Thread.sleep(50);
+        assertTrue(listener.isStopped());
+        assertEquals(1, server.getRequestCount("/todolist/changes"));
+    }
+}
@@ -0,0 +1,149 @@
+package com.redpantssoft.cloudtodolist.client;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Benchmarks the transports of the HttpRestClient against each other, fetching pages of
+ * entries from a throttled StandInTodoListServer, from one thread and from several at
+ * once. The transports are run alternately, so they see the same conditions, and the
+ * report names the active network type, so runs on wifi and on a mobile network can be
+ * compared to pick a transport for each.
+ * <p/>
+ * <p>The number of requests, the threads and the throttle can be set with the
+ * cloudtodolist.benchmark.requests, cloudtodolist.benchmark.threads,
+ * cloudtodolist.benchmark.latency (milliseconds) and cloudtodolist.benchmark.bandwidth
+ * (bytes per second) properties. The report is written to the log under the
+ * TransportBenchmark tag.</p>
+ */
+public class TransportBenchmark extends AndroidTestCase {
+
+    // Log Tag
+    private static final String TAG = "TransportBenchmark";
+
+    // Number of entries on the server, enough for a few pages
+    private static final int NUM_ENTRIES = 500;
+
+    // Number of requests in each run by default, and of threads making them at once
+    private static final int DEFAULT_REQUESTS = 200;
+    private static final int DEFAULT_THREADS = 4;
+
+    // Number of runs of each transport
+    private static final int ITERATIONS = 3;
+
+    // Throttle of the server by default, 20ms per response and 2MB/s
+    private static final long DEFAULT_LATENCY = 20;
+    private static final int DEFAULT_BANDWIDTH = 2 * 1024 * 1024;
+
+    public void testTransports() throws Exception {
+        int numRequests = Integer.getInteger("cloudtodolist.benchmark.requests", DEFAULT_REQUESTS);
+        int numThreads = Integer.getInteger("cloudtodolist.benchmark.threads", DEFAULT_THREADS);
+        long latency = Long.getLong("cloudtodolist.benchmark.latency", DEFAULT_LATENCY);
+        int bandwidth = Integer.getInteger("cloudtodolist.benchmark.bandwidth", DEFAULT_BANDWIDTH);
+
+        StandInTodoListServer server = new StandInTodoListServer();
+        server.start();
+        HttpRestClient apache = new HttpRestClient(server.getAuthority(), false,
+                new ApacheHttpTransport(getContext(), HttpRestClient.SOCKET_OPERATION_TIMEOUT));
+        HttpRestClient urlConnection = new HttpRestClient(server.getAuthority(), false,
+                new UrlConnectionHttpTransport(getContext(), HttpRestClient.SOCKET_OPERATION_TIMEOUT));
+        try {
+            for (int i = 0; i < NUM_ENTRIES; i++)
+                server.putEntry(0, "Entry" + i);
+            server.setThrottle(latency, bandwidth);
+
+            long[] apacheSerial = new long[ITERATIONS];
+            long[] apacheConcurrent = new long[ITERATIONS];
+            long[] urlSerial = new long[ITERATIONS];
+            long[] urlConcurrent = new long[ITERATIONS];
+            for (int i = 0; i < ITERATIONS; i++) {
+                apacheSerial[i] = timeRequests(apache, numRequests, 1);
+                urlSerial[i] = timeRequests(urlConnection, numRequests, 1);
+                apacheConcurrent[i] = timeRequests(apache, numRequests, numThreads);
+                urlConcurrent[i] = timeRequests(urlConnection, numRequests, numThreads);
+            }
+
+            Log.i(TAG, String.format("network=%s requests=%d threads=%d latency=%dms bandwidth=%dB/s",
+                    getNetworkType(), numRequests, numThreads, latency, bandwidth));
+            Log.i(TAG, String.format("apache serial=%dms concurrent=%dms %s",
+                    median(apacheSerial), median(apacheConcurrent), apache.getPoolStats()));
+            Log.i(TAG, String.format("urlconnection serial=%dms concurrent=%dms %s",
+                    median(urlSerial), median(urlConcurrent), urlConnection.getPoolStats()));
+        } finally {
+            apache.close();
+            urlConnection.close();
+            server.stop();
+        }
+    }
+
+    /**
+     * Fetches the entries a number of times, split between threads, and checks every
+     * request succeeded
+     *
+     * @param client      client to fetch with
+     * @param numRequests number of requests, in total
+     * @param numThreads  number of threads making the requests at once
+     * @return wall-clock time of the requests, in milliseconds
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private long timeRequests(HttpRestClient client, final int numRequests, int numThreads)
+            throws InterruptedException {
+        final TodoListRestClient restClient = new TodoListRestClient(client);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[numThreads];
+        long start = System.nanoTime();
+        for (int t = 0; t < numThreads; t++) {
+            final int count = numRequests / numThreads + (t < numRequests % numThreads ? 1 : 0);
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < count; i++) {
+                            int statusCode = restClient.getEntries().getResponse().getStatusCode();
+                            if (statusCode != 200)
+                                throw new AssertionError("Status " + statusCode);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        long time = (System.nanoTime() - start) / 1000000;
+        if (!failures.isEmpty())
+            fail("Request failed: " + failures.get(0));
+        return time;
+    }
+
+    /**
+     * @return name of the active network type, or "none"
+     */
+    private String getNetworkType() {
+        ConnectivityManager connectivity =
+                (ConnectivityManager) getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = connectivity.getActiveNetworkInfo();
+        return (info != null ? info.getTypeName() : "none");
+    }
+
+    /**
+     * @param values values to take the median of
+     * @return median of the values, the lower one for an even count
+     */
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[(sorted.length - 1) / 2];
+    }
+}
@@ -0,0 +1,105 @@
+package com.redpantssoft.cloudtodolist.provider;
+
+import android.test.ProviderTestCase2;
+import android.util.Log;
+
+import com.redpantssoft.cloudtodolist.client.HttpRestClient;
+import com.redpantssoft.cloudtodolist.client.StandInTodoListServer;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Benchmarks full syncs of a large dataset from a throttled StandInTodoListServer, with
+ * the pages fetched and parsed by a concurrent DownloadPipeline and one page at a time
+ * on the sync thread. The server adds a latency to every response and limits its
+ * bandwidth, so the network time is comparable to the time spent parsing and writing
+ * the entries, which is what the pipeline overlaps.
+ * <p/>
+ * <p>The number of entries, the iterations and the throttle can be set with the
+ * cloudtodolist.benchmark.entries, cloudtodolist.benchmark.iterations,
+ * cloudtodolist.benchmark.latency (milliseconds) and cloudtodolist.benchmark.bandwidth
+ * (bytes per second) properties. The report is written to the log under the
+ * DownloadPipelineBenchmark tag.</p>
+ */
+public class DownloadPipelineBenchmark extends ProviderTestCase2<TodoListProvider> {
+
+    // Log Tag
+    private static final String TAG = "DownloadPipelineBenchmark";
+
+    // Number of entries on the server by default
+    private static final int DEFAULT_ENTRIES = 50000;
+
+    // Number of syncs in each mode by default
+    private static final int DEFAULT_ITERATIONS = 3;
+
+    // Throttle of the server by default, 20ms per response and 2MB/s
+    private static final long DEFAULT_LATENCY = 20;
+    private static final int DEFAULT_BANDWIDTH = 2 * 1024 * 1024;
+
+    public DownloadPipelineBenchmark() {
+        super(TodoListProvider.class, TodoListSchema.AUTHORITY);
+    }
+
+    public void testPipelinedFullSync() throws IOException {
+        int numEntries = Integer.getInteger("cloudtodolist.benchmark.entries", DEFAULT_ENTRIES);
+        int iterations = Integer.getInteger("cloudtodolist.benchmark.iterations", DEFAULT_ITERATIONS);
+        long latency = Long.getLong("cloudtodolist.benchmark.latency", DEFAULT_LATENCY);
+        int bandwidth = Integer.getInteger("cloudtodolist.benchmark.bandwidth", DEFAULT_BANDWIDTH);
+
+        StandInTodoListServer server = new StandInTodoListServer();
+        server.start();
+        HttpRestClient client = new HttpRestClient(server.getAuthority(), false, getContext());
+        try {
+            for (int i = 0; i < numEntries; i++)
+                server.putEntry(0, "Entry" + i);
+            server.setThrottle(latency, bandwidth);
+
+            long[] sequential = new long[iterations];
+            long[] pipelined = new long[iterations];
+            // Alternate the modes, so they see the same conditions
+            for (int i = 0; i < iterations; i++) {
+                sequential[i] = timeFullSync(client, false, numEntries);
+                pipelined[i] = timeFullSync(client, true, numEntries);
+            }
+
+            long sequentialMedian = median(sequential);
+            long pipelinedMedian = median(pipelined);
+            Log.i(TAG, String.format("entries=%d iterations=%d latency=%dms bandwidth=%dB/s"
+                    + " sequential=%dms pipelined=%dms speedup=%.2f",
+                    numEntries, iterations, latency, bandwidth, sequentialMedian, pipelinedMedian,
+                    pipelinedMedian > 0 ? (double) sequentialMedian / pipelinedMedian : 0));
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    /**
+     * Performs a full sync and checks it retrieved all the entries
+     *
+     * @param client     client to sync with
+     * @param pipelined  flag indicating whether the pages are fetched and parsed concurrently
+     * @param numEntries number of entries on the server
+     * @return wall-clock time of the sync, in milliseconds
+     */
+    private long timeFullSync(HttpRestClient client, boolean pipelined, int numEntries) {
+        getProvider().setPipelinedDownloads(pipelined);
+        long start = System.nanoTime();
+        RestDataProvider.SyncResult result = getProvider().onPerformSync(client, null, true);
+        long time = (System.nanoTime() - start) / 1000000;
+        assertFalse(result.networkError() || result.serverError());
+        assertEquals(numEntries, result.numEntries);
+        return time;
+    }
+
+    /**
+     * @param values values to take the median of
+     * @return median of the values, the lower one for an even count
+     */
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[(sorted.length - 1) / 2];
+    }
+}
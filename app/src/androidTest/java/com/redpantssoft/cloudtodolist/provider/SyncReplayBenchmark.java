@@ -0,0 +1,133 @@
+package com.redpantssoft.cloudtodolist.provider;
+
+import android.test.ProviderTestCase2;
+import android.util.Log;
+
+import com.redpantssoft.cloudtodolist.ArgumentsTestRunner;
+import com.redpantssoft.cloudtodolist.client.ExchangeLog;
+import com.redpantssoft.cloudtodolist.client.RecordingHttpRestClient;
+import com.redpantssoft.cloudtodolist.client.ReplayHttpRestClient;
+import com.redpantssoft.cloudtodolist.client.StandInTodoListServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Benchmarks full syncs of the TodoListProvider by replaying recorded exchanges with
+ * the server, so the results don't depend on the network or the backend.
+ * <p/>
+ * <p>For each dataset size, the exchanges are loaded from sync-SIZE.log in the
+ * directory named by the cloudtodolist.benchmark.recordings argument, when it exists.
+ * This is how traffic captured in the field with a RecordingHttpRestClient is replayed.
+ * Otherwise they are recorded once against a StandInTodoListServer on the loopback
+ * interface. The sync is then replayed without delay, so the timings are the client's
+ * own cost: parsing, applying and notifying.</p>
+ * <p/>
+ * <p>The sizes and number of iterations can be set with the cloudtodolist.benchmark.sizes
+ * and cloudtodolist.benchmark.iterations arguments. The arguments are passed to the
+ * instrumentation with 'am instrument -e', and read through the ArgumentsTestRunner.
+ * The report is written to the log under the SyncReplayBenchmark tag.</p>
+ */
+public class SyncReplayBenchmark extends ProviderTestCase2<TodoListProvider> {
+
+    // Log Tag
+    private static final String TAG = "SyncReplayBenchmark";
+
+    // Dataset sizes benchmarked by default, in entries
+    private static final String DEFAULT_SIZES = "100,1000,5000";
+
+    // Number of replays of each dataset by default
+    private static final int DEFAULT_ITERATIONS = 10;
+
+    public SyncReplayBenchmark() {
+        super(TodoListProvider.class, TodoListSchema.AUTHORITY);
+    }
+
+    public void testReplayFullSync() throws IOException {
+        int iterations = Integer.parseInt(ArgumentsTestRunner.getArgument("cloudtodolist.benchmark.iterations",
+                Integer.toString(DEFAULT_ITERATIONS)));
+        String recordings = ArgumentsTestRunner.getArgument("cloudtodolist.benchmark.recordings", null);
+
+        for (String size : ArgumentsTestRunner.getArgument("cloudtodolist.benchmark.sizes", DEFAULT_SIZES).split(",")) {
+            int numEntries = Integer.parseInt(size.trim());
+            File file = new File(recordings != null ? new File(recordings) : getContext().getCacheDir(),
+                    "sync-" + numEntries + ".log");
+            ExchangeLog log = (recordings != null && file.exists() ? ExchangeLog.load(file)
+                    : record(numEntries, file));
+
+            long[] times = new long[iterations];
+            long entries = 0;
+            for (int i = 0; i < iterations; i++) {
+                ReplayHttpRestClient client = new ReplayHttpRestClient(getContext(), log, 0);
+                try {
+                    long start = System.nanoTime();
+                    RestDataProvider.SyncResult result = getProvider().onPerformSync(client, null, true);
+                    times[i] = (System.nanoTime() - start) / 1000;
+                    assertEquals(0, client.getNumMisses());
+                    assertFalse(result.networkError() || result.serverError());
+                    entries = result.numEntries;
+                } finally {
+                    client.close();
+                }
+            }
+            report(numEntries, log, entries, times);
+        }
+    }
+
+    /**
+     * Records a full sync of a stand-in server holding a number of entries
+     *
+     * @param numEntries number of entries on the server
+     * @param file       file the exchanges are saved to
+     * @return log of the recorded exchanges
+     * @throws IOException indicates the server could not be started or the log saved
+     */
+    private ExchangeLog record(int numEntries, File file) throws IOException {
+        StandInTodoListServer server = new StandInTodoListServer();
+        server.start();
+        ExchangeLog log = new ExchangeLog();
+        RecordingHttpRestClient client = new RecordingHttpRestClient(server.getAuthority(), false,
+                getContext(), log);
+        try {
+            for (int i = 0; i < numEntries; i++)
+                server.putEntry(0, "Entry" + i);
+            RestDataProvider.SyncResult result = getProvider().onPerformSync(client, null, true);
+            assertFalse(result.networkError() || result.serverError());
+        } finally {
+            client.close();
+            server.stop();
+        }
+        log.save(file);
+        return log;
+    }
+
+    /**
+     * Logs the throughput and latency percentiles of the replays of a dataset
+     *
+     * @param numEntries number of entries in the dataset
+     * @param log        replayed exchanges
+     * @param entries    number of entries applied by each replay
+     * @param times      time taken by each replay, in microseconds
+     */
+    private static void report(int numEntries, ExchangeLog log, long entries, long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        long median = percentile(sorted, 50);
+        Log.i(TAG, String.format("entries=%d exchanges=%d iterations=%d entries/s=%.0f"
+                + " p50=%.1fms p90=%.1fms p99=%.1fms",
+                numEntries, log.size(), times.length,
+                median > 0 ? entries * 1000000.0 / median : 0,
+                median / 1000.0, percentile(sorted, 90) / 1000.0, percentile(sorted, 99) / 1000.0));
+    }
+
+    /**
+     * @param sorted values in ascending order
+     * @param p      percentile, between 0 and 100
+     * @return value at the percentile, by the nearest rank method
+     */
+    private static long percentile(long[] sorted, int p) {
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+}
@@ -0,0 +1,505 @@
+package com.redpantssoft.cloudtodolist.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+
+import com.redpantssoft.cloudtodolist.client.HttpRestClient;
+import com.redpantssoft.cloudtodolist.client.StandInTodoListServer;
+
+import org.json.JSONException;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests syncing the TodoListProvider against the StandInTodoListServer
+ */
+public class TodoListProviderSyncTest extends ProviderTestCase2<TodoListProvider> {
+
+    // Number of entries on the server, enough for several download pages
+    private static final int SERVER_ENTRIES = 250;
+
+    // Maximum number of sync attempts against an unreliable server
+    private static final int MAX_ATTEMPTS = 200;
+
+    /**
+     * Stand-in server that runs an action, like a local edit, when it serves
+     * a download of the entries. It can also ignore the after parameter of the
+     * downloads, like a proxy dropping it
+     */
+    private static class EditingServer extends StandInTodoListServer {
+        volatile Runnable onDownload;
+        volatile boolean ignoreAfter = false;
+
+        @Override
+        protected Response handle(String method, String path, Map<String, List<String>> params)
+                throws JSONException {
+            if (ignoreAfter && path.equals("/todolist/entries"))
+                params.remove("after");
+            Response response = super.handle(method, path, params);
+            Runnable action = onDownload;
+            if (method.equals("GET") && path.equals("/todolist/entries") && action != null) {
+                onDownload = null;
+                action.run();
+            }
+            return response;
+        }
+    }
+
+    private EditingServer server;
+    private HttpRestClient client;
+
+    public TodoListProviderSyncTest() {
+        super(TodoListProvider.class, TodoListSchema.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new EditingServer();
+        server.start();
+        for (int i = 0; i < SERVER_ENTRIES; i++)
+            server.putEntry(0, "Entry" + i);
+        client = new HttpRestClient(server.getAuthority(), false, getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        client.close();
+        server.stop();
+        super.tearDown();
+    }
+
+    private void insertLocalEntry(String title) {
+        ContentValues values = new ContentValues();
+        values.put(TodoListSchema.Entries.TITLE, title);
+        getMockContentResolver().insert(TodoListSchema.Entries.CONTENT_URI, values);
+    }
+
+    private int countLocalEntries(String where) {
+        Cursor cur = getMockContentResolver().query(TodoListSchema.Entries.CONTENT_URI, null, where, null, null);
+        try {
+            return cur.getCount();
+        } finally {
+            cur.close();
+        }
+    }
+
+    public void testFullSyncYieldsToLocalEdit() {
+        // The user adds an entry while the full sync downloads
+        server.onDownload = new Runnable() {
+            @Override
+            public void run() {
+                insertLocalEntry("added during download");
+            }
+        };
+
+        RestDataProvider.SyncResult result = getProvider().onPerformSync(client, null, false);
+        assertFalse(result.networkError() || result.serverError());
+        assertEquals(1, result.numUploadYields);
+        assertEquals(1, result.numUpstreamInserts);
+
+        // The entry reached the server and survived the swap of the downloaded entries
+        assertTrue(server.getTitles().containsValue("added during download"));
+        assertEquals(SERVER_ENTRIES + 1, countLocalEntries(null));
+        assertEquals(0, countLocalEntries(TodoListSchema.Entries.ID + " IS NULL"));
+    }
+
+    public void testIncrementalSyncDoesNotOverwriteUploadedEdit() {
+        getProvider().onPerformSync(client, null, false);
+        assertEquals(SERVER_ENTRIES, countLocalEntries(null));
+
+        // Every entry changes on the server, and the user edits one of them during the download
+        for (int id = 1; id <= SERVER_ENTRIES; id++)
+            server.putEntry(id, "Remote" + id);
+        server.onDownload = new Runnable() {
+            @Override
+            public void run() {
+                ContentValues values = new ContentValues();
+                values.put(TodoListSchema.Entries.TITLE, "edited during download");
+                getMockContentResolver().update(TodoListSchema.Entries.CONTENT_URI, values,
+                        TodoListSchema.Entries.ID + " = 1", null);
+            }
+        };
+
+        RestDataProvider.SyncResult result = getProvider().onPerformSync(client, null, false);
+        assertEquals(1, result.numUploadYields);
+        assertEquals(1, result.numUpstreamUpdates);
+        assertEquals(SERVER_ENTRIES - 1, result.numUpdates);
+
+        assertEquals("edited during download", server.getTitles().get(1));
+        assertEquals(1, countLocalEntries(TodoListSchema.Entries.TITLE + " = 'edited during download'"));
+    }
+
+    public void testFullSyncWithoutPages() {
+        server.setPagesEnabled(false);
+
+        RestDataProvider.SyncResult result = getProvider().onPerformSync(client, null, false);
+        assertFalse(result.networkError() || result.serverError());
+        assertEquals(SERVER_ENTRIES, countLocalEntries(null));
+    }
+
+    public void testFullSyncStopsWhenPagesDontAdvance() {
+        // Every page is the first one again
+        server.ignoreAfter = true;
+
+        RestDataProvider.SyncResult result = getProvider().onPerformSync(client, null, false);
+        assertTrue(server.getRequestCount("/todolist/entries") < 5);
+        assertFalse(result.networkError() || result.serverError());
+        assertTrue(countLocalEntries(null) <= SERVER_ENTRIES);
+    }
+
+    public void testFullSyncResumesAfterRestart() {
+        for (int i = SERVER_ENTRIES; i < 4 * SERVER_ENTRIES; i++)
+            server.putEntry(0, "Entry" + i);
+        int serverEntries = server.getTitles().size();
+
+        // Most connections drop, so every attempt is interrupted at some random point.
+        //  Each attempt runs in a new provider instance, as if the process was restarted
+        server.setDropRate(0.8, 31);
+        int attempts = 0;
+        RestDataProvider.SyncResult result;
+        do {
+            TodoListProvider provider = new TodoListProvider();
+            provider.attachInfo(getMockContext(), null);
+            result = provider.onPerformSync(client, null, false);
+            attempts++;
+        } while ((result.networkError() || result.serverError()) && attempts < MAX_ATTEMPTS);
+        server.setDropRate(0, 0);
+
+        assertFalse(result.networkError() || result.serverError());
+        assertTrue("attempts: " + attempts, attempts > 1);
+        assertEquals(serverEntries, countLocalEntries(null));
+
+        // Progress is kept across the attempts, entries are only sent again when a response is lost
+        assertTrue("entries served: " + server.getEntriesServed(), server.getEntriesServed() < 4 * serverEntries);
+
+        // The next sync is an incremental one
+        server.putEntry(1, "Changed");
+        result = getProvider().onPerformSync(client, null, false);
+        assertEquals(1, result.numUpdates);
+    }
+
+    public void testSyncHistoryRecordsPhases() {
+        RestDataProvider.SyncResult result = getProvider().onPerformSync(client, null, false);
+        assertTrue(result.fullSync);
+        assertEquals(SERVER_ENTRIES, result.numEntries);
+
+        Cursor cur = getMockContentResolver().query(TodoListSchema.SyncHistory.CONTENT_URI,
+                null, null, null, null);
+        try {
+            assertEquals(1, cur.getCount());
+            assertTrue(cur.moveToFirst());
+            assertEquals(TodoListSchema.SyncHistory.TYPE_FULL,
+                    cur.getString(cur.getColumnIndex(TodoListSchema.SyncHistory.TYPE)));
+            assertEquals(1, cur.getInt(cur.getColumnIndex(TodoListSchema.SyncHistory.SUCCEEDED)));
+            assertEquals(result.numRoundTrips,
+                    cur.getLong(cur.getColumnIndex(TodoListSchema.SyncHistory.ROUND_TRIPS)));
+            assertTrue(cur.getLong(cur.getColumnIndex(TodoListSchema.SyncHistory.BYTES_RECEIVED)) > 0);
+            assertTrue(cur.getLong(cur.getColumnIndex(TodoListSchema.SyncHistory.TOTAL_TIME))
+                    >= cur.getLong(cur.getColumnIndex(TodoListSchema.SyncHistory.APPLY_TIME)));
+        } finally {
+            cur.close();
+        }
+        assertTrue(result.numRoundTrips >= 3);
+    }
+
+    public void testReconciliationDownloadsOnlyDifferences() {
+        for (int i = SERVER_ENTRIES; i < 8 * SERVER_ENTRIES; i++)
+            server.putEntry(0, "Entry" + i);
+        getProvider().onPerformSync(client, null, false);
+        long entriesServed = server.getEntriesServed();
+
+        // A few changes, then the server forgets the history the next incremental sync needs
+        server.putEntry(10, "Changed");
+        server.putEntry(1500, "Changed");
+        server.deleteEntry(700);
+        server.putEntry(0, "Added");
+        server.purgeHistory();
+
+        RestDataProvider.SyncResult result = getProvider().onPerformSync(client, null, false);
+        assertFalse(result.networkError() || result.serverError());
+        assertFalse(result.fullSyncRequested);
+        assertTrue(result.numRangeDownloads > 0);
+        assertEquals(server.getTitles().size(), countLocalEntries(null));
+        assertEquals(2, countLocalEntries(TodoListSchema.Entries.TITLE + " = 'Changed'"));
+        assertEquals(1, countLocalEntries(TodoListSchema.Entries.TITLE + " = 'Added'"));
+        assertEquals(0, countLocalEntries(TodoListSchema.Entries.ID + " = 700"));
+
+        // Only the ranges around the changes were downloaded, not the whole list
+        long downloaded = server.getEntriesServed() - entriesServed;
+        assertTrue("entries downloaded: " + downloaded, downloaded < SERVER_ENTRIES);
+
+        // The sync window is restored
+        server.putEntry(20, "Changed again");
+        result = getProvider().onPerformSync(client, null, false);
+        assertEquals(1, result.numUpdates);
+    }
+
+    public void testReconciliationFallsBackToFullSync() {
+        getProvider().onPerformSync(client, null, false);
+        server.setDigestsEnabled(false);
+        server.putEntry(10, "Changed");
+        server.purgeHistory();
+
+        RestDataProvider.SyncResult result = getProvider().onPerformSync(client, null, false);
+        assertFalse(result.networkError() || result.serverError());
+        assertTrue(result.fullSyncRequested);
+    }
+
+    public void testCreateThenDeleteIsNotUploaded() {
+        insertLocalEntry("short lived");
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < 3; i++) {
+            values.put(TodoListSchema.Entries.TITLE, "edit " + i);
+            getMockContentResolver().update(TodoListSchema.Entries.CONTENT_URI, values, null, null);
+        }
+        getMockContentResolver().delete(TodoListSchema.Entries.CONTENT_URI, null, null);
+
+        RestDataProvider.SyncResult result = getProvider().onPerformUpstreamSync(client, null);
+        assertEquals(1, result.numCompactedRequests);
+        assertEquals(0, result.numUpstreamInserts + result.numUpstreamDeletes);
+        assertEquals(0, server.getRequestCount("/todolist/entries"));
+        assertEquals(0, server.getRequestCount("/todolist/entries/0"));
+        assertEquals(SERVER_ENTRIES, server.getTitles().size());
+
+        Cursor cur = getProvider().query(TodoListSchema.Entries.CONTENT_URI, null, null, null, null);
+        try {
+            assertEquals(0, cur.getCount());
+        } finally {
+            cur.close();
+        }
+    }
+
+    public void testRepeatedEditsAreUploadedOnce() {
+        insertLocalEntry("edited");
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < 3; i++) {
+            values.put(TodoListSchema.Entries.TITLE, "edit " + i);
+            getMockContentResolver().update(TodoListSchema.Entries.CONTENT_URI, values, null, null);
+        }
+
+        RestDataProvider.SyncResult result = getProvider().onPerformUpstreamSync(client, null);
+        assertEquals(1, result.numUpstreamInserts);
+        assertEquals(0, result.numUpstreamUpdates);
+        assertEquals(1, server.getRequestCount("/todolist/entries"));
+        assertTrue(server.getTitles().containsValue("edit 2"));
+    }
+
+    public void testLostPostResponseDoesNotDuplicate() {
+        insertLocalEntry("created once");
+        server.dropNextResponses(1);
+
+        RestDataProvider.SyncResult result = getProvider().onPerformUpstreamSync(client, null);
+        assertFalse(result.networkError());
+        assertEquals(1, result.numUpstreamInserts);
+        assertEquals(2, server.getRequestCount("/todolist/entries"));
+        assertEquals(SERVER_ENTRIES + 1, server.getTitles().size());
+        assertEquals(1, countLocalEntries(TodoListSchema.Entries.ID + " IS NOT NULL"
+                + " AND " + TodoListSchema.Entries.CLIENT_OP_ID + " IS NULL"));
+    }
+
+    public void testEditAfterLostPostReachesServer() {
+        insertLocalEntry("created");
+        server.dropNextResponses(Integer.MAX_VALUE);
+        RestDataProvider.SyncResult result = getProvider().onPerformUpstreamSync(client, null);
+        assertTrue(result.networkError());
+        server.dropNextResponses(0);
+
+        // The repeated create returns the entry as it was created, the edit follows it
+        ContentValues values = new ContentValues();
+        values.put(TodoListSchema.Entries.TITLE, "edited after the create");
+        getMockContentResolver().update(TodoListSchema.Entries.CONTENT_URI, values, null, null);
+        result = getProvider().onPerformUpstreamSync(client, null);
+        assertFalse(result.networkError());
+        assertEquals(SERVER_ENTRIES + 1, server.getTitles().size());
+        assertTrue(server.getTitles().containsValue("edited after the create"));
+        assertFalse(server.getTitles().containsValue("created"));
+        assertEquals(0, countLocalEntries(TodoListSchema.Entries.PENDING_UPDATE + " > 0"));
+    }
+
+    public void testDeleteAfterLostPostReachesServer() {
+        insertLocalEntry("created then deleted");
+        server.dropNextResponses(Integer.MAX_VALUE);
+        RestDataProvider.SyncResult result = getProvider().onPerformUpstreamSync(client, null);
+        assertTrue(result.networkError());
+        server.dropNextResponses(0);
+        assertEquals(SERVER_ENTRIES + 1, server.getTitles().size());
+
+        // The create reached the server, so the delete is not compacted away
+        getMockContentResolver().delete(TodoListSchema.Entries.CONTENT_URI, null, null);
+        result = getProvider().onPerformUpstreamSync(client, null);
+        assertEquals(0, result.numCompactedRequests);
+        assertEquals(1, result.numUpstreamDeletes);
+        assertEquals(SERVER_ENTRIES, server.getTitles().size());
+        assertEquals(0, countLocalEntries(null));
+    }
+
+    public void testIncrementalSyncSkipsUploadEchoes() {
+        getProvider().onPerformSync(client, null, false);
+
+        ContentValues values = new ContentValues();
+        values.put(TodoListSchema.Entries.TITLE, "edited locally");
+        getMockContentResolver().update(TodoListSchema.Entries.CONTENT_URI, values,
+                TodoListSchema.Entries.ID + " <= 5", null);
+        server.putEntry(100, "edited remotely");
+
+        RestDataProvider.SyncResult result = getProvider().onPerformSync(client, null, false);
+        assertEquals(5, result.numUpstreamUpdates);
+        assertEquals(5, result.numEchoesSuppressed);
+        assertEquals(1, result.numUpdates);
+        assertEquals(5, countLocalEntries(TodoListSchema.Entries.TITLE + " = 'edited locally'"));
+    }
+
+    public void testBudgetedFullSyncContinues() {
+        // Every run is out of budget after its first request, so it downloads a single page
+        int runs = 0;
+        RestDataProvider.SyncResult result;
+        do {
+            result = getProvider().onPerformSync(client, null, false, new SyncBudget(0, 1));
+            assertFalse(result.networkError() || result.serverError());
+            runs++;
+        } while (result.budgetExhausted && runs < 10);
+
+        assertEquals(3, runs);
+        assertEquals(SERVER_ENTRIES, countLocalEntries(null));
+        assertEquals(SERVER_ENTRIES, server.getEntriesServed());
+    }
+
+    public void testAccountPartitionsSyncConcurrently() throws Exception {
+        StandInTodoListServer workServer = new StandInTodoListServer();
+        workServer.start();
+        final HttpRestClient workClient = new HttpRestClient(workServer.getAuthority(), false, getContext());
+        try {
+            workServer.putEntry(0, "Work");
+            final TodoListProvider work = getProvider().getPartition("work@example.com");
+            assertNotSame(getProvider(), work);
+            assertSame(work, getProvider().getPartition("work@example.com"));
+
+            // Both accounts sync at the same time, each with its own client
+            final RestDataProvider.SyncResult[] workResult = new RestDataProvider.SyncResult[1];
+            Thread workSync = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    workResult[0] = work.onPerformSync(workClient, null, false);
+                }
+            });
+            workSync.start();
+            RestDataProvider.SyncResult result = getProvider().onPerformSync(client, null, false);
+            workSync.join();
+
+            assertFalse(result.networkError() || result.serverError());
+            assertFalse(workResult[0].networkError() || workResult[0].serverError());
+            assertEquals(SERVER_ENTRIES, countLocalEntries(null));
+
+            Cursor cur = getMockContentResolver().query(TodoListSchema.Entries.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(TodoListSchema.PARAMETER_ACCOUNT, "work@example.com").build(),
+                    null, null, null, null);
+            try {
+                assertEquals(1, cur.getCount());
+                assertTrue(cur.moveToFirst());
+                assertEquals("Work", cur.getString(cur.getColumnIndex(TodoListSchema.Entries.TITLE)));
+            } finally {
+                cur.close();
+            }
+        } finally {
+            workClient.close();
+            workServer.stop();
+        }
+    }
+
+    public void testAccountsWithSimilarNamesHaveSeparatePartitions() {
+        TodoListProvider plus = getProvider().getPartition("a+b@example.com");
+        TodoListProvider underscore = getProvider().getPartition("a_b@example.com");
+        assertNotSame(plus, underscore);
+
+        ContentValues values = new ContentValues();
+        values.put(TodoListSchema.Entries.TITLE, "Plus");
+        plus.insert(TodoListSchema.Entries.CONTENT_URI, values);
+        Cursor cur = underscore.query(TodoListSchema.Entries.CONTENT_URI, null, null, null, null);
+        try {
+            assertEquals(0, cur.getCount());
+        } finally {
+            cur.close();
+        }
+    }
+
+    /**
+     * @param id server id of an entry
+     * @return local notes of the entry, null if they weren't downloaded
+     */
+    private String getLocalNotes(int id) {
+        Cursor cur = getMockContentResolver().query(TodoListSchema.Entries.CONTENT_URI,
+                new String[]{TodoListSchema.Entries.NOTES}, TodoListSchema.Entries.ID + " = " + id, null, null);
+        try {
+            assertTrue(cur.moveToFirst());
+            return cur.getString(0);
+        } finally {
+            cur.close();
+        }
+    }
+
+    public void testSummarySyncDownloadsNotesOnDemand() {
+        int id = server.putEntry(0, "Notes", "Long notes");
+        RestDataProvider.SyncResult result = getProvider().onPerformSync(client, null, false);
+        assertFalse(result.networkError() || result.serverError());
+        assertNull(getLocalNotes(id));
+        assertEquals("", getLocalNotes(1));
+
+        result = getProvider().onPerformNotesDownload(client, null, 0, SyncBudget.UNLIMITED);
+        assertEquals(1, result.numNotesDownloads);
+        assertEquals("Long notes", getLocalNotes(id));
+
+        // Notes that didn't change are kept by a summary, notes that did are dropped
+        server.putEntry(id, "Renamed");
+        getProvider().onPerformSync(client, null, false);
+        assertEquals("Long notes", getLocalNotes(id));
+        server.putEntry(id, "Renamed", "Other notes");
+        getProvider().onPerformSync(client, null, false);
+        assertNull(getLocalNotes(id));
+    }
+
+    public void testLongNotesAreUploadedInCompressedBody() {
+        StringBuilder notes = new StringBuilder();
+        while (notes.length() < 4 * HttpRestClient.COMPRESSION_THRESHOLD)
+            notes.append("Notes too long for a query string; ");
+        ContentValues values = new ContentValues();
+        values.put(TodoListSchema.Entries.TITLE, "Long notes");
+        values.put(TodoListSchema.Entries.NOTES, notes.toString());
+        getMockContentResolver().insert(TodoListSchema.Entries.CONTENT_URI, values);
+
+        RestDataProvider.SyncResult result = getProvider().onPerformUpstreamSync(client, null);
+        assertEquals(1, result.numUpstreamInserts);
+        assertEquals(1, server.getCompressedBodiesReceived());
+        assertEquals(notes.toString(), server.getNotes(SERVER_ENTRIES + 1));
+
+        // A server refusing compressed bodies gets the request again, uncompressed
+        server.setCompressedBodiesEnabled(false);
+        values.put(TodoListSchema.Entries.NOTES, "Edited " + notes);
+        getMockContentResolver().update(TodoListSchema.Entries.CONTENT_URI, values, null, null);
+        result = getProvider().onPerformUpstreamSync(client, null);
+        assertEquals(1, result.numUpstreamUpdates);
+        assertEquals(2, server.getCompressedBodiesReceived());
+        assertEquals("Edited " + notes, server.getNotes(SERVER_ENTRIES + 1));
+    }
+
+    public void testFieldsAreSentAsQueryToServerWithoutBodies() {
+        server.setBodiesEnabled(false);
+        insertLocalEntry("sent in the query");
+
+        RestDataProvider.SyncResult result = getProvider().onPerformUpstreamSync(client, null);
+        assertEquals(1, result.numUpstreamInserts);
+        assertEquals(1, server.getBodiesRefused());
+        assertTrue(server.getTitles().containsValue("sent in the query"));
+
+        // Once the server took the query, the fields are no longer sent in a body
+        ContentValues values = new ContentValues();
+        values.put(TodoListSchema.Entries.TITLE, "edited in the query");
+        getMockContentResolver().update(TodoListSchema.Entries.CONTENT_URI, values, null, null);
+        result = getProvider().onPerformUpstreamSync(client, null);
+        assertEquals(1, result.numUpstreamUpdates);
+        assertEquals(1, server.getBodiesRefused());
+        assertTrue(server.getTitles().containsValue("edited in the query"));
+    }
+}
@@ -9,6 +9,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.RemoteException;
+import android.provider.BaseColumns;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
 
@@ -514,4 +515,56 @@ public class TodoListProviderTest extends ProviderTestCase2<TodoListProvider> {
         }
     }
 
+
+    public void testUpgradeKeepsEntriesNotUploaded() {
+        String name = "upgrade-test.db";
+        getContext().deleteDatabase(name);
+
+        // The database of the baseline release, with an entry that was never uploaded
+        SQLiteDatabase old = getContext().openOrCreateDatabase(name, 0, null);
+        old.execSQL("CREATE TABLE " + TodoListSchema.Entries.TABLE_NAME + " ("
+                + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + TodoListSchema.Entries.ID + " INTEGER KEY UNIQUE DEFAULT NULL,"
+                + TodoListSchema.Entries.TITLE + " TEXT,"
+                + TodoListSchema.Entries.NOTES + " TEXT,"
+                + TodoListSchema.Entries.COMPLETE + " INTEGER,"
+                + TodoListSchema.Entries.CREATED + " LONG,"
+                + TodoListSchema.Entries.MODIFIED + " LONG,"
+                + TodoListSchema.Entries.PENDING_TX + " INTEGER DEFAULT 0,"
+                + TodoListSchema.Entries.PENDING_UPDATE + " INTEGER KEY DEFAULT 0,"
+                + TodoListSchema.Entries.PENDING_DELETE + " INTEGER KEY DEFAULT 0"
+                + ");");
+        ContentValues values = new ContentValues();
+        values.put(TodoListSchema.Entries.TITLE, "Not uploaded");
+        values.putNull(TodoListSchema.Entries.NOTES);
+        values.put(TodoListSchema.Entries.PENDING_UPDATE, 1);
+        old.insert(TodoListSchema.Entries.TABLE_NAME, null, values);
+        old.setVersion(1);
+        old.close();
+
+        TodoListProvider.DatabaseHelper helper = getProvider().new DatabaseHelper(getContext(), name);
+        try {
+            SQLiteDatabase upgraded = helper.getWritableDatabase();
+            Cursor cur = upgraded.query(TodoListSchema.Entries.TABLE_NAME, null, null, null, null, null, null);
+            try {
+                assertEquals(1, cur.getCount());
+                cur.moveToFirst();
+                assertEquals("Not uploaded", cur.getString(cur.getColumnIndex(TodoListSchema.Entries.TITLE)));
+                assertEquals(1, cur.getInt(cur.getColumnIndex(TodoListSchema.Entries.PENDING_UPDATE)));
+                assertTrue(cur.isNull(cur.getColumnIndex(TodoListSchema.Entries.CLIENT_OP_ID)));
+                assertEquals("", cur.getString(cur.getColumnIndex(TodoListSchema.Entries.NOTES)));
+                assertEquals("", cur.getString(cur.getColumnIndex(TodoListSchema.Entries.NOTES_HASH)));
+            } finally {
+                cur.close();
+            }
+
+            // The tables of the later versions were added
+            upgraded.query(TodoListSchema.SyncHistory.TABLE_NAME, null, null, null, null, null, null).close();
+            upgraded.query(TodoListSchema.Entries.TABLE_NAME + "_staging",
+                    new String[]{TodoListSchema.Entries.NOTES_HASH}, null, null, null, null, null).close();
+        } finally {
+            helper.close();
+            getContext().deleteDatabase(name);
+        }
+    }
 }
@@ -0,0 +1,230 @@
+package com.redpantssoft.cloudtodolist;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.redpantssoft.cloudtodolist.provider.RestDataProvider;
+
+/**
+ * Determines the interval until the next periodic sync, based on the history of
+ * previous sync results and on user activity. The configured sync_interval
+ * preference is used as the base interval, which is then shortened when remote
+ * changes arrive frequently and stretched when they don't, or when the user has
+ * been idle for a while.
+ * <p/>
+ * <p>The remote change rate is estimated as a decaying ratio of syncs that found
+ * remote changes over the time spent between syncs. The interval is chosen so that
+ * roughly TARGET_HIT_RATIO of the syncs will find something to download. The
+ * result is always clamped to the configured minimum and maximum intervals.</p>
+ * <p/>
+ * <p>All state is persisted in private SharedPreferences so that it survives
+ * process restarts. The most recent decision is kept as well, for diagnostics.</p>
+ */
+public class AdaptiveSyncScheduler {
+
+    // Log Tag
+    private static final String TAG = "AdaptiveSyncScheduler";
+
+    // Keys of the persisted scheduler state
+    private static final String KEY_CHANGE_HITS = "changeHits";
+    private static final String KEY_CHANGE_EXPOSURE = "changeExposure";
+    private static final String KEY_LAST_SYNC = "lastSync";
+    private static final String KEY_LAST_USER_ACTIVITY = "lastUserActivity";
+    private static final String KEY_DECISION_INTERVAL = "decisionInterval";
+    private static final String KEY_DECISION_BASE_INTERVAL = "decisionBaseInterval";
+    private static final String KEY_DECISION_CHANGE_RATE = "decisionChangeRate";
+    private static final String KEY_DECISION_IDLE_TIME = "decisionIdleTime";
+    private static final String KEY_DECISION_TIME = "decisionTime";
+
+    // Decay applied to the change history on each sync, older results count less
+    private static final float HISTORY_DECAY = 0.8f;
+
+    // Fraction of the syncs that are expected to find remote changes
+    private static final double TARGET_HIT_RATIO = 0.5;
+
+    // Idle time after which the interval starts to be stretched
+    private static final long IDLE_THRESHOLD = 30 * 60 * 1000;
+
+    // Maximum factor the interval is stretched by for an idle user
+    private static final float MAX_IDLE_FACTOR = 4.0f;
+
+    // Number of milliseconds in an hour, used for reporting the change rate
+    private static final double MILLIS_PER_HOUR = 60 * 60 * 1000;
+
+    // Current application context
+    private final Context ctxt;
+
+    // Private shared prefs that hold the scheduler state
+    private final SharedPreferences state;
+
+    /**
+     * Represents a scheduling decision, the interval that was chosen and the inputs
+     * that it was derived from. Objects of this type are immutable
+     */
+    public static class Decision {
+        // Interval until the next sync, in milliseconds
+        public final long interval;
+        // Configured sync_interval that the decision was based on, in milliseconds
+        public final long baseInterval;
+        // Estimated remote change rate, in syncs with changes per hour
+        public final double changeRate;
+        // Time since the last user activity, in milliseconds
+        public final long idleTime;
+        // Time the decision was made
+        public final long time;
+
+        /**
+         * Constructor
+         *
+         * @param interval     interval until the next sync
+         * @param baseInterval configured sync interval
+         * @param changeRate   estimated remote change rate
+         * @param idleTime     time since the last user activity
+         * @param time         time the decision was made
+         */
+        public Decision(long interval, long baseInterval, double changeRate, long idleTime, long time) {
+            this.interval = interval;
+            this.baseInterval = baseInterval;
+            this.changeRate = changeRate;
+            this.idleTime = idleTime;
+            this.time = time;
+        }
+
+        @Override
+        public String toString() {
+            return "interval=" + interval / 1000 + "s"
+                    + " base=" + baseInterval / 1000 + "s"
+                    + " changeRate=" + String.format("%.2f", changeRate) + "/h"
+                    + " idle=" + idleTime / 1000 + "s";
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param ctxt current application context
+     */
+    public AdaptiveSyncScheduler(Context ctxt) {
+        this.ctxt = ctxt;
+        this.state = ctxt.getSharedPreferences(AdaptiveSyncScheduler.class.getName(), Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Records the result of a completed sync. Only syncs that reached the server
+     * successfully are used to learn the remote change rate.
+     *
+     * @param syncResult result of the sync operation
+     */
+    public void onSyncResult(RestDataProvider.SyncResult syncResult) {
+        if (syncResult.networkError() || syncResult.serverError() || syncResult.authenticationError())
+            return;
+
+        long now = System.currentTimeMillis();
+        long lastSync = state.getLong(KEY_LAST_SYNC, 0);
+        float hits = state.getFloat(KEY_CHANGE_HITS, 0);
+        float exposure = state.getFloat(KEY_CHANGE_EXPOSURE, 0);
+
+        // The first sync only establishes the start of the observation window
+        if (lastSync > 0 && now > lastSync) {
+            hits = hits * HISTORY_DECAY + (syncResult.updated() ? 1 : 0);
+            exposure = exposure * HISTORY_DECAY + (now - lastSync);
+        }
+
+        SharedPreferences.Editor editor = state.edit();
+        editor.putLong(KEY_LAST_SYNC, now);
+        editor.putFloat(KEY_CHANGE_HITS, hits);
+        editor.putFloat(KEY_CHANGE_EXPOSURE, exposure);
+        editor.commit();
+    }
+
+    /**
+     * Records that the user interacted with the application. This resets the idle time
+     */
+    public void onUserActivity() {
+        SharedPreferences.Editor editor = state.edit();
+        editor.putLong(KEY_LAST_USER_ACTIVITY, System.currentTimeMillis());
+        editor.commit();
+    }
+
+    /**
+     * Decides on the interval until the next periodic sync and persists the
+     * decision for diagnostics.
+     *
+     * @param baseInterval configured sync interval, in milliseconds
+     * @return the scheduling decision
+     */
+    public Decision nextDecision(long baseInterval) {
+        long now = System.currentTimeMillis();
+
+        // Estimated number of syncs with changes per millisecond
+        float hits = state.getFloat(KEY_CHANGE_HITS, 0);
+        float exposure = state.getFloat(KEY_CHANGE_EXPOSURE, 0);
+        double rate = exposure > 0 ? hits / exposure : 0;
+
+        /**
+         * Pick the interval in which a change arrives with a probability of
+         * TARGET_HIT_RATIO, assuming that changes arrive independently of each other.
+         * Without any history, or without any observed changes, start from the
+         * base interval and let the maximum bound take over.
+         */
+        double interval;
+        if (exposure <= 0) {
+            interval = baseInterval;
+        } else if (rate <= 0) {
+            interval = Double.MAX_VALUE;
+        } else {
+            interval = -Math.log(1 - TARGET_HIT_RATIO) / rate;
+        }
+
+        // Stretch the interval when the user has not been active for a while
+        long lastUserActivity = state.getLong(KEY_LAST_USER_ACTIVITY, now);
+        long idleTime = Math.max(0, now - lastUserActivity);
+        if (idleTime > IDLE_THRESHOLD)
+            interval *= Math.min((float) idleTime / IDLE_THRESHOLD, MAX_IDLE_FACTOR);
+
+        // Clamp to the configured bounds, which always include the base interval
+        long minInterval = Math.min(getConfiguredInterval(R.string.setting_sync_interval_min_value), baseInterval);
+        long maxInterval = Math.max(getConfiguredInterval(R.string.setting_sync_interval_max_value), baseInterval);
+        long nextInterval = (long) Math.max(minInterval, Math.min(maxInterval, interval));
+
+        Decision decision = new Decision(nextInterval, baseInterval, rate * MILLIS_PER_HOUR, idleTime, now);
+
+        SharedPreferences.Editor editor = state.edit();
+        editor.putLong(KEY_DECISION_INTERVAL, decision.interval);
+        editor.putLong(KEY_DECISION_BASE_INTERVAL, decision.baseInterval);
+        editor.putFloat(KEY_DECISION_CHANGE_RATE, (float) decision.changeRate);
+        editor.putLong(KEY_DECISION_IDLE_TIME, decision.idleTime);
+        editor.putLong(KEY_DECISION_TIME, decision.time);
+        editor.commit();
+
+        Log.i(TAG, "Next sync: " + decision);
+        return decision;
+    }
+
+    /**
+     * Returns the most recent scheduling decision, for diagnostics
+     *
+     * @return most recent decision, or null if no decision has been made yet
+     */
+    public Decision getCurrentDecision() {
+        if (!state.contains(KEY_DECISION_TIME))
+            return null;
+
+        return new Decision(state.getLong(KEY_DECISION_INTERVAL, 0),
+                state.getLong(KEY_DECISION_BASE_INTERVAL, 0),
+                state.getFloat(KEY_DECISION_CHANGE_RATE, 0),
+                state.getLong(KEY_DECISION_IDLE_TIME, 0),
+                state.getLong(KEY_DECISION_TIME, 0));
+    }
+
+    /**
+     * Reads an interval bound from the application resources
+     *
+     * @param resId resource id of the string holding the interval
+     * @return interval in milliseconds
+     */
+    private long getConfiguredInterval(int resId) {
+        return Long.parseLong(ctxt.getString(resId));
+    }
+}
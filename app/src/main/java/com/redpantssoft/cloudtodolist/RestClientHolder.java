@@ -0,0 +1,234 @@
+package com.redpantssoft.cloudtodolist;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.redpantssoft.cloudtodolist.client.DiskResponseCache;
+import com.redpantssoft.cloudtodolist.client.HttpRestClient;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Holds the HttpRestClients of the accounts for the life of the process. The
+ * TodoListSyncService stops after every batch of requests, and a client built by the
+ * service would be closed with it, so every sync would pay for a DNS lookup and a TCP
+ * and TLS handshake again. Clients held here keep their connections alive, and their
+ * cookies, from one sync to the next.
+ * <p/>
+ * <p>The clients are closed and rebuilt on next use when the server address or the
+ * https setting change. A timer closes the connections that have been idle for longer
+ * than HttpRestClient.IDLE_CONNECTION_TIMEOUT, so they don't hold sockets the server
+ * already dropped, and stops once there are no clients.</p>
+ * <p/>
+ * <p>Each client caches its GET responses in its own DiskResponseCache, under the cache
+ * directory of the application, and answers them from the cache only while the offline
+ * mode setting is on. Syncs don't run offline, the notes of an entry being opened are
+ * still loaded, from the cache. The cache directory of an account is named after the
+ * SHA-1 of the account name, and it is deleted once the account is no longer synced,
+ * after the preferred account or the sync all accounts setting change.</p>
+ */
+public final class RestClientHolder {
+
+    // Log Tag
+    private static final String TAG = "RestClientHolder";
+
+    // Period of the check for idle connections, in milliseconds
+    private static final long IDLE_CHECK_PERIOD = 60 * 1000;
+
+    // Maximum size of the response cache of each account, in bytes
+    private static final long RESPONSE_CACHE_SIZE = 4 * 1024 * 1024;
+
+    // Prefix of the names of the response cache directories, followed by the hex SHA-1
+    //  of the account name
+    private static final String CACHE_DIRECTORY_PREFIX = "responses-";
+
+    // Clients by account name
+    private static final Map<String, HttpRestClient> clients = new HashMap<String, HttpRestClient>();
+
+    // Application context the clients are built with
+    private static Context appContext;
+
+    // Address of the server and whether to use https, from the preferences
+    private static String serverAddr;
+    private static boolean useHttps;
+
+    // Whether the offline mode setting is on
+    private static boolean offline;
+
+    // Listener for changes of the server settings, the preferences only keep a weak
+    //  reference to it
+    private static SharedPreferences.OnSharedPreferenceChangeListener settingsListener;
+
+    // Timer closing the idle connections, while there are clients
+    private static Timer idleTimer;
+
+    private RestClientHolder() {
+    }
+
+    /**
+     * Returns the rest client of an account, building it on first use. Each account has
+     * its own client, so the cookies of its session are kept apart from the other accounts'
+     *
+     * @param ctxt        context of the caller
+     * @param accountName name of the account
+     * @return rest client of the account
+     */
+    public static synchronized HttpRestClient getClient(Context ctxt, String accountName) {
+        if (appContext == null) {
+            appContext = ctxt.getApplicationContext();
+            readSettings();
+            settingsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                    if (key.equals(appContext.getString(R.string.setting_server_address))
+                            || key.equals(appContext.getString(R.string.setting_https)))
+                        reconfigure();
+                    else if (key.equals(appContext.getString(R.string.setting_offline_mode)))
+                        setOffline(prefs.getBoolean(key, false));
+                    else if (key.equals(appContext.getString(R.string.setting_google_account))
+                            || key.equals(appContext.getString(R.string.setting_sync_all_accounts)))
+                        dropUnsyncedAccounts();
+                }
+            };
+            PreferenceManager.getDefaultSharedPreferences(appContext)
+                    .registerOnSharedPreferenceChangeListener(settingsListener);
+            dropUnsyncedAccounts();
+        }
+
+        HttpRestClient client = clients.get(accountName);
+        if (client == null) {
+            client = new HttpRestClient(serverAddr, useHttps, appContext);
+            client.setCache(new DiskResponseCache(cacheDirectory(accountName), RESPONSE_CACHE_SIZE));
+            client.setOffline(offline);
+            clients.put(accountName, client);
+            startIdleTimer();
+        }
+        return client;
+    }
+
+    /**
+     * Closes all the clients, the next getClient builds a new one. A request in progress
+     * on a closed client fails with a network error
+     */
+    public static synchronized void closeAll() {
+        for (HttpRestClient client : clients.values())
+            client.close();
+        clients.clear();
+        if (idleTimer != null) {
+            idleTimer.cancel();
+            idleTimer = null;
+        }
+    }
+
+    /**
+     * Closes the clients after a change of the server settings, and reads the new ones
+     */
+    private static synchronized void reconfigure() {
+        closeAll();
+        readSettings();
+        Log.i(TAG, "Server settings changed, clients rebuilt for " + serverAddr);
+    }
+
+    /**
+     * Closes the clients of the accounts that are no longer synced, and deletes their
+     * response caches, so the responses of an account don't stay on the device after
+     * it is switched away from. This also deletes the caches left by earlier runs
+     */
+    private static synchronized void dropUnsyncedAccounts() {
+        Set<String> cacheNames = new HashSet<String>();
+        Set<String> accountNames = new HashSet<String>();
+        for (Account account : TodoListSyncHelper.getSyncAccounts(appContext)) {
+            accountNames.add(account.name);
+            cacheNames.add(cacheDirectory(account.name).getName());
+        }
+
+        Iterator<Map.Entry<String, HttpRestClient>> it = clients.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, HttpRestClient> entry = it.next();
+            if (!accountNames.contains(entry.getKey())) {
+                entry.getValue().close();
+                it.remove();
+            }
+        }
+        // With no client left, the timer would only keep its thread alive
+        if (clients.isEmpty() && idleTimer != null) {
+            idleTimer.cancel();
+            idleTimer = null;
+        }
+
+        File[] directories = appContext.getCacheDir().listFiles();
+        if (directories == null)
+            return;
+        for (File directory : directories) {
+            if (!directory.isDirectory() || !directory.getName().startsWith(CACHE_DIRECTORY_PREFIX)
+                    || cacheNames.contains(directory.getName()))
+                continue;
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files)
+                    file.delete();
+            }
+            if (directory.delete())
+                Log.i(TAG, "Deleted the response cache " + directory.getName());
+        }
+    }
+
+    /**
+     * @param accountName name of an account
+     * @return directory of the response cache of the account
+     */
+    private static File cacheDirectory(String accountName) {
+        return new File(appContext.getCacheDir(),
+                CACHE_DIRECTORY_PREFIX + TodoListSyncHelper.accountKey(accountName));
+    }
+
+    /**
+     * Switches the clients to or from answering from their caches only
+     *
+     * @param offline whether the offline mode setting is on
+     */
+    private static synchronized void setOffline(boolean offline) {
+        RestClientHolder.offline = offline;
+        for (HttpRestClient client : clients.values())
+            client.setOffline(offline);
+    }
+
+    /**
+     * Reads the server address, https and offline mode settings from the preferences
+     */
+    private static void readSettings() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(appContext);
+        serverAddr = prefs.getString(appContext.getString(R.string.setting_server_address),
+                appContext.getString(R.string.app_host_name));
+        useHttps = prefs.getBoolean(appContext.getString(R.string.setting_https), true);
+        offline = prefs.getBoolean(appContext.getString(R.string.setting_offline_mode), false);
+    }
+
+    /**
+     * Starts the timer closing the idle connections, if it isn't running
+     */
+    private static void startIdleTimer() {
+        if (idleTimer != null)
+            return;
+        idleTimer = new Timer(TAG, true);
+        idleTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (RestClientHolder.class) {
+                    for (HttpRestClient client : clients.values())
+                        client.closeIdleConnections();
+                }
+            }
+        }, IDLE_CHECK_PERIOD, IDLE_CHECK_PERIOD);
+    }
+}
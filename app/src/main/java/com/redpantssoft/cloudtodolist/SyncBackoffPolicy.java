@@ -0,0 +1,229 @@
+package com.redpantssoft.cloudtodolist;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Random;
+
+/**
+ * Decides when a failed sync should be retried. Each type of failure has its own
+ * base and maximum delay, and the delay doubles with each consecutive failure.
+ * Network and server failures, which alternate during an outage, count as one run
+ * of consecutive failures, an authentication failure starts a new one. The actual
+ * delay is randomly picked from the upper half of the backoff window, so that
+ * devices that failed at the same time don't retry in lockstep.
+ * <p/>
+ * <p>Repeated network or server failures open a circuit breaker. While the circuit
+ * is open, no sync requests are allowed. Once the open period expires, the circuit
+ * is half-open and a single probe sync is allowed. If it succeeds the circuit closes,
+ * otherwise it opens again for twice as long.</p>
+ * <p/>
+ * <p>The policy takes the current time as a parameter so that it can be driven by a
+ * simulated clock. It is persisted in private SharedPreferences with load and save,
+ * since the sync service does not outlive a batch of sync requests.</p>
+ */
+public class SyncBackoffPolicy {
+
+    /**
+     * Types of failures handled by the policy
+     */
+    public static enum FailureType {
+        // I/O errors talking to the server
+        NETWORK(30 * 1000L, 15 * 60 * 1000L),
+        // 5xx responses or invalid responses from the server
+        SERVER(60 * 1000L, 60 * 60 * 1000L),
+        // Authentication failures, these are not likely to resolve quickly
+        AUTHENTICATION(15 * 60 * 1000L, 6 * 60 * 60 * 1000L);
+
+        // Delay after the first failure
+        final long baseDelay;
+        // Upper bound of the delay
+        final long maxDelay;
+
+        FailureType(long baseDelay, long maxDelay) {
+            this.baseDelay = baseDelay;
+            this.maxDelay = maxDelay;
+        }
+    }
+
+    /**
+     * States of the circuit breaker
+     */
+    public static enum CircuitState {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    // Number of consecutive network or server failures that open the circuit
+    private static final int FAILURE_THRESHOLD = 5;
+
+    // Initial and maximum time the circuit stays open
+    private static final long BASE_OPEN_DURATION = 5 * 60 * 1000L;
+    private static final long MAX_OPEN_DURATION = 2 * 60 * 60 * 1000L;
+
+    // Upper bound on the doubling exponent, to avoid overflowing the delay
+    private static final int MAX_EXPONENT = 20;
+
+    // Keys of the persisted policy state
+    private static final String KEY_FAILURES = "failures";
+    private static final String KEY_LAST_FAILURE_TYPE = "lastFailureType";
+    private static final String KEY_CIRCUIT_STATE = "circuitState";
+    private static final String KEY_CIRCUIT_OPENINGS = "circuitOpenings";
+    private static final String KEY_OPEN_UNTIL = "openUntil";
+
+    // Source of the jitter
+    private final Random random;
+
+    // Number of consecutive failures
+    private int failures = 0;
+    // Type of the most recent failure, null if the last sync succeeded
+    private FailureType lastFailureType = null;
+    // Current state of the circuit breaker
+    private CircuitState circuitState = CircuitState.CLOSED;
+    // Number of times the circuit opened without a successful sync in between
+    private int circuitOpenings = 0;
+    // Time until which the circuit stays open
+    private long openUntil = 0;
+
+    /**
+     * Constructor
+     *
+     * @param random source of the jitter applied to delays
+     */
+    public SyncBackoffPolicy(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Loads the persisted policy
+     *
+     * @param ctxt current application context
+     * @return the policy, in its persisted state
+     */
+    public static SyncBackoffPolicy load(Context ctxt) {
+        SharedPreferences prefs = getSharedPreferences(ctxt);
+        SyncBackoffPolicy policy = new SyncBackoffPolicy(new Random());
+
+        policy.failures = prefs.getInt(KEY_FAILURES, 0);
+        String failureType = prefs.getString(KEY_LAST_FAILURE_TYPE, null);
+        policy.lastFailureType = (failureType != null ? FailureType.valueOf(failureType) : null);
+        policy.circuitState = CircuitState.valueOf(prefs.getString(KEY_CIRCUIT_STATE, CircuitState.CLOSED.name()));
+        policy.circuitOpenings = prefs.getInt(KEY_CIRCUIT_OPENINGS, 0);
+        policy.openUntil = prefs.getLong(KEY_OPEN_UNTIL, 0);
+
+        return policy;
+    }
+
+    /**
+     * Persists the policy state
+     *
+     * @param ctxt current application context
+     */
+    public void save(Context ctxt) {
+        SharedPreferences.Editor editor = getSharedPreferences(ctxt).edit();
+        editor.putInt(KEY_FAILURES, failures);
+        editor.putString(KEY_LAST_FAILURE_TYPE, lastFailureType != null ? lastFailureType.name() : null);
+        editor.putString(KEY_CIRCUIT_STATE, circuitState.name());
+        editor.putInt(KEY_CIRCUIT_OPENINGS, circuitOpenings);
+        editor.putLong(KEY_OPEN_UNTIL, openUntil);
+        editor.commit();
+    }
+
+    /**
+     * Determines whether a sync request may be sent to the server. When the circuit
+     * is open and the open period has expired, this moves the circuit to half-open
+     * and allows the request as a probe.
+     *
+     * @param now current time, in milliseconds
+     * @return true if the sync may proceed, false if the circuit is open
+     */
+    public boolean allowRequest(long now) {
+        if (circuitState == CircuitState.OPEN) {
+            if (now < openUntil)
+                return false;
+            circuitState = CircuitState.HALF_OPEN;
+        }
+        return true;
+    }
+
+    /**
+     * Records a successful sync, this resets the backoff and closes the circuit
+     */
+    public void onSuccess() {
+        failures = 0;
+        lastFailureType = null;
+        circuitState = CircuitState.CLOSED;
+        circuitOpenings = 0;
+        openUntil = 0;
+    }
+
+    /**
+     * Records a failed sync and determines the delay until it should be retried
+     *
+     * @param type type of the failure
+     * @param now  current time, in milliseconds
+     * @return delay until the next sync attempt, in milliseconds
+     */
+    public long onFailure(FailureType type, long now) {
+        // Network and server failures alternate during an outage, they share a backoff
+        //  sequence. A change to or from an authentication failure starts a new one
+        if (type != lastFailureType && (type == FailureType.AUTHENTICATION
+                || lastFailureType == FailureType.AUTHENTICATION))
+            failures = 0;
+        failures++;
+        lastFailureType = type;
+
+        if (type != FailureType.AUTHENTICATION
+                && (circuitState == CircuitState.HALF_OPEN || failures >= FAILURE_THRESHOLD)) {
+            // A failed probe, or too many consecutive failures, opens the circuit
+            circuitState = CircuitState.OPEN;
+            openUntil = now + jitter(BASE_OPEN_DURATION, MAX_OPEN_DURATION, circuitOpenings++);
+            return openUntil - now;
+        }
+
+        return jitter(type.baseDelay, type.maxDelay, failures - 1);
+    }
+
+    /**
+     * @return current state of the circuit breaker
+     */
+    public CircuitState getCircuitState() {
+        return circuitState;
+    }
+
+    /**
+     * @return time until which the circuit stays open, in milliseconds
+     */
+    public long getOpenUntil() {
+        return openUntil;
+    }
+
+    /**
+     * @return number of consecutive failures
+     */
+    public int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Picks a random delay from the upper half of an exponentially growing window
+     *
+     * @param base     size of the initial window
+     * @param max      maximum size of the window
+     * @param exponent number of times the window has doubled
+     * @return delay in milliseconds
+     */
+    private long jitter(long base, long max, int exponent) {
+        long window = Math.min(max, base << Math.min(exponent, MAX_EXPONENT));
+        return window / 2 + (long) (random.nextDouble() * (window / 2));
+    }
+
+    /**
+     * Returns a reference to the private SharedPreferences of the policy
+     *
+     * @param ctxt current application context
+     * @return reference to the SharedPreferences
+     */
+    private static SharedPreferences getSharedPreferences(Context ctxt) {
+        return ctxt.getSharedPreferences(SyncBackoffPolicy.class.getName(), Context.MODE_PRIVATE);
+    }
+}
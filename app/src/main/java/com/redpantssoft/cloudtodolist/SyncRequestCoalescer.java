@@ -0,0 +1,95 @@
+package com.redpantssoft.cloudtodolist;
+
+/**
+ * Merges sync requests that queue up in the TodoListSyncService. Every request
+ * is recorded when it is delivered to the service and every queued intent takes
+ * all the requests recorded so far when it is handled. So requests that arrive while
+ * a sync is queued or running result in at most one follow-up sync, and the
+ * intents of the other requests find nothing left to do.
+ * <p/>
+ * <p>A merged run performs the most thorough kind of sync that was requested, so it
+ * is a full sync if any of the merged requests was a full sync, and only an upload
+ * if all of them were uploads.</p>
+ */
+public class SyncRequestCoalescer {
+
+    /**
+     * Kind of sync a queued intent should perform
+     */
+    public static enum Request {
+        // The request was merged into an earlier run
+        NONE,
+        // Upload of local edits only
+        UPLOAD,
+        // Incremental sync
+        SYNC,
+        // Full sync
+        FULL_SYNC
+    }
+
+    // Number of requests recorded since the last run took them
+    private int pendingRequests = 0;
+    // Most thorough kind of sync among the pending requests
+    private Request pendingRequest = Request.NONE;
+
+    // Statistics, since the process started
+    private long totalRequests = 0;
+    private long totalRuns = 0;
+    private long mergedRequests = 0;
+
+    /**
+     * Records a sync request delivered to the service
+     *
+     * @param request kind of sync requested
+     */
+    public synchronized void onRequest(Request request) {
+        pendingRequests++;
+        if (request.compareTo(pendingRequest) > 0)
+            pendingRequest = request;
+        totalRequests++;
+    }
+
+    /**
+     * Takes all the pending requests, to be handled by a single sync run
+     *
+     * @return the kind of sync to perform, or NONE if an earlier run already took
+     * the pending requests
+     */
+    public synchronized Request take() {
+        if (pendingRequests == 0)
+            return Request.NONE;
+
+        Request request = pendingRequest;
+        mergedRequests += pendingRequests - 1;
+        totalRuns++;
+        pendingRequests = 0;
+        pendingRequest = Request.NONE;
+        return request;
+    }
+
+    /**
+     * @return number of requests received
+     */
+    public synchronized long getTotalRequests() {
+        return totalRequests;
+    }
+
+    /**
+     * @return number of sync runs performed for the received requests
+     */
+    public synchronized long getTotalRuns() {
+        return totalRuns;
+    }
+
+    /**
+     * @return number of requests that were merged into another run
+     */
+    public synchronized long getMergedRequests() {
+        return mergedRequests;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "requests=" + totalRequests + " runs=" + totalRuns + " merged=" + mergedRequests;
+    }
+}
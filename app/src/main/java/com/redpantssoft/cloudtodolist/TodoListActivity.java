@@ -13,11 +13,13 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.LoaderManager;
@@ -68,6 +70,8 @@ public class TodoListActivity extends FragmentActivity
     // Reference to an intenal broadcast receiver to handle connectivity events
     private BroadcastReceiver connectivityChangeReceiver;
     private BroadcastReceiver syncProgressReceiver;
+    // Requests syncs on remote changes while the activity is in the foreground
+    private TodoListChangeMonitor changeMonitor;
 
     /**
      * Called when the activity is starting
@@ -221,6 +225,8 @@ public class TodoListActivity extends FragmentActivity
         };
         registerReceiver(syncProgressReceiver, syncProgressFilter);
 
+        changeMonitor = new TodoListChangeMonitor(this);
+
         // Finally, request an intial sync
         TodoListSyncHelper.requestSync(this);
     }
@@ -231,6 +237,17 @@ public class TodoListActivity extends FragmentActivity
     @Override
     protected void onResume() {
         super.onResume();
+        TodoListSyncHelper.recordUserActivity(this);
+        changeMonitor.start();
+    }
+
+    /**
+     * Called when the activity is paused, stops listening for remote changes
+     */
+    @Override
+    protected void onPause() {
+        super.onPause();
+        changeMonitor.stop();
     }
 
     /**
@@ -277,6 +294,9 @@ public class TodoListActivity extends FragmentActivity
         // Update the window title if the offline_mode setting is changed
         if (key.equals(getString(R.string.setting_offline_mode))) {
             setWindowTitle();
+        } else if (key.equals(getString(R.string.setting_google_account))) {
+            // The entries of the new account are stored apart, show them instead
+            getContentResolver().notifyChange(TodoListSchema.Entries.CONTENT_URI, null);
         }
     }
 
@@ -331,7 +351,7 @@ public class TodoListActivity extends FragmentActivity
 
         /**
          * Disable the NOTES menu option if there are not notes to display, so do a lookup
-         * and check
+         * and check. Notes that weren't downloaded yet are null, they may have content
          */
         Uri entryUri = ContentUris.withAppendedId(TodoListSchema.Entries.CONTENT_ID_URI_BASE, info.id);
         final String[] what = {TodoListSchema.Entries.NOTES};
@@ -339,7 +359,9 @@ public class TodoListActivity extends FragmentActivity
         cursor.moveToFirst();
         String notes = cursor.getString(cursor.getColumnIndex(TodoListSchema.Entries.NOTES));
 
-        menu.getItem(0).setEnabled((notes != null && !notes.equals("")));
+        cursor.close();
+
+        menu.getItem(0).setEnabled((notes == null || !notes.equals("")));
     }
 
     /**
@@ -531,7 +553,7 @@ public class TodoListActivity extends FragmentActivity
      */
     private Dialog buildNotesDialog(long entryId) {
         // Build the URI for the specified entry
-        Uri entryUri = ContentUris.withAppendedId(TodoListSchema.Entries.CONTENT_ID_URI_BASE, entryId);
+        final Uri entryUri = ContentUris.withAppendedId(TodoListSchema.Entries.CONTENT_ID_URI_BASE, entryId);
 
         // Build a what clause to get the entiry's title and notes
         final String[] what = {TodoListSchema.Entries.NOTES, TodoListSchema.Entries.TITLE};
@@ -543,12 +565,18 @@ public class TodoListActivity extends FragmentActivity
         // Get the values from the cursor
         String title = cursor.getString(cursor.getColumnIndex(TodoListSchema.Entries.TITLE));
         String notes = cursor.getString(cursor.getColumnIndex(TodoListSchema.Entries.NOTES));
-        if (notes == null || notes.equals("")) {
+        cursor.close();
+        final boolean loading = (notes == null);
+        if (loading) {
+            // The notes weren't downloaded, request them and show them once they arrive
+            notes = getString(R.string.notes_loading);
+            TodoListSyncHelper.requestNotes(this, entryUri);
+        } else if (notes.equals("")) {
             notes = getString(R.string.empty_notes);
         }
 
         // Bind the values with the alert dialog with a "Done" button
-        AlertDialog notesDialog = new AlertDialog.Builder(this)
+        final AlertDialog notesDialog = new AlertDialog.Builder(this)
                 .setTitle(title)
                 .setMessage(notes)
                 .setPositiveButton("Done", new DialogInterface.OnClickListener() {
@@ -559,10 +587,29 @@ public class TodoListActivity extends FragmentActivity
                 })
                 .create();
 
+        final ContentObserver notesObserver = new ContentObserver(new Handler()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                Cursor cursor = getContentResolver().query(entryUri, what, null, null, null);
+                try {
+                    if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                        String notes = cursor.getString(0);
+                        notesDialog.setMessage(notes.equals("") ? getString(R.string.empty_notes) : notes);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        };
+        if (loading)
+            getContentResolver().registerContentObserver(entryUri, false, notesObserver);
+
         // Create a handler for the "Done" button
         notesDialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
             @Override
             public void onDismiss(DialogInterface dialogInterface) {
+                if (loading)
+                    getContentResolver().unregisterContentObserver(notesObserver);
                 removeDialog(NOTES_DIALOG);
             }
         });
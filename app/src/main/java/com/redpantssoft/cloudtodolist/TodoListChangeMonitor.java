@@ -0,0 +1,118 @@
+package com.redpantssoft.cloudtodolist;
+
+import android.accounts.Account;
+import android.content.ContentProviderClient;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.redpantssoft.cloudtodolist.client.GaeAuthenticator;
+import com.redpantssoft.cloudtodolist.client.HttpRestClient;
+import com.redpantssoft.cloudtodolist.client.TodoListChangeListener;
+import com.redpantssoft.cloudtodolist.provider.TodoListProvider;
+import com.redpantssoft.cloudtodolist.provider.TodoListSchema;
+
+/**
+ * Requests a sync as soon as the server reports a change that the local data
+ * doesn't have yet, while the application is in the foreground. This runs a
+ * TodoListChangeListener with its own HttpRestClient, so the long polls don't
+ * hold up the sync service. Periodic syncs are still scheduled as before, they
+ * are the fallback when the server doesn't support change hints.
+ */
+public class TodoListChangeMonitor implements TodoListChangeListener.Callback {
+
+    // Log Tag
+    private static final String TAG = "TodoListChangeMonitor";
+
+    // Additional time the socket waits for a poll response, on top of the poll timeout
+    private static final int POLL_TIMEOUT_MARGIN = 15 * 1000;
+
+    // Current application context
+    private final Context ctxt;
+
+    // Reference to the content provider that holds the sync cursor
+    private ContentProviderClient todoListProviderClient;
+
+    // Client dedicated to the long polls
+    private HttpRestClient client;
+
+    // Listener running the long polls
+    private TodoListChangeListener listener;
+
+    /**
+     * Constructor
+     *
+     * @param ctxt current application context
+     */
+    public TodoListChangeMonitor(Context ctxt) {
+        this.ctxt = ctxt.getApplicationContext();
+    }
+
+    /**
+     * Starts listening for changes, if syncing is enabled and we are online
+     */
+    public synchronized void start() {
+        if (listener != null)
+            return;
+
+        if (!TodoListSyncHelper.isOnline(ctxt) || !TodoListSyncHelper.isSyncEnabled(ctxt))
+            return;
+
+        Account account = TodoListSyncHelper.getPreferredAccount(ctxt);
+        if (account == null)
+            return;
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctxt);
+        String serverAddr = prefs.getString(ctxt.getString(R.string.setting_server_address),
+                ctxt.getString(R.string.app_host_name));
+        boolean useHttps = prefs.getBoolean(ctxt.getString(R.string.setting_https), true);
+
+        client = new HttpRestClient(serverAddr, useHttps, ctxt,
+                TodoListChangeListener.DEFAULT_POLL_TIMEOUT * 1000 + POLL_TIMEOUT_MARGIN);
+        todoListProviderClient = ctxt.getContentResolver().acquireContentProviderClient(TodoListSchema.AUTHORITY);
+
+        listener = new TodoListChangeListener(client, new GaeAuthenticator(ctxt, account), this,
+                TodoListChangeListener.DEFAULT_POLL_TIMEOUT);
+        listener.start();
+        Log.d(TAG, "Started");
+    }
+
+    /**
+     * Stops listening for changes, this aborts a poll in progress
+     */
+    public synchronized void stop() {
+        if (listener == null)
+            return;
+
+        listener.stop();
+        client.close();
+        todoListProviderClient.release();
+        listener = null;
+        client = null;
+        todoListProviderClient = null;
+        Log.d(TAG, "Stopped");
+    }
+
+    /**
+     * @return cursor of the remote data the provider is in sync with
+     */
+    @Override
+    public double getSyncCursor() {
+        ContentProviderClient providerClient = todoListProviderClient;
+        TodoListProvider provider = (providerClient != null
+                ? (TodoListProvider) providerClient.getLocalContentProvider() : null);
+        return (provider != null ? provider.getSyncCursor() : 0);
+    }
+
+    /**
+     * Requests a sync for a change the provider doesn't have yet
+     *
+     * @param cursor cursor of the most recent change on the server
+     */
+    @Override
+    public void onRemoteChange(double cursor) {
+        Log.i(TAG, "Remote change at " + cursor + ", requesting sync");
+        TodoListSyncHelper.requestSync(ctxt);
+    }
+}
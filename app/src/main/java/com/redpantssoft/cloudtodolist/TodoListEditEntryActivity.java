@@ -2,9 +2,11 @@ package com.redpantssoft.cloudtodolist;
 
 import android.app.Activity;
 import android.content.ContentValues;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.View;
 import android.widget.EditText;
 import android.widget.Toast;
@@ -12,7 +14,8 @@ import android.widget.Toast;
 import com.redpantssoft.cloudtodolist.provider.TodoListSchema;
 
 /**
- * Activity that provides an interface to edit a TodoList entry
+ * Activity that provides an interface to edit a TodoList entry. When the entry was synced
+ * without its notes, they are requested and the notes field is enabled once they arrive.
  */
 public class TodoListEditEntryActivity extends Activity {
 
@@ -29,6 +32,9 @@ public class TodoListEditEntryActivity extends Activity {
     // Uri, in the content provider, of the entry being edited
     private Uri entryUri;
 
+    // Observer of the entry while its notes are being downloaded
+    private ContentObserver notesObserver;
+
     /**
      * Called when the activity is starting. Inflates the activiy UI
      * from the edit_entry_layout xml, binds the view with the data
@@ -59,14 +65,62 @@ public class TodoListEditEntryActivity extends Activity {
         currentTitle = cursor.getString(titleIndex);
         currentNotes = cursor.getString(notesIndex);
 
+        cursor.close();
+
         // Restore any saved state
         if (savedInstanceState != null) {
             titleEditText.setText(savedInstanceState.getString("title"));
-            notesEditText.setText(savedInstanceState.getString("notes"));
         } else {
             titleEditText.setText(currentTitle);
-            notesEditText.setText(currentNotes);
         }
+
+        if (currentNotes != null) {
+            notesEditText.setText(savedInstanceState != null ? savedInstanceState.getString("notes") : currentNotes);
+        } else {
+            // The notes weren't downloaded, wait for them
+            notesEditText.setEnabled(false);
+            notesEditText.setHint(R.string.notes_loading);
+            notesObserver = new ContentObserver(new Handler()) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    onNotesChanged();
+                }
+            };
+            getContentResolver().registerContentObserver(entryUri, false, notesObserver);
+            TodoListSyncHelper.requestNotes(this, entryUri);
+        }
+    }
+
+    /**
+     * Called when the activity is destroyed, stops waiting for the notes
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (notesObserver != null)
+            getContentResolver().unregisterContentObserver(notesObserver);
+    }
+
+    /**
+     * Called when the entry changes while its notes are being downloaded, shows them
+     * once they arrive
+     */
+    private void onNotesChanged() {
+        final String[] what = {TodoListSchema.Entries.NOTES};
+        Cursor cursor = getContentResolver().query(entryUri, what, null, null, null);
+        try {
+            if (!cursor.moveToFirst() || cursor.isNull(0))
+                return;
+            currentNotes = cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+
+        getContentResolver().unregisterContentObserver(notesObserver);
+        notesObserver = null;
+        notesEditText.setHint(null);
+        notesEditText.setText(currentNotes);
+        notesEditText.setEnabled(true);
     }
 
     /**
@@ -97,8 +151,9 @@ public class TodoListEditEntryActivity extends Activity {
         if (!newTitle.equals(currentTitle))
             values.put(TodoListSchema.Entries.TITLE, newTitle);
 
+        // The notes are left alone if they haven't arrived
         String newNotes = notesEditText.getText().toString();
-        if (!newNotes.equals(currentNotes))
+        if (currentNotes != null && !newNotes.equals(currentNotes))
             values.put(TodoListSchema.Entries.NOTES, newNotes);
 
         if (values.size() > 0) {
@@ -66,10 +66,12 @@ public class TodoListPreferencesActivity extends PreferenceActivity implements
     @Override
     public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
 
-        if (key.equals(getString(R.string.setting_google_account))
-                || key.equals(getString(R.string.setting_server_address))) {
+        if (key.equals(getString(R.string.setting_server_address))) {
             // If the server address changes, request a full refresh
             TodoListSyncHelper.requestFullSync(this);
+        } else if (key.equals(getString(R.string.setting_google_account))) {
+            // Each account keeps its entries apart, the new account's are brought up to date
+            TodoListSyncHelper.requestSync(getBaseContext());
         } else if (key.equals(getString(R.string.setting_sync_interval))) {
             // On sync_interval change, reschedule a periodic sync
             TodoListSyncHelper.scheduleSync(this);
@@ -13,17 +13,25 @@ import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.net.Uri;
 import android.preference.PreferenceManager;
 
 import com.redpantssoft.cloudtodolist.provider.RestDataProvider;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Provides helper methods for scheduling syncs via a completely static helper class.
  * The helper allows for easy request for syncs, lazy syncs, full refresh or schedule
  * a periodic sync.
  * <p/>
- * A lazy sync will schedule a sync to occur in the future, after the LAZY_INTERVAL, and
- * will occur after no lazySyncs have been requested in the LAZY_INTERVAL.
+ * A lazy sync will schedule an upload of the local edits to occur in the future, after
+ * the LAZY_INTERVAL, and will occur after no lazySyncs have been requested in the LAZY_INTERVAL.
+ * The upload doesn't download remote changes, so it doesn't wait for a download in progress.
  */
 @SuppressWarnings({"UnusedDeclaration"})
 public class TodoListSyncHelper {
@@ -34,6 +42,9 @@ public class TodoListSyncHelper {
     // Intent to request a refresh from the sync service
     private static Intent fullSyncIntent = new Intent(TodoListSyncService.ACTION_TODOLIST_FULL_SYNC);
 
+    // Intent to request an upload of local edits from the sync service
+    private static Intent uploadIntent = new Intent(TodoListSyncService.ACTION_TODOLIST_UPLOAD);
+
     // Lazy interval for lazy sync requests
     private static final int LAZY_INTERVAL = 5000; // hardcoded to 5 seconds
 
@@ -50,12 +61,14 @@ public class TodoListSyncHelper {
     }
 
     /**
-     * Requests that a sync be performed lazily
+     * Requests that the local edits be uploaded lazily. Lazy syncs are requested on local
+     * edits, so this also counts as user activity for the adaptive scheduler
      *
      * @param ctxt current application context
      */
     public static void requestLazySync(Context ctxt) {
-        scheduleSyncAlarm(ctxt, syncIntent, LAZY_INTERVAL);
+        scheduleSyncAlarm(ctxt, uploadIntent, LAZY_INTERVAL);
+        recordUserActivity(ctxt);
     }
 
     /**
@@ -68,8 +81,23 @@ public class TodoListSyncHelper {
     }
 
     /**
-     * Requests that a sync be scheduled for the interval specified
-     * in the sync_interval shared preference.
+     * Requests that the notes of an entry be downloaded immediately, the entry was synced
+     * as a summary and is being opened. The entry's uri is notified once they are
+     *
+     * @param ctxt     current application context
+     * @param entryUri uri of the entry
+     */
+    public static void requestNotes(Context ctxt, Uri entryUri) {
+        Intent intent = new Intent(ctxt, TodoListSyncService.class);
+        intent.setAction(TodoListSyncService.ACTION_TODOLIST_LOAD_NOTES);
+        intent.setData(entryUri);
+        ctxt.startService(intent);
+    }
+
+    /**
+     * Requests that a sync be scheduled for an interval decided by the
+     * AdaptiveSyncScheduler, based on the interval specified in the
+     * sync_interval shared preference.
      *
      * @param ctxt current application context
      */
@@ -81,7 +109,8 @@ public class TodoListSyncHelper {
                         res.getString(R.string.setting_sync_interval_default_value))
         );
 
-        scheduleSyncAlarm(ctxt, syncIntent, syncInterval);
+        AdaptiveSyncScheduler.Decision decision = new AdaptiveSyncScheduler(ctxt).nextDecision(syncInterval);
+        scheduleSyncAlarm(ctxt, syncIntent, (int) decision.interval);
     }
 
     /**
@@ -95,6 +124,36 @@ public class TodoListSyncHelper {
         scheduleSyncAlarm(ctxt, syncIntent, syncInterval);
     }
 
+    /**
+     * Records the result of a completed sync so that the adaptive scheduler
+     * can learn the rate at which remote changes arrive
+     *
+     * @param ctxt       current application context
+     * @param syncResult result of the sync operation
+     */
+    public static void recordSyncResult(Context ctxt, RestDataProvider.SyncResult syncResult) {
+        new AdaptiveSyncScheduler(ctxt).onSyncResult(syncResult);
+    }
+
+    /**
+     * Records that the user interacted with the application
+     *
+     * @param ctxt current application context
+     */
+    public static void recordUserActivity(Context ctxt) {
+        new AdaptiveSyncScheduler(ctxt).onUserActivity();
+    }
+
+    /**
+     * Returns the most recent decision of the adaptive scheduler, for diagnostics
+     *
+     * @param ctxt current application context
+     * @return most recent decision, or null if no sync has been scheduled yet
+     */
+    public static AdaptiveSyncScheduler.Decision getSyncScheduleDecision(Context ctxt) {
+        return new AdaptiveSyncScheduler(ctxt).getCurrentDecision();
+    }
+
     /**
      * Cancels any pending sync or refresh requests. A periodic sync needs to
      * be rescheduled after cancelling
@@ -143,6 +202,28 @@ public class TodoListSyncHelper {
         return account;
     }
 
+    /**
+     * Retrieves the accounts to sync. This is the preferred account, followed by the other
+     * accounts of the "com.google" type when the sync all accounts preference is set.
+     *
+     * @return list of the accounts to sync, empty if no accounts exist
+     */
+    public static List<Account> getSyncAccounts(Context ctxt) {
+        List<Account> syncAccounts = new ArrayList<Account>();
+        Account preferred = getPreferredAccount(ctxt);
+        if (preferred == null)
+            return syncAccounts;
+
+        syncAccounts.add(preferred);
+        if (getSharedPreferences(ctxt).getBoolean(ctxt.getString(R.string.setting_sync_all_accounts), false)) {
+            for (Account acc : AccountManager.get(ctxt).getAccountsByType(ctxt.getString(R.string.setting_account_type))) {
+                if (!acc.equals(preferred))
+                    syncAccounts.add(acc);
+            }
+        }
+        return syncAccounts;
+    }
+
     /**
      * Determines whether or not we are currently online and should call the
      * provider's onPerformSync. This will look at the state of the active network.
@@ -155,6 +236,16 @@ public class TodoListSyncHelper {
     }
 
 
+    /**
+     * Determines whether the active network is unmetered, so data can be prefetched
+     *
+     * @return flag indicating whether the device is on wifi
+     */
+    public static boolean isUnmetered(Context ctxt) {
+        final NetworkInfo netInfo = getConnectivityManager(ctxt).getActiveNetworkInfo();
+        return netInfo != null && netInfo.isConnected() && netInfo.getType() == ConnectivityManager.TYPE_WIFI;
+    }
+
     /**
      * Determines whether or not sync is enabled  and should call the
      * provider's onPerformSync.  This is determined by looking
@@ -164,8 +255,17 @@ public class TodoListSyncHelper {
      * @return flag indicating whether sync is enabled
      */
     public static boolean isSyncEnabled(Context ctxt) {
-        return !getSharedPreferences(ctxt).getBoolean(ctxt.getString(R.string.setting_offline_mode), false)
-                && getConnectivityManager(ctxt).getBackgroundDataSetting();
+        return !isOfflineMode(ctxt) && getConnectivityManager(ctxt).getBackgroundDataSetting();
+    }
+
+    /**
+     * Determines whether the application offline mode setting is on. Syncs don't run
+     * offline, but the rest clients still answer GET requests from their response caches
+     *
+     * @return flag indicating whether the offline mode setting is on
+     */
+    public static boolean isOfflineMode(Context ctxt) {
+        return getSharedPreferences(ctxt).getBoolean(ctxt.getString(R.string.setting_offline_mode), false);
     }
 
     /**
@@ -259,6 +359,27 @@ public class TodoListSyncHelper {
         return (NotificationManager) ctxt.getSystemService(Context.NOTIFICATION_SERVICE);
     }
 
+    /**
+     * Returns a key identifying an account in file names, the hex SHA-1 of its name.
+     * Unlike an escaped name, two accounts never get the same key
+     *
+     * @param accountName name of the account
+     * @return key of the account
+     */
+    public static String accountKey(String accountName) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(accountName.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                key.append(String.format("%02x", b & 0xff));
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * Returns a reference to the applications SharedPreferences
      *
@@ -3,24 +3,41 @@ package com.redpantssoft.cloudtodolist;
 import android.accounts.Account;
 import android.app.IntentService;
 import android.content.ContentProviderClient;
+import android.content.ContentUris;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
+import android.net.Uri;
 import android.util.Log;
 
 import com.redpantssoft.cloudtodolist.client.HttpRestClient;
 import com.redpantssoft.cloudtodolist.provider.RestDataProvider;
+import com.redpantssoft.cloudtodolist.provider.SyncBudget;
 import com.redpantssoft.cloudtodolist.provider.TodoListProvider;
 import com.redpantssoft.cloudtodolist.provider.TodoListSchema;
 
+import org.apache.http.auth.AuthenticationException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 
 /**
  * Service that handles sync and refresh request intents and handles
  * requesting the sync from the TodoList provider on a background
  * thread.
- * This will handle backing off requests when there are network errors
- * as well honoring the offline mode preference and system wide
- * background data setting
+ * This will handle backing off requests when there are network, server
+ * or authentication errors, as defined by the SyncBackoffPolicy, as well
+ * honoring the offline mode preference and system wide background data setting
+ * <p/>
+ * <p>When several accounts are synced, each has its own HttpRestClient, so its own
+ * connections and cookies, and its own storage partition in the provider. The clients
+ * are held by the RestClientHolder, so they outlive the service. Their syncs
+ * run in parallel on a bounded pool of workers, which caps the number of connections
+ * open at once.</p>
  */
 public class TodoListSyncService extends IntentService {
 
@@ -31,6 +48,8 @@ public class TodoListSyncService extends IntentService {
     private static final String INTENT_BASE = "com.redpantssoft.cloudtodolist.";
     public static final String ACTION_TODOLIST_SYNC = INTENT_BASE + "SYNC";
     public static final String ACTION_TODOLIST_FULL_SYNC = INTENT_BASE + "FULL_SYNC";
+    public static final String ACTION_TODOLIST_UPLOAD = INTENT_BASE + "UPLOAD";
+    public static final String ACTION_TODOLIST_LOAD_NOTES = INTENT_BASE + "LOAD_NOTES";
 
     // These are notification intents, an activity can register for a broadcast to get updates
     public static final String STATUS_TODOLIST_SYNC_STARTED = INTENT_BASE + "SYNC_STARTED";
@@ -39,12 +58,27 @@ public class TodoListSyncService extends IntentService {
     // Reference to the content provider to sync
     private ContentProviderClient todoListProviderClient;
 
-    // HttpRest client to provide to the provider for sync
-    private HttpRestClient client;
+    // Maximum number of accounts synced at the same time, each sync uses one connection
+    private static final int MAX_CONCURRENT_SYNCS = 2;
+
+    // Workers running the syncs of all the accounts
+    private ExecutorService syncExecutor;
+
+    // Time and bytes a single sync run may use, a longer sync continues in another run
+    private static final long SYNC_TIME_BUDGET = 60 * 1000;
+    private static final long SYNC_BYTE_BUDGET = 2 * 1024 * 1024;
 
+    // Delay before the continuation of a sync that ran out of budget
+    private static final int CONTINUATION_DELAY = 10 * 1000;
+
+    // Time and bytes the prefetch of notes may use after each sync, on an unmetered network
+    private static final long NOTES_PREFETCH_TIME_BUDGET = 15 * 1000;
+    private static final long NOTES_PREFETCH_BYTE_BUDGET = 512 * 1024;
+
+    // Merges requests that queue up while a sync is queued or running. This is
+    //  static so that the statistics survive the service being recreated
+    private static final SyncRequestCoalescer requestCoalescer = new SyncRequestCoalescer();
 
-    @SuppressWarnings({"FieldCanBeLocal"})
-    private final int NETWORK_ERROR_RETRY = 30000;
 
     /**
      * Default constructor
@@ -60,17 +94,7 @@ public class TodoListSyncService extends IntentService {
     public void onCreate() {
         super.onCreate();
 
-
-        // Initialize the PreferenceManager reference
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getBaseContext());
-
-        // Build a new rest client with the http client
-        String serverAddr = prefs.getString(getString(R.string.setting_server_address),
-                getString(R.string.app_host_name));
-
-        boolean useHttps = prefs.getBoolean(getString(R.string.setting_https), true);
-
-        client = new HttpRestClient(serverAddr, useHttps, getBaseContext());
+        syncExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_SYNCS);
 
         // Initialize the TodoListProvider reference
         todoListProviderClient = getContentResolver().acquireContentProviderClient(TodoListSchema.AUTHORITY);
@@ -91,9 +115,21 @@ public class TodoListSyncService extends IntentService {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "Service Started, startId:" + startId + " (" + Thread.currentThread().getName() + ")");
+        // Notes are loaded on their own, they aren't a sync request
+        if (intent != null && !ACTION_TODOLIST_LOAD_NOTES.equals(intent.getAction()))
+            requestCoalescer.onRequest(getRequest(intent.getAction()));
         return super.onStartCommand(intent, flags, startId);
     }
 
+    /**
+     * Returns the coalescer that merges queued sync requests, for diagnostics
+     *
+     * @return the sync request coalescer
+     */
+    public static SyncRequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
     /**
      * Called by the system to notify a Service that it is no longer used and is being removed.
      */
@@ -101,7 +137,7 @@ public class TodoListSyncService extends IntentService {
     public void onDestroy() {
         super.onDestroy();
         todoListProviderClient.release();
-        client.close();
+        syncExecutor.shutdown();
 
         Log.d(TAG, "Service Destroyed" + " (" + Thread.currentThread().getName() + ")");
         sendBroadcast(new Intent(STATUS_TODOLIST_SYNC_COMPLETE));
@@ -118,8 +154,17 @@ public class TodoListSyncService extends IntentService {
      * <p/>
      * This implementation will call onPerformSync on the TodoListProvider if we are
      * currently online. This handles an ACTION_TODOLIST_SYNC and ACTION_TODOLIST_REFRESH
-     * intents. It will also schedule another periodic sync regardless of the whether
-     * onPerformSync was called or succeeded/failed.
+     * intents. An ACTION_TODOLIST_UPLOAD intent only uploads the local edits, with
+     * onPerformUpstreamSync. It will also schedule another periodic sync regardless of the whether
+     * onPerformSync was called or succeeded/failed. An ACTION_TODOLIST_LOAD_NOTES intent downloads
+     * the notes of the entry in its data, and is not merged with the sync requests.
+     * <p/>
+     * <p>The accounts are synced in parallel. A failure of any of them backs off the next
+     * sync, the notification and the adaptive scheduler only consider the preferred account,
+     * whose entries are the ones displayed.</p>
+     * <p/>
+     * <p>All the requests received up to this point are merged into this run, so
+     * if they were already handled by an earlier run, there is nothing to do.</p>
      *
      * @param intent intent supplied to startService
      */
@@ -129,38 +174,226 @@ public class TodoListSyncService extends IntentService {
         String action = intent.getAction();
         Log.d(TAG, "onHandleIntent: Action = " + action + " (" + Thread.currentThread().getName() + ")");
 
+        if (ACTION_TODOLIST_LOAD_NOTES.equals(action)) {
+            loadNotes(intent.getData());
+            return;
+        }
+
+        SyncRequestCoalescer.Request request = requestCoalescer.take();
+        if (request == SyncRequestCoalescer.Request.NONE) {
+            Log.d(TAG, "Request merged into an earlier sync: " + requestCoalescer);
+            return;
+        }
+
         if (TodoListSyncHelper.isOnline(getBaseContext())
                 && TodoListSyncHelper.isSyncEnabled(getBaseContext())) {
-            RestDataProvider.SyncResult res;
-            boolean fullSync = action.equals(ACTION_TODOLIST_FULL_SYNC);
+            final boolean fullSync = (request == SyncRequestCoalescer.Request.FULL_SYNC);
 
-            // Get the currently configured preferred account to use to sync against
-            Account account = TodoListSyncHelper.getPreferredAccount(getBaseContext());
-            if (account == null) {
+            // Get the accounts to sync, the preferred account comes first
+            List<Account> accounts = TodoListSyncHelper.getSyncAccounts(getBaseContext());
+            if (accounts.isEmpty()) {
                 TodoListSyncHelper.scheduleSync(getBaseContext());
                 return;
             }
 
-            TodoListProvider provider = (TodoListProvider) todoListProviderClient.getLocalContentProvider();
+            // Don't contact the server while the circuit breaker is open
+            SyncBackoffPolicy backoffPolicy = SyncBackoffPolicy.load(getBaseContext());
+            long now = System.currentTimeMillis();
+            if (!backoffPolicy.allowRequest(now)) {
+                Log.i(TAG, "Circuit open, next attempt in " + (backoffPolicy.getOpenUntil() - now) / 1000 + "s");
+                TodoListSyncHelper.scheduleSync(getBaseContext(), (int) (backoffPolicy.getOpenUntil() - now));
+                return;
+            }
+
+            final TodoListProvider provider = (TodoListProvider) todoListProviderClient.getLocalContentProvider();
             if (provider != null) {
-                res = provider.onPerformSync(client, account, fullSync);
-                if (res.fullSyncRequested) {
-                    res = provider.onPerformSync(client, account, fullSync);
+                final boolean upload = (request == SyncRequestCoalescer.Request.UPLOAD);
+                final boolean prefetchNotes = TodoListSyncHelper.isUnmetered(getBaseContext());
+                List<Future<RestDataProvider.SyncResult>> syncs
+                        = new ArrayList<Future<RestDataProvider.SyncResult>>(accounts.size());
+                for (final Account account : accounts) {
+                    final HttpRestClient client = getClient(account);
+                    syncs.add(syncExecutor.submit(new Callable<RestDataProvider.SyncResult>() {
+                        @Override
+                        public RestDataProvider.SyncResult call() {
+                            return performSync(provider, client, account, upload, fullSync, prefetchNotes);
+                        }
+                    }));
+                }
+
+                RestDataProvider.SyncResult res = null;
+                SyncBackoffPolicy.FailureType failure = null;
+                boolean budgetExhausted = false;
+                for (Future<RestDataProvider.SyncResult> sync : syncs) {
+                    RestDataProvider.SyncResult accountRes = getSyncResult(sync);
+                    if (res == null)
+                        res = accountRes;
+                    // The failure types are in order of increasing severity
+                    SyncBackoffPolicy.FailureType accountFailure = getFailureType(accountRes);
+                    if (accountFailure != null && (failure == null || accountFailure.compareTo(failure) > 0))
+                        failure = accountFailure;
+                    budgetExhausted |= accountRes.budgetExhausted;
+                }
+                for (Account account : accounts) {
+                    HttpRestClient client = getClient(account);
+                    Log.d(TAG, "Connections of " + account.name + ": " + client.getPoolStats());
+                    Log.d(TAG, "Response cache of " + account.name + ": " + client.getCacheStats());
                 }
 
                 TodoListSyncHelper.showSyncResultNotification(getBaseContext(), res);
 
+                // Uploads don't look for remote changes, and a sync that ran out of budget
+                //  only saw part of them, they would skew the change rate
+                if (!upload && !res.budgetExhausted)
+                    TodoListSyncHelper.recordSyncResult(getBaseContext(), res);
+
+                if (failure != null) {
+                    long delay = backoffPolicy.onFailure(failure, now);
+                    Log.w(TAG, "Sync failed (" + failure + "), retrying in " + delay / 1000 + "s"
+                            + ", circuit " + backoffPolicy.getCircuitState());
+                    TodoListSyncHelper.scheduleSync(getBaseContext(), (int) delay);
+                } else if (budgetExhausted) {
+                    backoffPolicy.onSuccess();
+                    Log.i(TAG, "Sync ran out of budget, continuing in " + CONTINUATION_DELAY / 1000 + "s");
+                    TodoListSyncHelper.scheduleSync(getBaseContext(), CONTINUATION_DELAY);
+                } else {
+                    backoffPolicy.onSuccess();
+                    // The periodic sync is still scheduled after an upload
+                    if (!upload)
+                        TodoListSyncHelper.scheduleSync(getBaseContext());
+                }
+                backoffPolicy.save(getBaseContext());
+            }
+        }
+    }
+
+    /**
+     * Syncs an account, this runs on a worker of the sync executor
+     *
+     * @param provider provider to sync
+     * @param client   rest client of the account
+     * @param account  account to sync
+     * @param upload   flag indicating whether only the local edits are uploaded
+     * @param fullSync      flag indicating whether a full sync was requested
+     * @param prefetchNotes flag indicating whether to prefetch the notes missing after the sync
+     * @return result of the sync operation
+     */
+    private static RestDataProvider.SyncResult performSync(TodoListProvider provider, HttpRestClient client,
+                                                           Account account, boolean upload, boolean fullSync,
+                                                           boolean prefetchNotes) {
+        if (upload)
+            return provider.onPerformUpstreamSync(client, account);
+
+        SyncBudget budget = new SyncBudget(SYNC_TIME_BUDGET, SYNC_BYTE_BUDGET);
+        RestDataProvider.SyncResult res = provider.onPerformSync(client, account, fullSync, budget);
+        if (res.fullSyncRequested && !res.budgetExhausted) {
+            res = provider.onPerformSync(client, account, fullSync, budget);
+        }
+
+        // The entries were synced as summaries, use the idle network to fill in their notes
+        if (prefetchNotes && !res.budgetExhausted && getFailureType(res) == null) {
+            provider.onPerformNotesDownload(client, account, 0,
+                    new SyncBudget(NOTES_PREFETCH_TIME_BUDGET, NOTES_PREFETCH_BYTE_BUDGET));
+        }
+        return res;
+    }
+
+    /**
+     * Downloads the notes of an entry that is being opened, for the account of its uri
+     *
+     * @param entryUri uri of the entry, with an account parameter for an account other
+     *                 than the preferred one
+     */
+    private void loadNotes(Uri entryUri) {
+        if (entryUri == null)
+            return;
+        // Offline, the client answers from its response cache without the network
+        if (!TodoListSyncHelper.isOfflineMode(getBaseContext())
+                && (!TodoListSyncHelper.isOnline(getBaseContext())
+                || !TodoListSyncHelper.isSyncEnabled(getBaseContext())))
+            return;
+
+        String accountName = entryUri.getQueryParameter(TodoListSchema.PARAMETER_ACCOUNT);
+        Account account = (accountName != null ? new Account(accountName, getString(R.string.setting_account_type))
+                : TodoListSyncHelper.getPreferredAccount(getBaseContext()));
+        TodoListProvider provider = (TodoListProvider) todoListProviderClient.getLocalContentProvider();
+        if (account == null || provider == null)
+            return;
+
+        provider.onPerformNotesDownload(getClient(account), account, ContentUris.parseId(entryUri),
+                SyncBudget.UNLIMITED);
+    }
 
-                if (res.networkError()) {
-                    TodoListSyncHelper.scheduleSync(getBaseContext(), NETWORK_ERROR_RETRY);
-                } else if (!res.serverError()) {
-                    /**
-                     * On a server error, don't schedule another sync. This is not likely to go away
-                     * so just wait until an explicit refresh is requested
-                     */
-                    TodoListSyncHelper.scheduleSync(getBaseContext());
+    /**
+     * Waits for the sync of an account to complete
+     *
+     * @param sync sync submitted to the sync executor
+     * @return result of the sync operation, an interrupted wait counts as a network error,
+     * and a sync that threw as an authentication or network error, so it's backed off
+     * rather than crashing the service
+     */
+    private static RestDataProvider.SyncResult getSyncResult(Future<RestDataProvider.SyncResult> sync) {
+        try {
+            return sync.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            RestDataProvider.SyncResult res = new RestDataProvider.SyncResult();
+            res.numIoExceptions++;
+            return res;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Sync failed", e.getCause());
+            RestDataProvider.SyncResult res = new RestDataProvider.SyncResult();
+            res.numIoExceptions++;
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof AuthenticationException) {
+                    res.numIoExceptions = 0;
+                    res.numAuthenticationErrors++;
+                    break;
                 }
             }
+            return res;
         }
     }
+
+    /**
+     * Returns the rest client of an account, from the RestClientHolder
+     *
+     * @param account account to sync
+     * @return rest client of the account
+     */
+    private HttpRestClient getClient(Account account) {
+        return RestClientHolder.getClient(getBaseContext(), account.name);
+    }
+
+    /**
+     * Maps a request intent action to the kind of sync it requests
+     *
+     * @param action action of the request intent
+     * @return kind of sync requested
+     */
+    private static SyncRequestCoalescer.Request getRequest(String action) {
+        if (ACTION_TODOLIST_FULL_SYNC.equals(action))
+            return SyncRequestCoalescer.Request.FULL_SYNC;
+        if (ACTION_TODOLIST_UPLOAD.equals(action))
+            return SyncRequestCoalescer.Request.UPLOAD;
+        return SyncRequestCoalescer.Request.SYNC;
+    }
+
+    /**
+     * Classifies a failed sync for the backoff policy. Authentication errors take
+     * precedence, as retrying sooner would not help, then server errors and finally
+     * network errors.
+     *
+     * @param res result of the sync operation
+     * @return type of the failure, or null if the sync did not fail
+     */
+    private static SyncBackoffPolicy.FailureType getFailureType(RestDataProvider.SyncResult res) {
+        if (res.authenticationError())
+            return SyncBackoffPolicy.FailureType.AUTHENTICATION;
+        if (res.serverError())
+            return SyncBackoffPolicy.FailureType.SERVER;
+        if (res.networkError())
+            return SyncBackoffPolicy.FailureType.NETWORK;
+        return null;
+    }
 }
@@ -0,0 +1,185 @@
+package com.redpantssoft.cloudtodolist.client;
+
+import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport over the Apache HttpClient bundled with Android. Connections are pooled and
+ * kept alive between requests, so requests made concurrently from several threads each
+ * get a connection, and later requests reuse the warm ones instead of paying for a new
+ * TCP and TLS handshake. This is the transport of the HttpRestClient by default.
+ */
+public class ApacheHttpTransport implements HttpTransport {
+
+    // Maximum number of connections in the pool, and to a single route
+    private static final int MAX_CONNECTIONS = 8;
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+
+    // Time a connection is kept alive when the server doesn't say, and the longest
+    //  it is kept alive even if the server allows more, in milliseconds
+    private static final long KEEP_ALIVE_DURATION = 30 * 1000;
+
+    // Reference to an org.apache.http.client.HttpClient
+    private final DefaultHttpClient client;
+    // Reference to the client connection Manager
+    private final PooledConnManager connManager;
+
+    /**
+     * Thread safe connection manager that counts the connections it hands out, and how
+     * many of them were kept alive from an earlier request
+     */
+    private static class PooledConnManager extends ThreadSafeClientConnManager {
+        private int leased = 0;
+        private long numLeases = 0;
+        private long numReused = 0;
+
+        PooledConnManager(HttpParams params, SchemeRegistry schemeRegistry) {
+            super(params, schemeRegistry);
+        }
+
+        @Override
+        public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+            final ClientConnectionRequest request = super.requestConnection(route, state);
+            return new ClientConnectionRequest() {
+                @Override
+                public ManagedClientConnection getConnection(long timeout, TimeUnit unit)
+                        throws InterruptedException, ConnectionPoolTimeoutException {
+                    ManagedClientConnection connection = request.getConnection(timeout, unit);
+                    synchronized (PooledConnManager.this) {
+                        leased++;
+                        numLeases++;
+                        if (connection.isOpen())
+                            numReused++;
+                    }
+                    return connection;
+                }
+
+                @Override
+                public void abortRequest() {
+                    request.abortRequest();
+                }
+            };
+        }
+
+        @Override
+        public void releaseConnection(ManagedClientConnection connection, long validDuration, TimeUnit unit) {
+            synchronized (this) {
+                leased--;
+            }
+            super.releaseConnection(connection, validDuration, unit);
+        }
+
+        synchronized HttpRestClient.PoolStats getStats() {
+            return new HttpRestClient.PoolStats(leased,
+                    Math.max(0, getConnectionsInPool() - leased), numLeases, numReused);
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param context       context of the caller, for the TLS session cache
+     * @param socketTimeout timeout for blocking socket reads, in milliseconds
+     */
+    public ApacheHttpTransport(Context context, int socketTimeout) {
+        // Build a new http client  suitable for a mobile rest client
+        HttpParams params = new BasicHttpParams();
+        // Connections are kept alive between requests, the server or a proxy may close
+        //  one before it expires here, so it is checked before it is reused
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpConnectionParams.setConnectionTimeout(params, HttpRestClient.SOCKET_OPERATION_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, socketTimeout);
+        HttpConnectionParams.setSocketBufferSize(params, 8192);
+        HttpClientParams.setRedirecting(params, false);
+        ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+        SSLSessionCache sessionCache = new SSLSessionCache(context);
+
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http",
+                PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https",
+                SSLCertificateSocketFactory.getHttpSocketFactory(
+                        HttpRestClient.SOCKET_OPERATION_TIMEOUT, sessionCache), 443
+        ));
+
+        connManager = new PooledConnManager(params, schemeRegistry);
+
+        this.client = new DefaultHttpClient(connManager, params);
+
+        // Keep connections alive for as long as the server allows, within a limit
+        this.client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                return (duration > 0 ? Math.min(duration, KEEP_ALIVE_DURATION) : KEEP_ALIVE_DURATION);
+            }
+        });
+
+        // A post whose response was lost may have been applied, it is only re-sent
+        //  by the caller, with an operation id the server uses to apply it once
+        this.client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler() {
+            @Override
+            public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+                HttpRequest request = (HttpRequest) context.getAttribute(ExecutionContext.HTTP_REQUEST);
+                if (request != null && request.getRequestLine().getMethod().equals("POST"))
+                    return false;
+                return super.retryRequest(exception, executionCount, context);
+            }
+        });
+    }
+
+    @Override
+    public HttpResponse execute(HttpRequestBase request) throws IOException {
+        return client.execute(request);
+    }
+
+    @Override
+    public DefaultHttpClient getHttpClient() {
+        return client;
+    }
+
+    @Override
+    public void closeIdleConnections(long idleTime) {
+        connManager.closeExpiredConnections();
+        connManager.closeIdleConnections(idleTime, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public HttpRestClient.PoolStats getPoolStats() {
+        return connManager.getStats();
+    }
+
+    @Override
+    public void shutdown() {
+        // Shutdown the connection manager
+        connManager.shutdown();
+    }
+}
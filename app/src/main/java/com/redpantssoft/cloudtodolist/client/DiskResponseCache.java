@@ -0,0 +1,690 @@
+package com.redpantssoft.cloudtodolist.client;
+
+import android.util.Log;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the responses to GET requests, kept on disk and bounded in size. The least
+ * recently used responses are evicted first once the cache is full.
+ * <p/>
+ * <p>Responses are stored as received, still encoded, following their cache headers: a
+ * response is fresh for its Cache-Control max-age, or until its Expires date, and isn't
+ * stored at all with Cache-Control no-store. A stale response with an ETag or a
+ * Last-Modified date is revalidated with a conditional request, a 304 refreshes it
+ * without sending the body again. Offline, stale responses are served as they are.</p>
+ * <p/>
+ * <p>Each response is two files, named by the MD5 of its URI path, followed by the MD5 of
+ * its query if it has one: the .meta file holds the status, headers and freshness, the
+ * .body file the body. A change to a resource drops every response to its path. A body is written to a
+ * temporary file as the client reads it, and only replaces the cached one once read to
+ * the end, so a response cut short is never served.</p>
+ */
+public class DiskResponseCache {
+
+    // Log tag
+    private static final String TAG = "DiskResponseCache";
+
+    // Version of the format of the .meta files
+    private static final int VERSION = 1;
+
+    // Suffixes of the files of an entry, and of a body being written
+    private static final String META_SUFFIX = ".meta";
+    private static final String BODY_SUFFIX = ".body";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Separator of the digests of the path and of the query in a key
+    private static final String QUERY_SEPARATOR = "-";
+
+    // Cache headers of a response
+    private static final String CACHE_CONTROL_HEADER = "Cache-Control";
+    private static final String EXPIRES_HEADER = "Expires";
+    private static final String DATE_HEADER = "Date";
+    private static final String ETAG_HEADER = "ETag";
+    private static final String LAST_MODIFIED_HEADER = "Last-Modified";
+
+    // Headers of a conditional request
+    private static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+    private static final String IF_MODIFIED_SINCE_HEADER = "If-Modified-Since";
+
+    // Directory of the entries
+    private final File directory;
+
+    // Maximum size of the entries, in bytes
+    private final long maxSize;
+
+    // Sizes of the entries by key, from the least recently used, and their total
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long size = 0;
+
+    // Statistics of the lookups
+    private long numHits = 0;
+    private long numMisses = 0;
+    private long numRevalidations = 0;
+    private long numNotModified = 0;
+
+    /**
+     * Snapshot of the statistics of a cache. Objects of this type are immutable
+     */
+    public static class Stats {
+        // Number of requests answered from the cache, without a request to the server
+        public final long numHits;
+        // Number of requests sent to the server without a cached response to revalidate
+        public final long numMisses;
+        // Number of conditional requests sent to revalidate a cached response
+        public final long numRevalidations;
+        // Number of those the server answered with a 304, the cached body was used
+        public final long numNotModified;
+        // Number of cached responses, and their size in bytes
+        public final int numEntries;
+        public final long size;
+
+        Stats(long numHits, long numMisses, long numRevalidations, long numNotModified,
+              int numEntries, long size) {
+            this.numHits = numHits;
+            this.numMisses = numMisses;
+            this.numRevalidations = numRevalidations;
+            this.numNotModified = numNotModified;
+            this.numEntries = numEntries;
+            this.size = size;
+        }
+
+        /**
+         * @return fraction of the requests answered without sending the body again
+         */
+        public double getHitRatio() {
+            long lookups = numHits + numMisses + numRevalidations;
+            return lookups > 0 ? (double) (numHits + numNotModified) / lookups : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d misses=%d revalidations=%d notModified=%d entries=%d size=%d",
+                    numHits, numMisses, numRevalidations, numNotModified, numEntries, size);
+        }
+    }
+
+    /**
+     * Cached response
+     */
+    static class Entry {
+        final String key;
+        final String uri;
+        final int statusCode;
+        final String reasonPhrase;
+        // Content-Type and Content-Encoding of the body, or null
+        final String contentType;
+        final String contentEncoding;
+        // Length of the body, as received
+        final long bodyLength;
+        // Validators of the response, or null
+        String etag;
+        String lastModified;
+        // Time until which the response is fresh, in milliseconds since the epoch
+        long freshUntil;
+
+        Entry(String key, String uri, int statusCode, String reasonPhrase, String contentType,
+              String contentEncoding, long bodyLength) {
+            this.key = key;
+            this.uri = uri;
+            this.statusCode = statusCode;
+            this.reasonPhrase = reasonPhrase;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.bodyLength = bodyLength;
+        }
+
+        /**
+         * @param now current time, in milliseconds since the epoch
+         * @return true if the response can be used without revalidating it
+         */
+        boolean isFresh(long now) {
+            return now < freshUntil;
+        }
+
+        /**
+         * @return true if the response can be revalidated with a conditional request
+         */
+        boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+
+        /**
+         * Makes a request conditional on the cached response having changed
+         *
+         * @param request request for the cached response
+         */
+        void addValidators(HttpRequestBase request) {
+            if (etag != null)
+                request.setHeader(IF_NONE_MATCH_HEADER, etag);
+            if (lastModified != null)
+                request.setHeader(IF_MODIFIED_SINCE_HEADER, lastModified);
+        }
+    }
+
+    /**
+     * Body of a response being read by the client, copied to a temporary file and
+     * stored once read to the end
+     */
+    private class CachingInputStream extends FilterInputStream {
+        private final Entry entry;
+        private final File temp;
+        private OutputStream out;
+        private long length = 0;
+        private boolean complete = false;
+
+        CachingInputStream(InputStream in, Entry entry, File temp) throws IOException {
+            super(in);
+            this.entry = entry;
+            this.temp = temp;
+            this.out = new BufferedOutputStream(new FileOutputStream(temp));
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                write(new byte[]{(byte) b}, 0, 1);
+            else
+                complete = true;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n > 0)
+                write(buffer, offset, n);
+            else if (n < 0)
+                complete = true;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes aren't copied, the body can't be stored
+            abandon();
+            return super.skip(n);
+        }
+
+        @Override
+        public void close() throws IOException {
+            // A decoder stops at the end of its data, without reading the end of the
+            //  stream, the body is complete if nothing follows
+            if (out != null && !complete) {
+                try {
+                    read(new byte[1], 0, 1);
+                } catch (IOException e) {
+                    abandon();
+                }
+            }
+            try {
+                super.close();
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                        out = null;
+                        if (complete)
+                            commit(entry, temp, length);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Could not store " + entry.uri, e);
+                    } finally {
+                        abandon();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Copies bytes read to the temporary file, a failure to write only stops the copy
+         */
+        private void write(byte[] buffer, int offset, int count) {
+            if (out == null)
+                return;
+            try {
+                out.write(buffer, offset, count);
+                length += count;
+            } catch (IOException e) {
+                Log.w(TAG, "Could not store " + entry.uri, e);
+                abandon();
+            }
+        }
+
+        /**
+         * Stops the copy and deletes the temporary file, if it wasn't stored
+         */
+        private void abandon() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+                out = null;
+            }
+            if (temp.exists() && !temp.delete())
+                Log.w(TAG, "Could not delete " + temp);
+        }
+    }
+
+    /**
+     * Constructor - indexes the entries already in the directory, by the time they were
+     * last used
+     *
+     * @param directory directory of the entries, created if needed
+     * @param maxSize   maximum size of the entries, in bytes
+     */
+    public DiskResponseCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            Log.w(TAG, "Could not create " + directory);
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+
+        // Bodies being written when the process ended are dropped
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX))
+                file.delete();
+        }
+
+        File[] metas = directory.listFiles();
+        if (metas == null)
+            return;
+        Arrays.sort(metas, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return (lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1));
+            }
+        });
+        for (File meta : metas) {
+            String name = meta.getName();
+            if (!name.endsWith(META_SUFFIX))
+                continue;
+            String key = name.substring(0, name.length() - META_SUFFIX.length());
+            File body = bodyFile(key);
+            if (!body.exists()) {
+                meta.delete();
+                continue;
+            }
+            long entrySize = meta.length() + body.length();
+            sizes.put(key, entrySize);
+            size += entrySize;
+        }
+        trim();
+    }
+
+    /**
+     * @return snapshot of the statistics of this cache
+     */
+    public synchronized Stats getStats() {
+        return new Stats(numHits, numMisses, numRevalidations, numNotModified, sizes.size(), size);
+    }
+
+    /**
+     * Removes all the cached responses
+     */
+    public synchronized void clear() {
+        for (String key : sizes.keySet()) {
+            metaFile(key).delete();
+            bodyFile(key).delete();
+        }
+        sizes.clear();
+        size = 0;
+    }
+
+    /**
+     * Removes the cached responses to a URI, whatever their query, once the resource it
+     * names has changed
+     *
+     * @param uri URI of the resource, without query
+     */
+    public synchronized void invalidate(String uri) {
+        String prefix = keyOf(uri);
+        Iterator<String> keys = sizes.keySet().iterator();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (key.equals(prefix) || key.startsWith(prefix + QUERY_SEPARATOR)) {
+                size -= sizes.get(key);
+                keys.remove();
+                metaFile(key).delete();
+                bodyFile(key).delete();
+            }
+        }
+    }
+
+    /**
+     * Looks up the cached response to a request, and marks it as the most recently used
+     *
+     * @param uri URI of the request
+     * @return cached response, or null if there is none
+     */
+    synchronized Entry get(String uri) {
+        String key = keyOf(uri);
+        // Looking the key up moves it to the most recently used end
+        if (sizes.get(key) == null)
+            return null;
+        try {
+            Entry entry = readMeta(key);
+            if (entry.uri.equals(uri) && bodyFile(key).length() == entry.bodyLength) {
+                metaFile(key).setLastModified(System.currentTimeMillis());
+                return entry;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read the cached " + uri, e);
+        }
+        remove(key);
+        return null;
+    }
+
+    /**
+     * @param entry cached response
+     * @return stream of the body of the response, as received
+     * @throws IOException if the body could not be opened
+     */
+    InputStream openBody(Entry entry) throws IOException {
+        return new FileInputStream(bodyFile(entry.key));
+    }
+
+    /**
+     * Stores the response to a request, if it's a 200 and its headers allow it. The body
+     * is stored as it's read from the returned stream, once read to the end. A response
+     * with Cache-Control no-store removes the cached one
+     *
+     * @param uri      URI of the request
+     * @param response response of the server
+     * @param body     stream of the body of the response
+     * @return stream to read the body from instead
+     */
+    InputStream put(String uri, HttpResponse response, InputStream body) {
+        String key = keyOf(uri);
+        if (response.getStatusLine().getStatusCode() != 200)
+            return body;
+        if (hasDirective(response, "no-store")) {
+            synchronized (this) {
+                remove(key);
+            }
+            return body;
+        }
+
+        Header contentType = response.getEntity().getContentType();
+        Header contentEncoding = response.getEntity().getContentEncoding();
+        Entry entry = new Entry(key, uri, 200, response.getStatusLine().getReasonPhrase(),
+                contentType != null ? contentType.getValue() : null,
+                contentEncoding != null ? contentEncoding.getValue() : null, 0);
+        updateHeaders(entry, response);
+        try {
+            File temp = File.createTempFile(key, TEMP_SUFFIX, directory);
+            return new CachingInputStream(body, entry, temp);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not store " + uri, e);
+            return body;
+        }
+    }
+
+    /**
+     * Refreshes a cached response the server answered with a 304, it is fresh again for
+     * the lifetime given by the new response
+     *
+     * @param entry       cached response
+     * @param notModified 304 response of the server
+     */
+    synchronized void update(Entry entry, HttpResponse notModified) {
+        updateHeaders(entry, notModified);
+        numNotModified++;
+        try {
+            writeMeta(entry);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not update the cached " + entry.uri, e);
+        }
+    }
+
+    synchronized void recordHit() {
+        numHits++;
+    }
+
+    synchronized void recordMiss() {
+        numMisses++;
+    }
+
+    synchronized void recordRevalidation() {
+        numRevalidations++;
+    }
+
+    /**
+     * Stores a body read to the end, and the headers of its response
+     *
+     * @param entry  response of the body, its length is set
+     * @param temp   temporary file of the body
+     * @param length length of the body
+     * @throws IOException if the response could not be stored
+     */
+    private synchronized void commit(Entry entry, File temp, long length) throws IOException {
+        Entry complete = new Entry(entry.key, entry.uri, entry.statusCode, entry.reasonPhrase,
+                entry.contentType, entry.contentEncoding, length);
+        complete.etag = entry.etag;
+        complete.lastModified = entry.lastModified;
+        complete.freshUntil = entry.freshUntil;
+
+        remove(entry.key);
+        if (!temp.renameTo(bodyFile(entry.key)))
+            throw new IOException("Could not rename " + temp);
+        writeMeta(complete);
+        long entrySize = metaFile(entry.key).length() + length;
+        sizes.put(entry.key, entrySize);
+        size += entrySize;
+        trim();
+    }
+
+    /**
+     * Removes a cached response
+     *
+     * @param key key of the response
+     */
+    private void remove(String key) {
+        Long entrySize = sizes.remove(key);
+        if (entrySize != null)
+            size -= entrySize;
+        metaFile(key).delete();
+        bodyFile(key).delete();
+    }
+
+    /**
+     * Evicts the least recently used responses until the cache fits in its maximum size
+     */
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> it = sizes.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            size -= eldest.getValue();
+            metaFile(eldest.getKey()).delete();
+            bodyFile(eldest.getKey()).delete();
+        }
+    }
+
+    /**
+     * Sets the validators and freshness of a cached response from the headers of a response
+     *
+     * @param entry    cached response
+     * @param response response of the server, a 200 or a 304
+     */
+    private static void updateHeaders(Entry entry, HttpResponse response) {
+        Header etag = response.getFirstHeader(ETAG_HEADER);
+        if (etag != null)
+            entry.etag = etag.getValue();
+        Header lastModified = response.getFirstHeader(LAST_MODIFIED_HEADER);
+        if (lastModified != null)
+            entry.lastModified = lastModified.getValue();
+
+        long now = System.currentTimeMillis();
+        entry.freshUntil = now;
+        if (hasDirective(response, "no-cache"))
+            return;
+        long maxAge = getMaxAge(response);
+        if (maxAge >= 0) {
+            entry.freshUntil = now + maxAge * 1000;
+            return;
+        }
+        Header expires = response.getFirstHeader(EXPIRES_HEADER);
+        if (expires != null) {
+            try {
+                // The lifetime is taken from the server's clock, not the device's
+                Header date = response.getFirstHeader(DATE_HEADER);
+                long serverNow = (date != null ? DateUtils.parseDate(date.getValue()).getTime() : now);
+                entry.freshUntil = now + Math.max(0, DateUtils.parseDate(expires.getValue()).getTime() - serverNow);
+            } catch (DateParseException e) {
+                // An invalid date means the response is already expired
+            }
+        }
+    }
+
+    /**
+     * @param response  response of the server
+     * @param directive Cache-Control directive without a value
+     * @return true if the response has the directive
+     */
+    private static boolean hasDirective(HttpResponse response, String directive) {
+        for (Header header : response.getHeaders(CACHE_CONTROL_HEADER)) {
+            for (HeaderElement element : header.getElements()) {
+                if (element.getName().equalsIgnoreCase(directive))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param response response of the server
+     * @return Cache-Control max-age of the response, in seconds, or -1 if it has none
+     */
+    private static long getMaxAge(HttpResponse response) {
+        for (Header header : response.getHeaders(CACHE_CONTROL_HEADER)) {
+            for (HeaderElement element : header.getElements()) {
+                if (element.getName().equalsIgnoreCase("max-age") && element.getValue() != null) {
+                    try {
+                        return Math.max(0, Long.parseLong(element.getValue()));
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    private Entry readMeta(String key) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(metaFile(key))));
+        try {
+            if (in.readInt() != VERSION)
+                throw new IOException("Unknown cache entry version");
+            Entry entry = new Entry(key, in.readUTF(), in.readInt(), in.readUTF(),
+                    readString(in), readString(in), in.readLong());
+            entry.etag = readString(in);
+            entry.lastModified = readString(in);
+            entry.freshUntil = in.readLong();
+            return entry;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeMeta(Entry entry) throws IOException {
+        File temp = new File(directory, entry.key + META_SUFFIX + TEMP_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(VERSION);
+            out.writeUTF(entry.uri);
+            out.writeInt(entry.statusCode);
+            out.writeUTF(entry.reasonPhrase != null ? entry.reasonPhrase : "");
+            writeString(out, entry.contentType);
+            writeString(out, entry.contentEncoding);
+            out.writeLong(entry.bodyLength);
+            writeString(out, entry.etag);
+            writeString(out, entry.lastModified);
+            out.writeLong(entry.freshUntil);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(metaFile(entry.key)))
+            throw new IOException("Could not rename " + temp);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return (in.readBoolean() ? in.readUTF() : null);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    private File metaFile(String key) {
+        return new File(directory, key + META_SUFFIX);
+    }
+
+    private File bodyFile(String key) {
+        return new File(directory, key + BODY_SUFFIX);
+    }
+
+    /**
+     * @param uri URI of a request
+     * @return key of the response to the request, the hex MD5 of the URI without its
+     * query, followed by the hex MD5 of the query if there is one
+     */
+    private static String keyOf(String uri) {
+        int query = uri.indexOf('?');
+        if (query < 0)
+            return md5Hex(uri);
+        return md5Hex(uri.substring(0, query)) + QUERY_SEPARATOR + md5Hex(uri.substring(query + 1));
+    }
+
+    /**
+     * @param text any text
+     * @return hex MD5 of the UTF-8 bytes of the text
+     */
+    private static String md5Hex(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(text.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                key.append(String.format("%02x", b & 0xff));
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
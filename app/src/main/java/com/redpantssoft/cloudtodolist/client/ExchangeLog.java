@@ -0,0 +1,213 @@
+package com.redpantssoft.cloudtodolist.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ordered list of the request/response exchanges between an HttpRestClient and
+ * the server, as recorded by a RecordingHttpRestClient. The log is saved to disk
+ * so the exchanges of a field sync can be replayed later, without the server.
+ * <p/>
+ * <p>Requests are identified by their method and target (path and query). The body
+ * of a post or put, which carries the fields of an entry in the TodoList API, is
+ * kept as it was sent, compressed or not. Responses keep the raw body, before the
+ * content encoding is decoded, and the time the server took to answer.</p>
+ * <p/>
+ * <p>This class only depends on the JDK, so logs can be inspected or generated
+ * off the device</p>
+ */
+public class ExchangeLog {
+
+    // Identifies a saved exchange log, and the version of its format. Logs of the
+    //  first version, without request bodies, are still read
+    private static final int MAGIC = 0x54444c32;
+    private static final int MAGIC_V1 = 0x54444c31;
+
+    /**
+     * A single request and its response. Objects of this type are immutable
+     */
+    public static class Exchange {
+        // Request method, GET, POST, PUT or DELETE
+        public final String method;
+        // Request target, the path and query string of the URI
+        public final String target;
+        // Content-Encoding of the request body, or null
+        public final String requestContentEncoding;
+        // Body of the request, as sent, empty if there is none
+        private final byte[] requestBody;
+        // Status code of the response
+        public final int statusCode;
+        // Reason phrase of the response status
+        public final String reasonPhrase;
+        // Content-Type of the response, or null
+        public final String contentType;
+        // Content-Encoding of the response, or null
+        public final String contentEncoding;
+        // Body of the response, as received
+        private final byte[] body;
+        // Time from sending the request to receiving the whole response, in milliseconds
+        public final long elapsedTime;
+
+        public Exchange(String method, String target, String requestContentEncoding, byte[] requestBody,
+                        int statusCode, String reasonPhrase, String contentType, String contentEncoding,
+                        byte[] body, long elapsedTime) {
+            this.method = method;
+            this.target = target;
+            this.requestContentEncoding = requestContentEncoding;
+            this.requestBody = requestBody.clone();
+            this.statusCode = statusCode;
+            this.reasonPhrase = reasonPhrase;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.body = body.clone();
+            this.elapsedTime = elapsedTime;
+        }
+
+        /**
+         * @return copy of the body of the request, as sent
+         */
+        public byte[] getRequestBody() {
+            return requestBody.clone();
+        }
+
+        /**
+         * @return copy of the body of the response
+         */
+        public byte[] getBody() {
+            return body.clone();
+        }
+
+        /**
+         * @return length of the body of the response
+         */
+        public int getBodyLength() {
+            return body.length;
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + target + " -> " + statusCode;
+        }
+    }
+
+    // Exchanges in the order they occurred
+    private final List<Exchange> exchanges = new ArrayList<Exchange>();
+
+    /**
+     * Appends an exchange to the log
+     *
+     * @param exchange exchange to append
+     */
+    public synchronized void add(Exchange exchange) {
+        exchanges.add(exchange);
+    }
+
+    /**
+     * @return exchanges in the order they occurred
+     */
+    public synchronized List<Exchange> getExchanges() {
+        return Collections.unmodifiableList(new ArrayList<Exchange>(exchanges));
+    }
+
+    /**
+     * @return number of exchanges in the log
+     */
+    public synchronized int size() {
+        return exchanges.size();
+    }
+
+    /**
+     * Writes the log to a file, replacing its content
+     *
+     * @param file file to write
+     * @throws IOException indicates the file could not be written
+     */
+    public synchronized void save(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            for (Exchange exchange : exchanges) {
+                out.writeUTF(exchange.method);
+                out.writeUTF(exchange.target);
+                writeNullableUTF(out, exchange.requestContentEncoding);
+                out.writeInt(exchange.requestBody.length);
+                out.write(exchange.requestBody);
+                out.writeInt(exchange.statusCode);
+                writeNullableUTF(out, exchange.reasonPhrase);
+                writeNullableUTF(out, exchange.contentType);
+                writeNullableUTF(out, exchange.contentEncoding);
+                out.writeLong(exchange.elapsedTime);
+                out.writeInt(exchange.body.length);
+                out.write(exchange.body);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a log written by save
+     *
+     * @param file file to read
+     * @return log with the exchanges in the file
+     * @throws IOException indicates the file could not be read or is not an exchange log
+     */
+    public static ExchangeLog load(File file) throws IOException {
+        ExchangeLog log = new ExchangeLog();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int magic = in.readInt();
+            if (magic != MAGIC && magic != MAGIC_V1)
+                throw new IOException("Not an exchange log: " + file);
+
+            while (true) {
+                String method;
+                try {
+                    method = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                String target = in.readUTF();
+                String requestContentEncoding = null;
+                byte[] requestBody = new byte[0];
+                if (magic != MAGIC_V1) {
+                    requestContentEncoding = readNullableUTF(in);
+                    requestBody = new byte[in.readInt()];
+                    in.readFully(requestBody);
+                }
+                int statusCode = in.readInt();
+                String reasonPhrase = readNullableUTF(in);
+                String contentType = readNullableUTF(in);
+                String contentEncoding = readNullableUTF(in);
+                long elapsedTime = in.readLong();
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                log.exchanges.add(new Exchange(method, target, requestContentEncoding, requestBody,
+                        statusCode, reasonPhrase, contentType, contentEncoding, body, elapsedTime));
+            }
+        } finally {
+            in.close();
+        }
+        return log;
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -6,11 +6,12 @@ import android.accounts.AccountManagerFuture;
 import android.accounts.AuthenticatorException;
 import android.accounts.OperationCanceledException;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Bundle;
-import android.os.Handler;
 import android.util.Log;
 
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.ProtocolException;
 import org.apache.http.auth.AuthenticationException;
 import org.apache.http.client.methods.HttpGet;
@@ -18,10 +19,12 @@ import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.params.ClientPNames;
 import org.apache.http.cookie.Cookie;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.cookie.BasicClientCookie;
 
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Date;
 
 /**
  * Implementation of a RestAuthenticator for Google App Engine hosted
@@ -41,6 +44,12 @@ import java.net.URISyntaxException;
  * 3. If the request fails, it could be that the cached auth token is stale or the server
  * not longer supports tokens of that type. The authenticator will call invalidateToken and
  * attempt to get a fresh token from the AccountManager and retry the login operation.
+ * <p/>
+ * The auth cookie of a successful login is saved, with its expiry, in private shared
+ * preferences, by account and authority. A later login, in this process or after a
+ * restart, reuses the cookie while it is valid, without asking for a token or calling the
+ * login URI. When the server rejects the cookie, invalidateSession forgets it, and the
+ * HttpRestClient logs in again with a full login.
  */
 public class GaeAuthenticator implements HttpRestAuthenticator {
 
@@ -51,7 +60,16 @@ public class GaeAuthenticator implements HttpRestAuthenticator {
     private static final String authTokenType = "ah";
 
     // String representing the auth cookie return for GAE apps logins
-    private String authCookieName = "ACSID";
+    private static final String AUTH_COOKIE_NAME = "ACSID";
+
+    // Name of the shared preferences holding the saved sessions
+    private static final String SESSION_PREFS = "gae_sessions";
+
+    // Lifetime assumed for a cookie without an expiry date, in milliseconds
+    private static final long DEFAULT_SESSION_LIFETIME = 12 * 60 * 60 * 1000;
+
+    // Time before its expiry that a saved cookie is no longer reused, in milliseconds
+    private static final long SESSION_EXPIRY_MARGIN = 5 * 60 * 1000;
 
     // Login path for GAE app urls
     private static final String ENTRIES_PATH = "/_ah/login";
@@ -62,6 +80,9 @@ public class GaeAuthenticator implements HttpRestAuthenticator {
     // Account to use for authentication requests
     private final Account account;
 
+    // Saved sessions
+    private final SharedPreferences sessions;
+
 
     /**
      * Constructor
@@ -72,6 +93,7 @@ public class GaeAuthenticator implements HttpRestAuthenticator {
     public GaeAuthenticator(Context context, Account account) {
         this.accountManager = AccountManager.get(context);
         this.account = account;
+        this.sessions = context.getSharedPreferences(SESSION_PREFS, Context.MODE_PRIVATE);
 
     }
 
@@ -81,7 +103,7 @@ public class GaeAuthenticator implements HttpRestAuthenticator {
      * Android Google Authenticator is capable of storing user credentials
      * and requesting an auth token, so this request needs to validate the
      * auth token by logging in and setting a auth cookie for all subsequent
-     * requests
+     * requests. A valid auth cookie from an earlier login is reused instead
      *
      * @param client    HttpClient object to login with
      * @param scheme    scheme portion of the login uri for the GAE app
@@ -91,17 +113,26 @@ public class GaeAuthenticator implements HttpRestAuthenticator {
     public void login(final DefaultHttpClient client, final String scheme, final String authority)
             throws AuthenticationException, IOException, URISyntaxException {
 
+        // The secure cookies are specific to the secure connection, and are
+        //  prefixed by and S
+        String cookieName = (scheme.equals("https") ? "S" : "") + AUTH_COOKIE_NAME;
+        if (restoreSession(client, cookieName, authority)) {
+            Log.d(TAG, "login, reusing the session of " + account.name);
+            return;
+        }
+
         try {
             String token = getAuthToken();
-            if (!loginWithAuthToken(client, token, scheme, authority)) {
+            if (!loginWithAuthToken(client, token, scheme, authority, cookieName)) {
                 invalidateAuthToken(token);
                 token = getAuthToken();
-                if (!loginWithAuthToken(client, token, scheme, authority)) {
+                if (!loginWithAuthToken(client, token, scheme, authority, cookieName)) {
                     String msg = "Server error during login, Invalid Credentials: " + account.name + "(" + account.type + ")";
                     Log.e(TAG, msg);
                     throw new IOException(msg);
                 }
             }
+            saveSession(client, cookieName, authority);
 
         } catch (OperationCanceledException e) {
             Log.e(TAG, "login, operation cancelled: " + e.toString());
@@ -115,6 +146,52 @@ public class GaeAuthenticator implements HttpRestAuthenticator {
         }
     }
 
+    /**
+     * Forgets the session of the account, after the server rejected its cookie. The
+     * cookie is dropped from the client and from the saved sessions
+     *
+     * @param client    HttpClient object the session was used with
+     * @param scheme    scheme portion of the login uri for the GAE app
+     * @param authority authority portion of the login uri for the GAE app
+     */
+    @Override
+    public void invalidateSession(DefaultHttpClient client, String scheme, String authority) {
+        String cookieName = (scheme.equals("https") ? "S" : "") + AUTH_COOKIE_NAME;
+        Cookie cookie = findCookie(client, cookieName);
+        if (cookie != null) {
+            // An expired cookie replaces the one in the store, and isn't kept
+            BasicClientCookie expired = new BasicClientCookie(cookieName, "");
+            expired.setDomain(cookie.getDomain());
+            expired.setPath(cookie.getPath());
+            expired.setExpiryDate(new Date(0));
+            client.getCookieStore().addCookie(expired);
+        }
+
+        String key = sessionKey(cookieName, authority);
+        sessions.edit()
+                .remove(key)
+                .remove(key + ".domain")
+                .remove(key + ".path")
+                .remove(key + ".expiry")
+                .commit();
+        Log.i(TAG, "Session of " + account.name + " rejected, the next login is a full one");
+    }
+
+    /**
+     * Recognizes a request rejected for its session. GAE redirects the requests of a
+     * login: required handler without a valid auth cookie to the login page, and the
+     * handlers that check the user themselves respond with a 401. Redirects aren't
+     * followed and the service doesn't redirect otherwise, so any redirect is the login page
+     *
+     * @param response response of a request made with the session of the last login
+     * @return true if the request was rejected for its session
+     */
+    @Override
+    public boolean isAuthenticationChallenge(HttpResponse response) {
+        int statusCode = response.getStatusLine().getStatusCode();
+        return statusCode == HttpStatus.SC_UNAUTHORIZED || statusCode == HttpStatus.SC_MOVED_TEMPORARILY;
+    }
+
     /**
      * Handles authenticating each Rest operation.
      * In the case of Google App Engine, all requests are authenticated
@@ -130,7 +207,8 @@ public class GaeAuthenticator implements HttpRestAuthenticator {
 
 
     /**
-     * Requests an auth token for the specified authenticator account
+     * Requests an auth token for the specified authenticator account, blocking until the
+     * AccountManager answers. It can be called from any background thread
      *
      * @return authentication token
      * @throws IOException                usually because of network trouble
@@ -140,8 +218,10 @@ public class GaeAuthenticator implements HttpRestAuthenticator {
      */
     private String getAuthToken() throws IOException, AuthenticatorException, OperationCanceledException {
 
+        // Without a callback no handler is needed, a Handler could not be created anyway
+        //  on the worker threads logging in, as they have no Looper
         AccountManagerFuture<Bundle> result = accountManager.getAuthToken(
-                account, authTokenType, true, null, new Handler());
+                account, authTokenType, true, null, null);
 
         Bundle bundle = result.getResult();
 
@@ -169,12 +249,14 @@ public class GaeAuthenticator implements HttpRestAuthenticator {
      *
      * @param client    HttpClient to use for login request
      * @param authToken token to use for login operation
-     * @param scheme    scheme portion of the login uri for the GAE app
-     * @param authority authority portion of the login uri for the GAE app
+     * @param scheme     scheme portion of the login uri for the GAE app
+     * @param authority  authority portion of the login uri for the GAE app
+     * @param cookieName name of the auth cookie set by the login
      * @return true if the login succeeded, false if an authentication error occurred and the
      * token may be stale
      */
-    private boolean loginWithAuthToken(DefaultHttpClient client, String authToken, String scheme, String authority)
+    private boolean loginWithAuthToken(DefaultHttpClient client, String authToken, String scheme, String authority,
+                                       String cookieName)
             throws ProtocolException, URISyntaxException, IOException {
 
         /**
@@ -195,21 +277,95 @@ public class GaeAuthenticator implements HttpRestAuthenticator {
         );
 
         HttpResponse response = client.execute(request);
+        // Release the connection, the body of the redirect isn't used
+        if (response.getEntity() != null)
+            response.getEntity().consumeContent();
         // Response should be a redirect on success
-        if (response.getStatusLine().getStatusCode() == 302) {
-            // The secure cookies are specific to the secure connection, and are
-            //  prefixed by and S
-            if (scheme.equals("https"))
-                authCookieName = "S" + authCookieName;
-            for (Cookie cookie : client.getCookieStore().getCookies()) {
-                if (cookie.getName().equals(authCookieName))
-                    return true;
-            }
-            return false;
+        return response.getStatusLine().getStatusCode() == 302 && findCookie(client, cookieName) != null;
+    }
+
+    /**
+     * @param client     HttpClient holding the cookies
+     * @param cookieName name of the cookie
+     * @return the cookie of the client with the name, or null if it has none
+     */
+    private static Cookie findCookie(DefaultHttpClient client, String cookieName) {
+        for (Cookie cookie : client.getCookieStore().getCookies()) {
+            if (cookie.getName().equals(cookieName))
+                return cookie;
         }
+        return null;
+    }
+
+    /**
+     * @return key of the saved session of the account with the authority
+     */
+    private String sessionKey(String cookieName, String authority) {
+        return account.type + "/" + account.name + "@" + authority + "/" + cookieName;
+    }
 
+    /**
+     * Makes sure the client holds a valid auth cookie, from its own store or from the
+     * saved sessions
+     *
+     * @param client     HttpClient to restore the session to
+     * @param cookieName name of the auth cookie
+     * @param authority  authority of the GAE app
+     * @return true if the client holds a valid auth cookie
+     */
+    private boolean restoreSession(DefaultHttpClient client, String cookieName, String authority) {
+        Date validUntil = new Date(System.currentTimeMillis() + SESSION_EXPIRY_MARGIN);
+        Cookie current = findCookie(client, cookieName);
+        if (current != null && current.getExpiryDate() != null && !current.isExpired(validUntil))
+            return true;
+
+        String key = sessionKey(cookieName, authority);
+        String value = sessions.getString(key, null);
+        long expiry = sessions.getLong(key + ".expiry", 0);
+        if (value == null || expiry < validUntil.getTime())
+            return false;
+
+        BasicClientCookie cookie = new BasicClientCookie(cookieName, value);
+        cookie.setDomain(sessions.getString(key + ".domain", null));
+        cookie.setPath(sessions.getString(key + ".path", "/"));
+        cookie.setExpiryDate(new Date(expiry));
+        cookie.setSecure(cookieName.startsWith("S"));
+        client.getCookieStore().addCookie(cookie);
+        return true;
+    }
+
+    /**
+     * Saves the auth cookie set by a login. A cookie without an expiry date is given the
+     * default lifetime, it is also set on the cookie in the client, so it is reused
+     * for as long as the saved one
+     *
+     * @param client     HttpClient holding the auth cookie
+     * @param cookieName name of the auth cookie
+     * @param authority  authority of the GAE app
+     */
+    private void saveSession(DefaultHttpClient client, String cookieName, String authority) {
+        Cookie cookie = findCookie(client, cookieName);
+        if (cookie == null)
+            return;
+
+        Date expiry = cookie.getExpiryDate();
+        if (expiry == null) {
+            expiry = new Date(System.currentTimeMillis() + DEFAULT_SESSION_LIFETIME);
+            BasicClientCookie dated = new BasicClientCookie(cookieName, cookie.getValue());
+            dated.setDomain(cookie.getDomain());
+            dated.setPath(cookie.getPath());
+            dated.setSecure(cookie.isSecure());
+            dated.setExpiryDate(expiry);
+            client.getCookieStore().addCookie(dated);
+        }
 
-        return false;
+        String key = sessionKey(cookieName, authority);
+        sessions.edit()
+                .putString(key, cookie.getValue())
+                .putString(key + ".domain", cookie.getDomain())
+                .putString(key + ".path", cookie.getPath())
+                .putLong(key + ".expiry", expiry.getTime())
+                .commit();
     }
 
 }
@@ -1,6 +1,7 @@
 package com.redpantssoft.cloudtodolist.client;
 
 
+import org.apache.http.HttpResponse;
 import org.apache.http.auth.AuthenticationException;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.impl.client.DefaultHttpClient;
@@ -14,4 +15,23 @@ public interface HttpRestAuthenticator {
             throws AuthenticationException, URISyntaxException, IOException;
 
     public void addAuthenticationInfoToRequest(HttpRequestBase request);
+
+    /**
+     * Forgets the session of the last login, after the server rejected a request made
+     * with it, so the next login does not reuse it
+     *
+     * @param client    HttpClient the session was used with
+     * @param scheme    scheme of the service URI
+     * @param authority authority of the service URI
+     */
+    public void invalidateSession(DefaultHttpClient client, String scheme, String authority);
+
+    /**
+     * Recognizes the response of a request rejected because its session is not valid,
+     * the request is then replayed after another login
+     *
+     * @param response response of a request made with the session of the last login
+     * @return true if the request was rejected for its session
+     */
+    public boolean isAuthenticationChallenge(HttpResponse response);
 }
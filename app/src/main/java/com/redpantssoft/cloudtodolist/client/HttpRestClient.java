@@ -2,47 +2,82 @@ package com.redpantssoft.cloudtodolist.client;
 
 
 import android.content.Context;
-import android.net.SSLCertificateSocketFactory;
-import android.net.SSLSessionCache;
 import android.util.Log;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.auth.AuthenticationException;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.client.params.HttpClientParams;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.BasicHttpEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.SingleClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-
-import java.io.BufferedReader;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Base class for an HTTP Rest client. This class is capable of issuing requests
  * with specific Content Type and Encoding specifications in the request header and
  * will decode the content encoding in the response, making it transparent to users.
+ * Responses are asked for compressed, with gzip or deflate, unless the caller says
+ * otherwise.
+ * <p/>
+ * <p>Requests are sent over an HttpTransport, the pooled ApacheHttpTransport unless
+ * another is given. Connections are kept alive between requests, so later requests reuse
+ * the warm ones instead of paying for a new TCP and TLS handshake. Connections idle for
+ * longer than IDLE_CONNECTION_TIMEOUT are closed before a request, as the server
+ * may have dropped them.</p>
+ * <p/>
+ * <p>A request the authenticator recognizes as rejected for an expired session is
+ * replayed once, transparently, after logging in again.</p>
+ * <p/>
+ * <p>Post and put requests can carry a JSON body. Bodies of COMPRESSION_THRESHOLD bytes
+ * or more are gzip-compressed, unless the server refused a compressed body before, with
+ * a 415 status, in which case the request is re-sent uncompressed and the client stops
+ * compressing.</p>
+ * <p/>
+ * <p>With a DiskResponseCache set, GET responses are stored following their cache
+ * headers, fresh ones are served without a request and stale ones revalidated with a
+ * conditional request. Offline, cached responses are served stale and the other
+ * requests fail. GETs with one of the uncached query parameters, like the incremental
+ * requests of an API, bypass the cache, their responses are seldom requested again
+ * and would only push the others out.</p>
  * <p/>
  * <p>Note that this client cannot parse the response content, only return the content
- * string and type. This is due to the fact that parsing requires the schema, which is
- * service specific. In this sense, class serves as a base class for service specific
- * client implementations, as this class handles the boilerplate HTTP operations.</p>
+ * string and type, or hand the body to a ResponseHandler as it streams in. This is due
+ * to the fact that parsing requires the schema, which is service specific. In this
+ * sense, class serves as a base class for service specific client implementations, as
+ * this class handles the boilerplate HTTP operations.</p>
  */
 
 @SuppressWarnings({"SameParameterValue"})
@@ -56,19 +91,327 @@ public class HttpRestClient {
     private static final String ACCEPT_TYPE_HEADER = "Accept";
     private static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
 
-    private static final int SOCKET_OPERATION_TIMEOUT = 5 * 1000;
+    // Content-Encoding of a compressed request body
+    private static final String CONTENT_ENCODING_GZIP = "gzip";
+
+    // Status code of a server refusing the content encoding of a request body
+    private static final int UNSUPPORTED_MEDIA_TYPE = 415;
+
+    // Status code of a conditional request whose cached response is still valid
+    private static final int NOT_MODIFIED = 304;
 
-    // Reference to an org.apache.http.client.HttpClient
-    private final DefaultHttpClient client;
-    // Reference to the client connection Manager
-    private ClientConnectionManager connManager;
+    // Size from which request bodies are compressed, smaller ones don't gain from it
+    public static final int COMPRESSION_THRESHOLD = 1024;
+
+    // Charset of a response body whose Content-Type doesn't say, JSON is UTF-8
+    private static final String DEFAULT_CHARSET = "UTF-8";
+
+    // Size of the buffer a response body of unknown length is first read into
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    // Default timeout for connecting and for blocking socket reads
+    public static final int SOCKET_OPERATION_TIMEOUT = 5 * 1000;
+
+    // Time after which an idle connection is closed rather than reused, in milliseconds
+    public static final long IDLE_CONNECTION_TIMEOUT = 20 * 1000;
+
+    // Transport sending the requests over the network
+    private final HttpTransport transport;
     // Scheme of the service URI (http/https)
     private final String scheme;
     // Authority (hostname) of the service URI (xyxyxy.appspot.com)
     private final String authority;
 
     // Reference to an authenticator to handle authentication operations
-    private HttpRestAuthenticator authenticator = null;
+    private volatile HttpRestAuthenticator authenticator = null;
+
+    // Number of logins performed, and the lock serializing them, so the requests
+    //  rejected at the same time lead to a single login
+    private int numLogins = 0;
+    private final Object loginLock = new Object();
+
+    // Flag indicating whether large request bodies are compressed
+    private volatile boolean compressRequests = true;
+
+    // Flag indicating whether the server takes the fields of a request in its body,
+    //  cleared by the API client when the server only takes query parameters
+    private volatile boolean bodiesAccepted = true;
+
+    // Cache of the responses to GET requests, or null, and the flag indicating whether
+    //  requests are answered from the cache only, stale or not
+    private volatile DiskResponseCache cache = null;
+    private volatile boolean offline = false;
+
+    // Names of the query parameters of the GET requests that bypass the cache
+    private volatile Set<String> uncachedParameters = Collections.emptySet();
+
+    // Handler returning the body of a successful response as a string, and the reason
+    //  phrase of a failed one
+    private final ResponseHandler<Response> stringHandler = new ResponseHandler<Response>() {
+        @Override
+        public Response handleResponse(ResponseBody body) throws IOException {
+            return body.toResponse(body.succeeded() ? body.readString() : body.getReasonPhrase());
+        }
+    };
+
+    // Statistics of the requests executed by this client
+    private long numRequests = 0;
+    private long bytesSent = 0;
+    private long bytesReceived = 0;
+    private long bytesDecoded = 0;
+    private long requestNanos = 0;
+
+    /**
+     * Snapshot of the statistics of the requests executed by a client. Bytes sent are the
+     * request line, the headers set on the request and the body, as compressed, bytes
+     * received are the response body, before the content encoding is decoded, and bytes
+     * decoded the same bodies after. Objects of this type are immutable
+     */
+    public static class Stats {
+        // Number of requests, each is a round trip to the server
+        public final long numRequests;
+        // Number of bytes sent
+        public final long bytesSent;
+        // Number of bytes received
+        public final long bytesReceived;
+        // Number of bytes received, once decoded from their content encoding
+        public final long bytesDecoded;
+        // Time spent executing requests and reading responses, in milliseconds
+        public final long requestTime;
+
+        Stats(long numRequests, long bytesSent, long bytesReceived, long bytesDecoded, long requestTime) {
+            this.numRequests = numRequests;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+            this.bytesDecoded = bytesDecoded;
+            this.requestTime = requestTime;
+        }
+
+        /**
+         * @return ratio of the bytes decoded to the bytes received, 1 when the responses
+         *         weren't compressed
+         */
+        public double getCompressionRatio() {
+            return bytesReceived > 0 ? (double) bytesDecoded / bytesReceived : 1;
+        }
+
+        /**
+         * @param earlier earlier snapshot of the same client
+         * @return statistics of the requests executed since the earlier snapshot
+         */
+        public Stats since(Stats earlier) {
+            return new Stats(numRequests - earlier.numRequests,
+                    bytesSent - earlier.bytesSent,
+                    bytesReceived - earlier.bytesReceived,
+                    bytesDecoded - earlier.bytesDecoded,
+                    requestTime - earlier.requestTime);
+        }
+    }
+
+    /**
+     * Snapshot of the connection pool of a client. Objects of this type are immutable
+     */
+    public static class PoolStats {
+        // Number of connections in use by a request
+        public final int leased;
+        // Number of open connections waiting in the pool for a request
+        public final int available;
+        // Number of connections handed to requests, since the client was built
+        public final long numLeases;
+        // Number of those that were already open, kept alive from an earlier request
+        public final long numReused;
+
+        PoolStats(int leased, int available, long numLeases, long numReused) {
+            this.leased = leased;
+            this.available = available;
+            this.numLeases = numLeases;
+            this.numReused = numReused;
+        }
+
+        /**
+         * @return fraction of the requests that reused a kept alive connection
+         */
+        public double getReuseRatio() {
+            return numLeases > 0 ? (double) numReused / numLeases : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("leased=%d available=%d leases=%d reuse=%.2f",
+                    leased, available, numLeases, getReuseRatio());
+        }
+    }
+
+    /**
+     * Input stream that counts the bytes read from the wrapped stream
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Inflater input stream that releases its inflater when closed
+     */
+    private static class InflatingInputStream extends InflaterInputStream {
+
+        InflatingInputStream(InputStream in, Inflater inflater) {
+            super(in, inflater);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+
+    /**
+     * Output stream that counts the bytes written to the wrapped stream
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            count += length;
+        }
+    }
+
+    /**
+     * Request body holding a JSON object, encoded as UTF-8. The body is repeatable, it is
+     * written again when the request is retried after a network error. A compressed body
+     * is gzipped as it's written to the connection and sent chunked, as its compressed
+     * length isn't known in advance.
+     */
+    public static class JsonEntity extends AbstractHttpEntity {
+
+        // JSON text of the body, encoded as UTF-8
+        private final byte[] content;
+
+        // Number of bytes written to the connection, across all the attempts
+        private long bytesWritten = 0;
+
+        /**
+         * Constructor
+         *
+         * @param object     JSON object to send
+         * @param compressed flag indicating whether the body is gzip-compressed
+         * @throws UnsupportedEncodingException if UTF-8 is not supported
+         */
+        public JsonEntity(JSONObject object, boolean compressed) throws UnsupportedEncodingException {
+            this.content = object.toString().getBytes("UTF-8");
+            setContentType(ContentType.MIME_TYPE_JSON + "; charset=UTF-8");
+            if (compressed) {
+                setContentEncoding(CONTENT_ENCODING_GZIP);
+                setChunked(true);
+            }
+        }
+
+        /**
+         * @return true if the body is gzip-compressed
+         */
+        public boolean isCompressed() {
+            return contentEncoding != null;
+        }
+
+        /**
+         * @return number of bytes written to the connection, after compression
+         */
+        public synchronized long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+
+        @Override
+        public long getContentLength() {
+            return isCompressed() ? -1 : content.length;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            if (!isCompressed())
+                return new ByteArrayInputStream(content);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            writeContent(compressed);
+            return new ByteArrayInputStream(compressed.toByteArray());
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            CountingOutputStream counting = new CountingOutputStream(outstream);
+            writeContent(counting);
+            counting.flush();
+            synchronized (this) {
+                bytesWritten += counting.count;
+            }
+        }
+
+        /**
+         * Writes the body, compressing it if needed
+         *
+         * @param out stream to write to
+         * @throws IOException indicates an error writing to the stream
+         */
+        private void writeContent(OutputStream out) throws IOException {
+            if (isCompressed()) {
+                GZIPOutputStream gzip = new GZIPOutputStream(out);
+                gzip.write(content);
+                gzip.finish();
+            } else {
+                out.write(content);
+            }
+        }
+    }
 
     /**
      * Enumerated type that defines the supported mime types for the
@@ -126,33 +469,51 @@ public class HttpRestClient {
     }
 
     /**
-     * Enumerated type that defines the supported mime types for the
-     * accepted ContentEncoding. REST apis will commonly honor the
-     * 'Accept-Encoding' header field, in the http request, and
-     * return the response encoded in the requested format.
-     * This is obviously service dependent.
+     * Enumerated type that defines the content codings of a response body. REST apis
+     * will commonly honor the 'Accept-Encoding' header field, in the http request, and
+     * return the response compressed with one of the accepted codings, named by the
+     * 'Content-Encoding' header field of the response.
      * <p/>
-     * <p>If gzip encoding is made available, it is a good idea
-     * to use it when there is the potential for large amounts of data
-     * and/or users. </p>
+     * <p>ANY accepts every coding the client decodes, gzip and deflate, and is what
+     * requests accept unless told otherwise. JSON compresses well, entry lists shrink
+     * several times over.</p>
      */
     public static enum ContentEncoding {
-        UNSUPPORTED, NONE, GZIP;
+        UNSUPPORTED, NONE, GZIP, DEFLATE, ANY;
 
-        public static final String MIME_TYPE_GZIP = "application/x-gzip";
+        // Tokens of the content codings, x-gzip is an old alias of gzip
+        public static final String TOKEN_GZIP = "gzip";
+        public static final String TOKEN_X_GZIP = "x-gzip";
+        public static final String TOKEN_DEFLATE = "deflate";
+        public static final String TOKEN_IDENTITY = "identity";
 
-        public String toMime() {
+        /**
+         * @return value of the 'Accept-Encoding' header field accepting this coding,
+         *         or null to send none
+         */
+        public String toToken() {
             switch (this) {
                 case GZIP:
-                    return MIME_TYPE_GZIP;
+                    return TOKEN_GZIP;
+                case DEFLATE:
+                    return TOKEN_DEFLATE;
+                case ANY:
+                    return TOKEN_GZIP + ", " + TOKEN_DEFLATE;
                 default:
                     return null;
             }
         }
 
-        public static ContentEncoding fromMime(String mimeType) {
-            if (mimeType == null) return NONE;
-            if (mimeType.equals(MIME_TYPE_GZIP)) return GZIP;
+        /**
+         * @param token value of the 'Content-Encoding' header field of a response, or null
+         * @return coding of the response body
+         */
+        public static ContentEncoding fromToken(String token) {
+            if (token == null) return NONE;
+            String coding = token.trim().toLowerCase(Locale.US);
+            if (coding.length() == 0 || coding.equals(TOKEN_IDENTITY)) return NONE;
+            if (coding.equals(TOKEN_GZIP) || coding.equals(TOKEN_X_GZIP)) return GZIP;
+            if (coding.equals(TOKEN_DEFLATE)) return DEFLATE;
             return UNSUPPORTED;
         }
     }
@@ -218,6 +579,183 @@ public class HttpRestClient {
         }
     }
 
+    /**
+     * Reads the body of a response as it streams from the connection, instead of
+     * receiving it as a string. This spares large bodies the copies of the string,
+     * the caller parses from the stream or from a single buffer.
+     *
+     * @param <T> type of the result of the handler
+     */
+    public interface ResponseHandler<T> {
+        /**
+         * Handles a response. The body is only valid during the call, it is closed,
+         * and the connection given back, once the handler returns
+         *
+         * @param body status, type and body of the response
+         * @return result of the request, returned by the client
+         * @throws IOException   indicates error in underlying network state or operation
+         * @throws JSONException indicates the body could not be parsed
+         */
+        T handleResponse(ResponseBody body) throws IOException, JSONException;
+    }
+
+    /**
+     * Body of a response being handled by a ResponseHandler, with its status and type.
+     * The content encoding of the body is decoded when it is read
+     */
+    public class ResponseBody {
+
+        // Status code and reason phrase of the HTTP response
+        private final int statusCode;
+        private final String reasonPhrase;
+        // Type and charset of the body
+        private final ContentType contentType;
+        private final String charset;
+        // Encoding of the body, and its length when it isn't encoded, or -1
+        private final ContentEncoding contentEncoding;
+        private final long contentLength;
+        // Body as received, and decoded once it's asked for, counting the decoded bytes
+        private final CountingInputStream rawContent;
+        private CountingInputStream content = null;
+
+        ResponseBody(int statusCode, String reasonPhrase, ContentType contentType, String charset,
+                     ContentEncoding contentEncoding, long contentLength, CountingInputStream rawContent) {
+            this.statusCode = statusCode;
+            this.reasonPhrase = reasonPhrase;
+            this.contentType = contentType;
+            this.charset = charset;
+            this.contentEncoding = contentEncoding;
+            this.contentLength = (contentEncoding == ContentEncoding.NONE ? contentLength : -1);
+            this.rawContent = rawContent;
+        }
+
+        /**
+         * @return status code of the response
+         */
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * @return reason phrase of the status code
+         */
+        public String getReasonPhrase() {
+            return reasonPhrase;
+        }
+
+        /**
+         * @return boolean representing whether the response represents a successful request
+         */
+        public boolean succeeded() {
+            return statusCode >= 200 && statusCode < 300;
+        }
+
+        /**
+         * @return content type of the body
+         */
+        public ContentType getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @return charset of the body, from the Content-Type, UTF-8 when it doesn't say
+         */
+        public String getCharset() {
+            return charset;
+        }
+
+        /**
+         * @return length of the decoded body, or -1 if it isn't known in advance
+         */
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        /**
+         * @return body as a stream of bytes, decoded from its content encoding
+         * @throws IOException indicates error in underlying network state or operation
+         */
+        public InputStream getStream() throws IOException {
+            if (content == null) {
+                if (contentEncoding == ContentEncoding.NONE)
+                    content = rawContent;
+                else
+                    content = new CountingInputStream(decodeContent(rawContent, contentEncoding));
+            }
+            return content;
+        }
+
+        /**
+         * @return body as a stream of characters, in its charset
+         * @throws IOException indicates error in underlying network state or operation
+         */
+        public Reader getReader() throws IOException {
+            return new InputStreamReader(getStream(), charset);
+        }
+
+        /**
+         * Reads the whole body into a single buffer, sized from the Content-Length when
+         * there is one, and decodes it to a string in one pass
+         *
+         * @return body as a string
+         * @throws IOException indicates error in underlying network state or operation
+         */
+        public String readString() throws IOException {
+            InputStream in = getStream();
+            byte[] buffer = new byte[contentLength >= 0 ? (int) contentLength : READ_BUFFER_SIZE];
+            int length = 0;
+            while (true) {
+                if (length == buffer.length) {
+                    // Only grow the buffer if the body is longer than it
+                    int b = in.read();
+                    if (b < 0)
+                        break;
+                    byte[] larger = new byte[Math.max(buffer.length * 2, READ_BUFFER_SIZE)];
+                    System.arraycopy(buffer, 0, larger, 0, length);
+                    buffer = larger;
+                    buffer[length++] = (byte) b;
+                }
+                int n = in.read(buffer, length, buffer.length - length);
+                if (n < 0)
+                    break;
+                length += n;
+            }
+            return new String(buffer, 0, length, charset);
+        }
+
+        /**
+         * @param content body of the response, or null if it was consumed
+         * @return Response with the status and type of this body
+         */
+        public Response toResponse(String content) {
+            return new Response(statusCode, content, contentType);
+        }
+
+        /**
+         * @return number of bytes read from the body as received
+         */
+        long getBytesReceived() {
+            return rawContent.count;
+        }
+
+        /**
+         * @return number of bytes read from the body once decoded
+         */
+        long getBytesDecoded() {
+            return (content != null ? content.count : rawContent.count);
+        }
+
+        /**
+         * Closes the body, so the connection goes back to the pool
+         */
+        void close() throws IOException {
+            if (content != null)
+                content.close();
+            else
+                rawContent.close();
+        }
+    }
+
     /**
      * Constructor
      *
@@ -225,45 +763,156 @@ public class HttpRestClient {
      * @param useHttps  flag indicating whether to use secure https over http
      */
     public HttpRestClient(String authority, boolean useHttps, Context context) {
+        this(authority, useHttps, context, SOCKET_OPERATION_TIMEOUT);
+    }
+
+    /**
+     * Constructor - allows for a socket read timeout other than the default,
+     * this is needed for requests that the server holds open, like long polls
+     *
+     * @param authority     service authority string
+     * @param useHttps      flag indicating whether to use secure https over http
+     * @param socketTimeout timeout for blocking socket reads, in milliseconds
+     */
+    public HttpRestClient(String authority, boolean useHttps, Context context, int socketTimeout) {
+        this(authority, useHttps, new ApacheHttpTransport(context, socketTimeout));
+    }
+
+    /**
+     * Constructor - sends the requests over the given transport rather than the default
+     * Apache one
+     *
+     * @param authority service authority string
+     * @param useHttps  flag indicating whether to use secure https over http
+     * @param transport transport sending the requests over the network
+     */
+    public HttpRestClient(String authority, boolean useHttps, HttpTransport transport) {
         this.scheme = (useHttps ? "https" : "http");
         this.authority = authority;
+        this.transport = transport;
+    }
 
-        // Build a new http client  suitable for a mobile rest client
-        HttpParams params = new BasicHttpParams();
-        HttpConnectionParams.setStaleCheckingEnabled(params, false);
-        HttpConnectionParams.setConnectionTimeout(params, SOCKET_OPERATION_TIMEOUT);
-        HttpConnectionParams.setSoTimeout(params, SOCKET_OPERATION_TIMEOUT);
-        HttpConnectionParams.setSocketBufferSize(params, 8192);
-        HttpClientParams.setRedirecting(params, false);
-        SSLSessionCache sessionCache = new SSLSessionCache(context);
+    public void close() {
+        // Shutdown the transport and its connections
+        transport.shutdown();
+    }
 
-        SchemeRegistry schemeRegistry = new SchemeRegistry();
-        schemeRegistry.register(new Scheme("http",
-                PlainSocketFactory.getSocketFactory(), 80));
-        schemeRegistry.register(new Scheme("https",
-                SSLCertificateSocketFactory.getHttpSocketFactory(
-                        SOCKET_OPERATION_TIMEOUT, sessionCache), 443
-        ));
+    /**
+     * @return snapshot of the statistics of the requests executed by this client
+     */
+    public synchronized Stats getStats() {
+        return new Stats(numRequests, bytesSent, bytesReceived, bytesDecoded, requestNanos / 1000000);
+    }
 
-        connManager = new SingleClientConnManager(params, schemeRegistry);
+    /**
+     * Closes the pooled connections that expired, or that have been idle for longer than
+     * IDLE_CONNECTION_TIMEOUT
+     */
+    public void closeIdleConnections() {
+        transport.closeIdleConnections(IDLE_CONNECTION_TIMEOUT);
+    }
 
-        this.client = new DefaultHttpClient(connManager, params);
+    /**
+     * @return snapshot of the connection pool of this client
+     */
+    public PoolStats getPoolStats() {
+        return transport.getPoolStats();
     }
 
-    public void close() {
-        // Shutdown the connection manager
-        connManager.shutdown();
+    /**
+     * Sets whether the server takes the fields of a request in its body. The flag is
+     * kept by the client for the API clients built on it, that decide how to send them
+     *
+     * @param accepted flag indicating whether request bodies are accepted
+     */
+    public void setBodiesAccepted(boolean accepted) {
+        this.bodiesAccepted = accepted;
+    }
+
+    /**
+     * @return flag indicating whether the server takes the fields of a request in its body
+     */
+    public boolean areBodiesAccepted() {
+        return bodiesAccepted;
+    }
+
+    /**
+     * Sets the cache the responses to GET requests are stored in and served from
+     *
+     * @param cache cache of the responses, or null to send every request to the server
+     */
+    public void setCache(DiskResponseCache cache) {
+        this.cache = cache;
     }
 
     /**
-     * @return apache HttpClient wrapped by this class
+     * Sets the query parameters that keep a GET request out of the cache. Its response
+     * is neither served from the cache nor stored in it
+     *
+     * @param names names of the query parameters
+     */
+    public void setUncachedParameters(String... names) {
+        this.uncachedParameters = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(names)));
+    }
+
+    /**
+     * @param query query string of a request, or null
+     * @return true if the query has none of the uncached parameters
+     */
+    private boolean isCacheable(String query) {
+        if (query == null)
+            return true;
+        Set<String> uncached = this.uncachedParameters;
+        for (String parameter : query.split("[;&]")) {
+            int separator = parameter.indexOf('=');
+            if (uncached.contains(separator >= 0 ? parameter.substring(0, separator) : parameter))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Removes the cached responses to GET requests of a path, whatever their query, e.g.
+     * once they are known to be out of date
+     *
+     * @param path path of the resource
+     * @throws URISyntaxException indicates invalid syntax in the resulting URI
+     */
+    public void invalidateCache(String path) throws URISyntaxException {
+        DiskResponseCache cache = this.cache;
+        if (cache != null)
+            cache.invalidate(new URI(scheme, authority, path, null, null).toString());
+    }
+
+    /**
+     * @return snapshot of the statistics of the response cache, or null without one
+     */
+    public DiskResponseCache.Stats getCacheStats() {
+        DiskResponseCache cache = this.cache;
+        return (cache != null ? cache.getStats() : null);
+    }
+
+    /**
+     * Sets whether the client is offline. Offline, GET requests are answered from the
+     * cache, even with a stale response, and any other request fails without touching
+     * the network
+     *
+     * @param offline flag indicating whether the client is offline
+     */
+    public void setOffline(boolean offline) {
+        this.offline = offline;
+    }
+
+    /**
+     * @return apache HttpClient the authenticator logs in with, it holds the cookies
      */
     DefaultHttpClient getHttpClient() {
-        return client;
+        return transport.getHttpClient();
     }
 
     /**
-     * Sets the authenticator handler and tries to validate credentials with a login
+     * Sets the authenticator handler and tries to validate credentials with a login. The
+     * authenticator may reuse a session from an earlier login instead
      *
      * @param authenticator HttpRestAuthenticator to handle authentication operations
      * @throws URISyntaxException      indicates invalid syntax in the request's resulting URI
@@ -272,7 +921,10 @@ public class HttpRestClient {
      */
     public void setAuthenticator(HttpRestAuthenticator authenticator)
             throws URISyntaxException, IOException, AuthenticationException {
-        authenticator.login(getHttpClient(), scheme, authority);
+        synchronized (loginLock) {
+            authenticator.login(getHttpClient(), scheme, authority);
+            numLogins++;
+        }
         this.authenticator = authenticator;
 
 
@@ -294,7 +946,7 @@ public class HttpRestClient {
      */
     public Response Get(String path, String query, ContentType acceptType)
             throws URISyntaxException, IllegalArgumentException, IOException, AuthenticationException {
-        return Get(path, query, null, acceptType, ContentEncoding.NONE);
+        return Get(path, query, null, acceptType, ContentEncoding.ANY);
     }
 
     /**
@@ -314,7 +966,7 @@ public class HttpRestClient {
      */
     public Response Get(String path, String query, String fragment, ContentType acceptType)
             throws URISyntaxException, IllegalArgumentException, IOException, AuthenticationException {
-        return Get(path, query, fragment, acceptType, ContentEncoding.NONE);
+        return Get(path, query, fragment, acceptType, ContentEncoding.ANY);
     }
 
     /**
@@ -340,7 +992,32 @@ public class HttpRestClient {
                         ContentType acceptType, ContentEncoding acceptEncoding)
             throws URISyntaxException, IOException, IllegalArgumentException, AuthenticationException {
 
-        return executeRequest(new HttpGet(), path, query, fragment, acceptType, acceptEncoding);
+        return executeRequest(new HttpGet(), path, query, fragment, null, acceptType, acceptEncoding);
+    }
+
+    /**
+     * Performs and HTTP get operation on the specified path relative to the client's
+     * authority, handing the response to a handler as its body streams in, rather than
+     * returning the body as a string. This suits large bodies, which the handler can
+     * parse without the copies of a string.
+     *
+     * @param path       path portion of the request URI
+     * @param query      query string portion of the request URI
+     * @param acceptType ContentType associated with 'Accept' header field in the
+     *                   Http request
+     * @param handler    handler of the response
+     * @return result of the handler
+     * @throws URISyntaxException       indicates invalid syntax in the request's resulting URI
+     * @throws IllegalArgumentException indicates an invalid value in the request
+     * @throws IOException              indicates error in underlying network state or operation
+     * @throws JSONException            indicates the handler could not parse the body
+     * @throws AuthenticationException  indicates a failure in authentication process
+     */
+    public <T> T Get(String path, String query, ContentType acceptType, ResponseHandler<T> handler)
+            throws URISyntaxException, IllegalArgumentException, IOException, JSONException,
+            AuthenticationException {
+        return executeRequest(new HttpGet(), path, query, null, null, acceptType, ContentEncoding.ANY,
+                handler, false);
     }
 
     /**
@@ -359,7 +1036,7 @@ public class HttpRestClient {
      */
     public Response Post(String path, String query, ContentType acceptType)
             throws URISyntaxException, IllegalArgumentException, IOException, AuthenticationException {
-        return Post(path, query, null, acceptType, ContentEncoding.NONE);
+        return Post(path, query, null, acceptType, ContentEncoding.ANY);
     }
 
     /**
@@ -379,7 +1056,7 @@ public class HttpRestClient {
      */
     public Response Post(String path, String query, String fragment, ContentType acceptType)
             throws URISyntaxException, IllegalArgumentException, IOException, AuthenticationException {
-        return Post(path, query, fragment, acceptType, ContentEncoding.NONE);
+        return Post(path, query, fragment, acceptType, ContentEncoding.ANY);
     }
 
     /**
@@ -405,7 +1082,27 @@ public class HttpRestClient {
                          ContentType acceptType, ContentEncoding acceptEncoding)
             throws IOException, URISyntaxException, IllegalArgumentException, AuthenticationException {
 
-        return executeRequest(new HttpPost(), path, query, fragment, acceptType, acceptEncoding);
+        return executeRequest(new HttpPost(), path, query, fragment, null, acceptType, acceptEncoding);
+    }
+
+    /**
+     * Performs and HTTP post operation on the specified path relative to the
+     * client's authority, with a JSON body.
+     *
+     * @param path       path portion of the request URI
+     * @param query      query string portion of the request URI
+     * @param body       JSON object sent as the body of the request
+     * @param acceptType ContentType associated with 'Accept' header field in the
+     *                   Http request
+     * @return Response object for the executed request
+     * @throws URISyntaxException       indicates invalid syntax in the request's resulting URI
+     * @throws IllegalArgumentException indicates an invalid value in the request
+     * @throws IOException              indicates error in underlying network state or operation
+     * @throws AuthenticationException  indicates an HTTP protocol violation has occurred.
+     */
+    public Response Post(String path, String query, JSONObject body, ContentType acceptType)
+            throws URISyntaxException, IllegalArgumentException, IOException, AuthenticationException {
+        return executeRequest(new HttpPost(), path, query, null, body, acceptType, ContentEncoding.ANY);
     }
 
     /**
@@ -424,7 +1121,7 @@ public class HttpRestClient {
      */
     public Response Put(String path, String query, ContentType acceptType)
             throws URISyntaxException, IllegalArgumentException, IOException, AuthenticationException {
-        return Put(path, query, null, acceptType, ContentEncoding.NONE);
+        return Put(path, query, null, acceptType, ContentEncoding.ANY);
     }
 
     /**
@@ -444,7 +1141,7 @@ public class HttpRestClient {
      */
     public Response Put(String path, String query, String fragment, ContentType acceptType)
             throws URISyntaxException, IllegalArgumentException, IOException, AuthenticationException {
-        return Put(path, query, fragment, acceptType, ContentEncoding.NONE);
+        return Put(path, query, fragment, acceptType, ContentEncoding.ANY);
     }
 
     /**
@@ -470,7 +1167,27 @@ public class HttpRestClient {
                         ContentType acceptType, ContentEncoding acceptEncoding)
             throws IOException, URISyntaxException, IllegalArgumentException, AuthenticationException {
 
-        return executeRequest(new HttpPut(), path, query, fragment, acceptType, acceptEncoding);
+        return executeRequest(new HttpPut(), path, query, fragment, null, acceptType, acceptEncoding);
+    }
+
+    /**
+     * Performs and HTTP put operation on the specified path relative to the
+     * client's authority, with a JSON body.
+     *
+     * @param path       path portion of the request URI
+     * @param query      query string portion of the request URI
+     * @param body       JSON object sent as the body of the request
+     * @param acceptType ContentType associated with 'Accept' header field in the
+     *                   Http request
+     * @return Response object for the executed request
+     * @throws URISyntaxException       indicates invalid syntax in the request's resulting URI
+     * @throws IllegalArgumentException indicates an invalid value in the request
+     * @throws IOException              indicates error in underlying network state or operation
+     * @throws AuthenticationException  indicates an HTTP protocol violation has occurred.
+     */
+    public Response Put(String path, String query, JSONObject body, ContentType acceptType)
+            throws URISyntaxException, IllegalArgumentException, IOException, AuthenticationException {
+        return executeRequest(new HttpPut(), path, query, null, body, acceptType, ContentEncoding.ANY);
     }
 
     /**
@@ -489,7 +1206,7 @@ public class HttpRestClient {
      */
     public Response Delete(String path, String query, ContentType acceptType)
             throws URISyntaxException, IllegalArgumentException, IOException, AuthenticationException {
-        return Delete(path, query, null, acceptType, ContentEncoding.NONE);
+        return Delete(path, query, null, acceptType, ContentEncoding.ANY);
     }
 
     /**
@@ -509,7 +1226,7 @@ public class HttpRestClient {
      */
     public Response Delete(String path, String query, String fragment, ContentType acceptType)
             throws URISyntaxException, IllegalArgumentException, IOException, AuthenticationException {
-        return Delete(path, query, fragment, acceptType, ContentEncoding.NONE);
+        return Delete(path, query, fragment, acceptType, ContentEncoding.ANY);
     }
 
     /**
@@ -535,7 +1252,7 @@ public class HttpRestClient {
                            ContentType acceptType, ContentEncoding acceptEncoding)
             throws IOException, URISyntaxException, IllegalArgumentException, AuthenticationException {
 
-        return executeRequest(new HttpDelete(), path, query, fragment, acceptType, acceptEncoding);
+        return executeRequest(new HttpDelete(), path, query, fragment, null, acceptType, acceptEncoding);
     }
 
     /**
@@ -549,6 +1266,7 @@ public class HttpRestClient {
      * @param path           path portion of the request URI
      * @param query          query string portion of the request URI
      * @param fragment       fragment string portion of the request URI
+     * @param body           JSON object sent as the body of a post or put request, or null
      * @param acceptType     ContentType associated with 'Accept' header field in the
      *                       Http request
      * @param acceptEncoding ContentEncoding associated with the 'Accept-Encoding'
@@ -560,9 +1278,38 @@ public class HttpRestClient {
      */
     private Response executeRequest(HttpRequestBase request, String path,
                                     String query, String fragment,
+                                    JSONObject body,
                                     ContentType acceptType,
                                     ContentEncoding acceptEncoding)
             throws IOException, URISyntaxException, AuthenticationException {
+        try {
+            return executeRequest(request, path, query, fragment, body, acceptType, acceptEncoding,
+                    stringHandler, false);
+        } catch (JSONException e) {
+            // The string handler doesn't parse the body
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Executes the underlying HTTP request and hands the response to a handler, as it
+     * streams in. A request the authenticator recognizes as rejected for its session leads
+     * to a login, and is replayed once, with the new session
+     *
+     * @param handler         handler of the response body
+     * @param reauthenticated flag indicating whether this is the replay of a rejected request
+     * @return result of the handler
+     * @throws JSONException indicates the handler could not parse the body
+     * @see #executeRequest(HttpRequestBase, String, String, String, JSONObject, ContentType, ContentEncoding)
+     */
+    private <T> T executeRequest(HttpRequestBase request, String path,
+                                 String query, String fragment,
+                                 JSONObject body,
+                                 ContentType acceptType,
+                                 ContentEncoding acceptEncoding,
+                                 ResponseHandler<T> handler,
+                                 boolean reauthenticated)
+            throws IOException, URISyntaxException, AuthenticationException, JSONException {
 
 
         // Set the request's 'Accept' header to the desired ContentType
@@ -571,26 +1318,187 @@ public class HttpRestClient {
             request.setHeader(ACCEPT_TYPE_HEADER, acceptContentMimeType);
 
         // Set the request's 'Accept-Encoding' header to the desired ContentEncoding
-        String acceptEncodingMimeType = acceptEncoding.toMime();
-        if (acceptEncodingMimeType != null)
-            request.setHeader(ACCEPT_ENCODING_HEADER, acceptEncodingMimeType);
+        String acceptEncodingToken = acceptEncoding.toToken();
+        if (acceptEncodingToken != null)
+            request.setHeader(ACCEPT_ENCODING_HEADER, acceptEncodingToken);
 
         // Build the URI from the specified components
         request.setURI(new URI(scheme, authority, path, query, fragment));
 
+        // A fresh cached response answers a GET without a request, a stale one with
+        //  validators is revalidated with a conditional request. Offline, any cached
+        //  response answers, and the other requests fail
+        DiskResponseCache cache = (request instanceof HttpGet && isCacheable(query) ? this.cache : null);
+        String uri = request.getURI().toString();
+        DiskResponseCache.Entry cached = (cache != null ? cache.get(uri) : null);
+        if (cached != null && (offline || cached.isFresh(System.currentTimeMillis()))) {
+            if (!reauthenticated)
+                cache.recordHit();
+            return handleCachedResponse(cache, cached, handler);
+        }
+        if (offline)
+            throw new IOException("Offline, no cached response for " + uri);
+        if (cached != null && cached.hasValidators()) {
+            cached.addValidators(request);
+            if (!reauthenticated)
+                cache.recordRevalidation();
+        } else {
+            cached = null;
+            if (cache != null && !reauthenticated)
+                cache.recordMiss();
+        }
+
         // add authentication info to the request
+        HttpRestAuthenticator authenticator = this.authenticator;
+        int loginsBefore;
+        synchronized (loginLock) {
+            loginsBefore = numLogins;
+        }
         if (authenticator != null)
             authenticator.addAuthenticationInfoToRequest(request);
 
+        // Attach the body, compressed when it's large enough
+        JsonEntity requestEntity = null;
+        if (body != null) {
+            requestEntity = new JsonEntity(body, false);
+            if (compressRequests && requestEntity.getContentLength() >= COMPRESSION_THRESHOLD)
+                requestEntity = new JsonEntity(body, true);
+            ((HttpEntityEnclosingRequestBase) request).setEntity(requestEntity);
+        }
+
+
+        // Estimate the size of the request, as sent
+        long requestBytes = request.getRequestLine().toString().length() + 2;
+        for (Header header : request.getAllHeaders())
+            requestBytes += header.getName().length() + header.getValue().length() + 4;
+        long start = System.nanoTime();
+
+        // Drop the connections the server may have closed, rather than fail on them
+        closeIdleConnections();
 
         // Execute the request and block for response
-        HttpResponse response = client.execute(request);
+        HttpResponse response = execute(request);
 
 
         // Get the status code and entity of the response
         int statusCode = response.getStatusLine().getStatusCode();
         HttpEntity entity = response.getEntity();
 
+        // Count the body, as written to the connection
+        if (requestEntity != null)
+            requestBytes += requestEntity.getBytesWritten();
+
+        // A request rejected for its session is replayed once, after a login. If the
+        //  replay is rejected too, the session is dropped and the response returned
+        boolean challenged = authenticator != null && authenticator.isAuthenticationChallenge(response);
+        if (challenged) {
+            if (reauthenticated) {
+                authenticator.invalidateSession(getHttpClient(), scheme, authority);
+            } else {
+                if (entity != null)
+                    entity.consumeContent();
+                recordRequest(requestBytes, 0, 0, start);
+                relogin(authenticator, loginsBefore);
+                return executeRequest(request, path, query, fragment, body, acceptType, acceptEncoding,
+                        handler, true);
+            }
+        }
+
+        // A server refusing the compressed body gets the request again, uncompressed,
+        //  and the following bodies aren't compressed
+        if (statusCode == UNSUPPORTED_MEDIA_TYPE && requestEntity != null && requestEntity.isCompressed()) {
+            Log.w(TAG, "Compressed request body refused, compression disabled");
+            compressRequests = false;
+            if (entity != null)
+                entity.consumeContent();
+            recordRequest(requestBytes, 0, 0, start);
+            return executeRequest(request, path, query, fragment, body, acceptType, acceptEncoding,
+                    handler, reauthenticated);
+        }
+
+        // A cached response the server didn't modify is refreshed, and its body used
+        if (statusCode == NOT_MODIFIED && cached != null && !challenged) {
+            if (entity != null)
+                entity.consumeContent();
+            recordRequest(requestBytes, 0, 0, start);
+            cache.update(cached, response);
+            return handleCachedResponse(cache, cached, handler);
+        }
+
+        // A change to a resource drops its cached responses, and those of the collection
+        //  holding it, e.g. an entry and the list of entries
+        if (!(request instanceof HttpGet) && !challenged
+                && statusCode >= 200 && statusCode < 300) {
+            invalidateCache(path);
+            int parent = path.lastIndexOf('/');
+            if (parent > 0)
+                invalidateCache(path.substring(0, parent));
+        }
+
+        // The body of a cacheable response is stored as the handler reads it, still
+        //  encoded, and only once read to the end
+        InputStream entityContent = entity.getContent();
+        if (cache != null && !challenged)
+            entityContent = cache.put(uri, response, entityContent);
+
+
+        // Hand the body to the handler, and close it after, so the connection goes back
+        //  to the pool whether or not the handler read all of it
+        ResponseBody responseBody = newResponseBody(statusCode, response.getStatusLine().getReasonPhrase(),
+                entity, entityContent);
+        try {
+            return handler.handleResponse(responseBody);
+        } finally {
+            try {
+                responseBody.close();
+            } catch (IOException e) {
+                Log.e(TAG, e.toString());
+            }
+            recordRequest(requestBytes, responseBody.getBytesReceived(), responseBody.getBytesDecoded(), start);
+        }
+    }
+
+    /**
+     * Hands a cached response to a handler, as if it came from the server. The request
+     * isn't counted in the statistics of the client, only in those of the cache
+     *
+     * @param cache   cache of the response
+     * @param cached  cached response
+     * @param handler handler of the response body
+     * @return result of the handler
+     * @throws IOException   indicates the cached body could not be read
+     * @throws JSONException indicates the handler could not parse the body
+     */
+    private <T> T handleCachedResponse(DiskResponseCache cache, DiskResponseCache.Entry cached,
+                                       ResponseHandler<T> handler) throws IOException, JSONException {
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContentType(cached.contentType);
+        entity.setContentEncoding(cached.contentEncoding);
+        entity.setContentLength(cached.bodyLength);
+        ResponseBody responseBody = newResponseBody(cached.statusCode, cached.reasonPhrase, entity,
+                cache.openBody(cached));
+        try {
+            return handler.handleResponse(responseBody);
+        } finally {
+            try {
+                responseBody.close();
+            } catch (IOException e) {
+                Log.e(TAG, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Builds the body of a response, from the type, charset and encoding of its entity
+     *
+     * @param statusCode   status code of the response
+     * @param reasonPhrase reason phrase of the status code
+     * @param entity       entity of the response, its content isn't read
+     * @param content      stream of the body, as received
+     * @return body of the response
+     */
+    private ResponseBody newResponseBody(int statusCode, String reasonPhrase, HttpEntity entity,
+                                         InputStream content) {
         // Parse the Content Type returned in the entity, throwing an
         //  exception if the response contains an unsupported type
         ContentType contentType = ContentType.UNSUPPORTED;
@@ -599,86 +1507,103 @@ public class HttpRestClient {
         }
 
 
-        // Parse the Content Encoding returned in the entity, throwing an
-        //  exception if the response contains an unsupported type
-        ContentEncoding contentEncoding = ContentEncoding.NONE;
-        if (entity.getContentEncoding() != null) {
-            contentEncoding = ContentEncoding.fromMime(entity.getContentEncoding().getValue());
-        }
+        // Parse the Content Encoding returned in the entity, the body is decoded
+        //  as it's read, an unsupported coding fails the read
+        String contentEncodingToken = null;
+        if (entity.getContentEncoding() != null)
+            contentEncodingToken = entity.getContentEncoding().getValue();
+        ContentEncoding contentEncoding = ContentEncoding.fromToken(contentEncodingToken);
 
+        String charset = EntityUtils.getContentCharSet(entity);
+        return new ResponseBody(statusCode, reasonPhrase, contentType,
+                (charset != null ? charset : DEFAULT_CHARSET), contentEncoding,
+                entity.getContentLength(), new CountingInputStream(content));
+    }
 
-        // If the status code indicates success, convert the entity body into
-        //  a string and build the response object
-        if (statusCode >= 200 && statusCode < 300) {
-            return new Response(statusCode,
-                    contentToString(entity.getContent(),
-                            contentEncoding),
-                    contentType
-            );
-        } else {
-            // If the status code indicates error, build the response object
-            //  with the status reason phrase in the content field
-            return new Response(statusCode,
-                    response.getStatusLine().getReasonPhrase(),
-                    contentType);
+    /**
+     * Logs in again after a request was rejected for its session, unless another request
+     * already did since the rejected one was sent
+     *
+     * @param authenticator authenticator of the rejected request
+     * @param loginsBefore  number of logins when the rejected request was sent
+     * @throws URISyntaxException      indicates invalid syntax in the login URI
+     * @throws IOException             indicates error in underlying network state or operation
+     * @throws AuthenticationException indicates a failure in authentication process
+     */
+    private void relogin(HttpRestAuthenticator authenticator, int loginsBefore)
+            throws URISyntaxException, IOException, AuthenticationException {
+        synchronized (loginLock) {
+            if (numLogins != loginsBefore)
+                return;
+            Log.i(TAG, "Session rejected, logging in again");
+            authenticator.invalidateSession(getHttpClient(), scheme, authority);
+            authenticator.login(getHttpClient(), scheme, authority);
+            numLogins++;
         }
+    }
 
+    /**
+     * Sends a fully built request to the server and blocks for the response. This is
+     * the only place the client touches the network, subclasses override it to record
+     * or replay the exchanges with the server
+     *
+     * @param request request with its URI, headers and authentication info set
+     * @return response of the server
+     * @throws IOException indicates error in underlying network state or operation
+     */
+    protected HttpResponse execute(HttpRequestBase request) throws IOException {
+        return transport.execute(request);
     }
 
     /**
-     * Converts an input stream from an HTTP response to a string, while handling
-     * and content encoding.
-     * <p/>
-     * <p>This is appropriate for REST responses as the size of the body should be
-     * manageable. If large amounts of data are needed, the client should use whatever
-     * the API implements for paging.</p>
+     * Adds an executed request to the statistics
      *
-     * @param instream stream from the response entity
-     * @param encoding encoding type for the input stream
-     * @return string containing the http response
-     * @throws IOException indicates that there is an issue reading from the underlying
-     *                     InputStream in the response entity
+     * @param sent       number of bytes sent
+     * @param received   number of bytes received
+     * @param decoded    number of bytes received, once decoded
+     * @param startNanos time the request started, from System.nanoTime
      */
-    private String contentToString(InputStream instream, ContentEncoding encoding) throws IOException {
+    private synchronized void recordRequest(long sent, long received, long decoded, long startNanos) {
+        numRequests++;
+        bytesSent += sent;
+        bytesReceived += received;
+        bytesDecoded += decoded;
+        requestNanos += System.nanoTime() - startNanos;
+    }
 
-        /**
-         * Create a buffered reader that wraps the appropriate input stream for
-         * the encoding type
-         */
-        BufferedReader reader;
+    /**
+     * Wraps the stream of a response body in a decoder for its content encoding
+     *
+     * @param instream stream from the response entity
+     * @param encoding content encoding of the body
+     * @return stream of the decoded body
+     * @throws IOException indicates that the encoding is not supported, or an issue
+     *                     reading from the underlying InputStream in the response entity
+     */
+    private static InputStream decodeContent(InputStream instream, ContentEncoding encoding) throws IOException {
         switch (encoding) {
-
             case GZIP:
-                reader = new BufferedReader(
-                        new InputStreamReader(
-                                new GZIPInputStream(instream))
-                );
-                break;
+                return new GZIPInputStream(instream);
+
+            case DEFLATE:
+                // Deflate is meant to be in the zlib format, some servers send the raw
+                //  deflate data instead, they are told apart by the zlib header
+                PushbackInputStream pushback = new PushbackInputStream(instream, 2);
+                byte[] header = new byte[2];
+                int length = 0;
+                int n;
+                while (length < header.length && (n = pushback.read(header, length, header.length - length)) >= 0)
+                    length += n;
+                pushback.unread(header, 0, length);
+                boolean zlib = length == 2 && (header[0] & 0x0f) == 8
+                        && (((header[0] & 0xff) << 8) | (header[1] & 0xff)) % 31 == 0;
+                return new InflatingInputStream(pushback, new Inflater(!zlib));
 
             case NONE:
-                reader = new BufferedReader(
-                        new InputStreamReader(instream));
-                break;
+                return instream;
 
             default:
-                throw new ClientProtocolException(
-                        "Invalid Content Encoding '" + encoding.toMime() + "'received in response");
-        }
-
-        try {
-            StringBuilder builder = new StringBuilder();
-            String line;
-
-            while ((line = reader.readLine()) != null) {
-                builder.append(line).append("\n");
-            }
-            return builder.toString();
-        } finally {
-            try {
-                instream.close();
-            } catch (IOException e) {
-                Log.e(TAG, e.toString());
-            }
+                throw new ClientProtocolException("Unsupported Content Encoding received in response");
         }
     }
 }
@@ -0,0 +1,54 @@
+package com.redpantssoft.cloudtodolist.client;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.client.DefaultHttpClient;
+
+import java.io.IOException;
+
+/**
+ * Moves the requests of an HttpRestClient over the network. The client builds the
+ * requests, sets their bodies and authentication info, replays them after a login and
+ * keeps the statistics, the transport only sends them and returns the responses, so
+ * HTTP stacks can be swapped, and compared, without touching the client.
+ * <p/>
+ * <p>Requests and responses are the org.apache.http types whatever the stack, the body of
+ * a response is streamed from its entity and consuming it frees the connection for
+ * another request. Cookies are kept in the cookie store of getHttpClient, the client the
+ * authenticators log in with, so the session of a login is sent with every request.</p>
+ */
+public interface HttpTransport {
+
+    /**
+     * Sends a request to the server and blocks for the response
+     *
+     * @param request request with an absolute URI, its headers and body set
+     * @return response of the server, redirects are returned rather than followed
+     * @throws IOException indicates error in underlying network state or operation
+     */
+    HttpResponse execute(HttpRequestBase request) throws IOException;
+
+    /**
+     * @return http client the authenticators log in with, its cookie store holds the
+     *         cookies of this transport
+     */
+    DefaultHttpClient getHttpClient();
+
+    /**
+     * Closes the kept alive connections that expired, or that have been idle for longer
+     * than the given time
+     *
+     * @param idleTime idle time after which a connection is closed, in milliseconds
+     */
+    void closeIdleConnections(long idleTime);
+
+    /**
+     * @return snapshot of the connections of this transport
+     */
+    HttpRestClient.PoolStats getPoolStats();
+
+    /**
+     * Closes all the connections, a request in progress fails with a network error
+     */
+    void shutdown();
+}
@@ -0,0 +1,99 @@
+package com.redpantssoft.cloudtodolist.client;
+
+import android.content.Context;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * HttpRestClient that records every exchange with the server in an ExchangeLog.
+ * The request and response bodies are buffered so they can be both recorded and
+ * sent or returned to the caller, this is meant for capturing the traffic of a sync
+ * for the replay benchmark, not for regular use.
+ */
+public class RecordingHttpRestClient extends HttpRestClient {
+
+    // Log of the exchanges executed by this client
+    private final ExchangeLog log;
+
+    /**
+     * Constructor
+     *
+     * @param authority service authority string
+     * @param useHttps  flag indicating whether to use secure https over http
+     * @param log       log the exchanges are appended to
+     */
+    public RecordingHttpRestClient(String authority, boolean useHttps, Context context, ExchangeLog log) {
+        super(authority, useHttps, context);
+        this.log = log;
+    }
+
+    /**
+     * @return log of the exchanges executed by this client
+     */
+    public ExchangeLog getLog() {
+        return log;
+    }
+
+    /**
+     * @param uri request URI
+     * @return target of the request, as identified in an ExchangeLog
+     */
+    static String targetOf(URI uri) {
+        String query = uri.getRawQuery();
+        return uri.getRawPath() + (query != null ? "?" + query : "");
+    }
+
+    @Override
+    protected HttpResponse execute(HttpRequestBase request) throws IOException {
+        // Read the body of the request, as it will be sent. A body that can't be read
+        //  twice is buffered and sent from the buffer
+        byte[] requestBody = new byte[0];
+        Header requestContentEncoding = null;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity requestEntity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (requestEntity != null) {
+                requestBody = EntityUtils.toByteArray(requestEntity);
+                requestContentEncoding = requestEntity.getContentEncoding();
+                if (!requestEntity.isRepeatable()) {
+                    ByteArrayEntity buffered = new ByteArrayEntity(requestBody);
+                    buffered.setContentType(requestEntity.getContentType());
+                    buffered.setContentEncoding(requestContentEncoding);
+                    ((HttpEntityEnclosingRequest) request).setEntity(buffered);
+                }
+            }
+        }
+
+        long start = System.nanoTime();
+        HttpResponse response = super.execute(request);
+
+        HttpEntity entity = response.getEntity();
+        byte[] body = (entity != null ? EntityUtils.toByteArray(entity) : new byte[0]);
+        long elapsedTime = (System.nanoTime() - start) / 1000000;
+
+        Header contentType = (entity != null ? entity.getContentType() : null);
+        Header contentEncoding = (entity != null ? entity.getContentEncoding() : null);
+        log.add(new ExchangeLog.Exchange(request.getMethod(), targetOf(request.getURI()),
+                requestContentEncoding != null ? requestContentEncoding.getValue() : null, requestBody,
+                response.getStatusLine().getStatusCode(),
+                response.getStatusLine().getReasonPhrase(),
+                contentType != null ? contentType.getValue() : null,
+                contentEncoding != null ? contentEncoding.getValue() : null,
+                body, elapsedTime));
+
+        // Hand the buffered body back to the caller
+        ByteArrayEntity buffered = new ByteArrayEntity(body);
+        buffered.setContentType(contentType);
+        buffered.setContentEncoding(contentEncoding);
+        response.setEntity(buffered);
+        return response;
+    }
+}
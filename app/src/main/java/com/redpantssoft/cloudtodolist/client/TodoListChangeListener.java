@@ -0,0 +1,215 @@
+package com.redpantssoft.cloudtodolist.client;
+
+import android.util.Log;
+
+import org.apache.http.auth.AuthenticationException;
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+/**
+ * Listens for change hints from the cloudtodolist service on a background thread,
+ * by long polling the change hints resource. Each hint carries the cursor of the most
+ * recent change on the server, the callback is only notified when that cursor is newer
+ * than the cursor the local data is in sync with, so a sync is only requested when
+ * there is something to download.
+ * <p/>
+ * <p>Errors are retried with a doubling delay. If the server does not support change
+ * hints, or the credentials are rejected, the listener stops and the application falls
+ * back to periodic syncs.</p>
+ * <p/>
+ * <p>The HttpRestClient should be dedicated to the listener and have a socket timeout
+ * longer than the poll timeout. Closing it after stop aborts a poll in progress.</p>
+ */
+public class TodoListChangeListener implements Runnable {
+
+    // Log Tag
+    private static final String TAG = "TodoListChangeListener";
+
+    // Number of seconds the server is asked to hold a poll open
+    public static final int DEFAULT_POLL_TIMEOUT = 60;
+
+    // Initial and maximum delay before retrying a failed poll, in milliseconds
+    private static final long BASE_RETRY_DELAY = 1000;
+    private static final long MAX_RETRY_DELAY = 5 * 60 * 1000;
+
+    /**
+     * Interface used by the listener to interact with the local data
+     */
+    public interface Callback {
+        /**
+         * @return cursor of the remote data the local data is in sync with
+         */
+        double getSyncCursor();
+
+        /**
+         * Called on the listener thread when the server has changes newer than
+         * the sync cursor
+         *
+         * @param cursor cursor of the most recent change on the server
+         */
+        void onRemoteChange(double cursor);
+    }
+
+    // Client to perform the polls with
+    private final HttpRestClient httpRestClient;
+
+    // Optional authenticator, the login is performed on the listener thread
+    private final HttpRestAuthenticator authenticator;
+
+    // Receiver of the change notifications
+    private final Callback callback;
+
+    // Number of seconds the server is asked to hold a poll open
+    private final int pollTimeout;
+
+    // Thread running the poll loop
+    private Thread thread;
+
+    // Flag indicating that the listener was asked to stop
+    private volatile boolean stopped = false;
+
+    // Statistics, since the listener was started
+    private volatile long numPolls = 0;
+    private volatile long numHints = 0;
+    private volatile long numErrors = 0;
+
+    /**
+     * Constructor
+     *
+     * @param httpRestClient client to perform the polls with
+     * @param authenticator  authenticator to login with before polling, or null
+     * @param callback       receiver of the change notifications
+     * @param pollTimeout    number of seconds the server is asked to hold a poll open
+     */
+    public TodoListChangeListener(HttpRestClient httpRestClient, HttpRestAuthenticator authenticator,
+                                  Callback callback, int pollTimeout) {
+        this.httpRestClient = httpRestClient;
+        this.authenticator = authenticator;
+        this.callback = callback;
+        this.pollTimeout = pollTimeout;
+    }
+
+    /**
+     * Starts listening on a new background thread
+     */
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        stopped = false;
+        thread = new Thread(this, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Asks the listener to stop. A poll in progress is only aborted once the
+     * HttpRestClient is closed.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * @return true if the listener was stopped, or gave up because change hints are not available
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * @return number of polls completed
+     */
+    public long getNumPolls() {
+        return numPolls;
+    }
+
+    /**
+     * @return number of change hints passed to the callback
+     */
+    public long getNumHints() {
+        return numHints;
+    }
+
+    /**
+     * @return number of failed polls
+     */
+    public long getNumErrors() {
+        return numErrors;
+    }
+
+    /**
+     * Poll loop, runs until stopped or until the server rejects the polls
+     */
+    @Override
+    public void run() {
+        long retryDelay = BASE_RETRY_DELAY;
+        boolean loggedIn = (authenticator == null);
+
+        // Cursor of the most recent hint, polls ask for changes after it so that a
+        //  sync in progress doesn't cause the same hint to be delivered again
+        double hintCursor = 0;
+
+        TodoListRestClient client = new TodoListRestClient(httpRestClient);
+
+        while (!stopped) {
+            try {
+                if (!loggedIn) {
+                    httpRestClient.setAuthenticator(authenticator);
+                    loggedIn = true;
+                }
+
+                double cursor = Math.max(hintCursor, callback.getSyncCursor());
+                TodoListRestClient.ChangeHintResponse response = client.waitForChanges(cursor, pollTimeout);
+                int status = response.getResponse().getStatusCode();
+
+                if (response.getResponse().succeeded()) {
+                    numPolls++;
+                    retryDelay = BASE_RETRY_DELAY;
+                    if (response.isChanged() && response.getCursor() > cursor && !stopped) {
+                        hintCursor = response.getCursor();
+                        numHints++;
+                        callback.onRemoteChange(hintCursor);
+                    }
+                    continue;
+                } else if (status < TodoListRestClient.Response.FAILED_SERVER_ERROR) {
+                    // The server does not support change hints, or rejected the request
+                    Log.w(TAG, "Change hints not available: " + status);
+                    stopped = true;
+                    break;
+                }
+                numErrors++;
+
+            } catch (AuthenticationException e) {
+                Log.e(TAG, "Authentication Error: " + e.getMessage());
+                stopped = true;
+                break;
+            } catch (IOException e) {
+                if (stopped)
+                    break;
+                Log.w(TAG, "Network Error: " + e.getMessage());
+                numErrors++;
+            } catch (JSONException e) {
+                Log.e(TAG, "Invalid change hint: " + e.getMessage());
+                numErrors++;
+            } catch (URISyntaxException e) {
+                Log.e(TAG, "Invalid request: " + e.getMessage());
+                stopped = true;
+                break;
+            }
+
+            try {
+                Thread.sleep(retryDelay);
+            } catch (InterruptedException e) {
+                break;
+            }
+            retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+        }
+        Log.d(TAG, "Stopped, polls=" + numPolls + " hints=" + numHints + " errors=" + numErrors);
+    }
+}
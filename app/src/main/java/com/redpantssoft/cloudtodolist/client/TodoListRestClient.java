@@ -10,8 +10,12 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 
@@ -51,12 +55,18 @@ import java.util.List;
  * ...
  * ]
  * }
+ * NOTE: Responses may be compressed, with a 'Content-Encoding' of gzip or deflate, when
+ * the 'Accept-Encoding' of the request allows it, as it does by default
  * <p/>
  * Status Codes:
  * 200(ok) - request was successful
  * 201(created) - new entry as been created
- * 400(bad request) - invalid query string
+ * 302(found) - redirect to the login page, the session is not valid
+ * 400(bad request) - invalid query string or body
+ * 401(unauthorized) - the session is not valid
  * 410(gone) - entry does not exist
+ * 415(unsupported media type) - the content encoding of the body is not accepted
+ * 5xx(server error) - service is unavailable, requests should be retried later
  * <p/>
  * <p/>
  * URIs:
@@ -67,12 +77,32 @@ import java.util.List;
  * NOTE: Omitting the id parameter will retrieve all entries
  * NOTE: When a modified flag is used, deleted entries may be returned with a
  * deleted flag=true
+ * Query Parameters = after,limit (e.g. '?after=200;limit=100')
+ * NOTE: Retrieves a page of at most limit entries with an id greater than after,
+ * ordered by id. A page with fewer than limit entries is the last page. Servers
+ * that don't support pages may respond with a 400 or ignore the parameters
+ * Query Parameters = fields (e.g. '?after=200;limit=100;fields=summary')
+ * NOTE: With fields=summary, the entries carry a notes_hash, the hex MD5 of the
+ * UTF-8 notes or "" when there are none, instead of the notes. The notes are
+ * retrieved with cloudtodolist/entries/<id>. Servers that don't support summaries
+ * ignore the parameter and return the notes
  * Status Codes - 200,400
  * <p/>
  * POST
  * Format - todolist_entry
- * Query Parameters = title,notes,complete (e.g. '?title=ENTRY' or '?title=ENTRY;notes=NOTES')
- * Status Codes - 201,400
+ * Body = todolist_entry object with any of title,notes,complete, as application/json
+ * (e.g. '{"title": "ENTRY", "notes": "NOTES"}')
+ * NOTE: The body may be sent with 'Content-Encoding: gzip'. A server that doesn't
+ * accept compressed bodies responds with a 415, and the request is re-sent uncompressed
+ * Query Parameters = title,notes,complete (e.g. '?title=ENTRY;notes=NOTES')
+ * NOTE: Servers that predate bodies take the fields as query parameters. A body
+ * refused with a 400 or a 415 is re-sent as query parameters, and once that
+ * succeeds the fields of later requests are sent that way
+ * Query Parameters = op_id (e.g. '?op_id=UUID')
+ * NOTE: A request repeated with the same op_id is applied once, the repeat returns
+ * the entry created by the first one. This makes it safe to re-send a request whose
+ * response was lost
+ * Status Codes - 201,400,415
  * <p/>
  * DELETE
  * Format - empty
@@ -86,12 +116,50 @@ import java.util.List;
  * <p/>
  * PUT
  * Format - todolist_entry
- * Query Parameters = title,notes,complete (e.g. '?title=ENTRY' or '?title=ENTRY;notes=NOTES')
- * Status Codes - 200,400,410
+ * Body = todolist_entry object with any of title,notes,complete, as for POST
+ * Query Parameters = op_id, as for POST
+ * Status Codes - 200,400,410,415
  * <p/>
  * DELETE
  * Format - empty
- * Status Codes - 200 </p>
+ * Status Codes - 200
+ * <p/>
+ * cloudtodolist/changes - change hints, for listening to changes instead of polling
+ * GET
+ * Format - change_hint object
+ * {
+ * "cursor": timestamp of the most recent change on the server
+ * "changed": flag indicating whether the cursor is newer than the requested one
+ * }
+ * Query Parameters = cursor,timeout (e.g. '?cursor=1317532850.83;timeout=60')
+ * NOTE: The request is held open until there is a change newer than the cursor,
+ * or until the timeout, in seconds, expires. The cursor uses the same time base
+ * as the todolist_entry array timestamp.
+ * Status Codes - 200,400
+ * <p/>
+ * cloudtodolist/digest - digests of ranges of entry ids, for reconciling a list
+ * that fell out of the incremental sync window without downloading all of it
+ * GET
+ * Format - range_digest array
+ * {
+ * timestamp: timestamp to be used in a get with a modified time
+ * ranges:
+ * [
+ * {
+ * "after": the range covers the entries with an id greater than after,
+ * "upto": and less than or equal to upto,
+ * "count": number of entries in the range,
+ * "digest": hex MD5 of "id:modified\n" for each entry in the range, by id,
+ * with modified in whole milliseconds
+ * },
+ * ...
+ * ]
+ * }
+ * Query Parameters = after,upto,buckets (e.g. '?after=0;upto=5000;buckets=16')
+ * NOTE: The range is split in at most buckets ranges of equal width, in id order.
+ * Deleted entries are not included. Omitting upto covers the entries up to the
+ * greatest id on the server
+ * Status Codes - 200,400 </p>
  */
 public final class TodoListRestClient {
 
@@ -101,6 +169,12 @@ public final class TodoListRestClient {
     // URL of the cloudtodolist entries resource
     private static final String ENTRIES_PATH = "/todolist/entries";
 
+    // URL of the cloudtodolist change hints resource
+    private static final String CHANGES_PATH = "/todolist/changes";
+
+    // URL of the cloudtodolist range digests resource
+    private static final String DIGEST_PATH = "/todolist/digest";
+
     /**
      * Fields defined in the response message types
      */
@@ -111,11 +185,99 @@ public final class TodoListRestClient {
     public static final String ENTRY_DELETED = "deleted";
     public static final String ENTRY_CREATED = "created";
     public static final String ENTRY_MODIFIED = "modified";
+    public static final String ENTRY_NOTES_HASH = "notes_hash";
 
+    /**
+     * Query parameters of the entry pages
+     */
+    private static final String ENTRIES_AFTER = "after";
+    private static final String ENTRIES_LIMIT = "limit";
+
+    /**
+     * Query parameter and value requesting entries without their notes
+     */
+    private static final String ENTRIES_FIELDS = "fields";
+    private static final String FIELDS_SUMMARY = "summary";
+
+    /**
+     * Query parameter identifying an operation, for the server to apply it once
+     */
+    private static final String OPERATION_ID = "op_id";
+
+    // Number of times a request with an operation id is re-sent after a network error
+    private static final int MAX_RETRIES = 2;
+
+    /**
+     * Query parameters of the change hints resource
+     */
+    private static final String CHANGES_CURSOR = "cursor";
+    private static final String CHANGES_TIMEOUT = "timeout";
+
+    /**
+     * Query parameters of the range digests resource
+     */
+    private static final String DIGEST_AFTER = "after";
+    private static final String DIGEST_UPTO = "upto";
+    private static final String DIGEST_BUCKETS = "buckets";
 
     // Instance of an HttpRestClient to make API requests
     private final HttpRestClient client;
 
+    // Flag indicating whether lists of entries are requested without their notes
+    private boolean summary = false;
+
+    // Time spent parsing entry lists, in nanoseconds
+    private volatile long parseNanos = 0;
+
+    /**
+     * Response of a get whose body was parsed as it was read, it is not kept as the
+     * content of the response
+     */
+    private static class ParsedResponse {
+        // Response, with the reason phrase as its content if it failed
+        final HttpRestClient.Response response;
+        // JSON object of the body, or null if the request failed
+        final JSONObject object;
+
+        ParsedResponse(HttpRestClient.Response response, JSONObject object) {
+            this.response = response;
+            this.object = object;
+        }
+    }
+
+    /**
+     * Handler parsing the JSON object of a successful response straight from its body,
+     * read in a single buffer in its charset
+     */
+    private class JsonResponseHandler implements HttpRestClient.ResponseHandler<ParsedResponse> {
+        // Flag indicating whether the parse time is added to parseNanos
+        private final boolean timed;
+
+        JsonResponseHandler(boolean timed) {
+            this.timed = timed;
+        }
+
+        @Override
+        public ParsedResponse handleResponse(HttpRestClient.ResponseBody body)
+                throws IOException, JSONException {
+            if (!body.succeeded())
+                return new ParsedResponse(body.toResponse(body.getReasonPhrase()), null);
+
+            String json = body.readString();
+            long start = System.nanoTime();
+            try {
+                return new ParsedResponse(body.toResponse(null), new JSONObject(json));
+            } finally {
+                if (timed)
+                    parseNanos += System.nanoTime() - start;
+            }
+        }
+    }
+
+    // Handlers of the entry lists, whose parse time is tracked, and of the other objects
+    private final JsonResponseHandler entryListHandler = new JsonResponseHandler(true);
+    private final JsonResponseHandler objectHandler = new JsonResponseHandler(false);
+
     /**
      * Base class for a TodoList API response. The class
      * wraps an HttpRestClient response and defines the expected
@@ -127,8 +289,14 @@ public final class TodoListRestClient {
          */
         public static final int SUCCESS_OK = 200;
         public static final int SUCCESS_ADDED = 201;
+        public static final int FAILED_LOGIN_REQUIRED = 302;
         public static final int FAILED_BAD_REQUEST = 400;
+        public static final int FAILED_UNAUTHORIZED = 401;
+        public static final int FAILED_NOT_FOUND = 404;
         public static final int FAILED_INVALID_RESOURCE = 410;
+        public static final int FAILED_UNSUPPORTED_MEDIA_TYPE = 415;
+        public static final int FAILED_SERVER_ERROR = 500;
+        public static final int FAILED_NOT_IMPLEMENTED = 501;
 
         // Instance of a HttpRestClient response
         private final HttpRestClient.Response response;
@@ -234,6 +402,235 @@ public final class TodoListRestClient {
         }
     }
 
+    /**
+     * Encapsulates a change hint from a TodoList API request. A change hint
+     * indicates whether the list changed after a specified cursor, and carries
+     * the cursor of the most recent change.
+     */
+    public class ChangeHintResponse extends Response {
+
+        // Expected response values
+        private static final String CHANGE_HINT_CURSOR = "cursor";
+        private static final String CHANGE_HINT_CHANGED = "changed";
+
+        // Cursor of the most recent change
+        private final double cursor;
+
+        // Flag indicating whether the list changed after the requested cursor
+        private final boolean changed;
+
+        /**
+         * Constructor  - parses the change hint object
+         *
+         * @param response   HttpRestClient.response
+         * @param changeHint change hint as a JSONObject
+         * @throws JSONException indicates that the response is invalid or
+         *                       the schema was unexpected
+         */
+        public ChangeHintResponse(HttpRestClient.Response response, JSONObject changeHint)
+                throws JSONException {
+            super(response);
+            if (changeHint != null) {
+                this.cursor = changeHint.getDouble(CHANGE_HINT_CURSOR);
+                this.changed = changeHint.getBoolean(CHANGE_HINT_CHANGED);
+            } else {
+                this.cursor = 0;
+                this.changed = false;
+            }
+        }
+
+        /**
+         * @return cursor of the most recent change
+         */
+        public double getCursor() {
+            return cursor;
+        }
+
+        /**
+         * @return true if the list changed after the requested cursor
+         */
+        public boolean isChanged() {
+            return changed;
+        }
+    }
+
+    /**
+     * Digest of a range of entry ids, as defined for the range digests resource.
+     * Objects of this type are immutable
+     */
+    public static class DigestRange {
+        // Expected values of a range
+        private static final String RANGE_AFTER = "after";
+        private static final String RANGE_UPTO = "upto";
+        private static final String RANGE_COUNT = "count";
+        private static final String RANGE_DIGEST = "digest";
+
+        // The range covers the ids greater than after and up to upto
+        private final long after;
+        private final long upto;
+        // Number of entries in the range
+        private final int count;
+        // Digest of the entries in the range
+        private final String digest;
+
+        /**
+         * Constructor
+         *
+         * @param after  the range covers the ids greater than after
+         * @param upto   and less than or equal to upto
+         * @param count  number of entries in the range
+         * @param digest digest of the entries in the range
+         */
+        public DigestRange(long after, long upto, int count, String digest) {
+            this.after = after;
+            this.upto = upto;
+            this.count = count;
+            this.digest = digest;
+        }
+
+        /**
+         * Constructor - parses a range object
+         *
+         * @param range range as a JSONObject
+         * @throws JSONException indicates that the range is invalid
+         */
+        DigestRange(JSONObject range) throws JSONException {
+            this(range.getLong(RANGE_AFTER), range.getLong(RANGE_UPTO),
+                    range.getInt(RANGE_COUNT), range.getString(RANGE_DIGEST));
+        }
+
+        /**
+         * @return range as a JSONObject
+         * @throws JSONException indicates that the object could not be built
+         */
+        public JSONObject toJson() throws JSONException {
+            JSONObject range = new JSONObject();
+            range.put(RANGE_AFTER, after);
+            range.put(RANGE_UPTO, upto);
+            range.put(RANGE_COUNT, count);
+            range.put(RANGE_DIGEST, digest);
+            return range;
+        }
+
+        public long getAfter() {
+            return after;
+        }
+
+        public long getUpto() {
+            return upto;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        /**
+         * @param other digest of the same range
+         * @return true if both ranges hold the same entries
+         */
+        public boolean matches(DigestRange other) {
+            return count == other.count && digest.equalsIgnoreCase(other.digest);
+        }
+    }
+
+    /**
+     * Computes the digest of a range of entries, the entries must be added in id order
+     */
+    public static class RangeDigester {
+        private final MessageDigest md5;
+        private int count = 0;
+
+        public RangeDigester() {
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Adds an entry to the range
+         *
+         * @param id       id of the entry
+         * @param modified modified time of the entry, in milliseconds
+         */
+        public void add(long id, long modified) {
+            String line = id + ":" + modified + "\n";
+            for (int i = 0; i < line.length(); i++)
+                md5.update((byte) line.charAt(i));
+            count++;
+        }
+
+        /**
+         * @param after the range covers the ids greater than after
+         * @param upto  and less than or equal to upto
+         * @return digest of the entries added so far
+         */
+        public DigestRange toRange(long after, long upto) {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : md5.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return new DigestRange(after, upto, count, hex.toString());
+        }
+    }
+
+    /**
+     * Encapsulates the range digests from a TodoList API request
+     */
+    public class DigestResponse extends Response {
+
+        // Expected response values
+        private static final String DIGEST_TIMESTAMP = "timestamp";
+        private static final String DIGEST_RANGES = "ranges";
+
+        // Timestamp from the response
+        private final double timestamp;
+
+        // Digests of the ranges, in id order
+        private final List<DigestRange> ranges = new ArrayList<DigestRange>();
+
+        /**
+         * Constructor  - parses the range digest array
+         *
+         * @param response HttpRestClient.response
+         * @param digests  range digest array as a JSONObject
+         * @throws JSONException indicates that the response is invalid or
+         *                       the schema was unexpected
+         */
+        public DigestResponse(HttpRestClient.Response response, JSONObject digests)
+                throws JSONException {
+            super(response);
+            if (digests != null) {
+                this.timestamp = digests.getDouble(DIGEST_TIMESTAMP);
+                JSONArray rangeArray = digests.getJSONArray(DIGEST_RANGES);
+                for (int idx = 0; idx < rangeArray.length(); idx++)
+                    this.ranges.add(new DigestRange(rangeArray.getJSONObject(idx)));
+            } else {
+                this.timestamp = 0;
+            }
+        }
+
+        /**
+         * @return timestamp from the response
+         */
+        public double getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return digests of the ranges, in id order
+         */
+        public List<DigestRange> getRanges() {
+            return Collections.unmodifiableList(ranges);
+        }
+    }
+
     /**
      * Constructor
      *
@@ -241,34 +638,189 @@ public final class TodoListRestClient {
      */
     public TodoListRestClient(HttpRestClient client) {
         this.client = client;
+        // Only the lists of all the entries and the single entries are cached, the pages,
+        //  updates, change hints and digests are rarely requested twice
+        client.setUncachedParameters(ENTRY_MODIFIED, ENTRIES_AFTER, CHANGES_CURSOR, DIGEST_AFTER);
+    }
+
+    /**
+     * Sets whether lists of entries are requested as summaries, without their notes. The
+     * entries then carry a notes_hash, and the notes are retrieved with getEntry
+     *
+     * @param summary flag indicating whether to request summaries
+     */
+    public void setSummary(boolean summary) {
+        this.summary = summary;
+    }
+
+    /**
+     * @param notes notes of an entry, or null
+     * @return hash of the notes, as sent in a summary, "" if there are no notes
+     */
+    public static String notesHash(String notes) {
+        if (notes == null || notes.length() == 0)
+            return "";
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("MD5").digest(notes.getBytes("UTF-8"))) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds the fields parameter of a list of entries to a query string, when requesting summaries
+     *
+     * @param queryString query string of the request, or null
+     * @return query string to send
+     */
+    private String withFields(String queryString) {
+        if (!summary)
+            return queryString;
+        String fields = ENTRIES_FIELDS + "=" + FIELDS_SUMMARY;
+        return (queryString != null ? queryString + ";" + fields : fields);
+    }
+
+    /**
+     * Builds the JSON body of a post or put request from an array of keys correlating to
+     * keys in a ContentValues object. The complete flag is sent as a boolean, whether it
+     * is held as a boolean, a number or a string
+     *
+     * @param keys   keys from the ContentValues object to include in the body
+     * @param values ContentValues object containing the body values
+     * @return constructed body
+     * @throws JSONException indicates a value that can't be represented in JSON
+     */
+    private static JSONObject buildEntryBody(String[] keys, ContentValues values) throws JSONException {
+        JSONObject body = new JSONObject();
+        if (values != null) {
+            for (String key : keys) {
+                if (!values.containsKey(key))
+                    continue;
+                if (key.equals(ENTRY_COMPLETE)) {
+                    String complete = values.getAsString(key);
+                    body.put(key, "1".equals(complete) || "true".equalsIgnoreCase(complete));
+                } else {
+                    body.put(key, values.get(key));
+                }
+            }
+        }
+        return body;
     }
 
     /**
      * Builds a URI query string from an array of keys correlating to keys in
-     * a ContentValues object
+     * a ContentValues object, for a server that doesn't take the fields in a body
      *
      * @param keys   keys from the ContentValues object to include in the query string
      * @param values ContentValues object containing query string values
-     * @return constructed query string
+     * @return constructed query string, or null if there are no values
      */
     private static String buildQueryString(String[] keys, ContentValues values) {
-        String queryString = "";
+        StringBuilder queryString = new StringBuilder();
         if (values != null) {
             for (String key : keys) {
                 if (values.containsKey(key)) {
-                    if (!queryString.equals("")) queryString += ";";
-                    queryString += key + "=" + values.getAsString(key);
+                    if (queryString.length() > 0) queryString.append(';');
+                    queryString.append(key).append('=').append(values.getAsString(key));
                 }
             }
         }
-        return (queryString.equals("") ? null : queryString);
+        return (queryString.length() == 0 ? null : queryString.toString());
+    }
+
+    /**
+     * Sends a post or put request with the fields of an entry. The fields are sent in a
+     * JSON body, unless the server refused one before. A body refused with a 400 or a 415
+     * is re-sent as query parameters, and if that succeeds the server is taken to predate
+     * bodies.
+     *
+     * @param put         true for a put request, false for a post request
+     * @param uri         path of the request
+     * @param keys        keys from the ContentValues object to send
+     * @param values      ContentValues object containing the fields of the entry
+     * @param operationId id of the operation, or null to send the request once
+     * @return HttpRestClient.Response of the last attempt
+     * @throws URISyntaxException      indicates invalid syntax in the request's resulting URI
+     * @throws IOException             indicates error in underlying network state or operation,
+     *                                 in the last attempt
+     * @throws JSONException           indicates a value that can't be represented in JSON
+     * @throws AuthenticationException indicates an error with the Authentication process
+     */
+    private HttpRestClient.Response sendOperation(boolean put, String uri, String[] keys,
+                                                  ContentValues values, String operationId)
+            throws IOException, URISyntaxException, JSONException, AuthenticationException {
+
+        String operationQuery = (operationId != null ? OPERATION_ID + "=" + operationId : null);
+        String fieldsQuery = buildQueryString(keys, values);
+        if (fieldsQuery != null)
+            fieldsQuery = (operationQuery != null ? fieldsQuery + ";" + operationQuery : fieldsQuery);
+        else
+            fieldsQuery = operationQuery;
+
+        if (!client.areBodiesAccepted())
+            return sendOperation(put, uri, fieldsQuery, null, operationId);
+
+        HttpRestClient.Response response = sendOperation(put, uri, operationQuery,
+                buildEntryBody(keys, values), operationId);
+        int statusCode = response.getStatusCode();
+        if (statusCode != Response.FAILED_BAD_REQUEST && statusCode != Response.FAILED_UNSUPPORTED_MEDIA_TYPE)
+            return response;
+
+        // The refused request wasn't applied, it is re-sent with the same operation id
+        Log.w(TAG, "Body refused with " + statusCode + ", re-sending the fields as query parameters");
+        HttpRestClient.Response queryResponse = sendOperation(put, uri, fieldsQuery, null, operationId);
+        if (queryResponse.succeeded())
+            client.setBodiesAccepted(false);
+        return queryResponse;
+    }
+
+    /**
+     * Sends a post or put request, re-sending it after a network error when it carries
+     * an operation id. The server applies an operation once, so a request whose response
+     * was lost can be re-sent safely.
+     *
+     * @param put         true for a put request, false for a post request
+     * @param uri         path of the request
+     * @param queryString query string of the request, including the operation id
+     * @param body        JSON body of the request, or null to send the request without one
+     * @param operationId id of the operation, or null to send the request once
+     * @return HttpRestClient.Response of the last attempt
+     * @throws URISyntaxException      indicates invalid syntax in the request's resulting URI
+     * @throws IOException             indicates error in underlying network state or operation,
+     *                                 in the last attempt
+     * @throws AuthenticationException indicates an error with the Authentication process
+     */
+    private HttpRestClient.Response sendOperation(boolean put, String uri, String queryString,
+                                                  JSONObject body, String operationId)
+            throws IOException, URISyntaxException, AuthenticationException {
+
+        for (int attempt = 0; ; attempt++) {
+            try {
+                if (body == null)
+                    return put ? client.Put(uri, queryString, HttpRestClient.ContentType.JSON)
+                            : client.Post(uri, queryString, HttpRestClient.ContentType.JSON);
+                return put ? client.Put(uri, queryString, body, HttpRestClient.ContentType.JSON)
+                        : client.Post(uri, queryString, body, HttpRestClient.ContentType.JSON);
+            } catch (IOException e) {
+                if (operationId == null || attempt >= MAX_RETRIES)
+                    throw e;
+                Log.w(TAG, "Re-sending operation " + operationId + " after: " + e);
+            }
+        }
     }
 
     /**
      * Creates a new cloudtodolist entry via HTTP post request
      *
      * @param values ContantValues containing fields for the http post
-     *               query string to create a new entry
+     *               body to create a new entry
      * @return EntryObjectReponse encapsulating the newly created entry
      * @throws URISyntaxException      indicates invalid syntax in the request's resulting URI
      * @throws IOException             indicates error in underlying network state or operation
@@ -278,13 +830,33 @@ public final class TodoListRestClient {
      */
     public EntryObjectResponse postEntry(ContentValues values)
             throws IOException, URISyntaxException, JSONException, AuthenticationException {
+        return postEntry(values, null);
+    }
+
+    /**
+     * Creates a new cloudtodolist entry via HTTP post request, identified by an operation
+     * id. If the request fails with a network error, like a timeout, it is re-sent with
+     * the same operation id, the server creates the entry only once.
+     *
+     * @param values      ContantValues containing fields for the http post
+     *                    body to create a new entry
+     * @param operationId id of the operation, the same for every attempt to create the entry,
+     *                    or null to send the request once
+     * @return EntryObjectReponse encapsulating the newly created entry
+     * @throws URISyntaxException      indicates invalid syntax in the request's resulting URI
+     * @throws IOException             indicates error in underlying network state or operation
+     * @throws JSONException           indicates an error in the JSON response from the request, either
+     *                                 the JSON is invalid or the schema was not expected
+     * @throws AuthenticationException indicates an error with the Authentication process
+     */
+    public EntryObjectResponse postEntry(ContentValues values, String operationId)
+            throws IOException, URISyntaxException, JSONException, AuthenticationException {
 
         String uri = ENTRIES_PATH;
         String[] validParams = {ENTRY_TITLE, ENTRY_NOTES, ENTRY_COMPLETE};
 
-        HttpRestClient.Response response = client.Post(uri,
-                buildQueryString(validParams, values),
-                HttpRestClient.ContentType.JSON);
+        HttpRestClient.Response response = sendOperation(false, uri,
+                validParams, values, operationId);
         JSONObject resonseObject = null;
         if (response.succeeded()) {
             resonseObject = new JSONObject(response.getContent());
@@ -302,7 +874,7 @@ public final class TodoListRestClient {
      *
      * @param id     id of the cloudtodolist entry to update
      * @param values ContantValues containing fields for the http put
-     *               query string to update the entry
+     *               body to update the entry
      * @return EntryObjectReponse encapsulating the newly updated entry
      * @throws URISyntaxException      indicates invalid syntax in the request's resulting URI
      * @throws IOException             indicates error in underlying network state or operation
@@ -312,13 +884,33 @@ public final class TodoListRestClient {
      */
     public EntryObjectResponse putEntry(int id, ContentValues values)
             throws IOException, URISyntaxException, JSONException, AuthenticationException {
+        return putEntry(id, values, null);
+    }
+
+    /**
+     * Updates a  cloudtodolist entry via HTTP put request, identified by an operation id.
+     * If the request fails with a network error, like a timeout, it is re-sent with the
+     * same operation id, the server applies the update only once.
+     *
+     * @param id          id of the cloudtodolist entry to update
+     * @param values      ContantValues containing fields for the http put
+     *                    body to update the entry
+     * @param operationId id of the operation, or null to send the request once
+     * @return EntryObjectReponse encapsulating the newly updated entry
+     * @throws URISyntaxException      indicates invalid syntax in the request's resulting URI
+     * @throws IOException             indicates error in underlying network state or operation
+     * @throws JSONException           indicates an error in the JSON response from the request, either
+     *                                 the JSON is invalid or the schema was not expected
+     * @throws AuthenticationException indicates an error with the Authentication process
+     */
+    public EntryObjectResponse putEntry(int id, ContentValues values, String operationId)
+            throws IOException, URISyntaxException, JSONException, AuthenticationException {
 
         String uri = ENTRIES_PATH + "/" + id;
         String[] validParams = {ENTRY_TITLE, ENTRY_NOTES, ENTRY_COMPLETE};
 
-        HttpRestClient.Response response = client.Put(uri,
-                buildQueryString(validParams, values),
-                HttpRestClient.ContentType.JSON);
+        HttpRestClient.Response response = sendOperation(true, uri,
+                validParams, values, operationId);
         JSONObject responseObject = null;
         if (response.succeeded()) {
             responseObject = new JSONObject(response.getContent());
@@ -331,6 +923,39 @@ public final class TodoListRestClient {
         return new EntryObjectResponse(response, responseObject);
     }
 
+    /**
+     * Retrieves a single cloudtodolist entry, with its notes, via get request
+     *
+     * @param id id of the cloudtodolist entry to retrieve
+     * @return EntryObjectReponse encapsulating the entry
+     * @throws URISyntaxException      indicates invalid syntax in the request's resulting URI
+     * @throws IOException             indicates error in underlying network state or operation
+     * @throws JSONException           indicates an error in the JSON response from the request, either
+     *                                 the JSON is invalid or the schema was not expected
+     * @throws AuthenticationException indicates an error with the Authentication process
+     */
+    public EntryObjectResponse getEntry(int id)
+            throws IOException, URISyntaxException, JSONException, AuthenticationException {
+        String uri = ENTRIES_PATH + "/" + id;
+
+        ParsedResponse parsed = client.Get(uri, null, HttpRestClient.ContentType.JSON, objectHandler);
+        if (!parsed.response.succeeded())
+            Log.e(TAG, "get entry failed: " + parsed.response.getStatusCode() + "- " + parsed.response.getContent());
+
+        return new EntryObjectResponse(parsed.response, parsed.object);
+    }
+
+    /**
+     * Drops the cached responses of a cloudtodolist entry, so the next getEntry reaches
+     * the server
+     *
+     * @param id id of the cloudtodolist entry
+     * @throws URISyntaxException indicates invalid syntax in the resulting URI
+     */
+    public void invalidateEntry(int id) throws URISyntaxException {
+        client.invalidateCache(ENTRIES_PATH + "/" + id);
+    }
+
     /**
      * Deletes a cloudtodolist entry via HTTP delete request
      *
@@ -398,15 +1023,164 @@ public final class TodoListRestClient {
         String queryString = null;
         if (modified != null)
             queryString = String.format("%s=%f", ENTRY_MODIFIED, modified);
+        queryString = withFields(queryString);
 
-        HttpRestClient.Response response = client.Get(ENTRIES_PATH, queryString, HttpRestClient.ContentType.JSON);
-        if (response.succeeded()) {
-            EntryListResponse resp = new EntryListResponse(response, new JSONObject(response.getContent()));
+        ParsedResponse parsed = client.Get(ENTRIES_PATH, queryString, HttpRestClient.ContentType.JSON,
+                entryListHandler);
+        if (parsed.response.succeeded()) {
+            EntryListResponse resp = new EntryListResponse(parsed.response, parsed.object);
             Log.i(TAG, "getEntries retrieved " + resp.getEntryList().size() + " entries");
             return resp;
         } else {
-            Log.e(TAG, "getEntries failed: " + response.getStatusCode() + "- " + response.getContent());
+            Log.e(TAG, "getEntries failed: " + parsed.response.getStatusCode() + "- " + parsed.response.getContent());
+        }
+        return new EntryListResponse(parsed.response, null);
+    }
+
+    /**
+     * Parses the entry list of a successful response, keeping track of the time spent
+     *
+     * @param response HttpRestClient.response with an entry list
+     * @return EntryListResponse for the response
+     * @throws JSONException indicates that the response is invalid or
+     *                       the schema was unexpected
+     */
+    private EntryListResponse parseEntryList(HttpRestClient.Response response) throws JSONException {
+        long start = System.nanoTime();
+        try {
+            return new EntryListResponse(response, new JSONObject(response.getContent()));
+        } finally {
+            parseNanos += System.nanoTime() - start;
         }
-        return new EntryListResponse(response, null);
+    }
+
+    /**
+     * @return time spent parsing entry lists by this client, in milliseconds
+     */
+    public long getParseTime() {
+        return parseNanos / 1000000;
+    }
+
+    /**
+     * Retrieves a page of the list of cloudtodolist entries via a get request. The
+     * pages are ordered by entry id, so a download can be resumed after the last
+     * entry it received.
+     *
+     * @param afterId id of the last entry of the previous page, 0 for the first page
+     * @param limit   maximum number of entries in the page
+     * @return EntryListResponse representing the response of the get request
+     * @throws URISyntaxException      indicates invalid syntax in the request's resulting URI
+     * @throws IOException             indicates error in underlying network state or operation
+     * @throws JSONException           indicates an error in the JSON response from the request, either
+     *                                 the JSON is invalid or the schema was not expected
+     * @throws AuthenticationException indicates an error with the Authentication process
+     */
+    public EntryListResponse getEntries(long afterId, int limit)
+            throws IOException, URISyntaxException, JSONException, AuthenticationException {
+        return parseEntries(fetchEntries(afterId, limit));
+    }
+
+    /**
+     * Retrieves a page of the list of cloudtodolist entries, like getEntries, without
+     * parsing it. This lets a download parse a page on another thread while it retrieves
+     * the next one.
+     *
+     * @param afterId id of the last entry of the previous page, 0 for the first page
+     * @param limit   maximum number of entries in the page, 0 to retrieve all the entries
+     *                at once, from a server that doesn't support pages
+     * @return HttpRestClient.Response of the get request, to be passed to parseEntries
+     * @throws URISyntaxException      indicates invalid syntax in the request's resulting URI
+     * @throws IOException             indicates error in underlying network state or operation
+     * @throws AuthenticationException indicates an error with the Authentication process
+     */
+    public HttpRestClient.Response fetchEntries(long afterId, int limit)
+            throws IOException, URISyntaxException, AuthenticationException {
+
+        String queryString = null;
+        if (limit > 0)
+            queryString = String.format("%s=%d;%s=%d", ENTRIES_AFTER, afterId, ENTRIES_LIMIT, limit);
+        queryString = withFields(queryString);
+
+        HttpRestClient.Response response = client.Get(ENTRIES_PATH, queryString, HttpRestClient.ContentType.JSON);
+        if (!response.succeeded())
+            Log.e(TAG, "getEntries failed: " + response.getStatusCode() + "- " + response.getContent());
+        return response;
+    }
+
+    /**
+     * Parses a response retrieved by fetchEntries. This may be called on another thread
+     * than the one performing requests.
+     *
+     * @param response HttpRestClient.Response returned by fetchEntries
+     * @return EntryListResponse representing the response of the get request
+     * @throws JSONException indicates an error in the JSON response from the request, either
+     *                       the JSON is invalid or the schema was not expected
+     */
+    public EntryListResponse parseEntries(HttpRestClient.Response response) throws JSONException {
+        if (!response.succeeded())
+            return new EntryListResponse(response, null);
+
+        EntryListResponse resp = parseEntryList(response);
+        Log.i(TAG, "getEntries retrieved " + resp.getEntryList().size() + " entries");
+        return resp;
+    }
+
+    /**
+     * Waits for a change in the list of cloudtodolist entries via a long poll get request.
+     * The server holds the request open until there is a change newer than the cursor,
+     * or until the timeout expires, so the HttpRestClient needs a socket timeout
+     * longer than the requested timeout.
+     *
+     * @param cursor  cursor of the most recent change known to the client, normally the
+     *                timestamp of the last getEntries response
+     * @param timeout number of seconds the server should hold the request open
+     * @return ChangeHintResponse representing the response of the get request
+     * @throws URISyntaxException      indicates invalid syntax in the request's resulting URI
+     * @throws IOException             indicates error in underlying network state or operation
+     * @throws JSONException           indicates an error in the JSON response from the request, either
+     *                                 the JSON is invalid or the schema was not expected
+     * @throws AuthenticationException indicates an error with the Authentication process
+     */
+    public ChangeHintResponse waitForChanges(double cursor, int timeout)
+            throws IOException, URISyntaxException, JSONException, AuthenticationException {
+
+        // The cursor is sent at full precision, so that it compares equal on the server
+        String queryString = String.format("%s=%s;%s=%d",
+                CHANGES_CURSOR, Double.toString(cursor), CHANGES_TIMEOUT, timeout);
+
+        ParsedResponse parsed = client.Get(CHANGES_PATH, queryString, HttpRestClient.ContentType.JSON,
+                objectHandler);
+        if (!parsed.response.succeeded())
+            Log.e(TAG, "waitForChanges failed: " + parsed.response.getStatusCode() + "- " + parsed.response.getContent());
+        return new ChangeHintResponse(parsed.response, parsed.object);
+    }
+
+    /**
+     * Retrieves the digests of a range of entry ids, split in smaller ranges, via a
+     * get request. Comparing them with the digests of the local entries tells which
+     * ranges differ, so only those need to be downloaded.
+     *
+     * @param after   the range covers the ids greater than after
+     * @param upto    and less than or equal to upto, 0 for the greatest id on the server
+     * @param buckets maximum number of ranges to split the range in
+     * @return DigestResponse representing the response of the get request
+     * @throws URISyntaxException      indicates invalid syntax in the request's resulting URI
+     * @throws IOException             indicates error in underlying network state or operation
+     * @throws JSONException           indicates an error in the JSON response from the request, either
+     *                                 the JSON is invalid or the schema was not expected
+     * @throws AuthenticationException indicates an error with the Authentication process
+     */
+    public DigestResponse getDigest(long after, long upto, int buckets)
+            throws IOException, URISyntaxException, JSONException, AuthenticationException {
+
+        String queryString = String.format("%s=%d;%s=%d", DIGEST_AFTER, after, DIGEST_BUCKETS, buckets);
+        if (upto > 0)
+            queryString += String.format(";%s=%d", DIGEST_UPTO, upto);
+
+        ParsedResponse parsed = client.Get(DIGEST_PATH, queryString, HttpRestClient.ContentType.JSON,
+                objectHandler);
+        if (!parsed.response.succeeded())
+            Log.e(TAG, "getDigest failed: " + parsed.response.getStatusCode() + "- " + parsed.response.getContent());
+        return new DigestResponse(parsed.response, parsed.object);
     }
 }
@@ -0,0 +1,327 @@
+package com.redpantssoft.cloudtodolist.client;
+
+import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+import android.util.Log;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.cookie.CookieOrigin;
+import org.apache.http.cookie.CookieSpec;
+import org.apache.http.cookie.MalformedCookieException;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.cookie.BestMatchSpec;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Transport over HttpURLConnection, the HTTP stack Android recommends from Gingerbread
+ * on. Its connections are pooled and kept alive by the platform, process wide, so this
+ * transport can't tell which requests reused a connection, its pool statistics only
+ * count the requests and those in progress.
+ * <p/>
+ * <p>The cookies are kept in the store of a small Apache client, the one the
+ * authenticators log in with, and copied to and from each connection. Redirects are
+ * returned rather than followed, and the response body is asked for as sent, since
+ * HttpURLConnection would otherwise ask for gzip and decode it behind the client's back,
+ * and the client counts and decodes the bytes itself.</p>
+ */
+public class UrlConnectionHttpTransport implements HttpTransport {
+
+    // Log tag
+    private static final String TAG = "UrlConnectionHttpTransport";
+
+    // Header of the cookies sent by the server
+    private static final String SET_COOKIE_HEADER = "Set-Cookie";
+
+    // Header asking for a content encoding, and the value asking for none
+    private static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+    private static final String IDENTITY_ENCODING = "identity";
+
+    // Timeout for blocking socket reads, in milliseconds
+    private final int socketTimeout;
+
+    // Socket factory of the https connections, sharing a TLS session cache
+    private final SSLSocketFactory sslSocketFactory;
+
+    // Client the authenticators log in with, its cookie store holds the cookies
+    private final DefaultHttpClient loginClient;
+
+    // Connections of the requests in progress, and the number of requests executed
+    private final Set<HttpURLConnection> activeConnections = new HashSet<HttpURLConnection>();
+    private long numRequests = 0;
+    private boolean isShutdown = false;
+
+    /**
+     * Response body that gives the connection back once read to the end or closed
+     */
+    private class ConnectionInputStream extends FilterInputStream {
+        private final HttpURLConnection connection;
+
+        ConnectionInputStream(InputStream in, HttpURLConnection connection) {
+            super(in);
+            this.connection = connection;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0)
+                release(connection);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n < 0)
+                release(connection);
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                release(connection);
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param context       context of the caller, for the TLS session cache
+     * @param socketTimeout timeout for blocking socket reads, in milliseconds
+     */
+    public UrlConnectionHttpTransport(Context context, int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+        this.sslSocketFactory = SSLCertificateSocketFactory.getDefault(
+                HttpRestClient.SOCKET_OPERATION_TIMEOUT, new SSLSessionCache(context));
+
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, HttpRestClient.SOCKET_OPERATION_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, socketTimeout);
+        HttpClientParams.setRedirecting(params, false);
+        this.loginClient = new DefaultHttpClient(params);
+    }
+
+    @Override
+    public HttpResponse execute(HttpRequestBase request) throws IOException {
+        URI uri = request.getURI();
+        HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
+        if (connection instanceof HttpsURLConnection)
+            ((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+        connection.setConnectTimeout(HttpRestClient.SOCKET_OPERATION_TIMEOUT);
+        connection.setReadTimeout(socketTimeout);
+        connection.setInstanceFollowRedirects(false);
+        connection.setUseCaches(false);
+        connection.setRequestMethod(request.getMethod());
+
+        synchronized (this) {
+            if (isShutdown)
+                throw new IOException("Transport shut down");
+            activeConnections.add(connection);
+            numRequests++;
+        }
+
+        try {
+            // Copy the headers and the cookies of the request
+            for (Header header : request.getAllHeaders())
+                connection.addRequestProperty(header.getName(), header.getValue());
+            if (request.getFirstHeader(ACCEPT_ENCODING_HEADER) == null)
+                connection.setRequestProperty(ACCEPT_ENCODING_HEADER, IDENTITY_ENCODING);
+            addCookies(connection, uri);
+
+            // Stream the body, if any, with its length when it's known
+            HttpEntity requestEntity = null;
+            if (request instanceof HttpEntityEnclosingRequest)
+                requestEntity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (requestEntity != null) {
+                connection.setDoOutput(true);
+                if (requestEntity.getContentType() != null)
+                    connection.setRequestProperty(requestEntity.getContentType().getName(),
+                            requestEntity.getContentType().getValue());
+                if (requestEntity.getContentEncoding() != null)
+                    connection.setRequestProperty(requestEntity.getContentEncoding().getName(),
+                            requestEntity.getContentEncoding().getValue());
+                long length = requestEntity.getContentLength();
+                if (!requestEntity.isChunked() && length >= 0 && length <= Integer.MAX_VALUE)
+                    connection.setFixedLengthStreamingMode((int) length);
+                else
+                    connection.setChunkedStreamingMode(0);
+                OutputStream out = connection.getOutputStream();
+                try {
+                    requestEntity.writeTo(out);
+                } finally {
+                    out.close();
+                }
+            }
+
+            int statusCode = connection.getResponseCode();
+            if (statusCode < 0)
+                throw new IOException("Invalid response from " + uri.getAuthority());
+
+            // Build the response from the status line and the headers
+            HttpResponse response = new BasicHttpResponse(new BasicStatusLine(
+                    HttpVersion.HTTP_1_1, statusCode, connection.getResponseMessage()));
+            for (Map.Entry<String, List<String>> field : connection.getHeaderFields().entrySet()) {
+                // The status line comes with a null name
+                if (field.getKey() == null)
+                    continue;
+                for (String value : field.getValue())
+                    response.addHeader(field.getKey(), value);
+            }
+            saveCookies(response, uri);
+
+            // Error bodies come from the error stream, which is null when there is none
+            InputStream content = (statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream());
+            BasicHttpEntity entity = new BasicHttpEntity();
+            if (content != null) {
+                entity.setContent(new ConnectionInputStream(content, connection));
+                entity.setContentLength(connection.getContentLength());
+            } else {
+                release(connection);
+                entity.setContent(new ByteArrayInputStream(new byte[0]));
+                entity.setContentLength(0);
+            }
+            entity.setContentType(response.getFirstHeader("Content-Type"));
+            entity.setContentEncoding(response.getFirstHeader("Content-Encoding"));
+            response.setEntity(entity);
+            return response;
+        } catch (IOException e) {
+            release(connection);
+            connection.disconnect();
+            throw e;
+        } catch (RuntimeException e) {
+            release(connection);
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Adds the stored cookies matching a request to its connection
+     *
+     * @param connection connection of the request
+     * @param uri        URI of the request
+     */
+    private void addCookies(HttpURLConnection connection, URI uri) {
+        CookieSpec cookieSpec = new BestMatchSpec();
+        CookieOrigin origin = cookieOrigin(uri);
+        Date now = new Date();
+        List<Cookie> matched = new ArrayList<Cookie>();
+        for (Cookie cookie : loginClient.getCookieStore().getCookies()) {
+            if (!cookie.isExpired(now) && cookieSpec.match(cookie, origin))
+                matched.add(cookie);
+        }
+        if (matched.isEmpty())
+            return;
+        for (Header header : cookieSpec.formatCookies(matched))
+            connection.addRequestProperty(header.getName(), header.getValue());
+    }
+
+    /**
+     * Stores the cookies set by a response
+     *
+     * @param response response of the server
+     * @param uri      URI of the request
+     */
+    private void saveCookies(HttpResponse response, URI uri) {
+        CookieSpec cookieSpec = new BestMatchSpec();
+        CookieOrigin origin = cookieOrigin(uri);
+        for (Header header : response.getHeaders(SET_COOKIE_HEADER)) {
+            try {
+                for (Cookie cookie : cookieSpec.parse(header, origin)) {
+                    cookieSpec.validate(cookie, origin);
+                    loginClient.getCookieStore().addCookie(cookie);
+                }
+            } catch (MalformedCookieException e) {
+                Log.w(TAG, "Cookie rejected: " + header.getValue(), e);
+            }
+        }
+    }
+
+    /**
+     * @param uri URI of a request
+     * @return origin of the request, to match cookies against
+     */
+    private static CookieOrigin cookieOrigin(URI uri) {
+        boolean secure = "https".equals(uri.getScheme());
+        int port = uri.getPort();
+        if (port < 0)
+            port = (secure ? 443 : 80);
+        String path = uri.getPath();
+        if (path == null || path.length() == 0)
+            path = "/";
+        return new CookieOrigin(uri.getHost(), port, path, secure);
+    }
+
+    /**
+     * Marks the request of a connection as done
+     *
+     * @param connection connection of the request
+     */
+    private synchronized void release(HttpURLConnection connection) {
+        activeConnections.remove(connection);
+    }
+
+    @Override
+    public DefaultHttpClient getHttpClient() {
+        return loginClient;
+    }
+
+    @Override
+    public void closeIdleConnections(long idleTime) {
+        // The platform closes the idle connections of its pool itself
+        loginClient.getConnectionManager().closeIdleConnections(idleTime, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized HttpRestClient.PoolStats getPoolStats() {
+        return new HttpRestClient.PoolStats(activeConnections.size(), 0, numRequests, 0);
+    }
+
+    @Override
+    public void shutdown() {
+        List<HttpURLConnection> connections;
+        synchronized (this) {
+            isShutdown = true;
+            connections = new ArrayList<HttpURLConnection>(activeConnections);
+            activeConnections.clear();
+        }
+        for (HttpURLConnection connection : connections)
+            connection.disconnect();
+        loginClient.getConnectionManager().shutdown();
+    }
+}
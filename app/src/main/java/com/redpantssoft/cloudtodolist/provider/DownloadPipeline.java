@@ -0,0 +1,402 @@
+package com.redpantssoft.cloudtodolist.provider;
+
+import android.content.ContentValues;
+import android.util.Log;
+
+import com.redpantssoft.cloudtodolist.client.HttpRestClient;
+import com.redpantssoft.cloudtodolist.client.TodoListRestClient;
+
+import org.apache.http.auth.AuthenticationException;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Downloads the pages of a full sync in three stages, each on its own thread: a fetch
+ * thread performs the requests and reads the responses, a parse thread decodes the JSON
+ * and converts the entries to ContentValues, and the caller, the single database writer,
+ * applies the pages it takes with next(). The stages are connected by bounded queues, so
+ * when the database falls behind, parsing and then fetching wait for it, and only a few
+ * pages are held in memory.
+ * <p/>
+ * <p>Pages are requested after the last entry id of the previous page, so a request can
+ * only be sent once the previous page is decoded. The parse thread hands the cursor back
+ * to the fetch thread as soon as it has decoded a page, before converting its entries,
+ * and the next request overlaps the conversion and the database writes of the page.</p>
+ * <p/>
+ * <p>The fetch thread is the only one using the HttpRestClient while the pipeline runs,
+ * it is also where the uploads waiting between pages are performed. When constructed
+ * without concurrency, the stages run on the caller's thread, one page at a time.</p>
+ */
+class DownloadPipeline {
+
+    // Log Tag
+    private static final String TAG = "DownloadPipeline";
+
+    // Number of pages each queue holds before the stage feeding it waits
+    static final int QUEUE_CAPACITY = 2;
+
+    // Cursor value telling the fetch thread there are no more pages
+    private static final long NO_MORE_PAGES = -1;
+
+    /**
+     * Page of entries moving through the pipeline. A page with a failure, a status other
+     * than SUCCESS_OK or budgetExhausted set is the last one.
+     */
+    static class Page {
+        // Entry id the page was requested after
+        final long afterId;
+        // Status code of the response, 0 if the page wasn't fetched
+        int statusCode = 0;
+        // Timestamp of the response
+        double timestamp = 0;
+        // Values of the entries in the page, in the order received
+        List<ContentValues> values = Collections.emptyList();
+        // Greatest entry id in the page, or afterId if it's empty
+        long lastId;
+        // Flag indicating whether this is the last page of the download
+        boolean last = false;
+        // Flag indicating whether the budget ran out before the page was fetched
+        boolean budgetExhausted = false;
+        // Time spent fetching and parsing the page, in milliseconds
+        long fetchTime = 0;
+        long parseTime = 0;
+
+        // Response to decode, released once parsed
+        private HttpRestClient.Response response;
+        // Exception or error thrown by a stage, rethrown by next
+        private Throwable failure;
+
+        private Page(long afterId) {
+            this.afterId = afterId;
+            this.lastId = afterId;
+        }
+    }
+
+    // Client performing the requests, only used by the fetch stage
+    private final TodoListRestClient client;
+
+    // Number of entries requested per page
+    private final int pageSize;
+
+    // Budget checked before each page after the first
+    private final SyncBudget budget;
+
+    // Run on the fetch thread before each page, with the pipeline's use of the client
+    private final Runnable beforeFetch;
+
+    // Flag indicating whether the stages run on their own threads
+    private final boolean concurrent;
+
+    // Pages fetched and not parsed yet, and parsed and not applied yet
+    private final BlockingQueue<Page> fetched = new ArrayBlockingQueue<Page>(QUEUE_CAPACITY);
+    private final BlockingQueue<Page> parsed = new ArrayBlockingQueue<Page>(QUEUE_CAPACITY);
+
+    // Cursors of the next pages, handed from the parse thread to the fetch thread
+    private final BlockingQueue<Long> cursors = new ArrayBlockingQueue<Long>(1);
+
+    private Thread fetchThread;
+    private Thread parseThread;
+
+    // Cursor of the next page when the stages run on the caller's thread
+    private long nextAfterId;
+    private boolean firstPage = true;
+    private boolean done = false;
+
+    /**
+     * Constructor
+     *
+     * @param client      client performing the requests
+     * @param pageSize    number of entries requested per page
+     * @param budget      budget checked before each page after the first
+     * @param beforeFetch run before each page is fetched, on the thread fetching it
+     * @param concurrent  flag indicating whether the stages run on their own threads
+     */
+    DownloadPipeline(TodoListRestClient client, int pageSize, SyncBudget budget,
+                     Runnable beforeFetch, boolean concurrent) {
+        this.client = client;
+        this.pageSize = pageSize;
+        this.budget = budget;
+        this.beforeFetch = beforeFetch;
+        this.concurrent = concurrent;
+    }
+
+    /**
+     * Starts the download
+     *
+     * @param afterId id of the entry to download the entries after, 0 for all of them
+     */
+    void start(final long afterId) {
+        nextAfterId = afterId;
+        if (!concurrent)
+            return;
+
+        fetchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runFetchStage(afterId);
+            }
+        }, TAG + "-fetch");
+        parseThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runParseStage();
+            }
+        }, TAG + "-parse");
+        fetchThread.start();
+        parseThread.start();
+    }
+
+    /**
+     * Takes the next page, waiting for it to be fetched and parsed. Must not be called
+     * after the last page.
+     *
+     * @return next page of the download
+     * @throws URISyntaxException      indicates invalid syntax in a request's resulting URI
+     * @throws IOException             indicates error in underlying network state or operation
+     * @throws JSONException           indicates an error in the JSON of a response
+     * @throws AuthenticationException indicates an error with the Authentication process
+     */
+    Page next() throws IOException, URISyntaxException, JSONException, AuthenticationException {
+        if (done)
+            throw new IllegalStateException("No more pages");
+
+        Page page;
+        try {
+            if (concurrent) {
+                page = parsed.take();
+            } else {
+                page = fetchPage(nextAfterId, firstPage);
+                firstPage = false;
+                if (page.failure == null && page.statusCode == TodoListRestClient.Response.SUCCESS_OK)
+                    parsePage(page);
+                nextAfterId = page.lastId;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a page");
+        }
+        done = isLastPage(page);
+
+        Throwable failure = page.failure;
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure instanceof URISyntaxException)
+            throw (URISyntaxException) failure;
+        if (failure instanceof JSONException)
+            throw (JSONException) failure;
+        if (failure instanceof AuthenticationException)
+            throw (AuthenticationException) failure;
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure instanceof Error)
+            throw (Error) failure;
+        return page;
+    }
+
+    /**
+     * Stops the stages and waits for them to finish, a request in progress is completed
+     * first. Must be called once the caller is done with the pipeline, whether or not it
+     * took the last page, so the client can be used again.
+     */
+    void close() {
+        if (!concurrent)
+            return;
+
+        fetchThread.interrupt();
+        parseThread.interrupt();
+        boolean interrupted = false;
+        for (Thread thread : new Thread[]{fetchThread, parseThread}) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Fetch stage, requests pages until the last one or a failure. Whatever it throws
+     * ends the download with a failed page, so the stages after it don't wait forever
+     *
+     * @param afterId id of the entry to download the entries after
+     */
+    private void runFetchStage(long afterId) {
+        boolean finished = false;
+        Throwable failure = null;
+        try {
+            boolean first = true;
+            while (true) {
+                Page page = fetchPage(afterId, first);
+                first = false;
+                fetched.put(page);
+                if (isLastPage(page)) {
+                    finished = true;
+                    return;
+                }
+
+                afterId = cursors.take();
+                if (afterId == NO_MORE_PAGES) {
+                    finished = true;
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed
+            finished = true;
+        } catch (Throwable e) {
+            Log.e(TAG, "Fetch stage failed", e);
+            failure = e;
+        } finally {
+            if (!finished)
+                putFailedPage(fetched, afterId, failure);
+        }
+    }
+
+    /**
+     * Parse stage, decodes the fetched pages and hands their cursors back to the fetch
+     * stage. Whatever it throws ends the download with a failed page, so the caller
+     * doesn't wait forever in next
+     */
+    private void runParseStage() {
+        boolean finished = false;
+        Throwable failure = null;
+        long afterId = 0;
+        try {
+            while (true) {
+                Page page = fetched.take();
+                afterId = page.afterId;
+                if (page.failure == null && page.statusCode == TodoListRestClient.Response.SUCCESS_OK)
+                    parsePage(page);
+                parsed.put(page);
+                if (isLastPage(page)) {
+                    finished = true;
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed
+            finished = true;
+        } catch (Throwable e) {
+            Log.e(TAG, "Parse stage failed", e);
+            failure = e;
+        } finally {
+            if (!finished) {
+                // The fetch stage may be waiting for the cursor of the failed page
+                cursors.offer(NO_MORE_PAGES);
+                putFailedPage(parsed, afterId, failure);
+            }
+        }
+    }
+
+    /**
+     * Hands the last page of a stage that failed to the next stage
+     *
+     * @param queue   queue of the next stage
+     * @param afterId entry id of the page the stage failed on
+     * @param failure what the stage threw, or null if it's unknown
+     */
+    private static void putFailedPage(BlockingQueue<Page> queue, long afterId, Throwable failure) {
+        Page page = new Page(afterId);
+        page.failure = (failure != null ? failure : new IOException("Download stage stopped"));
+        try {
+            queue.put(page);
+        } catch (InterruptedException e) {
+            // Closed, nobody is waiting for the page
+        }
+    }
+
+    /**
+     * Fetches a page, the failures are recorded in the page
+     *
+     * @param afterId id of the entry to fetch the entries after
+     * @param first   flag indicating whether this is the first page fetched by this pipeline
+     * @return fetched page
+     */
+    private Page fetchPage(long afterId, boolean first) {
+        Page page = new Page(afterId);
+        if (!first && budget.isExhausted()) {
+            page.budgetExhausted = true;
+            return page;
+        }
+
+        long start = System.nanoTime();
+        try {
+            beforeFetch.run();
+            start = System.nanoTime();
+            HttpRestClient.Response response = client.fetchEntries(afterId, pageSize);
+            if (response.getStatusCode() == TodoListRestClient.Response.FAILED_BAD_REQUEST && afterId == 0) {
+                // The server doesn't support pages, retrieve all the entries at once
+                response = client.fetchEntries(0, 0);
+                page.last = true;
+            }
+            page.response = response;
+            page.statusCode = response.getStatusCode();
+        } catch (Exception e) {
+            page.failure = e;
+        }
+        page.fetchTime = (System.nanoTime() - start) / 1000000;
+        return page;
+    }
+
+    /**
+     * Parses a page fetched successfully, the failures are recorded in the page. When the
+     * stages run concurrently, the cursor of the next page is handed to the fetch stage
+     * as soon as the JSON is decoded.
+     *
+     * @param page page to parse
+     * @throws InterruptedException indicates the pipeline was closed
+     */
+    private void parsePage(Page page) throws InterruptedException {
+        long start = System.nanoTime();
+        try {
+            TodoListRestClient.EntryListResponse response = client.parseEntries(page.response);
+            page.response = null;
+            page.timestamp = response.getTimestamp();
+
+            List<JSONObject> entries = response.getEntryList();
+            for (JSONObject entry : entries)
+                page.lastId = Math.max(page.lastId, entry.getLong(TodoListRestClient.ENTRY_ID));
+
+            // A short page is the last one, a page larger than requested means
+            //  the server ignored the page parameters. So does a page that doesn't
+            //  move past the entry it was requested after, like a full page the server
+            //  sent again because the query was dropped on the way, the download would
+            //  otherwise request it forever
+            if (!page.last && entries.size() == pageSize && page.lastId <= page.afterId)
+                Log.w(TAG, "parsePage, page after " + page.afterId + " doesn't advance, stopping");
+            page.last |= entries.isEmpty() || entries.size() != pageSize || page.lastId <= page.afterId;
+            if (concurrent)
+                cursors.put(page.last ? NO_MORE_PAGES : page.lastId);
+
+            List<ContentValues> values = new ArrayList<ContentValues>(entries.size());
+            for (JSONObject entry : entries)
+                values.add(TodoListProvider.entryObjectValues(entry));
+            page.values = values;
+        } catch (JSONException e) {
+            Log.e(TAG, "parsePage, Invalid response: " + e.getMessage());
+            page.failure = e;
+        }
+        page.parseTime = (System.nanoTime() - start) / 1000000;
+    }
+
+    /**
+     * @param page page of the download
+     * @return true if no page follows it
+     */
+    private static boolean isLastPage(Page page) {
+        return page.last || page.budgetExhausted || page.failure != null
+                || page.statusCode != TodoListRestClient.Response.SUCCESS_OK;
+    }
+}
@@ -31,11 +31,54 @@ public interface RestDataProvider {
         public long numUpstreamUpdates = 0;
 
         public long numResponseExceptions = 0;
+        public long numServerErrors = 0;
         public long numRequestExceptions = 0;
         public long numIoExceptions = 0;
         public long numAuthenticationErrors = 0;
         public boolean invalidCredentials = false;
 
+        // Flag indicating that the sync stopped early because its budget ran out
+        public boolean budgetExhausted = false;
+
+        // Number of times a download paused to upload local edits
+        public long numUploadYields = 0;
+
+        // Number of downloaded entries skipped because they were our own uploads
+        public long numEchoesSuppressed = 0;
+
+        // Number of entries whose notes were downloaded after a summary
+        public long numNotesDownloads = 0;
+
+        // Number of upstream requests avoided by compacting the pending operations
+        public long numCompactedRequests = 0;
+
+        // Range digests compared, and ranges downloaded, by a reconciliation
+        public long numDigestRanges = 0;
+        public long numRangeDownloads = 0;
+
+        // Flag indicating whether the download was a full sync
+        public boolean fullSync = false;
+
+        // Time the sync started
+        public long startTime = 0;
+
+        // Time spent in each phase of the sync, in milliseconds. The download time
+        //  is the time spent retrieving entries from the server, excluding parsing
+        public long authTime = 0;
+        public long upstreamTime = 0;
+        public long downloadTime = 0;
+        public long parseTime = 0;
+        public long applyTime = 0;
+        public long notifyTime = 0;
+        public long totalTime = 0;
+
+        // Requests made to the server and the bytes transferred, as counted by the HttpRestClient
+        public long numRoundTrips = 0;
+        public long bytesSent = 0;
+        public long bytesReceived = 0;
+        // Bytes received, once decoded from the content encoding of the responses
+        public long bytesDecoded = 0;
+
         public boolean updated() {
             return numDeletes > 0
                     || numInserts > 0
@@ -47,7 +90,7 @@ public interface RestDataProvider {
         }
 
         public boolean serverError() {
-            return numResponseExceptions > 0;
+            return numResponseExceptions > 0 || numServerErrors > 0;
         }
 
         public boolean authenticationError() {
@@ -58,6 +101,27 @@ public interface RestDataProvider {
             return updated() || networkError() || serverError() || authenticationError();
         }
 
+        /**
+         * @return number of downloaded entries processed per second of the sync
+         */
+        public double entriesPerSecond() {
+            return totalTime > 0 ? numEntries * 1000.0 / totalTime : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "total=" + totalTime + "ms"
+                    + " auth=" + authTime + "ms"
+                    + " upstream=" + upstreamTime + "ms"
+                    + " download=" + downloadTime + "ms"
+                    + " parse=" + parseTime + "ms"
+                    + " apply=" + applyTime + "ms"
+                    + " notify=" + notifyTime + "ms"
+                    + " roundTrips=" + numRoundTrips
+                    + " sent=" + bytesSent + " received=" + bytesReceived + " decoded=" + bytesDecoded
+                    + " entries=" + numEntries;
+        }
+
 
     }
 
@@ -84,4 +148,29 @@ public interface RestDataProvider {
      */
     public SyncResult onPerformSync(HttpRestClient client, Account account, boolean refresh);
 
+    /**
+     * Requests a sync operation, like onPerformSync, that stops when its budget runs out.
+     * A sync that stops early keeps its progress and sets budgetExhausted in the result,
+     * the caller should then request a continuation run, which picks up where it stopped.
+     *
+     * @param client  the client to use for the requested sync operation
+     * @param account optional account to use to validate requests to the rest service
+     * @param refresh flag that indicates whether a full refresh is desired
+     * @param budget  time and bytes the sync may use
+     * @return SyncResult object indicating the status and result of the sync operation
+     */
+    public SyncResult onPerformSync(HttpRestClient client, Account account, boolean refresh, SyncBudget budget);
+
+    /**
+     * Requests that the REST content provider upload its local changes to the REST
+     * webservice, without downloading remote changes. This is the high priority sync
+     * lane, it should not wait for a download in progress to complete. The same calling
+     * requirements as onPerformSync apply.
+     *
+     * @param client  the client to use for the upload
+     * @param account optional account to use to validate requests to the rest service
+     * @return SyncResult object indicating the status and result of the upload
+     */
+    public SyncResult onPerformUpstreamSync(HttpRestClient client, Account account);
+
 }
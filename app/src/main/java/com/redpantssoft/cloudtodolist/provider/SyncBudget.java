@@ -0,0 +1,72 @@
+package com.redpantssoft.cloudtodolist.provider;
+
+import com.redpantssoft.cloudtodolist.client.HttpRestClient;
+
+/**
+ * Limits the time and the network traffic of a sync session. A provider checks the
+ * budget at each page or batch boundary, and when it runs out it stops cleanly, with
+ * its position persisted, and reports that a continuation run is needed in the
+ * SyncResult. This bounds the time a single alarm keeps the device awake.
+ * <p/>
+ * <p>The budget starts with the first sync that uses it, so a caller that runs a
+ * second sync in the same session, like a full sync after an incremental one, shares
+ * the budget between them.</p>
+ */
+public class SyncBudget {
+
+    // Budget without limits, a sync runs to completion
+    public static final SyncBudget UNLIMITED = new SyncBudget(0, 0);
+
+    // Maximum duration of the session, in milliseconds, 0 for no limit
+    private final long maxTime;
+
+    // Maximum number of bytes sent and received in the session, 0 for no limit
+    private final long maxBytes;
+
+    // Client whose traffic is counted, and its statistics when the session started
+    private HttpRestClient client;
+    private HttpRestClient.Stats startStats;
+
+    // Time the session started, from System.nanoTime
+    private long startNanos;
+
+    /**
+     * Constructor
+     *
+     * @param maxTime  maximum duration of the session, in milliseconds, 0 for no limit
+     * @param maxBytes maximum number of bytes sent and received, 0 for no limit
+     */
+    public SyncBudget(long maxTime, long maxBytes) {
+        this.maxTime = maxTime;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Starts the session, if it isn't started already
+     *
+     * @param client client that performs the requests of the session
+     */
+    synchronized void start(HttpRestClient client) {
+        if (this.client != null || (maxTime == 0 && maxBytes == 0))
+            return;
+        this.client = client;
+        this.startStats = client.getStats();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * @return true if the time or the bytes of the session ran out
+     */
+    public synchronized boolean isExhausted() {
+        if (client == null)
+            return false;
+        if (maxTime > 0 && (System.nanoTime() - startNanos) / 1000000 >= maxTime)
+            return true;
+        if (maxBytes > 0) {
+            HttpRestClient.Stats stats = client.getStats().since(startStats);
+            if (stats.bytesSent + stats.bytesReceived >= maxBytes)
+                return true;
+        }
+        return false;
+    }
+}
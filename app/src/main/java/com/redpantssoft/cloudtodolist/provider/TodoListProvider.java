@@ -19,6 +19,7 @@ import android.database.sqlite.SQLiteQueryBuilder;
 import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.provider.BaseColumns;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.redpantssoft.cloudtodolist.R;
@@ -32,14 +33,39 @@ import org.apache.http.auth.InvalidCredentialsException;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Provides access to a database of cloudtodolist entries. Each entry has an id, a title, notes,
  * and a completed flag
+ * <p/>
+ * <p>Syncing runs in two lanes. Uploads of local edits are the high priority lane and
+ * downloads, incremental or full, are the low priority lane. Downloaded entries are applied
+ * in pages of DOWNLOAD_PAGE_SIZE entries, and between pages the download yields to any
+ * local edits waiting to be uploaded, so an edit reaches the server within a bounded
+ * delay even during a long full sync.</p>
+ * <p/>
+ * <p>The entries of the preferred account are stored by this provider. Each other account
+ * synced has a storage partition of its own, with its own database, sync cursors and sync
+ * lanes, accessed with the TodoListSchema.PARAMETER_ACCOUNT query parameter. So accounts
+ * can be synced concurrently without sharing any state.</p>
+ * <p/>
+ * <p>Lists of entries are downloaded as summaries, without the notes, which are often
+ * most of the bytes. An entry's notes are downloaded on demand, when it is opened, or
+ * prefetched when the device is idle. Until then its NOTES are null.</p>
  */
 public class TodoListProvider extends ContentProvider implements RestDataProvider {
 
@@ -50,8 +76,19 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
     // Name of the underlying sqlite database
     private static final String DATABASE_NAME = "cloudtodolist.db";
 
+    // Prefix of the names of the databases of the account partitions
+    private static final String DATABASE_PARTITION_PREFIX = "cloudtodolist-";
+
     // Current version of the underlying sqlite database
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 5;
+
+    // Oldest version of the database that is migrated on upgrade, the baseline release,
+    //  the data of older ones is dropped
+    private static final int OLDEST_MIGRATED_VERSION = 1;
+
+    // Name of the table that holds the entries staged by a full sync, it is persistent
+    //  so that an interrupted full sync can be resumed
+    private static final String STAGING_TABLE_NAME = TodoListSchema.Entries.TABLE_NAME + "_staging";
 
     /**
      * A UriMatcher Definitions
@@ -60,6 +97,7 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
     // Constants used by the Uri matcher to identify URI matches
     private static final int ENTRIES = 1;
     private static final int ENTRY_ID = 2;
+    private static final int SYNC_HISTORY = 3;
 
     // Reference to a URI matcher
     private static final UriMatcher uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
@@ -68,6 +106,7 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
     static {
         uriMatcher.addURI(TodoListSchema.AUTHORITY, TodoListSchema.Entries.PATH_TODOLIST_ENTRIES, ENTRIES);
         uriMatcher.addURI(TodoListSchema.AUTHORITY, TodoListSchema.Entries.PATH_TODOLIST_ENTRY_ID + "#", ENTRY_ID);
+        uriMatcher.addURI(TodoListSchema.AUTHORITY, TodoListSchema.SyncHistory.PATH_SYNC_HISTORY, SYNC_HISTORY);
     }
 
     /**
@@ -84,11 +123,12 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
          * database and current version
          *
          * @param context context of the provider
+         * @param name    name of the database file
          */
-        DatabaseHelper(Context context) {
+        DatabaseHelper(Context context, String name) {
 
             // calls the super constructor, requesting the default cursor factory.
-            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            super(context, name, null, DATABASE_VERSION);
         }
 
         /**
@@ -110,16 +150,50 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
                     + TodoListSchema.Entries.MODIFIED + " LONG,"
                     + TodoListSchema.Entries.PENDING_TX + " INTEGER DEFAULT 0,"
                     + TodoListSchema.Entries.PENDING_UPDATE + " INTEGER KEY DEFAULT 0,"
-                    + TodoListSchema.Entries.PENDING_DELETE + " INTEGER KEY DEFAULT 0"
+                    + TodoListSchema.Entries.PENDING_DELETE + " INTEGER KEY DEFAULT 0,"
+                    + TodoListSchema.Entries.CLIENT_OP_ID + " TEXT DEFAULT NULL,"
+                    + TodoListSchema.Entries.NOTES_HASH + " TEXT DEFAULT NULL"
+                    + ");");
+
+            db.execSQL("CREATE TABLE " + STAGING_TABLE_NAME + " ("
+                    + TodoListSchema.Entries.ID + " INTEGER PRIMARY KEY,"
+                    + TodoListSchema.Entries.TITLE + " TEXT,"
+                    + TodoListSchema.Entries.NOTES + " TEXT,"
+                    + TodoListSchema.Entries.COMPLETE + " INTEGER,"
+                    + TodoListSchema.Entries.CREATED + " LONG,"
+                    + TodoListSchema.Entries.MODIFIED + " LONG,"
+                    + TodoListSchema.Entries.NOTES_HASH + " TEXT"
+                    + ");");
+
+            db.execSQL("CREATE TABLE " + TodoListSchema.SyncHistory.TABLE_NAME + " ("
+                    + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + TodoListSchema.SyncHistory.START_TIME + " LONG,"
+                    + TodoListSchema.SyncHistory.TYPE + " TEXT,"
+                    + TodoListSchema.SyncHistory.SUCCEEDED + " INTEGER,"
+                    + TodoListSchema.SyncHistory.TOTAL_TIME + " LONG,"
+                    + TodoListSchema.SyncHistory.AUTH_TIME + " LONG,"
+                    + TodoListSchema.SyncHistory.UPSTREAM_TIME + " LONG,"
+                    + TodoListSchema.SyncHistory.DOWNLOAD_TIME + " LONG,"
+                    + TodoListSchema.SyncHistory.PARSE_TIME + " LONG,"
+                    + TodoListSchema.SyncHistory.APPLY_TIME + " LONG,"
+                    + TodoListSchema.SyncHistory.NOTIFY_TIME + " LONG,"
+                    + TodoListSchema.SyncHistory.ROUND_TRIPS + " LONG,"
+                    + TodoListSchema.SyncHistory.BYTES_SENT + " LONG,"
+                    + TodoListSchema.SyncHistory.BYTES_RECEIVED + " LONG,"
+                    + TodoListSchema.SyncHistory.ENTRIES + " LONG,"
+                    + TodoListSchema.SyncHistory.UPSTREAM_ENTRIES + " LONG"
                     + ");");
 
             setLastSyncTime(0);
+            clearFullSyncCheckpoint();
         }
 
 
         /**
-         * Called when the database needs to be upgraded. This will drop the table, wiping all
-         * the data. This is acceptable as a sync will result in a full refresh.
+         * Called when the database needs to be upgraded. The schema is migrated one version
+         * at a time, adding the new tables and columns, so the entries that are not uploaded
+         * yet and their pending operations are kept. Only a database older than
+         * OLDEST_MIGRATED_VERSION is dropped and recreated.
          *
          * @param db         instance of a writable database
          * @param oldVersion old version
@@ -129,11 +203,104 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 
             // Logs that the database is being upgraded
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
+            Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+
+            if (oldVersion < OLDEST_MIGRATED_VERSION) {
+                recreate(db);
+                return;
+            }
+
+            // Version 2, the staging table of resumable full syncs
+            if (oldVersion < 2) {
+                db.execSQL("CREATE TABLE IF NOT EXISTS " + STAGING_TABLE_NAME + " ("
+                        + TodoListSchema.Entries.ID + " INTEGER PRIMARY KEY,"
+                        + TodoListSchema.Entries.TITLE + " TEXT,"
+                        + TodoListSchema.Entries.NOTES + " TEXT,"
+                        + TodoListSchema.Entries.COMPLETE + " INTEGER,"
+                        + TodoListSchema.Entries.CREATED + " LONG,"
+                        + TodoListSchema.Entries.MODIFIED + " LONG"
+                        + ");");
+                clearFullSyncCheckpoint();
+            }
+
+            // Version 3, the sync history
+            if (oldVersion < 3) {
+                db.execSQL("CREATE TABLE IF NOT EXISTS " + TodoListSchema.SyncHistory.TABLE_NAME + " ("
+                        + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                        + TodoListSchema.SyncHistory.START_TIME + " LONG,"
+                        + TodoListSchema.SyncHistory.TYPE + " TEXT,"
+                        + TodoListSchema.SyncHistory.SUCCEEDED + " INTEGER,"
+                        + TodoListSchema.SyncHistory.TOTAL_TIME + " LONG,"
+                        + TodoListSchema.SyncHistory.AUTH_TIME + " LONG,"
+                        + TodoListSchema.SyncHistory.UPSTREAM_TIME + " LONG,"
+                        + TodoListSchema.SyncHistory.DOWNLOAD_TIME + " LONG,"
+                        + TodoListSchema.SyncHistory.PARSE_TIME + " LONG,"
+                        + TodoListSchema.SyncHistory.APPLY_TIME + " LONG,"
+                        + TodoListSchema.SyncHistory.NOTIFY_TIME + " LONG,"
+                        + TodoListSchema.SyncHistory.ROUND_TRIPS + " LONG,"
+                        + TodoListSchema.SyncHistory.BYTES_SENT + " LONG,"
+                        + TodoListSchema.SyncHistory.BYTES_RECEIVED + " LONG,"
+                        + TodoListSchema.SyncHistory.ENTRIES + " LONG,"
+                        + TodoListSchema.SyncHistory.UPSTREAM_ENTRIES + " LONG"
+                        + ");");
+            }
+
+            // Version 4, the operation id of the pending create of an entry. The pending
+            //  creates of the older versions were never sent with one, they get theirs
+            //  when they are next uploaded
+            if (oldVersion < 4) {
+                db.execSQL("ALTER TABLE " + TodoListSchema.Entries.TABLE_NAME + " ADD COLUMN "
+                        + TodoListSchema.Entries.CLIENT_OP_ID + " TEXT DEFAULT NULL;");
+            }
+
+            // Version 5, the notes of summaries may be left out, and a null notes means
+            //  they weren't downloaded. The entries of the older versions all have their
+            //  notes, the missing ones are empty, and get the hash that says so
+            if (oldVersion < 5) {
+                db.execSQL("ALTER TABLE " + TodoListSchema.Entries.TABLE_NAME + " ADD COLUMN "
+                        + TodoListSchema.Entries.NOTES_HASH + " TEXT DEFAULT NULL;");
+                db.execSQL("ALTER TABLE " + STAGING_TABLE_NAME + " ADD COLUMN "
+                        + TodoListSchema.Entries.NOTES_HASH + " TEXT;");
+                for (String table : new String[]{TodoListSchema.Entries.TABLE_NAME, STAGING_TABLE_NAME}) {
+                    db.execSQL("UPDATE " + table + " SET " + TodoListSchema.Entries.NOTES + " = ''"
+                            + " WHERE " + TodoListSchema.Entries.NOTES + " IS NULL;");
+                    fillNotesHashes(db, table);
+                }
+            }
+        }
+
+        /**
+         * Sets the notes hash of the rows of a table from their notes
+         *
+         * @param db    instance of a writable database
+         * @param table table of entries, or of staged entries
+         */
+        private void fillNotesHashes(SQLiteDatabase db, String table) {
+            Cursor cur = db.query(table, new String[]{"rowid", TodoListSchema.Entries.NOTES},
+                    null, null, null, null, null);
+            try {
+                ContentValues values = new ContentValues();
+                while (cur.moveToNext()) {
+                    values.put(TodoListSchema.Entries.NOTES_HASH, TodoListRestClient.notesHash(cur.getString(1)));
+                    db.update(table, values, "rowid = " + cur.getLong(0), null);
+                }
+            } finally {
+                cur.close();
+            }
+        }
+
+        /**
+         * Drops the tables, wiping all the data, and creates them again
+         *
+         * @param db instance of a writable database
+         */
+        private void recreate(SQLiteDatabase db) {
+            Log.w(TAG, "Recreating the database, which will destroy all old data");
 
             // Kills the table and existing data
             db.execSQL("DROP TABLE IF EXISTS " + TodoListSchema.Entries.TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + STAGING_TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + TodoListSchema.SyncHistory.TABLE_NAME);
 
             // Recreates the database with a new version
             onCreate(db);
@@ -167,6 +334,66 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
     // Shared prefs object for TodoListProvider persistent data
     private SharedPreferences sharedPreferences;
 
+    // Number of downloaded entries applied per transaction, downloads yield to
+    //  pending uploads between pages. Full syncs also request entries in pages of this size
+    private static final int DOWNLOAD_PAGE_SIZE = 100;
+
+    // Flag indicating whether full syncs fetch and parse pages on their own threads
+    private volatile boolean pipelinedDownloads = true;
+
+    // Flag indicating whether lists of entries are downloaded as summaries, without the notes
+    private volatile boolean summaryDownloads = true;
+
+    // Locks of the sync lanes, uploads hold the upstream lock and downloads hold
+    //  the downstream lock, plus the upstream lock while applying a page
+    private final Object upstreamLock = new Object();
+    private final Object downstreamLock = new Object();
+
+    // Flag indicating that a local edit is waiting to be uploaded
+    private volatile boolean uploadPending = false;
+
+    // Flag indicating that a download is in progress
+    private volatile boolean downloadInProgress = false;
+
+    // Server ids of the entries uploaded while a download is in progress. The download
+    //  retrieved older versions of these entries, which must not overwrite them
+    private final Set<Long> uploadedDuringDownload = Collections.synchronizedSet(new HashSet<Long>());
+
+    // Modified times, in milliseconds, the server returned for the entries we uploaded, by
+    //  server id. The next download returns these entries again, with the same modified times
+    private final Map<Long, Long> uploadEchoes = Collections.synchronizedMap(new HashMap<Long, Long>());
+
+    // Number of ranges a range is split in at each level of a reconciliation
+    private static final int RECONCILE_BUCKETS = 16;
+
+    // Number of sync results kept in the sync history table
+    private static final int SYNC_HISTORY_SIZE = 50;
+
+    // Time spent notifying the content resolver of changes, in nanoseconds
+    private final AtomicLong notifyNanos = new AtomicLong();
+
+    // Name of the storage partition of this provider, null for the preferred account's
+    private final String partition;
+
+    // Providers of the partitions of the other accounts, by account name
+    private final Map<String, TodoListProvider> partitions = new HashMap<String, TodoListProvider>();
+
+    /**
+     * Constructor of the provider registered with the system
+     */
+    public TodoListProvider() {
+        this(null);
+    }
+
+    /**
+     * Constructor of the provider of an account's storage partition
+     *
+     * @param partition - name of the partition, null for the preferred account's
+     */
+    TodoListProvider(String partition) {
+        this.partition = partition;
+    }
+
     /**
      * This method is called for all registered content providers on the application main thread at
      * application launch time. It must not perform lengthy operations, or application startup
@@ -178,15 +405,103 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
     public boolean onCreate() {
         // Creates a new helper object. Note that the database itself isn't opened until
         // something tries to access it, and it's only created if it doesn't already exist.
-        dbHelper = new DatabaseHelper(getContext());
+        dbHelper = new DatabaseHelper(getContext(),
+                partition == null ? DATABASE_NAME : DATABASE_PARTITION_PREFIX + partition + ".db");
 
         // Initialize the last sync time from the shared prefs
-        sharedPreferences = getContext().getSharedPreferences(this.getClass().getName(), Context.MODE_PRIVATE);
+        sharedPreferences = getContext().getSharedPreferences(this.getClass().getName()
+                + (partition == null ? "" : "." + partition), Context.MODE_PRIVATE);
 
         // Assumes that any failures will be reported by a thrown exception.
         return true;
     }
 
+    /**
+     * Returns the provider storing the entries of an account. The entries of the owner of
+     * the registered provider's database are stored by the registered provider, the other
+     * accounts' are in partitions created on first use. Where an account's entries are
+     * stored doesn't depend on the preferred account, so switching it doesn't mix them up.
+     *
+     * @param accountName - name of the account, null for the preferred account
+     * @return provider of the account's partition
+     */
+    TodoListProvider getPartition(String accountName) {
+        if (partition != null)
+            return this;
+
+        if (accountName == null) {
+            Account preferred = TodoListSyncHelper.getPreferredAccount(getContext());
+            if (preferred == null)
+                return this;
+            accountName = preferred.name;
+        }
+        if (accountName.equals(databaseOwner()))
+            return this;
+
+        synchronized (partitions) {
+            TodoListProvider provider = partitions.get(accountName);
+            if (provider == null) {
+                String name = TodoListSyncHelper.accountKey(accountName);
+                renamePartitionDatabase(accountName.replaceAll("[^A-Za-z0-9._@-]", "_"), name);
+                provider = new TodoListProvider(name);
+                provider.attachInfo(getContext(), null);
+                partitions.put(accountName, provider);
+            }
+            return provider;
+        }
+    }
+
+    /**
+     * Returns the account whose entries are stored in the registered provider's database.
+     * This is the account that was preferred when the owner was first needed, the account
+     * the database was synced with before there were partitions. It is kept afterwards.
+     *
+     * @return name of the owner, or null if there are no accounts yet
+     */
+    private String databaseOwner() {
+        String key = getContext().getString(R.string.databaseOwner);
+        synchronized (partitions) {
+            String owner = sharedPreferences.getString(key, null);
+            if (owner == null) {
+                Account preferred = TodoListSyncHelper.getPreferredAccount(getContext());
+                if (preferred == null)
+                    return null;
+                owner = preferred.name;
+                SharedPreferences.Editor editor = sharedPreferences.edit();
+                editor.putString(key, owner);
+                editor.commit();
+            }
+            return owner;
+        }
+    }
+
+    /**
+     * Renames the database of a partition named after the escaped account name, as they
+     * were, to its current name. The sync state of the partition is not kept, its next
+     * sync is a full sync, which keeps the pending edits
+     *
+     * @param oldName - former name of the partition
+     * @param newName - current name of the partition
+     */
+    private void renamePartitionDatabase(String oldName, String newName) {
+        File oldDatabase = getContext().getDatabasePath(DATABASE_PARTITION_PREFIX + oldName + ".db");
+        File newDatabase = getContext().getDatabasePath(DATABASE_PARTITION_PREFIX + newName + ".db");
+        if (!oldDatabase.exists() || newDatabase.exists())
+            return;
+        if (oldDatabase.renameTo(newDatabase)) {
+            new File(oldDatabase.getPath() + "-journal").delete();
+            Log.i(TAG, "Renamed the partition database " + oldDatabase.getName() + " to " + newDatabase.getName());
+        }
+    }
+
+    /**
+     * @param uri - Uri of a request, with an optional account parameter
+     * @return provider of the partition the request is for
+     */
+    private TodoListProvider getPartition(Uri uri) {
+        return getPartition(uri.getQueryParameter(TodoListSchema.PARAMETER_ACCOUNT));
+    }
+
     /**
      * This handles requests for the MIME type of the data at the given URI
      *
@@ -205,6 +520,9 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
             case ENTRY_ID:
                 return TodoListSchema.Entries.CONTENT_ITEM_TYPE;
 
+            case SYNC_HISTORY:
+                return TodoListSchema.SyncHistory.CONTENT_TYPE;
+
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -225,6 +543,9 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
      */
     @Override
     public Cursor query(Uri uri, String[] what, String where, String[] whereArgs, String sortOrder) {
+        TodoListProvider target = getPartition(uri);
+        if (target != this)
+            return target.query(uri, what, where, whereArgs, sortOrder);
 
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         String orderBy;
@@ -252,6 +573,15 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
                 }
                 break;
 
+            case SYNC_HISTORY:
+                qb.setTables(TodoListSchema.SyncHistory.TABLE_NAME);
+                if (sortOrder != null) {
+                    orderBy = sortOrder;
+                } else {
+                    orderBy = TodoListSchema.SyncHistory.DEFAULT_SORT_ORDER;
+                }
+                break;
+
             default:
                 // If the URI doesn't match any of the known patterns, throw an exception.
                 throw new IllegalArgumentException("Unknown URI " + uri);
@@ -275,6 +605,9 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
      */
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
+        TodoListProvider target = getPartition(uri);
+        if (target != this)
+            return target.insert(uri, contentValues);
 
         // Initialize a new ContentValues object to whatever was passed in
         ContentValues values = new ContentValues();
@@ -334,6 +667,7 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
         notifyContentResolverOfChange(entryUri);
 
         // Request a lazy sync to sync this change upstream
+        uploadPending = true;
         try {
             TodoListSyncHelper.requestLazySync(getContext());
         } catch (UnsupportedOperationException e) {
@@ -415,6 +749,9 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
      */
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
+        TodoListProvider target = getPartition(uri);
+        if (target != this)
+            return target.delete(uri, where, whereArgs);
 
         ContentValues values = new ContentValues();
         int count;
@@ -452,6 +789,7 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
         if (count > 0) {
             // If any rows where affected, notify listeners and request a lazy sync
             notifyContentResolverOfChange(uri);
+            uploadPending = true;
             try {
                 TodoListSyncHelper.requestLazySync(getContext());
             } catch (UnsupportedOperationException e) {
@@ -473,6 +811,9 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
      */
     @Override
     public int update(Uri uri, ContentValues contentValues, String where, String[] whereArgs) {
+        TodoListProvider target = getPartition(uri);
+        if (target != this)
+            return target.update(uri, contentValues, where, whereArgs);
 
         // Initialize a new ContentValues object to whatever was passed in
         ContentValues values = new ContentValues();
@@ -512,6 +853,7 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
         if (count > 0) {
             // If any rows where affected, notify listeners and request a lazy sync
             notifyContentResolverOfChange(uri);
+            uploadPending = true;
             try {
                 TodoListSyncHelper.requestLazySync(getContext());
             } catch (UnsupportedOperationException e) {
@@ -525,13 +867,18 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
     /**
      * Handles requests to perform a batch of operation
      * This implementation will perform the operations in a transaction. In the event
-     * of any operation failing, the transaction will be rolled back
+     * of any operation failing, the transaction will be rolled back. The operations
+     * must all be for the same account partition
      *
      * @param operations operations to apply
      * @return list of results of the operations
      */
     @Override
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) {
+        // A batch is applied in the partition of its first operation
+        TodoListProvider target = (operations.isEmpty() ? this : getPartition(operations.get(0).getUri()));
+        if (target != this)
+            return target.applyBatch(operations);
 
         ContentProviderResult[] backRefs = new ContentProviderResult[operations.size() - 1];
         List<ContentProviderResult> results = new ArrayList<ContentProviderResult>(operations.size());
@@ -557,7 +904,9 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
     }
 
     private void notifyContentResolverOfChange(Uri uri) {
+        long start = System.nanoTime();
         getContext().getContentResolver().notifyChange(uri, null);
+        notifyNanos.addAndGet(System.nanoTime() - start);
     }
 
     private void notifyContentResolverOfChange() {
@@ -577,17 +926,20 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
 
         dbHelper.getWritableDatabase().delete(TodoListSchema.Entries.TABLE_NAME, null, null);
         setLastSyncTime(0);
+        clearFullSyncCheckpoint();
+        uploadEchoes.clear();
     }
 
     /**
      * Method to convert a JSONObject result, from the upstream REST service, to a
-     * ContentValues object suitable to for a local datastore operation
+     * ContentValues object suitable to for a local datastore operation. The values of
+     * a summary have no NOTES, unless the entry has no notes
      *
      * @param entry - JSONObject entry to convert
      * @return - newly created ContentValues structure, initialized from the JSONObject entry
      * @throws JSONException - indicates an invalid format for the JSONObject entry
      */
-    private static ContentValues entryObjectValues(JSONObject entry) throws JSONException {
+    static ContentValues entryObjectValues(JSONObject entry) throws JSONException {
         ContentValues entryValues = new ContentValues();
 
         entryValues.put(TodoListSchema.Entries.ID, entry.getInt(TodoListRestClient.ENTRY_ID));
@@ -600,10 +952,17 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
             entryValues.put(TodoListSchema.Entries.TITLE, "");
         }
 
-        if (!entry.isNull(TodoListRestClient.ENTRY_NOTES)) {
-            entryValues.put(TodoListSchema.Entries.NOTES, entry.getString(TodoListRestClient.ENTRY_NOTES));
+        if (entry.has(TodoListRestClient.ENTRY_NOTES)) {
+            String notes = (entry.isNull(TodoListRestClient.ENTRY_NOTES) ? ""
+                    : entry.getString(TodoListRestClient.ENTRY_NOTES));
+            entryValues.put(TodoListSchema.Entries.NOTES, notes);
+            entryValues.put(TodoListSchema.Entries.NOTES_HASH, TodoListRestClient.notesHash(notes));
         } else {
-            entryValues.put(TodoListSchema.Entries.NOTES, "");
+            // A summary, the notes are left out unless there are none
+            String notesHash = entry.optString(TodoListRestClient.ENTRY_NOTES_HASH, "");
+            entryValues.put(TodoListSchema.Entries.NOTES_HASH, notesHash);
+            if (notesHash.length() == 0)
+                entryValues.put(TodoListSchema.Entries.NOTES, "");
         }
 
         entryValues.put(TodoListSchema.Entries.CREATED,
@@ -616,7 +975,8 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
     }
 
     /**
-     * Handles requests to sync the content provider with an HttpRestClient.
+     * Handles requests to sync the content provider with an HttpRestClient. Local edits
+     * are uploaded first, then the remote changes are downloaded in the low priority lane.
      *
      * @param httpRestClient - client object to perform upstream sync with
      * @param account        - optional account to use to validate requests to the rest service
@@ -625,141 +985,423 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
      * @return SyncResult object indicating the status and result of the sync operation
      */
     @Override
-    synchronized public SyncResult onPerformSync(HttpRestClient httpRestClient, Account account, boolean fullSync) {
+    public SyncResult onPerformSync(HttpRestClient httpRestClient, Account account, boolean fullSync) {
+        return onPerformSync(httpRestClient, account, fullSync, SyncBudget.UNLIMITED);
+    }
+
+    /**
+     * Handles requests to sync the content provider with an HttpRestClient, within a
+     * budget. When the budget runs out, the sync stops at the next page or entry and
+     * sets budgetExhausted in the result. Its progress is kept: uploaded entries are no
+     * longer dirty, a full sync continues after its checkpoint and a reconciliation
+     * skips the ranges that already match, so the next sync continues where it stopped.
+     *
+     * @param httpRestClient - client object to perform upstream sync with
+     * @param account        - optional account to use to validate requests to the rest service
+     * @param fullSync       - indicates whether a fullSync is being requested, it starts
+     *                       over rather than resume an interrupted one
+     * @param budget         - time and bytes the sync may use
+     * @return SyncResult object indicating the status and result of the sync operation
+     */
+    @Override
+    public SyncResult onPerformSync(HttpRestClient httpRestClient, Account account, boolean fullSync,
+                                    SyncBudget budget) {
+        TodoListProvider target = getPartition(account != null ? account.name : null);
+        if (target != this)
+            return target.onPerformSync(httpRestClient, account, fullSync, budget);
 
         // Initialize an empty result object
         SyncResult result = new SyncResult();
+        long start = startSyncResult(result);
+        HttpRestClient.Stats stats = httpRestClient.getStats();
+        long notifyStart = notifyNanos.get();
+        budget.start(httpRestClient);
+
+        if (!authenticate(httpRestClient, account, result)) {
+            finishSyncResult(result, start, httpRestClient.getStats().since(stats), notifyStart, true);
+            return result;
+        }
 
         // Wrap the HttpRest client in a TodoListRest client which wraps the service API
-        if (account != null) {
-            try {
-                httpRestClient.setAuthenticator(new GaeAuthenticator(getContext(), account));
-            } catch (AuthenticationException e) {
-                Log.e(TAG, "onPerformSync, Authentication Error: " + e.getMessage());
-                result.numAuthenticationErrors++;
-                if (e.getCause() instanceof InvalidCredentialsException) {
-                    result.invalidCredentials = true;
+        TodoListRestClient client = new TodoListRestClient(httpRestClient);
+        client.setSummary(summaryDownloads);
+
+        synchronized (downstreamLock) {
+            /**
+             * If a full sync is requested, clear the local datastore, otherwise, start an
+             * upstream sync. A requested full sync starts over, its checkpoint could be of
+             * a server or account the settings changed from. Only the syncs scheduled
+             * after an interrupted full sync resume it.
+             */
+            synchronized (upstreamLock) {
+                if (fullSync) {
+                    clearLocalDataStore();
+                } else {
+                    performUpstreamSync(client, result, budget);
+                }
+            }
+
+            if (!(result.serverError() || result.networkError() || result.budgetExhausted)) {
+                uploadedDuringDownload.clear();
+                downloadInProgress = true;
+                try {
+                    if (lastSyncTime() > 0 && !hasFullSyncCheckpoint()) {
+                        performIncrementalSync(client, result, budget);
+                    } else {
+                        performFullSync(client, result, budget);
+                    }
+                } finally {
+                    downloadInProgress = false;
+                    uploadedDuringDownload.clear();
                 }
-                return result;
+            }
+        }
+
+        finishSyncResult(result, start, httpRestClient.getStats().since(stats), notifyStart, true);
+        return result;
+    }
+
+    /**
+     * Handles requests to upload the local edits, without downloading remote changes.
+     * This is the high priority lane, it only waits for a download to finish applying
+     * its current page.
+     *
+     * @param httpRestClient - client object to perform upstream sync with
+     * @param account        - optional account to use to validate requests to the rest service
+     * @return SyncResult object indicating the status and result of the upload
+     */
+    @Override
+    public SyncResult onPerformUpstreamSync(HttpRestClient httpRestClient, Account account) {
+        TodoListProvider target = getPartition(account != null ? account.name : null);
+        if (target != this)
+            return target.onPerformUpstreamSync(httpRestClient, account);
+
+        SyncResult result = new SyncResult();
+        synchronized (upstreamLock) {
+            compactPendingOperations(result);
+        }
+
+        // Nothing to upload, an earlier sync or a download that yielded took care of it
+        if (DatabaseUtils.longForQuery(dbHelper.getReadableDatabase(),
+                "SELECT COUNT(*) FROM " + TodoListSchema.Entries.TABLE_NAME
+                        + " WHERE " + WHERE_DIRTY_ENTRIES, null) == 0) {
+            uploadPending = false;
+            return result;
+        }
+
+        long start = startSyncResult(result);
+        HttpRestClient.Stats stats = httpRestClient.getStats();
+        long notifyStart = notifyNanos.get();
+
+        if (authenticate(httpRestClient, account, result)) {
+            synchronized (upstreamLock) {
+                performUpstreamSync(new TodoListRestClient(httpRestClient), result);
+            }
+        }
+        finishSyncResult(result, start, httpRestClient.getStats().since(stats), notifyStart, false);
+        return result;
+    }
+
+    /**
+     * Downloads the notes of entries that were synced as summaries. With a row id, the
+     * notes of that entry are downloaded, when an entry is opened. Without one, the notes
+     * of all the entries missing them are prefetched, the most recently modified first,
+     * until the budget runs out. The same calling requirements as onPerformSync apply.
+     *
+     * @param httpRestClient - client object to download the notes with
+     * @param account        - optional account to use to validate requests to the rest service
+     * @param rowId          - row id of the entry whose notes to download, 0 for all the entries
+     * @param budget         - time and bytes the download may use
+     * @return SyncResult object indicating the status and result of the download
+     */
+    public SyncResult onPerformNotesDownload(HttpRestClient httpRestClient, Account account, long rowId,
+                                             SyncBudget budget) {
+        TodoListProvider target = getPartition(account != null ? account.name : null);
+        if (target != this)
+            return target.onPerformNotesDownload(httpRestClient, account, rowId, budget);
+
+        SyncResult result = new SyncResult();
+        String where = TodoListSchema.Entries.NOTES + " IS NULL AND " + TodoListSchema.Entries.ID + " IS NOT NULL"
+                + (rowId > 0 ? " AND " + BaseColumns._ID + " = " + rowId : "");
+        String[] what = {BaseColumns._ID, TodoListSchema.Entries.ID, TodoListSchema.Entries.NOTES_HASH};
+        List<long[]> missing = new ArrayList<long[]>();
+        List<String> notesHashes = new ArrayList<String>();
+        Cursor cur = dbHelper.getReadableDatabase().query(TodoListSchema.Entries.TABLE_NAME, what, where,
+                null, null, null, TodoListSchema.Entries.MODIFIED + " DESC");
+        try {
+            while (cur.moveToNext()) {
+                missing.add(new long[]{cur.getLong(0), cur.getLong(1)});
+                notesHashes.add(cur.isNull(2) ? null : cur.getString(2));
+            }
+        } finally {
+            cur.close();
+        }
+        if (missing.isEmpty())
+            return result;
+
+        long start = startSyncResult(result);
+        HttpRestClient.Stats stats = httpRestClient.getStats();
+        long notifyStart = notifyNanos.get();
+        budget.start(httpRestClient);
+
+        if (authenticate(httpRestClient, account, result)) {
+            TodoListRestClient client = new TodoListRestClient(httpRestClient);
+            try {
+                for (int i = 0; i < missing.size(); i++) {
+                    if (i > 0 && budget.isExhausted()) {
+                        result.budgetExhausted = true;
+                        break;
+                    }
+                    long[] entry = missing.get(i);
+
+                    long fetchStart = System.nanoTime();
+                    TodoListRestClient.EntryObjectResponse response = client.getEntry((int) entry[1]);
+                    result.downloadTime += elapsedMillis(fetchStart);
+                    int statusCode = response.getResponse().getStatusCode();
+                    if (statusCode == TodoListRestClient.Response.FAILED_INVALID_RESOURCE) {
+                        // Deleted on the server, the next sync removes it
+                        continue;
+                    } else if (statusCode != TodoListRestClient.Response.SUCCESS_OK) {
+                        countFailedResponse(result, statusCode);
+                        break;
+                    }
 
+                    // Notes older than the synced entry, e.g. from a cached response, are
+                    //  dropped, and fetched from the server the next time
+                    String notes = response.getEntryObject().optString(TodoListRestClient.ENTRY_NOTES, "");
+                    String notesHash = notesHashes.get(i);
+                    if (notesHash != null && !notesHash.equals(TodoListRestClient.notesHash(notes))) {
+                        Log.w(TAG, "onPerformNotesDownload, stale notes of entry " + entry[1]);
+                        client.invalidateEntry((int) entry[1]);
+                        continue;
+                    }
+
+                    // A local edit of the notes takes precedence
+                    ContentValues values = new ContentValues();
+                    values.put(TodoListSchema.Entries.NOTES, notes);
+                    values.put(TodoListSchema.Entries.NOTES_HASH, TodoListRestClient.notesHash(notes));
+                    long applyStart = System.nanoTime();
+                    if (dbHelper.getWritableDatabase().update(TodoListSchema.Entries.TABLE_NAME, values,
+                            BaseColumns._ID + " = " + entry[0] + " AND " + TodoListSchema.Entries.NOTES + " IS NULL",
+                            null) > 0) {
+                        result.numNotesDownloads++;
+                        notifyContentResolverOfChange((int) entry[0]);
+                    }
+                    result.applyTime += elapsedMillis(applyStart);
+                }
             } catch (IOException e) {
-                Log.e(TAG, "onPerformSync, Network Error: " + e.getMessage());
+                Log.e(TAG, "onPerformNotesDownload, Network Error: " + e.getMessage());
                 result.numIoExceptions += 1;
-                return result;
 
             } catch (URISyntaxException e) {
-                Log.e(TAG, "onPerformSync, Invalid request: " + e.getMessage());
+                Log.e(TAG, "onPerformNotesDownload, Invalid request: " + e.getMessage());
                 result.numRequestExceptions += 1;
-                return result;
 
+            } catch (JSONException e) {
+                Log.e(TAG, "onPerformNotesDownload, Invalid response: " + e.getMessage());
+                result.numResponseExceptions += 1;
+
+            } catch (AuthenticationException e) {
+                Log.e(TAG, "onPerformNotesDownload, Authentication Error: " + e.getMessage());
+                result.numAuthenticationErrors++;
+                if (e instanceof InvalidCredentialsException) {
+                    result.invalidCredentials = true;
+                }
             }
         }
+        finishSyncResult(result, start, httpRestClient.getStats().since(stats), notifyStart,
+                TodoListSchema.SyncHistory.TYPE_NOTES);
+        return result;
+    }
 
-        TodoListRestClient client = new TodoListRestClient(httpRestClient);
+    /**
+     * Records the start of a sync in its result
+     *
+     * @param result - result of the sync operation
+     * @return start time of the sync, from System.nanoTime
+     */
+    private static long startSyncResult(SyncResult result) {
+        result.startTime = System.currentTimeMillis();
+        return System.nanoTime();
+    }
 
+    /**
+     * Completes the timings and network usage of a sync result and adds it to the sync history
+     *
+     * @param result      - result of the sync operation
+     * @param start       - start time of the sync, from System.nanoTime
+     * @param stats       - statistics of the requests executed by the sync
+     * @param notifyStart - value of notifyNanos at the start of the sync
+     * @param download    - true if the sync downloaded the remote changes
+     */
+    private void finishSyncResult(SyncResult result, long start, HttpRestClient.Stats stats,
+                                  long notifyStart, boolean download) {
+        String type;
+        if (result.fullSync)
+            type = TodoListSchema.SyncHistory.TYPE_FULL;
+        else if (download)
+            type = TodoListSchema.SyncHistory.TYPE_INCREMENTAL;
+        else
+            type = TodoListSchema.SyncHistory.TYPE_UPLOAD;
+        finishSyncResult(result, start, stats, notifyStart, type);
+    }
 
-        /**
-         * If a full sync is requested, clear the local datastore, otherwise, start an
-         * upstream sync.
-         */
-        if (fullSync) {
-            clearLocalDataStore();
-        } else {
-            performUpstreamSync(client, result);
+    /**
+     * Completes the timings and network usage of a sync result and adds it to the sync history
+     *
+     * @param result      - result of the sync operation
+     * @param start       - start time of the sync, from System.nanoTime
+     * @param stats       - statistics of the requests executed by the sync
+     * @param notifyStart - value of notifyNanos at the start of the sync
+     * @param type        - type of the sync, one of the SyncHistory TYPE values
+     */
+    private void finishSyncResult(SyncResult result, long start, HttpRestClient.Stats stats,
+                                  long notifyStart, String type) {
+        result.totalTime = elapsedMillis(start);
+        result.notifyTime = (notifyNanos.get() - notifyStart) / 1000000;
+        result.numRoundTrips = stats.numRequests;
+        result.bytesSent = stats.bytesSent;
+        result.bytesReceived = stats.bytesReceived;
+        result.bytesDecoded = stats.bytesDecoded;
+        Log.i(TAG, "Sync completed: " + result);
+
+        ContentValues values = new ContentValues();
+        values.put(TodoListSchema.SyncHistory.START_TIME, result.startTime);
+        values.put(TodoListSchema.SyncHistory.TYPE, type);
+        values.put(TodoListSchema.SyncHistory.SUCCEEDED,
+                result.networkError() || result.serverError() || result.authenticationError() ? 0 : 1);
+        values.put(TodoListSchema.SyncHistory.TOTAL_TIME, result.totalTime);
+        values.put(TodoListSchema.SyncHistory.AUTH_TIME, result.authTime);
+        values.put(TodoListSchema.SyncHistory.UPSTREAM_TIME, result.upstreamTime);
+        values.put(TodoListSchema.SyncHistory.DOWNLOAD_TIME, result.downloadTime);
+        values.put(TodoListSchema.SyncHistory.PARSE_TIME, result.parseTime);
+        values.put(TodoListSchema.SyncHistory.APPLY_TIME, result.applyTime);
+        values.put(TodoListSchema.SyncHistory.NOTIFY_TIME, result.notifyTime);
+        values.put(TodoListSchema.SyncHistory.ROUND_TRIPS, result.numRoundTrips);
+        values.put(TodoListSchema.SyncHistory.BYTES_SENT, result.bytesSent);
+        values.put(TodoListSchema.SyncHistory.BYTES_RECEIVED, result.bytesReceived);
+        values.put(TodoListSchema.SyncHistory.ENTRIES, result.numEntries);
+        values.put(TodoListSchema.SyncHistory.UPSTREAM_ENTRIES,
+                result.numUpstreamInserts + result.numUpstreamUpdates + result.numUpstreamDeletes);
+
+        // Add the result and drop the oldest ones beyond the history size
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.insert(TodoListSchema.SyncHistory.TABLE_NAME, null, values);
+            db.delete(TodoListSchema.SyncHistory.TABLE_NAME, BaseColumns._ID + " NOT IN (SELECT "
+                    + BaseColumns._ID + " FROM " + TodoListSchema.SyncHistory.TABLE_NAME
+                    + " ORDER BY " + BaseColumns._ID + " DESC LIMIT " + SYNC_HISTORY_SIZE + ")", null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
+        notifyContentResolverOfChange(TodoListSchema.SyncHistory.CONTENT_URI);
+    }
 
-        if (!(result.serverError() || result.networkError())) {
-            if (lastSyncTime() > 0) {
-                performIncrementalSync(client, result);
-            } else {
-                performFullSync(client, result);
+    /**
+     * @param startNanos - start time, from System.nanoTime
+     * @return milliseconds elapsed since the start time
+     */
+    private static long elapsedMillis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    /**
+     * Sets up the authenticator of the HttpRestClient for the account
+     *
+     * @param httpRestClient - client object to authenticate
+     * @param account        - optional account to use to validate requests to the rest service
+     * @param result         - result of the sync operation, errors are counted here
+     * @return true if the sync can proceed
+     */
+    private boolean authenticate(HttpRestClient httpRestClient, Account account, SyncResult result) {
+        if (account == null)
+            return true;
+
+        long start = System.nanoTime();
+        try {
+            httpRestClient.setAuthenticator(new GaeAuthenticator(getContext(), account));
+            return true;
+        } catch (AuthenticationException e) {
+            Log.e(TAG, "onPerformSync, Authentication Error: " + e.getMessage());
+            result.numAuthenticationErrors++;
+            if (e.getCause() instanceof InvalidCredentialsException) {
+                result.invalidCredentials = true;
             }
-        }
 
+        } catch (IOException e) {
+            Log.e(TAG, "onPerformSync, Network Error: " + e.getMessage());
+            result.numIoExceptions += 1;
 
-        return result;
+        } catch (URISyntaxException e) {
+            Log.e(TAG, "onPerformSync, Invalid request: " + e.getMessage());
+            result.numRequestExceptions += 1;
+
+        } finally {
+            result.authTime += elapsedMillis(start);
+        }
+        return false;
     }
 
+    /**
+     * Called by a download between pages, uploads any local edits that are waiting. The
+     * ids of the uploaded entries are recorded in uploadedDuringDownload, so the rest of
+     * the download skips them.
+     *
+     * @param client - cloudtodolist api client object
+     * @param result - result of the sync operation
+     */
+    private void yieldToUploads(TodoListRestClient client, SyncResult result) {
+        if (!uploadPending)
+            return;
+
+        synchronized (upstreamLock) {
+            performUpstreamSync(client, result);
+        }
+        result.numUploadYields++;
+    }
 
     /**
      * Performs an incremental sync by using the lastSyncTime as a MODIFIED filter
-     * to the getEntries API request.
+     * to the getEntries API request. The entries are applied a page at a time and
+     * the lastSyncTime is only advanced after the last page, so an interrupted
+     * sync is repeated, which is harmless since applying an entry is idempotent.
      *
      * @param client - cloudtodolist api client object
      * @param result - result of the incremental sync operation
+     * @param budget - budget of the sync, passed on to a reconciliation
      */
-    private void performIncrementalSync(TodoListRestClient client, SyncResult result) {
+    private void performIncrementalSync(TodoListRestClient client, SyncResult result, SyncBudget budget) {
 
         try {
+            long fetchStart = System.nanoTime();
+            long parseStart = client.getParseTime();
             TodoListRestClient.EntryListResponse response = client.getEntries(lastSyncTime());
+            recordFetchTime(result, client, fetchStart, parseStart);
             int statusCode = response.getResponse().getStatusCode();
             if (statusCode == TodoListRestClient.Response.SUCCESS_OK) {
                 List<JSONObject> entries = response.getEntryList();
-                SQLiteDatabase db = dbHelper.getWritableDatabase();
-
-                /**
-                 * Compile a SQL statement to retrieve the number of entries for a specified ID.
-                 * This should always return 0 or 1 since the ID is a unique key
-                 */
-                String idWhere = TodoListSchema.Entries.ID + " = ?";
-                SQLiteStatement entryCount = db.compileStatement(
-                        "SELECT COUNT(*) FROM " + TodoListSchema.Entries.TABLE_NAME + " WHERE " + idWhere);
-
-                // Start a transaction to make the update atomic
-                db.beginTransaction();
-                try {
-                    for (JSONObject entry : entries) {
-                        long id = entry.getLong(TodoListRestClient.ENTRY_ID);
-                        String[] whereArgs = {Long.toString(id)};
-                        if (entry.getBoolean(TodoListRestClient.ENTRY_DELETED)) {
-                            // If the entry is deleted, remove it from the local database
-                            //  regardless of whether or not it is dirty. If its been deleted,
-                            //  our local changes are irrelevant.
-                            long deletes = db.delete(TodoListSchema.Entries.TABLE_NAME, idWhere, whereArgs);
-                            if (deletes > 0) {
-                                result.numDeletes += deletes;
-                                result.numEntries++;
-                                notifyContentResolverOfChange();
-                            }
-                        } else {
-                            ContentValues values = entryObjectValues(entry);
-
-                            /**
-                             * Look in the database to see if this entry already exists or
-                             * is a new addition.
-                             */
-                            entryCount.bindLong(1, id);
-                            if (entryCount.simpleQueryForLong() > 0) {
-
-                                String where = idWhere
-                                        + " AND " + WHERE_CURRENT_ENTRIES
-                                        + " AND " + TodoListSchema.Entries.MODIFIED
-                                        + " != " + values.getAsLong(TodoListSchema.Entries.MODIFIED);
-                                long updates = db.update(TodoListSchema.Entries.TABLE_NAME, values, where, whereArgs);
-                                if (updates > 0) {
-                                    result.numUpdates += updates;
-                                    result.numEntries++;
-                                    notifyContentResolverOfChange();
-                                }
-                            } else {
-                                db.insert(TodoListSchema.Entries.TABLE_NAME, TodoListSchema.Entries.TITLE, values);
-                                result.numInserts++;
-                                result.numEntries++;
-                                notifyContentResolverOfChange();
-                            }
-                        }
+                for (int start = 0; start < entries.size(); start += DOWNLOAD_PAGE_SIZE) {
+                    yieldToUploads(client, result);
+                    synchronized (upstreamLock) {
+                        long applyStart = System.nanoTime();
+                        long notifyStart = notifyNanos.get();
+                        applyIncrementalPage(entries.subList(start,
+                                Math.min(start + DOWNLOAD_PAGE_SIZE, entries.size())), result);
+                        result.applyTime += (System.nanoTime() - applyStart
+                                - (notifyNanos.get() - notifyStart)) / 1000000;
                     }
-                    setLastSyncTime(response.getTimestamp());
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
                 }
+                setLastSyncTime(response.getTimestamp());
             } else if (statusCode == TodoListRestClient.Response.FAILED_BAD_REQUEST) {
                 // A bad request is returned if the last sync time is out of the acceptable
-                //  window. In this case, we need to do a refresh.
-                result.fullSyncRequested = true;
+                //  window. In this case, reconcile the differences, or do a refresh if the
+                //  server can't tell them.
+                if (!performReconciliation(client, result, budget))
+                    result.fullSyncRequested = true;
             } else
-                result.numRequestExceptions = 1;
+                countFailedResponse(result, statusCode);
 
         } catch (IOException e) {
             Log.e(TAG, "performIncrementalSync, Network Error: " + e.getMessage());
@@ -783,66 +1425,412 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
     }
 
     /**
-     * Performs a full sync by retrieving the entire list of existing entries. This may have
-     * been a requested full sync, for it may be because an incremental sync hasn't been performed
-     * in the required window of time. If it was a requested full sync, the local datastore should
-     * be empty. Regardless, the operation will create a temporary table to save off all the dirty
-     * entries, retrieve a full set of existing entries, and then re-apply the dirty entries to preserve
-     * those changes
+     * Reconciles the local entries with the server after the last sync time fell out of
+     * the incremental sync window. The digests of ranges of entry ids are compared with the
+     * digests of the local entries, ranges that differ are split and compared again until
+     * they are small enough to download, so the cost is about the size of the differences.
+     * Once all the ranges match, the lastSyncTime is set to the timestamp of the first
+     * digest, the next incremental sync picks up the changes made during the reconciliation.
      *
      * @param client - cloudtodolist api client object
-     * @param result - result of the full sync operation
+     * @param result - result of the incremental sync operation
+     * @param budget - budget of the sync, checked before each digest request
+     * @return false if the server doesn't support range digests, a full sync is needed
+     * @throws URISyntaxException      indicates invalid syntax in the request's resulting URI
+     * @throws IOException             indicates error in underlying network state or operation
+     * @throws JSONException           indicates an error in the JSON response from the request
+     * @throws AuthenticationException indicates an error with the Authentication process
      */
-    private void performFullSync(TodoListRestClient client, SyncResult result) {
+    private boolean performReconciliation(TodoListRestClient client, SyncResult result, SyncBudget budget)
+            throws IOException, URISyntaxException, JSONException, AuthenticationException {
+
+        // Ranges whose digests need to be retrieved, as {after, upto}. The first one
+        //  covers all the entries on the server
+        LinkedList<long[]> ranges = new LinkedList<long[]>();
+        ranges.add(new long[]{0, 0});
+        double timestamp = 0;
+
+        while (!ranges.isEmpty()) {
+            // The ranges downloaded so far will match next time
+            if (timestamp != 0 && budget.isExhausted()) {
+                result.budgetExhausted = true;
+                return true;
+            }
+            long[] range = ranges.removeFirst();
+            yieldToUploads(client, result);
+
+            long fetchStart = System.nanoTime();
+            TodoListRestClient.DigestResponse response = client.getDigest(range[0], range[1], RECONCILE_BUCKETS);
+            result.downloadTime += elapsedMillis(fetchStart);
+            int statusCode = response.getResponse().getStatusCode();
+            if (statusCode != TodoListRestClient.Response.SUCCESS_OK) {
+                // A server without the resource doesn't know the path, other failures,
+                //  an authentication error in particular, are not a reason to fall back
+                if (timestamp == 0 && (statusCode == TodoListRestClient.Response.FAILED_NOT_FOUND
+                        || statusCode == TodoListRestClient.Response.FAILED_NOT_IMPLEMENTED)) {
+                    Log.i(TAG, "performReconciliation, range digests not supported: " + statusCode);
+                    return false;
+                }
+                countFailedResponse(result, statusCode);
+                return true;
+            }
+            if (timestamp == 0) {
+                timestamp = response.getTimestamp();
+
+                // The local entries past the greatest id on the server no longer exist
+                List<TodoListRestClient.DigestRange> remoteRanges = response.getRanges();
+                long serverUpto = (remoteRanges.isEmpty() ? 0 : remoteRanges.get(remoteRanges.size() - 1).getUpto());
+                long localUpto = DatabaseUtils.longForQuery(dbHelper.getReadableDatabase(),
+                        "SELECT IFNULL(MAX(" + TodoListSchema.Entries.ID + "), 0) FROM "
+                                + TodoListSchema.Entries.TABLE_NAME, null);
+                if (localUpto > serverUpto
+                        && !downloadRange(client, new TodoListRestClient.DigestRange(serverUpto, localUpto, 0, ""), result))
+                    return true;
+            }
+
+            for (TodoListRestClient.DigestRange remote : response.getRanges()) {
+                result.numDigestRanges++;
+                if (localDigest(remote.getAfter(), remote.getUpto()).matches(remote))
+                    continue;
+
+                if (remote.getCount() <= DOWNLOAD_PAGE_SIZE
+                        || remote.getUpto() - remote.getAfter() <= RECONCILE_BUCKETS) {
+                    if (!downloadRange(client, remote, result))
+                        return true;
+                } else {
+                    ranges.add(new long[]{remote.getAfter(), remote.getUpto()});
+                }
+            }
+        }
+
+        setLastSyncTime(timestamp);
+        Log.i(TAG, "performReconciliation, compared " + result.numDigestRanges
+                + " ranges, downloaded " + result.numRangeDownloads);
+        return true;
+    }
 
+    /**
+     * Computes the digest of the local entries in a range of ids, as defined for the
+     * range digests resource of the service
+     *
+     * @param after - the range covers the ids greater than after
+     * @param upto  - and less than or equal to upto
+     * @return digest of the local entries in the range
+     */
+    private TodoListRestClient.DigestRange localDigest(long after, long upto) {
+        TodoListRestClient.RangeDigester digester = new TodoListRestClient.RangeDigester();
+        Cursor cur = dbHelper.getReadableDatabase().query(TodoListSchema.Entries.TABLE_NAME,
+                new String[]{TodoListSchema.Entries.ID, TodoListSchema.Entries.MODIFIED},
+                TodoListSchema.Entries.ID + " > ? AND " + TodoListSchema.Entries.ID + " <= ?",
+                new String[]{Long.toString(after), Long.toString(upto)},
+                null, null, TodoListSchema.Entries.ID + " ASC");
         try {
-            TodoListRestClient.EntryListResponse response = client.getEntries();
-            if (response.getResponse().getStatusCode() == TodoListRestClient.Response.SUCCESS_OK) {
-                List<JSONObject> entries = response.getEntryList();
-                SQLiteDatabase db = dbHelper.getWritableDatabase();
+            for (cur.moveToFirst(); !cur.isAfterLast(); cur.moveToNext())
+                digester.add(cur.getLong(0), cur.getLong(1));
+        } finally {
+            cur.close();
+        }
+        return digester.toRange(after, upto);
+    }
+
+    /**
+     * Downloads the entries in a range of ids that differs from the server and replaces
+     * the local entries in the range with them. Dirty entries that still exist on the
+     * server are kept, like in a full sync.
+     *
+     * @param client - cloudtodolist api client object
+     * @param remote - digest of the range on the server
+     * @param result - result of the incremental sync operation
+     * @return false if the download failed, the failure is counted in the result
+     * @throws URISyntaxException      indicates invalid syntax in the request's resulting URI
+     * @throws IOException             indicates error in underlying network state or operation
+     * @throws JSONException           indicates an error in the JSON response from the request
+     * @throws AuthenticationException indicates an error with the Authentication process
+     */
+    private boolean downloadRange(TodoListRestClient client, TodoListRestClient.DigestRange remote,
+                                  SyncResult result)
+            throws IOException, URISyntaxException, JSONException, AuthenticationException {
+
+        List<JSONObject> entries = new ArrayList<JSONObject>();
+        if (remote.getCount() > 0) {
+            long fetchStart = System.nanoTime();
+            long parseStart = client.getParseTime();
+            TodoListRestClient.EntryListResponse response = client.getEntries(remote.getAfter(), remote.getCount());
+            recordFetchTime(result, client, fetchStart, parseStart);
+            int statusCode = response.getResponse().getStatusCode();
+            if (statusCode != TodoListRestClient.Response.SUCCESS_OK) {
+                countFailedResponse(result, statusCode);
+                return false;
+            }
 
-                String tempTableName = TodoListSchema.Entries.TABLE_NAME + "_refresh";
+            // Entries deleted since the digest shift the page past the end of the range
+            for (JSONObject entry : response.getEntryList()) {
+                if (entry.getLong(TodoListRestClient.ENTRY_ID) <= remote.getUpto())
+                    entries.add(entry);
+            }
+        }
+        result.numRangeDownloads++;
 
-                db.beginTransaction();
-                try {
-                    // Create a Temporary Table to store all the dirty entries
-                    db.execSQL("CREATE TEMP TABLE " + tempTableName
-                            + " AS SELECT * from " + TodoListSchema.Entries.TABLE_NAME
-                            + " WHERE " + WHERE_DIRTY_ENTRIES);
-
-                    // Replace the current table with the entries from the refresh
-                    db.delete(TodoListSchema.Entries.TABLE_NAME, null, null);
-                    for (JSONObject entry : entries)
-                        db.insert(TodoListSchema.Entries.TABLE_NAME,
-                                TodoListSchema.Entries.TITLE,
-                                entryObjectValues(entry));
-
-                    // Now add back the Temporary items as an UPDATE. This insures that deleted
-                    //  dirty items are deleted and unsynced changes are maintained
-
-                    Cursor cur = db.query(tempTableName, null, null, null, null, null, null);
-                    String where = TodoListSchema.Entries.ID + "= ?";
-                    for (cur.moveToFirst(); !cur.isAfterLast(); cur.moveToNext()) {
-                        String[] whereArgs = {cur.getString(cur.getColumnIndex(TodoListSchema.Entries.ID))};
-                        ContentValues values = new ContentValues();
-                        for (String column : cur.getColumnNames())
-                            values.put(column, cur.getString(cur.getColumnIndex(column)));
-                        db.update(TodoListSchema.Entries.TABLE_NAME, values, where, whereArgs);
+        List<Long> ids = new ArrayList<Long>();
+        for (JSONObject entry : entries)
+            ids.add(entry.getLong(TodoListRestClient.ENTRY_ID));
+        synchronized (uploadedDuringDownload) {
+            ids.addAll(uploadedDuringDownload);
+        }
+
+        synchronized (upstreamLock) {
+            long applyStart = System.nanoTime();
+            long notifyStart = notifyNanos.get();
+            applyIncrementalPage(entries, result);
+
+            // Remove the entries of the range that no longer exist on the server
+            String where = TodoListSchema.Entries.ID + " > " + remote.getAfter()
+                    + " AND " + TodoListSchema.Entries.ID + " <= " + remote.getUpto();
+            if (!ids.isEmpty())
+                where += " AND " + TodoListSchema.Entries.ID + " NOT IN (" + TextUtils.join(",", ids) + ")";
+            long deletes = dbHelper.getWritableDatabase().delete(TodoListSchema.Entries.TABLE_NAME, where, null);
+            if (deletes > 0) {
+                result.numDeletes += deletes;
+                result.numEntries += deletes;
+                notifyContentResolverOfChange();
+            }
+            result.applyTime += (System.nanoTime() - applyStart
+                    - (notifyNanos.get() - notifyStart)) / 1000000;
+        }
+        return true;
+    }
+
+    /**
+     * Adds the time spent retrieving a list of entries to the download and parse times
+     *
+     * @param result     - result of the sync operation
+     * @param client     - cloudtodolist api client object that retrieved the entries
+     * @param fetchStart - start time of the request, from System.nanoTime
+     * @param parseStart - parse time of the client at the start of the request
+     */
+    private static void recordFetchTime(SyncResult result, TodoListRestClient client,
+                                        long fetchStart, long parseStart) {
+        long parseTime = client.getParseTime() - parseStart;
+        result.parseTime += parseTime;
+        result.downloadTime += Math.max(0, elapsedMillis(fetchStart) - parseTime);
+    }
+
+    /**
+     * Applies a page of entries from an incremental sync in a single transaction.
+     * Entries uploaded while the download was in progress are skipped, the
+     * downloaded versions are older than the ones on the server.
+     *
+     * @param entries - page of entries to apply
+     * @param result  - result of the incremental sync operation
+     * @throws JSONException - indicates an invalid format of an entry
+     */
+    private void applyIncrementalPage(List<JSONObject> entries, SyncResult result) throws JSONException {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+        /**
+         * Compile a SQL statement to retrieve the number of entries for a specified ID.
+         * This should always return 0 or 1 since the ID is a unique key
+         */
+        String idWhere = TodoListSchema.Entries.ID + " = ?";
+        SQLiteStatement entryCount = db.compileStatement(
+                "SELECT COUNT(*) FROM " + TodoListSchema.Entries.TABLE_NAME + " WHERE " + idWhere);
+
+        // Start a transaction to make the update atomic
+        db.beginTransaction();
+        try {
+            for (JSONObject entry : entries) {
+                long id = entry.getLong(TodoListRestClient.ENTRY_ID);
+                String[] whereArgs = {Long.toString(id)};
+                if (uploadedDuringDownload.contains(id)) {
+                    continue;
+                } else if (isUploadEcho(id, entry)) {
+                    // Our own upload, the local entry is already up to date
+                    result.numEchoesSuppressed++;
+                    continue;
+                } else if (entry.getBoolean(TodoListRestClient.ENTRY_DELETED)) {
+                    // If the entry is deleted, remove it from the local database
+                    //  regardless of whether or not it is dirty. If its been deleted,
+                    //  our local changes are irrelevant.
+                    long deletes = db.delete(TodoListSchema.Entries.TABLE_NAME, idWhere, whereArgs);
+                    if (deletes > 0) {
+                        result.numDeletes += deletes;
+                        result.numEntries++;
+                        notifyContentResolverOfChange();
                     }
+                } else {
+                    ContentValues values = entryObjectValues(entry);
+
+                    /**
+                     * Look in the database to see if this entry already exists or
+                     * is a new addition.
+                     */
+                    entryCount.bindLong(1, id);
+                    if (entryCount.simpleQueryForLong() > 0) {
+
+                        String where = idWhere
+                                + " AND " + WHERE_CURRENT_ENTRIES
+                                + " AND " + TodoListSchema.Entries.MODIFIED
+                                + " != " + values.getAsLong(TodoListSchema.Entries.MODIFIED);
+                        if (!values.containsKey(TodoListSchema.Entries.NOTES)) {
+                            // A summary, the local notes are kept unless they changed on the server
+                            ContentValues staleNotes = new ContentValues();
+                            staleNotes.putNull(TodoListSchema.Entries.NOTES);
+                            db.update(TodoListSchema.Entries.TABLE_NAME, staleNotes, where
+                                    + " AND (" + TodoListSchema.Entries.NOTES_HASH + " IS NULL OR "
+                                    + TodoListSchema.Entries.NOTES_HASH + " != ?)",
+                                    new String[]{whereArgs[0], values.getAsString(TodoListSchema.Entries.NOTES_HASH)});
+                        }
+                        long updates = db.update(TodoListSchema.Entries.TABLE_NAME, values, where, whereArgs);
+                        if (updates > 0) {
+                            result.numUpdates += updates;
+                            result.numEntries++;
+                            notifyContentResolverOfChange();
+                        }
+                    } else {
+                        db.insert(TodoListSchema.Entries.TABLE_NAME, TodoListSchema.Entries.TITLE, values);
+                        result.numInserts++;
+                        result.numEntries++;
+                        notifyContentResolverOfChange();
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            entryCount.close();
+        }
+    }
+
+    /**
+     * Checks whether a downloaded entry is the echo of an upload, the version of the
+     * entry the server returned when we uploaded it. A match is consumed, a later
+     * version of the entry, edited by another client, is not an echo.
+     *
+     * @param id    - server id of the entry
+     * @param entry - downloaded entry
+     * @return true if the entry is the echo of an upload
+     * @throws JSONException - indicates an invalid format of the entry
+     */
+    private boolean isUploadEcho(long id, JSONObject entry) throws JSONException {
+        Long modified = uploadEchoes.remove(id);
+        return modified != null && !entry.getBoolean(TodoListRestClient.ENTRY_DELETED)
+                && modified == (long) (entry.getDouble(TodoListRestClient.ENTRY_MODIFIED) * 1000);
+    }
 
-                    setLastSyncTime(response.getTimestamp());
+    /**
+     * Sets whether lists of entries are downloaded as summaries, without their notes, which
+     * are then downloaded by onPerformNotesDownload. Summaries are the default.
+     *
+     * @param enabled - flag indicating whether to download summaries
+     */
+    void setSummaryDownloads(boolean enabled) {
+        summaryDownloads = enabled;
+    }
 
+    /**
+     * Sets whether full syncs fetch and parse pages on their own threads, or one page at a
+     * time on the sync thread. Pipelined downloads are the default, this is for comparing them.
+     *
+     * @param enabled - flag indicating whether full syncs use a concurrent DownloadPipeline
+     */
+    void setPipelinedDownloads(boolean enabled) {
+        pipelinedDownloads = enabled;
+    }
 
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
-                    // Clean up the temporary Table
-                    db.execSQL("DROP TABLE IF EXISTS " + tempTableName + ";");
+    /**
+     * Performs a full sync by retrieving the entire list of existing entries. This may have
+     * been a requested full sync, for it may be because an incremental sync hasn't been performed
+     * in the required window of time. If it was a requested full sync, the local datastore should
+     * be empty. Regardless, the retrieved entries are staged in the staging table a page at a
+     * time, and then swapped in with a single transaction. Dirty entries are preserved by the
+     * swap, unless the entry no longer exists on the server, so unsynced changes are maintained
+     * <p/>
+     * <p>After each page, a checkpoint with the id of the last staged entry is persisted. If the
+     * full sync is interrupted, by a network error or the process being killed, the next
+     * scheduled sync continues after the checkpoint, a full sync requested by the user or
+     * a change of settings starts over. Once swapped in, the lastSyncTime is set to the
+     * timestamp of the first page, so the next incremental sync picks up the changes that were
+     * made while the pages were retrieved.</p>
+     * <p/>
+     * <p>The pages are fetched and parsed by a DownloadPipeline, on their own threads, while
+     * this thread writes the previous pages to the staging table. Uploads between pages are
+     * performed by the fetch thread, the only one using the client during the download.</p>
+     *
+     * @param client - cloudtodolist api client object
+     * @param result - result of the full sync operation
+     * @param budget - budget of the sync, checked before each page after the first
+     */
+    private void performFullSync(final TodoListRestClient client, final SyncResult result, SyncBudget budget) {
+
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        result.fullSync = true;
+        try {
+            long afterId = fullSyncCheckpointId();
+            double timestamp = fullSyncCheckpointTime();
+            if (afterId < 0) {
+                // Start a new full sync
+                db.delete(STAGING_TABLE_NAME, null, null);
+                afterId = 0;
+            } else {
+                Log.i(TAG, "performFullSync, resuming after entry " + afterId);
+            }
+
+            DownloadPipeline pipeline = new DownloadPipeline(client, DOWNLOAD_PAGE_SIZE, budget, new Runnable() {
+                @Override
+                public void run() {
+                    yieldToUploads(client, result);
                 }
+            }, pipelinedDownloads);
+            pipeline.start(afterId);
+            try {
+                boolean lastPage = false;
+                while (!lastPage) {
+                    DownloadPipeline.Page page = pipeline.next();
+                    result.downloadTime += page.fetchTime;
+                    result.parseTime += page.parseTime;
+                    lastPage = page.last;
+
+                    // The checkpoint of the last page is persisted, the next sync continues after it
+                    if (page.budgetExhausted) {
+                        result.budgetExhausted = true;
+                        return;
+                    }
+                    if (page.statusCode != TodoListRestClient.Response.SUCCESS_OK) {
+                        countFailedResponse(result, page.statusCode);
+                        return;
+                    }
+                    if (page.afterId == 0)
+                        timestamp = page.timestamp;
+
+                    long applyStart = System.nanoTime();
+                    db.beginTransaction();
+                    try {
+                        for (ContentValues values : page.values)
+                            db.replace(STAGING_TABLE_NAME, TodoListSchema.Entries.TITLE, values);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                    afterId = Math.max(afterId, page.lastId);
+                    setFullSyncCheckpoint(afterId, timestamp);
+                    result.applyTime += elapsedMillis(applyStart);
+                    result.numEntries += page.values.size();
+                }
+            } finally {
+                pipeline.close();
+            }
+            yieldToUploads(client, result);
 
-                notifyContentResolverOfChange();
-            } else
-                result.numRequestExceptions = 1;
+            synchronized (upstreamLock) {
+                long applyStart = System.nanoTime();
+                swapInStagedEntries(STAGING_TABLE_NAME);
+                setLastSyncTime(timestamp);
+                result.applyTime += elapsedMillis(applyStart);
+            }
+            clearFullSyncCheckpoint();
+            db.delete(STAGING_TABLE_NAME, null, null);
+
+            notifyContentResolverOfChange();
         } catch (IOException e) {
             Log.e(TAG, "performFullSync, Network Error: " + e.getMessage());
             result.numIoExceptions += 1;
@@ -861,9 +1849,152 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
             if (e instanceof InvalidCredentialsException) {
                 result.invalidCredentials = true;
             }
+
+        } catch (RuntimeException e) {
+            // Thrown on a stage of the download pipeline, like a login on the fetch thread,
+            //  and rethrown here. It fails the sync rather than the service
+            Log.e(TAG, "performFullSync, Download failed", e);
+            boolean authentication = false;
+            for (Throwable cause = e; cause != null; cause = cause.getCause())
+                authentication |= cause instanceof AuthenticationException;
+            if (authentication)
+                result.numAuthenticationErrors++;
+            else
+                result.numIoExceptions += 1;
+        }
+    }
+
+    /**
+     * Replaces the synced entries with the staged entries of a full sync, in a single
+     * transaction. Entries that were never synced, dirty entries that still exist on the
+     * server and entries uploaded while the full sync was in progress are kept.
+     *
+     * @param stagingTableName - name of the table the entries were staged in
+     */
+    private void swapInStagedEntries(String stagingTableName) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+        String columns = TodoListSchema.Entries.ID + ", "
+                + TodoListSchema.Entries.TITLE + ", "
+                + TodoListSchema.Entries.NOTES + ", "
+                + TodoListSchema.Entries.COMPLETE + ", "
+                + TodoListSchema.Entries.CREATED + ", "
+                + TodoListSchema.Entries.MODIFIED + ", "
+                + TodoListSchema.Entries.NOTES_HASH;
+
+        // Ids that the staged entries must not replace
+        String notUploaded = "";
+        synchronized (uploadedDuringDownload) {
+            if (!uploadedDuringDownload.isEmpty())
+                notUploaded = " AND " + TodoListSchema.Entries.ID
+                        + " NOT IN (" + TextUtils.join(",", uploadedDuringDownload) + ")";
+        }
+
+        db.beginTransaction();
+        try {
+            // Keep the local notes of the staged summaries whose notes didn't change
+            db.execSQL("UPDATE " + stagingTableName + " SET " + TodoListSchema.Entries.NOTES
+                    + " = (SELECT local." + TodoListSchema.Entries.NOTES
+                    + " FROM " + TodoListSchema.Entries.TABLE_NAME + " AS local"
+                    + " WHERE local." + TodoListSchema.Entries.ID + " = "
+                    + stagingTableName + "." + TodoListSchema.Entries.ID
+                    + " AND local." + TodoListSchema.Entries.NOTES_HASH + " = "
+                    + stagingTableName + "." + TodoListSchema.Entries.NOTES_HASH + ")"
+                    + " WHERE " + TodoListSchema.Entries.NOTES + " IS NULL;");
+
+            // Remove the synced entries, and the dirty entries that no longer exist on the server
+            db.delete(TodoListSchema.Entries.TABLE_NAME,
+                    "(" + WHERE_CURRENT_ENTRIES
+                            + " OR " + TodoListSchema.Entries.ID + " NOT IN (SELECT "
+                            + TodoListSchema.Entries.ID + " FROM " + stagingTableName + "))"
+                            + " AND " + TodoListSchema.Entries.ID + " IS NOT NULL" + notUploaded, null);
+
+            // Add the staged entries, the remaining dirty entries take precedence
+            db.execSQL("INSERT OR IGNORE INTO " + TodoListSchema.Entries.TABLE_NAME
+                    + " (" + columns + ") SELECT " + columns + " FROM " + stagingTableName
+                    + " WHERE 1" + notUploaded + ";");
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Folds the pending operations of each entry into the requests the upstream sync
+     * has to make. Edits are folded as they are made, an entry holds its latest state
+     * and is uploaded once however many times it was edited. An entry that was created
+     * and deleted since the last sync, and never sent to the server, the create and the
+     * delete cancel out and the entry is dropped without a request. An entry with an
+     * operation id was sent, the create may have reached the server. The caller must
+     * hold the upstreamLock.
+     *
+     * @param result - result of the upstream sync operation
+     */
+    private void compactPendingOperations(SyncResult result) {
+        int compacted = dbHelper.getWritableDatabase().delete(TodoListSchema.Entries.TABLE_NAME,
+                TodoListSchema.Entries.PENDING_DELETE + " > 0"
+                        + " AND " + TodoListSchema.Entries.ID + " IS NULL"
+                        + " AND " + TodoListSchema.Entries.CLIENT_OP_ID + " IS NULL", null);
+        if (compacted > 0) {
+            result.numCompactedRequests += compacted;
+            Log.i(TAG, "compactPendingOperations, dropped " + compacted + " entries that were never synced");
         }
     }
 
+    /**
+     * @param cur - cursor positioned on an entry to upload
+     * @return editable fields of the entry, as sent to the server
+     */
+    private static ContentValues uploadValues(Cursor cur) {
+        ContentValues values = new ContentValues();
+        values.put(TodoListSchema.Entries.TITLE,
+                cur.getString(cur.getColumnIndex(TodoListSchema.Entries.TITLE)));
+        // Notes that weren't downloaded are left as they are on the server
+        String notes = cur.getString(cur.getColumnIndex(TodoListSchema.Entries.NOTES));
+        if (notes != null)
+            values.put(TodoListSchema.Entries.NOTES, notes);
+        values.put(TodoListSchema.Entries.COMPLETE,
+                cur.getInt(cur.getColumnIndex(TodoListSchema.Entries.COMPLETE)));
+        return values;
+    }
+
+    /**
+     * Checks whether an entry returned by the server holds the values that were uploaded
+     *
+     * @param entry  entry object returned by the server
+     * @param values values uploaded, as returned by uploadValues
+     * @return true if the title, notes and complete flag of the entry match the upload
+     * @throws JSONException if the entry object is invalid
+     */
+    private static boolean hasUploadedValues(JSONObject entry, ContentValues values) throws JSONException {
+        ContentValues entryValues = entryObjectValues(entry);
+        if (!entryValues.getAsString(TodoListSchema.Entries.TITLE)
+                .equals(values.getAsString(TodoListSchema.Entries.TITLE)))
+            return false;
+        if (!entryValues.getAsInteger(TodoListSchema.Entries.COMPLETE)
+                .equals(values.getAsInteger(TodoListSchema.Entries.COMPLETE)))
+            return false;
+        String notes = values.getAsString(TodoListSchema.Entries.NOTES);
+        return notes == null || TodoListRestClient.notesHash(notes)
+                .equals(entryValues.getAsString(TodoListSchema.Entries.NOTES_HASH));
+    }
+
+    /**
+     * Assigns an operation id to the create of an entry, before it is sent to the server
+     *
+     * @param rowId - row id of the entry
+     * @return the new operation id
+     */
+    private String createOperationId(int rowId) {
+        String operationId = UUID.randomUUID().toString();
+        ContentValues values = new ContentValues();
+        values.put(TodoListSchema.Entries.CLIENT_OP_ID, operationId);
+        dbHelper.getWritableDatabase().update(TodoListSchema.Entries.TABLE_NAME, values,
+                BaseColumns._ID + " = " + rowId, null);
+        return operationId;
+    }
+
     /**
      * Handles staging an upstream sync.First, stage the sync by creating a
      * temporary table that contains all the dirty entries and updating the
@@ -920,13 +2051,33 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
     }
 
     /**
-     * Handles syncing all local,dirty entries with the the upstream service.
+     * Handles syncing all local,dirty entries with the the upstream service. The
+     * caller must hold the upstreamLock.
      *
      * @param client - cloudtodolist api client object
      * @param result - result of the upstream sync operation
      */
     void performUpstreamSync(TodoListRestClient client, SyncResult result) {
+        performUpstreamSync(client, result, SyncBudget.UNLIMITED);
+    }
+
+    /**
+     * Handles syncing the local, dirty entries with the upstream service, within a budget.
+     * When the budget runs out, the remaining entries stay dirty for the next sync. The
+     * caller must hold the upstreamLock.
+     *
+     * @param client - cloudtodolist api client object
+     * @param result - result of the upstream sync operation
+     * @param budget - budget of the sync, checked before each entry
+     */
+    void performUpstreamSync(TodoListRestClient client, SyncResult result, SyncBudget budget) {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+        long start = System.nanoTime();
+
+        // Edits made after the staging set the flag again
+        uploadPending = false;
+        compactPendingOperations(result);
         String tempTableName = stageUpstreamSync();
         Cursor cur = null;
 
@@ -935,37 +2086,76 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
             // Walk through the temporary staging table and perform the pending action
             cur = db.query(tempTableName, null, null, null, null, null, TodoListSchema.Entries.DEFAULT_SORT_ORDER);
             for (cur.moveToFirst(); !cur.isAfterLast(); cur.moveToNext()) {
+                if (budget.isExhausted()) {
+                    result.budgetExhausted = true;
+                    uploadPending = true;
+                    break;
+                }
                 int rowId = cur.getInt(cur.getColumnIndex(BaseColumns._ID));
                 String[] whereArgs = {Integer.toString(rowId)};
                 int id = cur.getInt(cur.getColumnIndex(TodoListSchema.Entries.ID));
+                String operationId = cur.getString(cur.getColumnIndex(TodoListSchema.Entries.CLIENT_OP_ID));
 
 
                 try {
                     if (cur.getInt(cur.getColumnIndex(TodoListSchema.Entries.PENDING_DELETE)) > 0) {
+                        if (id == 0 && operationId == null) {
+                            // Deleted since the compaction, it never reached the server
+                            db.delete(TodoListSchema.Entries.TABLE_NAME, idWhere, whereArgs);
+                            result.numCompactedRequests += 1;
+                            continue;
+                        } else if (id == 0) {
+                            // The create was sent, but its response was lost. Repeating the
+                            //  operation returns the id the server assigned, if it got there
+                            TodoListRestClient.EntryObjectResponse created
+                                    = client.postEntry(uploadValues(cur), operationId);
+                            int statusCode = created.getResponse().getStatusCode();
+                            if (statusCode != TodoListRestClient.Response.SUCCESS_ADDED
+                                    && statusCode != TodoListRestClient.Response.SUCCESS_OK) {
+                                countFailedResponse(result, statusCode);
+                                continue;
+                            }
+                            id = created.getEntryObject().getInt(TodoListRestClient.ENTRY_ID);
+                        }
+
                         // Attempt to delete the item via the client, if it succeeds, delete it locally
                         TodoListRestClient.Response response = client.deleteEntry(id);
-                        if (response.getResponse().getStatusCode() == TodoListRestClient.Response.SUCCESS_OK) {
+                        int statusCode = response.getResponse().getStatusCode();
+                        if (statusCode == TodoListRestClient.Response.SUCCESS_OK) {
                             db.delete(TodoListSchema.Entries.TABLE_NAME, idWhere, whereArgs);
                             result.numUpstreamDeletes += 1;
+                            if (downloadInProgress)
+                                uploadedDuringDownload.add((long) id);
                             notifyContentResolverOfChange(rowId);
                         } else
-                            result.numRequestExceptions = 1;
+                            countFailedResponse(result, statusCode);
                     } else if (cur.getInt(cur.getColumnIndex(TodoListSchema.Entries.PENDING_UPDATE)) > 0) {
-                        ContentValues values = new ContentValues();
-                        values.put(TodoListSchema.Entries.TITLE,
-                                cur.getString(cur.getColumnIndex(TodoListSchema.Entries.TITLE)));
-                        values.put(TodoListSchema.Entries.NOTES,
-                                cur.getString(cur.getColumnIndex(TodoListSchema.Entries.NOTES)));
-                        values.put(TodoListSchema.Entries.COMPLETE,
-                                cur.getInt(cur.getColumnIndex(TodoListSchema.Entries.COMPLETE)));
+                        ContentValues values = uploadValues(cur);
 
                         // If the entry was updated, check if it has a valid ID. If it
-                        //  is zero, the entry need to be inserted, otherwise update
+                        //  is zero, the entry need to be inserted, otherwise update.
+                        //  The operation id of an insert is persisted before it is sent,
+                        //  so every attempt to create the entry carries the same one
                         TodoListRestClient.EntryObjectResponse response;
                         if (id == 0) {
-                            response = client.postEntry(values);
+                            boolean retry = operationId != null;
+                            if (operationId == null)
+                                operationId = createOperationId(rowId);
+                            response = client.postEntry(values, operationId);
+
+                            // A repeated create returns the entry the first attempt created,
+                            //  edits made since then are sent as an update of that entry
+                            int statusCode = response.getResponse().getStatusCode();
+                            if (retry && (statusCode == TodoListRestClient.Response.SUCCESS_ADDED
+                                    || statusCode == TodoListRestClient.Response.SUCCESS_OK)
+                                    && !hasUploadedValues(response.getEntryObject(), values)) {
+                                result.numUpstreamInserts += 1;
+                                response = client.putEntry(
+                                        response.getEntryObject().getInt(TodoListRestClient.ENTRY_ID),
+                                        values, UUID.randomUUID().toString());
+                            }
                         } else {
-                            response = client.putEntry(id, values);
+                            response = client.putEntry(id, values, UUID.randomUUID().toString());
                         }
 
                         // If success, update the local entry if it is not dirty and
@@ -976,15 +2166,20 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
                         else if (statusCode == TodoListRestClient.Response.SUCCESS_ADDED)
                             result.numUpstreamInserts += 1;
                         else {
-                            result.numRequestExceptions = 1;
+                            countFailedResponse(result, statusCode);
                             continue;
                         }
 
                         // Update the entry in the response, but not the "editable" fields
                         values = entryObjectValues(response.getEntryObject());
+                        if (downloadInProgress)
+                            uploadedDuringDownload.add(values.getAsLong(TodoListSchema.Entries.ID));
+                        uploadEchoes.put(values.getAsLong(TodoListSchema.Entries.ID),
+                                values.getAsLong(TodoListSchema.Entries.MODIFIED));
                         values.remove(TodoListSchema.Entries.TITLE);
                         values.remove(TodoListSchema.Entries.NOTES);
                         values.remove(TodoListSchema.Entries.COMPLETE);
+                        values.putNull(TodoListSchema.Entries.CLIENT_OP_ID);
                         db.beginTransaction();
                         try {
                             long pendingTx = DatabaseUtils.longForQuery(db,
@@ -1022,9 +2217,30 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
         } finally {
             endUpstreamSync(tempTableName);
             cur.close();
+            result.upstreamTime += elapsedMillis(start);
         }
     }
 
+    /**
+     * Counts an unexpected response status in the sync result. Server errors (5xx)
+     * are counted separately, so that the sync service can back off from an
+     * unavailable server
+     *
+     * @param result     result of the sync operation
+     * @param statusCode status code of the unexpected response
+     */
+    private static void countFailedResponse(SyncResult result, int statusCode) {
+        // The client logs in again when a session is rejected, a rejection that
+        //  reaches the provider is a failed login
+        if (statusCode == TodoListRestClient.Response.FAILED_UNAUTHORIZED
+                || statusCode == TodoListRestClient.Response.FAILED_LOGIN_REQUIRED)
+            result.numAuthenticationErrors++;
+        else if (statusCode >= TodoListRestClient.Response.FAILED_SERVER_ERROR)
+            result.numServerErrors++;
+        else
+            result.numRequestExceptions++;
+    }
+
     /**
      * Parses the entry ID from the specified URI
      *
@@ -1038,6 +2254,17 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
         );
     }
 
+    /**
+     * Returns the cursor of the remote data the provider is in sync with, this is
+     * the server timestamp of the last successful download, or 0 before the first sync.
+     * Change hints with a newer cursor mean there is something to download.
+     *
+     * @return the sync cursor
+     */
+    public double getSyncCursor() {
+        return lastSyncTime();
+    }
+
     /**
      * Retrieves the last sync time from the SharedPrefs
      */
@@ -1057,5 +2284,67 @@ public class TodoListProvider extends ContentProvider implements RestDataProvide
         String val = Double.toString(lastSyncTime);
         editor.putString(key, val);
         editor.commit();
+
+        // Uploads up to the sync time were echoed by the download, if at all
+        long syncTime = (long) (lastSyncTime * 1000);
+        synchronized (uploadEchoes) {
+            for (Iterator<Long> it = uploadEchoes.values().iterator(); it.hasNext(); ) {
+                if (it.next() <= syncTime)
+                    it.remove();
+            }
+        }
+    }
+
+    /**
+     * Determines whether an interrupted full sync can be resumed. A checkpoint that isn't
+     * newer than the lastSyncTime is left over from a full sync that completed, and is ignored
+     *
+     * @return true if there is a checkpoint of an interrupted full sync
+     */
+    private boolean hasFullSyncCheckpoint() {
+        return fullSyncCheckpointId() >= 0 && fullSyncCheckpointTime() > lastSyncTime();
+    }
+
+    /**
+     * Retrieves the id of the last staged entry of an interrupted full sync from the SharedPrefs
+     *
+     * @return id of the last staged entry, or -1 if there is no checkpoint
+     */
+    private long fullSyncCheckpointId() {
+        return sharedPreferences.getLong(getContext().getString(R.string.fullSyncCheckpointId), -1);
+    }
+
+    /**
+     * Retrieves the timestamp of the first page of an interrupted full sync from the SharedPrefs
+     *
+     * @return timestamp of the first page
+     */
+    private double fullSyncCheckpointTime() {
+        String key = getContext().getString(R.string.fullSyncCheckpointTime);
+        return Double.parseDouble(sharedPreferences.getString(key, "0"));
+    }
+
+    /**
+     * Writes the full sync checkpoint to the SharedPrefs, this is done after each
+     * staged page is committed
+     *
+     * @param afterId   id of the last staged entry
+     * @param timestamp timestamp of the first page
+     */
+    private void setFullSyncCheckpoint(long afterId, double timestamp) {
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        editor.putLong(getContext().getString(R.string.fullSyncCheckpointId), afterId);
+        editor.putString(getContext().getString(R.string.fullSyncCheckpointTime), Double.toString(timestamp));
+        editor.commit();
+    }
+
+    /**
+     * Removes the full sync checkpoint from the SharedPrefs
+     */
+    private void clearFullSyncCheckpoint() {
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        editor.remove(getContext().getString(R.string.fullSyncCheckpointId));
+        editor.remove(getContext().getString(R.string.fullSyncCheckpointTime));
+        editor.commit();
     }
 }
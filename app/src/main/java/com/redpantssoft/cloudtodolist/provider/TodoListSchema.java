@@ -18,6 +18,9 @@ public final class TodoListSchema {
     public static final String AUTHORITY = "com.redpantssoft.cloudtodolist.provider";
     // Base path for the cloudtodolist data in the content URI
     public static final String PATH_TODOLIST = "cloudtodolist/";
+    // Query parameter selecting the storage partition of an account, by account name. The
+    //  preferred account's entries are accessed without it
+    public static final String PARAMETER_ACCOUNT = "account";
 
     private TodoListSchema() {
     }
@@ -92,5 +95,74 @@ public final class TodoListSchema {
         public static final String PENDING_UPDATE = "pending_update";
         public static final String PENDING_DELETE = "pending_delete";
         public static final String PENDING_TX = "pending_tx";
+        public static final String CLIENT_OP_ID = "client_op_id";
+        // Hash of the notes on the server, as sent in a summary. NOTES is null while the
+        //  notes of an entry synced as a summary haven't been downloaded
+        public static final String NOTES_HASH = "notes_hash";
     }
-}
\ No newline at end of file
+
+    /**
+     * Defines the schema for the SyncHistory table in the TodoList schema. This table
+     * stores the timings and transfer sizes of the most recent sync operations, for
+     * diagnosing slow syncs. It is read only
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public static final class SyncHistory implements BaseColumns {
+
+        // Underlying Database Table Name
+        static final String TABLE_NAME = "sync_history";
+
+        // This class cannot be instantiated
+        private SyncHistory() {
+        }
+
+        /**
+         * Uri Path Definitions for this table.
+         */
+        static final String PATH_SYNC_HISTORY = PATH_TODOLIST + "sync_history";
+
+        /**
+         * URI Definitions
+         */
+        public static final Uri CONTENT_URI
+                = Uri.parse(SCHEME + AUTHORITY + "/" + PATH_SYNC_HISTORY);
+
+        /**
+         * MIME type definitions
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.oci.cloudtodolist.sync_history";
+
+        /**
+         * Default Sort Order for requests, most recent first
+         */
+        public static final String DEFAULT_SORT_ORDER = "start_time DESC";
+
+        /**
+         * Values of the TYPE field
+         */
+        public static final String TYPE_UPLOAD = "upload";
+        public static final String TYPE_INCREMENTAL = "incremental";
+        public static final String TYPE_FULL = "full";
+        public static final String TYPE_NOTES = "notes";
+
+        /**
+         * Data Field Definitions
+         * Times are in milliseconds
+         */
+        public static final String START_TIME = "start_time";
+        public static final String TYPE = "type";
+        public static final String SUCCEEDED = "succeeded";
+        public static final String TOTAL_TIME = "total_time";
+        public static final String AUTH_TIME = "auth_time";
+        public static final String UPSTREAM_TIME = "upstream_time";
+        public static final String DOWNLOAD_TIME = "download_time";
+        public static final String PARSE_TIME = "parse_time";
+        public static final String APPLY_TIME = "apply_time";
+        public static final String NOTIFY_TIME = "notify_time";
+        public static final String ROUND_TRIPS = "round_trips";
+        public static final String BYTES_SENT = "bytes_sent";
+        public static final String BYTES_RECEIVED = "bytes_received";
+        public static final String ENTRIES = "entries";
+        public static final String UPSTREAM_ENTRIES = "upstream_entries";
+    }
+}